@@ -0,0 +1,25 @@
+package com.s3d.httpserver.auth;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.Future;
+
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+
+/**
+ * 异步认证, 例如向认证服务做token introspection. 认证完成前请求挂起, 不占用event loop.
+ */
+public interface AsyncAuthorizationHandler {
+
+	/**
+	 * 认证方式, 与Authorization头的scheme比较时不区分大小写
+	 */
+	public String getMethod();
+
+	/**
+	 * 在event loop中调用, 不能阻塞.
+	 * @return 结果为null表示认证失败(401), future失败时返回500
+	 */
+	public Future<UserSessionDetail> authenticate(ChannelHandlerContext ctx, ServerRequest request,
+			ServerResponse response);
+}
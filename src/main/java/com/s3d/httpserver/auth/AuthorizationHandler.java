@@ -14,9 +14,8 @@ public interface AuthorizationHandler {
 	public String getMethod();
 	
 	/**
-	 * 
-	 * @param request
-	 * @param response
+	 * 在event loop中调用, 需要远程校验时使用 {@link AsyncAuthorizationHandler}
+	 * @return null或者把response状态设为401表示认证失败
 	 * @throws IOException
 	 */
 	public UserSessionDetail authenticate(ChannelHandlerContext ctx,ServerRequest request, ServerResponse response)
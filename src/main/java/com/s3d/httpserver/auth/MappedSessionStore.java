@@ -0,0 +1,750 @@
+package com.s3d.httpserver.auth;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 堆外的会话存储, 按 {@link UserSessionDetail#getSessionId()} 索引.
+ * 会话编码后追加写入内存映射的段文件, 索引是堆外的开放寻址哈希表, 会话数量不影响GC.
+ * 过期的会话由后台线程清除, 有效数据不到一半的段被压缩后删除.
+ * 启动时扫描段文件重建索引, 写到一半(进程崩溃)或校验失败的记录被丢弃.
+ *
+ * <pre>
+ * segment := MAGIC(int) generation(long) record* 0
+ * record  := length(int) crc(int) expires(long) idLength(short) id payload
+ * </pre>
+ *
+ * length最后写入. expires可以原地修改(续期, 删除时置0), 不计入crc.
+ * 同一个会话在多个段中有效时, generation大的段中的记录较新.
+ */
+public class MappedSessionStore<T extends UserSessionDetail> implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(MappedSessionStore.class);
+
+	static final int MAGIC = 0x48535331; // "HSS1"
+	static final int HEADER_SIZE = 4 + 8;
+	static final String FILE_SUFFIX = ".hss";
+
+	private static final int RECORD_HEADER = 4 + 4 + 8 + 2;
+	private static final int CRC = 4;
+	private static final int EXPIRES = 8;
+	private static final int ID_LENGTH = 16;
+
+	/* 索引槽: tag(16位) segment(16位) offset(32位) */
+	private static final long EMPTY = 0;
+	private static final long DELETED = -1;
+	private static final int MAX_SEGMENTS = 0xFFFF;
+
+	private final File directory;
+	private final SessionCodec<T> codec;
+	private final long ttlMillis;
+	private final int segmentSize;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/* 以下字段由lock保护 */
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment current;
+	private long generation = 0;
+	private ByteBuffer indexMemory;
+	private LongBuffer index;
+	private int mask;
+	private int used = 0;
+	private int deleted = 0;
+	private boolean closed = false;
+
+	private final ScheduledExecutorService sweeper;
+	private ScheduledFuture<?> sweepTask;
+
+	/**
+	 * 使用64M的段文件, 每分钟清除一次过期会话
+	 * @param ttl 会话在最后一次 {@link #put(UserSessionDetail)} 或 {@link #touch(String)} 之后的有效时间
+	 */
+	public MappedSessionStore(final File directory_, final SessionCodec<T> codec_,
+			final long ttl, final TimeUnit unit) throws IOException {
+		this(directory_, codec_, ttl, unit, 64 * 1024 * 1024);
+	}
+
+	/**
+	 * @param segmentSize_ 单个段文件大小(字节), 也是单个会话编码后的上限
+	 */
+	public MappedSessionStore(final File directory_, final SessionCodec<T> codec_,
+			final long ttl, final TimeUnit unit, final int segmentSize_) throws IOException {
+		if (segmentSize_ < HEADER_SIZE + RECORD_HEADER * 16) {
+			throw new IllegalArgumentException("segmentSize too small: " + segmentSize_);
+		}
+		directory = directory_;
+		codec = codec_;
+		ttlMillis = unit.toMillis(ttl);
+		segmentSize = segmentSize_;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Cannot create session directory " + directory);
+		}
+
+		allocateIndex(1024);
+		load();
+
+		sweeper = Executors.newSingleThreadScheduledExecutor(
+				new DefaultThreadFactory("session-sweeper", true));
+		sweepInterval(1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * 后台清除过期会话和压缩段文件的间隔
+	 */
+	public synchronized MappedSessionStore<T> sweepInterval(final long interval, final TimeUnit unit) {
+		if (sweepTask != null) {
+			sweepTask.cancel(false);
+		}
+		sweepTask = sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sweep();
+				} catch (final Throwable t) {
+					log.error("error on sweeping sessions", t);
+				}
+			}
+		}, interval, interval, unit);
+		return this;
+	}
+
+	/**
+	 * 保存会话, 替换相同sessionId的会话, 有效期重新开始计算
+	 */
+	public void put(final T session) throws IOException {
+
+		final byte[] id = session.getSessionId().getBytes(CharsetUtil.UTF_8);
+		if (id.length == 0 || id.length > 0xFFFF) {
+			throw new IllegalArgumentException("invalid session id length: " + id.length);
+		}
+
+		final ByteBuf payload = Unpooled.buffer();
+		final byte[] body;
+		try {
+			codec.encode(session, payload);
+			body = new byte[2 + id.length + payload.readableBytes()];
+			body[0] = (byte) (id.length >>> 8);
+			body[1] = (byte) id.length;
+			System.arraycopy(id, 0, body, 2, id.length);
+			payload.readBytes(body, 2 + id.length, payload.readableBytes());
+		} finally {
+			payload.release();
+		}
+		if (RECORD_HEADER - 2 + body.length > segmentSize - HEADER_SIZE) {
+			throw new IllegalArgumentException("session too large: " + body.length);
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+
+		final int hash = hash(id);
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			final long address = append(body, (int) crc.getValue(),
+					System.currentTimeMillis() + ttlMillis, hash);
+			final int slot = find(id, hash);
+			if (slot >= 0) {
+				kill(index.get(slot));
+				index.put(slot, address);
+			} else {
+				insert(hash, address);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return null 如果不存在或已过期
+	 */
+	public T get(final String sessionId) throws IOException {
+		final byte[] id = sessionId.getBytes(CharsetUtil.UTF_8);
+		final int hash = hash(id);
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			final int slot = find(id, hash);
+			if (slot < 0) {
+				return null;
+			}
+			final long entry = index.get(slot);
+			final MappedByteBuffer buffer = segments.get(segmentOf(entry)).buffer;
+			final int pos = offsetOf(entry);
+			if (buffer.getLong(pos + EXPIRES) <= System.currentTimeMillis()) {
+				return null;
+			}
+			// 段文件在写锁内才会被删除, 解码期间映射一直有效
+			final ByteBuffer payload = buffer.duplicate();
+			payload.limit(pos + buffer.getInt(pos));
+			payload.position(pos + RECORD_HEADER + id.length);
+			return codec.decode(Unpooled.wrappedBuffer(payload.slice()));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 重新计算有效期, 不改写会话内容
+	 * @return false 如果不存在或已过期
+	 */
+	public boolean touch(final String sessionId) {
+		final byte[] id = sessionId.getBytes(CharsetUtil.UTF_8);
+		final int hash = hash(id);
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			final int slot = find(id, hash);
+			if (slot < 0) {
+				return false;
+			}
+			final long entry = index.get(slot);
+			final MappedByteBuffer buffer = segments.get(segmentOf(entry)).buffer;
+			final int pos = offsetOf(entry);
+			final long now = System.currentTimeMillis();
+			if (buffer.getLong(pos + EXPIRES) <= now) {
+				return false;
+			}
+			buffer.putLong(pos + EXPIRES, now + ttlMillis);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean remove(final String sessionId) {
+		final byte[] id = sessionId.getBytes(CharsetUtil.UTF_8);
+		final int hash = hash(id);
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			final int slot = find(id, hash);
+			if (slot < 0) {
+				return false;
+			}
+			kill(index.get(slot));
+			delete(slot);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 索引中的会话数, 包括已过期但还没有被清除的
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return used;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 段文件数
+	 */
+	public int segmentCount() {
+		lock.readLock().lock();
+		try {
+			int count = 0;
+			for (final Segment segment : segments) {
+				if (segment != null) {
+					count++;
+				}
+			}
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 清除过期会话, 压缩有效数据不到一半的段. 每个段单独加锁, 读取只在处理同一个段期间等待.
+	 * @return 清除的会话数
+	 */
+	public int sweep() throws IOException {
+		final List<Segment> snapshot;
+		lock.readLock().lock();
+		try {
+			snapshot = new ArrayList<Segment>(segments);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		int removed = 0;
+		for (final Segment segment : snapshot) {
+			if (segment == null) {
+				continue;
+			}
+			lock.writeLock().lock();
+			try {
+				if (closed || segments.get(segment.slot) != segment) {
+					continue;
+				}
+				removed += expire(segment, System.currentTimeMillis());
+				if (segment != current && segment.live * 2 < segment.writePos - HEADER_SIZE) {
+					compact(segment);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * 把段文件写入磁盘. 只防止进程崩溃时不需要调用, 映射的内存由操作系统写回
+	 */
+	public void force() {
+		lock.readLock().lock();
+		try {
+			for (final Segment segment : segments) {
+				if (segment != null) {
+					segment.buffer.force();
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		sweeper.shutdownNow();
+		lock.writeLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			for (final Segment segment : segments) {
+				if (segment != null) {
+					segment.buffer.force();
+					PlatformDependent.freeDirectBuffer(segment.buffer);
+				}
+			}
+			segments.clear();
+			current = null;
+			PlatformDependent.freeDirectBuffer(indexMemory);
+			indexMemory = null;
+			index = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("session store closed");
+		}
+	}
+
+	/*
+	 * 段文件
+	 */
+
+	private void load() throws IOException {
+		final File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.endsWith(FILE_SUFFIX);
+			}
+		});
+		final List<Segment> loaded = new ArrayList<Segment>();
+		if (files != null) {
+			for (final File file : files) {
+				final Segment segment = openSegment(file);
+				if (segment != null) {
+					loaded.add(segment);
+				}
+			}
+		}
+		Collections.sort(loaded, new Comparator<Segment>() {
+			@Override
+			public int compare(final Segment o1, final Segment o2) {
+				return o1.generation < o2.generation ? -1 : (o1.generation == o2.generation ? 0 : 1);
+			}
+		});
+
+		final long now = System.currentTimeMillis();
+		for (final Segment segment : loaded) {
+			if (segments.size() >= MAX_SEGMENTS) {
+				throw new IOException("too many session segments in " + directory);
+			}
+			segment.slot = segments.size();
+			segments.add(segment);
+			scan(segment, now);
+			generation = segment.generation + 1;
+			current = segment;
+		}
+		if (log.isInfoEnabled() && !loaded.isEmpty()) {
+			log.info("loaded {} sessions from {} segments in {}", new Object[] {
+					used, loaded.size(), directory });
+		}
+	}
+
+	private Segment openSegment(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final long length = raf.length();
+			if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+				log.warn("ignoring invalid session segment {}", file);
+				return null;
+			}
+			final MappedByteBuffer buffer =
+					raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			if (buffer.getInt(0) != MAGIC) {
+				PlatformDependent.freeDirectBuffer(buffer);
+				log.warn("ignoring invalid session segment {}", file);
+				return null;
+			}
+			return new Segment(file, buffer, buffer.getLong(4));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 重建索引. 遇到校验失败的记录时丢弃段中剩余的部分
+	 */
+	private void scan(final Segment segment, final long now) {
+		final MappedByteBuffer buffer = segment.buffer;
+		final CRC32 crc = new CRC32();
+		int pos = HEADER_SIZE;
+		while (pos + RECORD_HEADER <= buffer.capacity()) {
+			final int length = buffer.getInt(pos);
+			if (length == 0) {
+				break;
+			}
+			if (!isValid(buffer, pos, length, crc)) {
+				log.warn("discarding corrupt session records in {} from offset {}", segment.file, pos);
+				for (int i = pos; i < buffer.capacity(); i++) {
+					buffer.put(i, (byte) 0);
+				}
+				break;
+			}
+			if (buffer.getLong(pos + EXPIRES) > now) {
+				final byte[] id = idOf(buffer, pos);
+				final int hash = hash(id);
+				final long address = address(hash, segment.slot, pos);
+				final int slot = find(id, hash);
+				if (slot >= 0) {
+					kill(index.get(slot));
+					index.put(slot, address);
+				} else {
+					insert(hash, address);
+				}
+				segment.live += length;
+			}
+			pos += length;
+		}
+		segment.writePos = pos;
+	}
+
+	private static boolean isValid(final ByteBuffer buffer, final int pos, final int length,
+			final CRC32 crc) {
+		if (length < RECORD_HEADER + 1 || length > buffer.capacity() - pos) {
+			return false;
+		}
+		final int idLength = buffer.getShort(pos + ID_LENGTH) & 0xFFFF;
+		if (idLength == 0 || RECORD_HEADER + idLength > length) {
+			return false;
+		}
+		final byte[] body = new byte[length - ID_LENGTH];
+		final ByteBuffer dup = buffer.duplicate();
+		dup.position(pos + ID_LENGTH);
+		dup.get(body);
+		crc.reset();
+		crc.update(body, 0, body.length);
+		return (int) crc.getValue() == buffer.getInt(pos + CRC);
+	}
+
+	/**
+	 * 先写记录体, 最后写长度; 写到一半崩溃时长度仍为0, 重新加载时视为段结束
+	 * @return 索引槽的值
+	 */
+	private long append(final byte[] body, final int crc, final long expires, final int hash)
+			throws IOException {
+		final int length = RECORD_HEADER - 2 + body.length;
+		if (current == null || current.writePos + length > current.buffer.capacity()) {
+			roll();
+		}
+		final MappedByteBuffer buffer = current.buffer;
+		final int pos = current.writePos;
+
+		final ByteBuffer dup = buffer.duplicate();
+		dup.position(pos + ID_LENGTH);
+		dup.put(body);
+		buffer.putLong(pos + EXPIRES, expires);
+		buffer.putInt(pos + CRC, crc);
+		buffer.putInt(pos, length);
+
+		current.writePos += length;
+		current.live += length;
+		return address(hash, current.slot, pos);
+	}
+
+	private void roll() throws IOException {
+		int slot = segments.indexOf(null);
+		if (slot < 0) {
+			if (segments.size() >= MAX_SEGMENTS) {
+				throw new IOException("too many session segments in " + directory);
+			}
+			slot = segments.size();
+			segments.add(null);
+		}
+
+		final File file = new File(directory, String.format("sessions-%d%s", generation, FILE_SUFFIX));
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		final MappedByteBuffer buffer;
+		try {
+			raf.setLength(segmentSize);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			raf.close();
+		}
+		buffer.putLong(4, generation);
+		buffer.putInt(0, MAGIC);
+
+		current = new Segment(file, buffer, generation++);
+		current.slot = slot;
+		current.writePos = HEADER_SIZE;
+		segments.set(slot, current);
+	}
+
+	/**
+	 * @return 清除的会话数
+	 */
+	private int expire(final Segment segment, final long now) {
+		final MappedByteBuffer buffer = segment.buffer;
+		int removed = 0;
+		for (int pos = HEADER_SIZE; pos < segment.writePos; pos += buffer.getInt(pos)) {
+			final long expires = buffer.getLong(pos + EXPIRES);
+			if (expires != 0 && expires <= now) {
+				final byte[] id = idOf(buffer, pos);
+				final int slot = find(id, hash(id));
+				if (slot >= 0 && offsetOf(index.get(slot)) == pos
+						&& segmentOf(index.get(slot)) == segment.slot) {
+					delete(slot);
+					removed++;
+				}
+				kill(address(0, segment.slot, pos));
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * 有效的记录复制到当前段后删除段文件. 复制后崩溃时, 新段中的记录较新
+	 */
+	private void compact(final Segment segment) throws IOException {
+		final MappedByteBuffer buffer = segment.buffer;
+		for (int pos = HEADER_SIZE; pos < segment.writePos; pos += buffer.getInt(pos)) {
+			final long expires = buffer.getLong(pos + EXPIRES);
+			if (expires == 0) {
+				continue;
+			}
+			final byte[] id = idOf(buffer, pos);
+			final int hash = hash(id);
+			final int slot = find(id, hash);
+			final byte[] body = new byte[buffer.getInt(pos) - ID_LENGTH];
+			final ByteBuffer dup = buffer.duplicate();
+			dup.position(pos + ID_LENGTH);
+			dup.get(body);
+			final long address = append(body, buffer.getInt(pos + CRC), expires, hash);
+			if (slot >= 0) {
+				index.put(slot, address);
+			} else {
+				insert(hash, address);
+			}
+			kill(address(0, segment.slot, pos));
+		}
+
+		segments.set(segment.slot, null);
+		PlatformDependent.freeDirectBuffer(buffer);
+		if (!segment.file.delete()) {
+			log.warn("cannot delete session segment {}", segment.file);
+		}
+	}
+
+	/**
+	 * 把记录标记为无效
+	 */
+	private void kill(final long entry) {
+		final Segment segment = segments.get(segmentOf(entry));
+		final int pos = offsetOf(entry);
+		if (segment.buffer.getLong(pos + EXPIRES) != 0) {
+			segment.buffer.putLong(pos + EXPIRES, 0);
+			segment.live -= segment.buffer.getInt(pos);
+		}
+	}
+
+	private static byte[] idOf(final ByteBuffer buffer, final int pos) {
+		final byte[] id = new byte[buffer.getShort(pos + ID_LENGTH) & 0xFFFF];
+		final ByteBuffer dup = buffer.duplicate();
+		dup.position(pos + RECORD_HEADER);
+		dup.get(id);
+		return id;
+	}
+
+	/*
+	 * 堆外索引, 线性探测
+	 */
+
+	private void allocateIndex(final int capacity) {
+		indexMemory = ByteBuffer.allocateDirect(capacity * 8);
+		index = indexMemory.asLongBuffer();
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @return 槽位, 不存在时返回-1
+	 */
+	private int find(final byte[] id, final int hash) {
+		final int tag = hash >>> 16;
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			final long entry = index.get(i);
+			if (entry == EMPTY) {
+				return -1;
+			}
+			if (entry != DELETED && tagOf(entry) == tag && idEquals(entry, id)) {
+				return i;
+			}
+		}
+	}
+
+	private boolean idEquals(final long entry, final byte[] id) {
+		final ByteBuffer buffer = segments.get(segmentOf(entry)).buffer;
+		final int pos = offsetOf(entry);
+		if ((buffer.getShort(pos + ID_LENGTH) & 0xFFFF) != id.length) {
+			return false;
+		}
+		for (int i = 0; i < id.length; i++) {
+			if (buffer.get(pos + RECORD_HEADER + i) != id[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void insert(final int hash, final long address) {
+		final int capacity = mask + 1;
+		if ((used + deleted + 1) * 4L > capacity * 3L) {
+			// 有效条目超过一半时扩容, 否则只清理删除标记
+			rehash(used * 2 >= capacity ? capacity * 2 : capacity);
+		}
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			final long entry = index.get(i);
+			if (entry == EMPTY || entry == DELETED) {
+				if (entry == DELETED) {
+					deleted--;
+				}
+				index.put(i, address);
+				used++;
+				return;
+			}
+		}
+	}
+
+	private void delete(final int slot) {
+		index.put(slot, DELETED);
+		used--;
+		deleted++;
+	}
+
+	private void rehash(final int capacity) {
+		final ByteBuffer oldMemory = indexMemory;
+		final LongBuffer old = index;
+		allocateIndex(capacity);
+		used = 0;
+		deleted = 0;
+		for (int i = 0; i < old.capacity(); i++) {
+			final long entry = old.get(i);
+			if (entry != EMPTY && entry != DELETED) {
+				final int hash = hash(idOf(segments.get(segmentOf(entry)).buffer, offsetOf(entry)));
+				for (int j = hash & mask;; j = (j + 1) & mask) {
+					if (index.get(j) == EMPTY) {
+						index.put(j, entry);
+						used++;
+						break;
+					}
+				}
+			}
+		}
+		PlatformDependent.freeDirectBuffer(oldMemory);
+	}
+
+	private static int hash(final byte[] id) {
+		int h = 0x811C9DC5;
+		for (final byte b : id) {
+			h = (h ^ b) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static long address(final int hash, final int segment, final int offset) {
+		return ((long) (hash >>> 16) << 48) | ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	private static int tagOf(final long entry) {
+		return (int) (entry >>> 48);
+	}
+
+	private static int segmentOf(final long entry) {
+		return (int) (entry >>> 32) & 0xFFFF;
+	}
+
+	private static int offsetOf(final long entry) {
+		return (int) entry;
+	}
+
+	private static final class Segment {
+		final File file;
+		final MappedByteBuffer buffer;
+		final long generation;
+		int slot;
+		int writePos;
+		/* 有效记录的字节数 */
+		long live = 0;
+
+		Segment(final File file_, final MappedByteBuffer buffer_, final long generation_) {
+			file = file_;
+			buffer = buffer_;
+			generation = generation_;
+		}
+	}
+
+}
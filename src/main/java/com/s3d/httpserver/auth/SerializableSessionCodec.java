@@ -0,0 +1,41 @@
+package com.s3d.httpserver.auth;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * 使用java序列化的 {@link SessionCodec}, 适用于任意 {@link UserSessionDetail} 实现
+ */
+public class SerializableSessionCodec<T extends UserSessionDetail> implements SessionCodec<T> {
+
+	private final Class<T> type;
+
+	public SerializableSessionCodec(final Class<T> type_) {
+		type = type_;
+	}
+
+	@Override
+	public void encode(final T session, final ByteBuf out) throws IOException {
+		final ObjectOutputStream oos = new ObjectOutputStream(new ByteBufOutputStream(out));
+		oos.writeObject(session);
+		oos.flush();
+	}
+
+	@Override
+	public T decode(final ByteBuf in) throws IOException {
+		final ObjectInputStream ois = new ObjectInputStream(new ByteBufInputStream(in));
+		try {
+			return type.cast(ois.readObject());
+		} catch (final ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			ois.close();
+		}
+	}
+
+}
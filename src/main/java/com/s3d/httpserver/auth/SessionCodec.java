@@ -0,0 +1,19 @@
+package com.s3d.httpserver.auth;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * {@link MappedSessionStore} 中会话的编码. 按会话类型实现紧凑的格式,
+ * 比 {@link SerializableSessionCodec} 占用更少的空间.
+ */
+public interface SessionCodec<T extends UserSessionDetail> {
+
+	void encode(T session, ByteBuf out) throws IOException;
+
+	/**
+	 * @param in 只包含一个会话的编码
+	 */
+	T decode(ByteBuf in) throws IOException;
+}
@@ -17,13 +17,45 @@ public class DefaultErrorHandler implements ErrorHandler {
 
 	private final static Logger log = LoggerFactory.getLogger(DefaultErrorHandler.class);
 
+	/* 没有指定时由HttpServerConfig设置为它的errorReporter */
+	private volatile ErrorReporter reporter;
+	private final boolean explicit;
+
+	public DefaultErrorHandler() {
+		reporter = null;
+		explicit = false;
+	}
+
+	public DefaultErrorHandler(final ErrorReporter reporter_) {
+		reporter = reporter_;
+		explicit = true;
+	}
+
+	/**
+	 * 构造时没有指定ErrorReporter时使用reporter_
+	 */
+	public void bind(final ErrorReporter reporter_) {
+		if (!explicit) {
+			reporter = reporter_;
+		}
+	}
+
+	public ErrorReporter reporter() {
+		return reporter;
+	}
+
 	@Override
 	public void onError(final ServerRequest request,
 			final ServerResponse response, final Throwable cause)
 			throws IOException {
 
 		if (cause != null) {
-			log.warn("Uncaught exception thrown in request", cause);
+			final ErrorReporter current = reporter;
+			if (current != null) {
+				current.warn(log, "Uncaught exception thrown in request", cause);
+			} else {
+				log.warn("Uncaught exception thrown in request", cause);
+			}
 			response.write(cause.getClass()
 					+ " was thrown while processing this request.  See logs for more details.");
 
@@ -0,0 +1,204 @@
+package com.s3d.httpserver.error;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.s3d.httpserver.util.NamedThreadFactory;
+
+/**
+ * 限流去重的异常日志.
+ * 按异常类型和栈顶若干帧生成指纹, 每个指纹第一次出现时记录完整堆栈,
+ * 之后只计数, 由后台线程定期输出各指纹的汇总次数.
+ * 下游故障时可以避免每个失败请求都打一份完整堆栈, 日志I/O反而成为瓶颈.
+ */
+public class ErrorReporter {
+
+	private static final Logger log = LoggerFactory.getLogger(ErrorReporter.class);
+
+	private final ConcurrentMap<Long, Fingerprint> fingerprints =
+			new ConcurrentHashMap<Long, Fingerprint>();
+
+	/* 指纹表满时被丢弃的异常数 */
+	private final AtomicLong overflow = new AtomicLong();
+
+	private final int maxFingerprints;
+	private final int topFrames;
+	private final long summaryIntervalMillis;
+	/* 连续多少个汇总周期没有出现即移出指纹表 */
+	private final int idlePeriods;
+
+	private volatile ScheduledExecutorService scheduler;
+
+	public ErrorReporter() {
+		this(1024, 5, 60000);
+	}
+
+	/**
+	 * @param maxFingerprints_ 指纹表上限
+	 * @param topFrames_ 参与指纹计算的栈帧数
+	 * @param summaryIntervalMillis_ 汇总日志输出间隔
+	 */
+	public ErrorReporter(final int maxFingerprints_, final int topFrames_,
+			final long summaryIntervalMillis_) {
+		maxFingerprints = maxFingerprints_;
+		topFrames = topFrames_;
+		summaryIntervalMillis = summaryIntervalMillis_;
+		idlePeriods = 5;
+	}
+
+	public void warn(final Logger logger, final String message, final Throwable cause) {
+		if (logger.isWarnEnabled() && firstOccurrence(cause)) {
+			logger.warn(message, cause);
+		}
+	}
+
+	public void error(final Logger logger, final String message, final Throwable cause) {
+		if (logger.isErrorEnabled() && firstOccurrence(cause)) {
+			logger.error(message, cause);
+		}
+	}
+
+	/**
+	 * 登记一次异常
+	 * @return true 如果该指纹是第一次出现, 调用方应记录完整堆栈
+	 */
+	public boolean firstOccurrence(final Throwable cause) {
+
+		if (cause == null) {
+			return true;
+		}
+
+		final long key = fingerprint(cause);
+		final Fingerprint existing = fingerprints.get(key);
+
+		if (existing != null) {
+			existing.hit();
+			return false;
+		}
+
+		if (fingerprints.size() >= maxFingerprints) {
+			overflow.incrementAndGet();
+			return false;
+		}
+
+		final Fingerprint raced = fingerprints.putIfAbsent(key, new Fingerprint(describe(cause)));
+		if (raced != null) {
+			raced.hit();
+			return false;
+		}
+
+		startSummary();
+		return true;
+	}
+
+	/**
+	 * 异常类型 + 栈顶帧 + cause类型 的64位哈希
+	 */
+	long fingerprint(final Throwable cause) {
+		long h = 1125899906842597L;
+		Throwable t = cause;
+		for (int depth = 0; t != null && depth < 3; depth++) {
+			h = 31 * h + t.getClass().getName().hashCode();
+			final StackTraceElement[] frames = t.getStackTrace();
+			final int n = Math.min(topFrames, frames.length);
+			for (int i = 0; i < n; i++) {
+				final StackTraceElement frame = frames[i];
+				h = 31 * h + frame.getClassName().hashCode();
+				h = 31 * h + frame.getMethodName().hashCode();
+				h = 31 * h + frame.getLineNumber();
+			}
+			t = t.getCause() == t ? null : t.getCause();
+		}
+		return h;
+	}
+
+	private static String describe(final Throwable cause) {
+		final StackTraceElement[] frames = cause.getStackTrace();
+		if (frames.length == 0) {
+			return cause.getClass().getName();
+		}
+		return cause.getClass().getName() + " at " + frames[0];
+	}
+
+	private void startSummary() {
+		if (scheduler == null) {
+			synchronized (this) {
+				if (scheduler == null) {
+					scheduler = Executors.newSingleThreadScheduledExecutor(
+							new NamedThreadFactory("error-reporter", true));
+					scheduler.scheduleWithFixedDelay(new Runnable() {
+						@Override
+						public void run() {
+							summarize();
+						}
+					}, summaryIntervalMillis, summaryIntervalMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 输出上一个周期内的重复次数, 并清理长时间未出现的指纹
+	 */
+	void summarize() {
+		final long seconds = TimeUnit.MILLISECONDS.toSeconds(summaryIntervalMillis);
+
+		final Iterator<Fingerprint> it = fingerprints.values().iterator();
+		while (it.hasNext()) {
+			final Fingerprint fp = it.next();
+			final long count = fp.recent.getAndSet(0);
+			if (count > 0) {
+				fp.idle = 0;
+				log.warn("{} repeated {} times in last {}s ({} total)",
+						new Object[] { fp.description, count, seconds, fp.total.get() });
+			} else if (++fp.idle >= idlePeriods) {
+				it.remove();
+			}
+		}
+
+		final long dropped = overflow.getAndSet(0);
+		if (dropped > 0) {
+			log.warn("{} exceptions not logged in last {}s, fingerprint table is full ({})",
+					new Object[] { dropped, seconds, maxFingerprints });
+		}
+	}
+
+	boolean isSummaryRunning() {
+		return scheduler != null;
+	}
+
+	public void shutdown() {
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdown();
+				scheduler = null;
+			}
+		}
+	}
+
+	private static final class Fingerprint {
+		final String description;
+		final AtomicLong recent = new AtomicLong();
+		final AtomicLong total = new AtomicLong(1);
+		/* 只在汇总线程中访问 */
+		int idle = 0;
+
+		Fingerprint(final String description_) {
+			description = description_;
+		}
+
+		void hit() {
+			recent.incrementAndGet();
+			total.incrementAndGet();
+		}
+	}
+
+}
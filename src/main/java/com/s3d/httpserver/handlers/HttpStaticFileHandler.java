@@ -5,6 +5,7 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
@@ -134,7 +135,8 @@ public abstract class HttpStaticFileHandler extends RequestHandlerBase {
 
 		// Write the content.
 		ChannelFuture lastContentFuture;
-		if (ctx.pipeline().get(SslHandler.class) == null) {
+		// 零拷贝只适用于明文的socket, TLS和HTTP/2 stream按块读出
+		if (ctx.channel() instanceof SocketChannel && ctx.pipeline().get(SslHandler.class) == null) {
 			ctx.write(new DefaultFileRegion(raf.getChannel(),
 					0, fileLength), ctx.newProgressivePromise());
 			// Write the end marker.
@@ -0,0 +1,33 @@
+package com.s3d.httpserver.http2;
+
+/**
+ * 连接缓冲中的请求body占用的内存预算, 由 {@link Http2ConnectionHandler} 在收到DATA时计入,
+ * 交付的请求释放或者stream关闭时扣除. 可以在任意线程调用.
+ */
+public interface BodyBudget {
+
+	/**
+	 * @return false 如果会超过上限, 此时没有计入
+	 */
+	boolean tryReserve(long n);
+
+	/**
+	 * 计入已经收到的数据, 不检查上限
+	 */
+	void add(long n);
+
+	void release(long n);
+
+	/**
+	 * 超过上限时拒绝stream, 否则继续接收并等待 {@link #await(Runnable)}
+	 */
+	boolean isReject();
+
+	void rejected();
+
+	/**
+	 * 降到低水位以下时执行一次resume, 已经在低水位以下时立即执行
+	 */
+	void await(Runnable resume);
+
+}
@@ -0,0 +1,58 @@
+package com.s3d.httpserver.http2;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * 带 Expect: 100-continue 的stream的请求头到达时, 作为user event交给stream的pipeline.
+ * 处理它的handler调用 {@link #defer()}, 接受请求时再调用 {@link #proceed()}, 拒绝时直接写出最终响应;
+ * 没有handler处理时立即回复100. 接受之前收到的完整请求由连接暂存, 接受后交付.
+ */
+public final class ExpectContinue {
+
+	private final Http2ConnectionHandler connection;
+	private final Http2StreamChannel stream;
+	private final HttpRequest head;
+	private boolean deferred = false;
+
+	ExpectContinue(final Http2ConnectionHandler connection_, final Http2StreamChannel stream_,
+			final HttpRequest head_) {
+		connection = connection_;
+		stream = stream_;
+		head = head_;
+	}
+
+	/**
+	 * 请求头, Expect头已经去掉
+	 */
+	public HttpRequest head() {
+		return head;
+	}
+
+	/**
+	 * 由调用者决定何时回复100
+	 */
+	public void defer() {
+		deferred = true;
+	}
+
+	boolean isDeferred() {
+		return deferred;
+	}
+
+	/**
+	 * 接受请求: 还没有收到完整的body时回复100, 已经收到时交付暂存的请求. stream已经关闭时什么也不做
+	 */
+	public void proceed() {
+		if (stream.eventLoop().inEventLoop()) {
+			connection.proceed(stream);
+		} else {
+			stream.eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					connection.proceed(stream);
+				}
+			});
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+package com.s3d.httpserver.http2;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HPACK头部解码 (RFC 7541). 每个连接一个实例, 动态表在同一连接的所有header block之间共享.
+ */
+final class HpackDecoder {
+
+	/** 静态表, 下标0对应index 1 */
+	static final String[][] STATIC_TABLE = {
+		{ ":authority", "" },
+		{ ":method", "GET" },
+		{ ":method", "POST" },
+		{ ":path", "/" },
+		{ ":path", "/index.html" },
+		{ ":scheme", "http" },
+		{ ":scheme", "https" },
+		{ ":status", "200" },
+		{ ":status", "204" },
+		{ ":status", "206" },
+		{ ":status", "304" },
+		{ ":status", "400" },
+		{ ":status", "404" },
+		{ ":status", "500" },
+		{ "accept-charset", "" },
+		{ "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" },
+		{ "accept-ranges", "" },
+		{ "accept", "" },
+		{ "access-control-allow-origin", "" },
+		{ "age", "" },
+		{ "allow", "" },
+		{ "authorization", "" },
+		{ "cache-control", "" },
+		{ "content-disposition", "" },
+		{ "content-encoding", "" },
+		{ "content-language", "" },
+		{ "content-length", "" },
+		{ "content-location", "" },
+		{ "content-range", "" },
+		{ "content-type", "" },
+		{ "cookie", "" },
+		{ "date", "" },
+		{ "etag", "" },
+		{ "expect", "" },
+		{ "expires", "" },
+		{ "from", "" },
+		{ "host", "" },
+		{ "if-match", "" },
+		{ "if-modified-since", "" },
+		{ "if-none-match", "" },
+		{ "if-range", "" },
+		{ "if-unmodified-since", "" },
+		{ "last-modified", "" },
+		{ "link", "" },
+		{ "location", "" },
+		{ "max-forwards", "" },
+		{ "proxy-authenticate", "" },
+		{ "proxy-authorization", "" },
+		{ "range", "" },
+		{ "referer", "" },
+		{ "refresh", "" },
+		{ "retry-after", "" },
+		{ "server", "" },
+		{ "set-cookie", "" },
+		{ "strict-transport-security", "" },
+		{ "transfer-encoding", "" },
+		{ "user-agent", "" },
+		{ "vary", "" },
+		{ "via", "" },
+		{ "www-authenticate", "" }
+	};
+
+	/* 我们在SETTINGS中没有修改SETTINGS_HEADER_TABLE_SIZE, 使用默认值 */
+	private static final int MAX_TABLE_SIZE = 4096;
+	private static final int ENTRY_OVERHEAD = 32;
+
+	interface Listener {
+		void header(String name, String value) throws Http2Exception;
+	}
+
+	private final int maxHeaderListSize;
+
+	/* 动态表, 最新的条目在最后 */
+	private final List<String[]> table = new ArrayList<String[]>();
+	private int tableSize = 0;
+	private int tableCapacity = MAX_TABLE_SIZE;
+
+	HpackDecoder(final int maxHeaderListSize_) {
+		maxHeaderListSize = maxHeaderListSize_;
+	}
+
+	/**
+	 * 解码一个完整的header block. 超出大小限制时仍然解码完(保持动态表同步), 但不再回调listener.
+	 * @return false 如果头部总大小超出限制
+	 */
+	boolean decode(final ByteBuf block, final Listener listener) throws Http2Exception {
+		int listSize = 0;
+		boolean sizeUpdateAllowed = true;
+
+		while (block.isReadable()) {
+			final int b = block.getUnsignedByte(block.readerIndex());
+			final String name;
+			final String value;
+
+			if ((b & 0x80) != 0) {
+				// 索引
+				final String[] entry = entry(readInt(block, 7));
+				name = entry[0];
+				value = entry[1];
+			} else if ((b & 0x40) != 0) {
+				// 字面值, 加入动态表
+				final int index = readInt(block, 6);
+				name = index == 0 ? readString(block) : entry(index)[0];
+				value = readString(block);
+				add(name, value);
+			} else if ((b & 0x20) != 0) {
+				// 动态表大小更新, 只能出现在block开头
+				if (!sizeUpdateAllowed) {
+					throw Http2Exception.compression("dynamic table size update after header field");
+				}
+				final int capacity = readInt(block, 5);
+				if (capacity > MAX_TABLE_SIZE) {
+					throw Http2Exception.compression("dynamic table size " + capacity + " exceeds limit");
+				}
+				tableCapacity = capacity;
+				evict(0);
+				continue;
+			} else {
+				// 字面值, 不加入动态表 (0000) 或永不加入 (0001)
+				final int index = readInt(block, 4);
+				name = index == 0 ? readString(block) : entry(index)[0];
+				value = readString(block);
+			}
+
+			sizeUpdateAllowed = false;
+			if (listSize <= maxHeaderListSize) {
+				listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+				if (listSize <= maxHeaderListSize) {
+					listener.header(name, value);
+				}
+			}
+		}
+		return listSize <= maxHeaderListSize;
+	}
+
+	private String[] entry(final int index) throws Http2Exception {
+		if (index <= 0) {
+			throw Http2Exception.compression("invalid header index " + index);
+		}
+		if (index <= STATIC_TABLE.length) {
+			return STATIC_TABLE[index - 1];
+		}
+		final int dynamic = index - STATIC_TABLE.length - 1;
+		if (dynamic >= table.size()) {
+			throw Http2Exception.compression("invalid header index " + index);
+		}
+		return table.get(table.size() - 1 - dynamic);
+	}
+
+	private void add(final String name, final String value) {
+		final int size = name.length() + value.length() + ENTRY_OVERHEAD;
+		if (size > tableCapacity) {
+			// 比整个表还大的条目使表清空
+			table.clear();
+			tableSize = 0;
+			return;
+		}
+		evict(size);
+		table.add(new String[] { name, value });
+		tableSize += size;
+	}
+
+	/**
+	 * 淘汰最旧的条目, 直到能再放入incoming字节
+	 */
+	private void evict(final int incoming) {
+		while (tableSize + incoming > tableCapacity && !table.isEmpty()) {
+			final String[] oldest = table.remove(0);
+			tableSize -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+		}
+	}
+
+	private static int readInt(final ByteBuf block, final int prefixBits) throws Http2Exception {
+		final int max = (1 << prefixBits) - 1;
+		int value = block.readUnsignedByte() & max;
+		if (value < max) {
+			return value;
+		}
+		int shift = 0;
+		int b;
+		do {
+			if (!block.isReadable() || shift > 21) {
+				throw Http2Exception.compression("invalid integer encoding");
+			}
+			b = block.readUnsignedByte();
+			value += (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static String readString(final ByteBuf block) throws Http2Exception {
+		if (!block.isReadable()) {
+			throw Http2Exception.compression("truncated header block");
+		}
+		final boolean huffman = (block.getUnsignedByte(block.readerIndex()) & 0x80) != 0;
+		final int length = readInt(block, 7);
+		if (length > block.readableBytes()) {
+			throw Http2Exception.compression("truncated header block");
+		}
+		if (huffman) {
+			return Huffman.decode(block, length);
+		}
+		final String s = block.toString(block.readerIndex(), length, CharsetUtil.ISO_8859_1);
+		block.skipBytes(length);
+		return s;
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.s3d.httpserver.http2;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HPACK头部编码. 只使用静态表, 所有头都按"不加入动态表"的字面值写出, 不做Huffman编码,
+ * 因此编码器没有状态, 所有连接共用.
+ */
+final class HpackEncoder {
+
+	/* 头名称在静态表中第一次出现的index */
+	private static final Map<String, Integer> NAME_INDEX = new HashMap<String, Integer>();
+	/* :status在静态表中的完整条目 */
+	private static final Map<String, Integer> STATUS_INDEX = new HashMap<String, Integer>();
+
+	static {
+		for (int i = HpackDecoder.STATIC_TABLE.length - 1; i >= 0; i--) {
+			final String[] entry = HpackDecoder.STATIC_TABLE[i];
+			NAME_INDEX.put(entry[0], i + 1);
+			if (":status".equals(entry[0])) {
+				STATUS_INDEX.put(entry[1], i + 1);
+			}
+		}
+	}
+
+	private HpackEncoder() {
+	}
+
+	static void encodeStatus(final ByteBuf out, final int code) {
+		final String status = String.valueOf(code);
+		final Integer index = STATUS_INDEX.get(status);
+		if (index != null) {
+			writeInt(out, 0x80, 7, index);
+		} else {
+			encodeHeader(out, ":status", status);
+		}
+	}
+
+	/**
+	 * @param name 必须已经是小写
+	 */
+	static void encodeHeader(final ByteBuf out, final String name, final String value) {
+		final Integer index = NAME_INDEX.get(name);
+		if (index != null) {
+			writeInt(out, 0x00, 4, index);
+		} else {
+			out.writeByte(0x00);
+			writeString(out, name);
+		}
+		writeString(out, value);
+	}
+
+	private static void writeString(final ByteBuf out, final String s) {
+		writeInt(out, 0x00, 7, s.length());
+		for (int i = 0; i < s.length(); i++) {
+			out.writeByte(s.charAt(i));
+		}
+	}
+
+	private static void writeInt(final ByteBuf out, final int mask, final int prefixBits, int value) {
+		final int max = (1 << prefixBits) - 1;
+		if (value < max) {
+			out.writeByte(mask | value);
+			return;
+		}
+		out.writeByte(mask | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+}
@@ -0,0 +1,1347 @@
+package com.s3d.httpserver.http2;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.StringUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP/2服务端连接(RFC 7540), 替换HTTP/1的编解码器位于连接的pipeline中.
+ * 每个stream是一个 {@link Http2StreamChannel}, 请求在stream内聚合成FullHttpRequest后交给stream的pipeline;
+ * stream写出的HttpResponse/HttpContent在这里编码成HEADERS/DATA帧, 按stream和连接两级发送窗口流控.
+ * 不支持server push. 所有状态只在连接所属的event loop线程中读写.
+ */
+public class Http2ConnectionHandler extends ByteToMessageDecoder {
+
+	private static final Logger log = LoggerFactory.getLogger(Http2ConnectionHandler.class);
+
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(CharsetUtil.US_ASCII);
+
+	private static final int FRAME_HEADER_LENGTH = 9;
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+	/** {@link #check(long, boolean)} 返回该值表示不再检查 */
+	public static final long CANCEL = Long.MIN_VALUE;
+	private static final long RATE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	/* HTTP/1的逐跳头, HTTP/2中不允许出现 */
+	private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade",
+			"http2-settings"));
+
+	private static final HpackDecoder.Listener IGNORE_HEADERS = new HpackDecoder.Listener() {
+		@Override
+		public void header(final String name, final String value) {
+		}
+	};
+
+	private final Http2Settings settings;
+	private final ChannelHandler streamInitializer;
+	private final int maxRequestSize;
+	private final BodyBudget budget;
+	private final StreamTimeouts timeouts;
+	/* 没有时限的阶段多久检查一次 */
+	private final long pollNanos;
+	private FullHttpRequest upgradeRequest;
+	private final HpackDecoder hpack;
+
+	private ChannelHandlerContext ctx;
+	private boolean prefaceReceived = false;
+	private final Map<Integer, Http2StreamChannel> streams = new HashMap<Integer, Http2StreamChannel>();
+	private int lastStreamId = 0;
+	private boolean goAwaySent = false;
+	private boolean goAwayReceived = false;
+	private long lastActivity;
+	/* 发现读取被暂停的时刻, 0表示没有暂停 */
+	private long pausedSince = 0;
+
+	private int remoteMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	private int remoteInitialWindowSize = DEFAULT_WINDOW_SIZE;
+	private int connectionSendWindow = DEFAULT_WINDOW_SIZE;
+	private int connectionRecvWindow;
+	private int connectionRecvUnacked = 0;
+	/* 超过body预算, 暂不归还连接的接收窗口 */
+	private boolean windowHeld = false;
+
+	/* 等待连接发送窗口的stream */
+	private final ArrayDeque<Http2StreamChannel> blocked = new ArrayDeque<Http2StreamChannel>();
+
+	/* 正在接收的header block(HEADERS + CONTINUATION) */
+	private int headersStreamId = 0;
+	private long headersStart;
+	private boolean headersEndStream;
+	private ByteBuf headerBlock;
+
+	private final Runnable releaseWindow = new Runnable() {
+		@Override
+		public void run() {
+			if (!ctx.executor().inEventLoop()) {
+				ctx.executor().execute(this);
+				return;
+			}
+			windowHeld = false;
+			if (ctx.channel().isActive() && connectionRecvUnacked > 0) {
+				writeWindowUpdate(0, connectionRecvUnacked);
+				connectionRecvWindow += connectionRecvUnacked;
+				connectionRecvUnacked = 0;
+				ctx.flush();
+			}
+		}
+	};
+
+	/**
+	 * @param streamInitializer_ 加入每个stream的pipeline, 必须是 {@link ChannelHandler.Sharable} 的
+	 * @param maxRequestSize_ 单个请求体的上限, 超出时返回413
+	 * @param budget_ 缓冲的请求体计入的预算, 超过时返回503或者暂停归还连接窗口; 可以为null
+	 * @param timeouts_ 连接和stream的读取时限, 由外部调用 {@link #check(long, boolean)} 检查
+	 * @param upgradeRequest_ h2c升级的请求, 作为stream 1处理, 由本handler负责释放; 可以为null
+	 */
+	public Http2ConnectionHandler(final Http2Settings settings_, final ChannelHandler streamInitializer_,
+			final int maxRequestSize_, final BodyBudget budget_, final StreamTimeouts timeouts_,
+			final FullHttpRequest upgradeRequest_) {
+		settings = settings_;
+		streamInitializer = streamInitializer_;
+		maxRequestSize = maxRequestSize_;
+		budget = budget_;
+		timeouts = timeouts_;
+		long poll = Long.MAX_VALUE;
+		for (final long timeout : new long[] { timeouts.idleTimeoutNanos(),
+				timeouts.headerReadTimeoutNanos(), timeouts.bodyReadTimeoutNanos() }) {
+			if (timeout > 0) {
+				poll = Math.min(poll, timeout);
+			}
+		}
+		if (timeouts.minBytesPerSecond() > 0) {
+			poll = Math.min(poll, RATE_CHECK_NANOS);
+		}
+		pollNanos = poll;
+		upgradeRequest = upgradeRequest_;
+		hpack = new HpackDecoder(settings.maxHeaderListSize());
+	}
+
+	/**
+	 * @return true 如果buf以HTTP/2连接前言开头, 不够24字节时比较已有的部分
+	 */
+	public static boolean isPreface(final ByteBuf buf) {
+		final int n = Math.min(buf.readableBytes(), PREFACE.length);
+		for (int i = 0; i < n; i++) {
+			if (buf.getByte(buf.readerIndex() + i) != PREFACE[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static int prefaceLength() {
+		return PREFACE.length;
+	}
+
+	/**
+	 * @return stream所属的连接, 不是stream时原样返回.
+	 * stream的autoRead不影响socket, 暂停读取要作用在连接上
+	 */
+	public static Channel connection(final Channel channel) {
+		return channel instanceof Http2StreamChannel ? channel.parent() : channel;
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx_) throws Exception {
+		ctx = ctx_;
+		lastActivity = System.nanoTime();
+		connectionRecvWindow = settings.connectionWindowSize();
+
+		final ByteBuf payload = ctx.alloc().buffer(4 * 6);
+		payload.writeShort(SETTINGS_MAX_CONCURRENT_STREAMS).writeInt(settings.maxConcurrentStreams());
+		payload.writeShort(SETTINGS_INITIAL_WINDOW_SIZE).writeInt(settings.initialWindowSize());
+		payload.writeShort(SETTINGS_MAX_FRAME_SIZE).writeInt(settings.maxFrameSize());
+		payload.writeShort(SETTINGS_MAX_HEADER_LIST_SIZE).writeInt(settings.maxHeaderListSize());
+		writeFrame(SETTINGS, 0, 0, payload);
+		if (connectionRecvWindow > DEFAULT_WINDOW_SIZE) {
+			writeWindowUpdate(0, connectionRecvWindow - DEFAULT_WINDOW_SIZE);
+		}
+
+		if (upgradeRequest != null) {
+			final FullHttpRequest request = upgradeRequest;
+			upgradeRequest = null;
+			upgraded(request);
+		}
+		ctx.flush();
+	}
+
+	/**
+	 * h2c升级: 请求头中的HTTP2-Settings是客户端的SETTINGS, 升级请求本身是已经接收完的stream 1
+	 */
+	private void upgraded(final FullHttpRequest request) {
+		try {
+			final String encoded = request.headers().get("HTTP2-Settings");
+			if (encoded != null) {
+				applySettings(Unpooled.wrappedBuffer(Base64.getUrlDecoder().decode(encoded.trim())));
+			}
+		} catch (final Exception e) {
+			request.release();
+			connectionError(Http2Exception.connection(Http2Exception.PROTOCOL_ERROR,
+					"invalid HTTP2-Settings: " + e.getMessage()));
+			return;
+		}
+		for (final String name : CONNECTION_HEADERS) {
+			request.headers().remove(name);
+		}
+
+		lastStreamId = 1;
+		final Http2StreamChannel stream = openStream(1);
+		stream.remoteEnded = true;
+		stream.pipeline().fireChannelRead(request);
+	}
+
+	@Override
+	protected void decode(final ChannelHandlerContext ctx_, final ByteBuf in, final List<Object> out)
+			throws Exception {
+		try {
+			if (!prefaceReceived) {
+				if (!isPreface(in)) {
+					throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "invalid connection preface");
+				}
+				if (in.readableBytes() < PREFACE.length) {
+					return;
+				}
+				in.skipBytes(PREFACE.length);
+				prefaceReceived = true;
+			}
+
+			while (in.readableBytes() >= FRAME_HEADER_LENGTH) {
+				final int start = in.readerIndex();
+				final int length = in.getUnsignedMedium(start);
+				if (length > settings.maxFrameSize()) {
+					throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR,
+							"frame of " + length + " bytes exceeds max frame size");
+				}
+				if (in.readableBytes() < FRAME_HEADER_LENGTH + length) {
+					return;
+				}
+				final int type = in.getUnsignedByte(start + 3);
+				final int flags = in.getUnsignedByte(start + 4);
+				final int streamId = in.getInt(start + 5) & 0x7fffffff;
+				in.skipBytes(FRAME_HEADER_LENGTH);
+				final ByteBuf payload = in.readSlice(length);
+
+				lastActivity = System.nanoTime();
+				try {
+					onFrame(type, flags, streamId, payload);
+				} catch (final Http2Exception e) {
+					if (e.streamId == 0) {
+						throw e;
+					}
+					if (log.isDebugEnabled()) {
+						log.debug("resetting HTTP/2 stream {}: {}", e.streamId, e.getMessage());
+					}
+					resetStream(e.streamId, e.error);
+				}
+			}
+		} catch (final Http2Exception e) {
+			in.skipBytes(in.readableBytes());
+			connectionError(e);
+		}
+	}
+
+	private void onFrame(final int type, final int flags, final int streamId, final ByteBuf payload)
+			throws Http2Exception {
+
+		if (headersStreamId != 0 && type != CONTINUATION) {
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "expected CONTINUATION frame");
+		}
+
+		switch (type) {
+		case DATA:
+			onData(flags, streamId, payload);
+			break;
+		case HEADERS:
+			onHeaders(flags, streamId, payload);
+			break;
+		case PRIORITY:
+			requireStream(streamId);
+			if (payload.readableBytes() != 5) {
+				throw Http2Exception.stream(streamId, Http2Exception.FRAME_SIZE_ERROR, "bad PRIORITY frame");
+			}
+			break;
+		case RST_STREAM:
+			onRstStream(streamId, payload);
+			break;
+		case SETTINGS:
+			onSettings(flags, streamId, payload);
+			break;
+		case PUSH_PROMISE:
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "client sent PUSH_PROMISE");
+		case PING:
+			if (streamId != 0 || payload.readableBytes() != 8) {
+				throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad PING frame");
+			}
+			if ((flags & FLAG_ACK) == 0) {
+				writeFrame(PING, FLAG_ACK, 0, payload.copy());
+			}
+			break;
+		case GOAWAY:
+			if (streamId != 0) {
+				throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+			}
+			goAwayReceived = true;
+			if (streams.isEmpty()) {
+				closeAfterFlush();
+			}
+			break;
+		case WINDOW_UPDATE:
+			onWindowUpdate(streamId, payload);
+			break;
+		case CONTINUATION:
+			onContinuation(flags, streamId, payload);
+			break;
+		default:
+			// 未知类型的帧必须忽略
+			break;
+		}
+	}
+
+	private static void requireStream(final int streamId) throws Http2Exception {
+		if (streamId == 0) {
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "frame requires a stream");
+		}
+	}
+
+	/**
+	 * 跳过PADDED的长度字节和PRIORITY字段
+	 * @return padding的长度
+	 */
+	private static int readPadding(final int flags, final ByteBuf payload, final boolean priority)
+			throws Http2Exception {
+		int padding = 0;
+		if ((flags & FLAG_PADDED) != 0) {
+			if (!payload.isReadable()) {
+				throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "missing pad length");
+			}
+			padding = payload.readUnsignedByte();
+		}
+		if (priority && (flags & FLAG_PRIORITY) != 0) {
+			if (payload.readableBytes() < 5) {
+				throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "missing priority");
+			}
+			payload.skipBytes(5);
+		}
+		if (padding > payload.readableBytes()) {
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "padding exceeds payload");
+		}
+		return padding;
+	}
+
+	private void onHeaders(final int flags, final int streamId, final ByteBuf payload)
+			throws Http2Exception {
+		requireStream(streamId);
+		final int padding = readPadding(flags, payload, true);
+		final ByteBuf fragment = payload.readSlice(payload.readableBytes() - padding);
+		final boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+		if ((flags & FLAG_END_HEADERS) != 0) {
+			onHeaderBlock(streamId, endStream, fragment);
+			return;
+		}
+		headersStreamId = streamId;
+		headersStart = System.nanoTime();
+		headersEndStream = endStream;
+		headerBlock = ctx.alloc().buffer(fragment.readableBytes() * 2);
+		headerBlock.writeBytes(fragment);
+	}
+
+	private void onContinuation(final int flags, final int streamId, final ByteBuf payload)
+			throws Http2Exception {
+		if (headersStreamId == 0 || streamId != headersStreamId) {
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "unexpected CONTINUATION frame");
+		}
+		if (headerBlock.readableBytes() + payload.readableBytes()
+				> Math.max(settings.maxHeaderListSize(), settings.maxFrameSize()) * 2) {
+			throw Http2Exception.connection(Http2Exception.ENHANCE_YOUR_CALM, "header block too large");
+		}
+		headerBlock.writeBytes(payload);
+		if ((flags & FLAG_END_HEADERS) != 0) {
+			final ByteBuf block = headerBlock;
+			headerBlock = null;
+			headersStreamId = 0;
+			try {
+				onHeaderBlock(streamId, headersEndStream, block);
+			} finally {
+				block.release();
+			}
+		}
+	}
+
+	private void onHeaderBlock(final int streamId, final boolean endStream, final ByteBuf block)
+			throws Http2Exception {
+
+		final Http2StreamChannel existing = streams.get(streamId);
+		if (existing != null) {
+			// trailer, 忽略其内容
+			hpack.decode(block, IGNORE_HEADERS);
+			if (existing.remoteEnded) {
+				throw Http2Exception.stream(streamId, Http2Exception.STREAM_CLOSED, "HEADERS after END_STREAM");
+			}
+			if (!endStream) {
+				throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "trailers without END_STREAM");
+			}
+			receiveEnd(existing);
+			return;
+		}
+
+		if ((streamId & 1) == 0 || streamId <= lastStreamId) {
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "invalid stream id " + streamId);
+		}
+		lastStreamId = streamId;
+
+		// 被拒绝的stream也要解码, 保持HPACK动态表同步
+		final RequestBuilder builder = new RequestBuilder(streamId);
+		final boolean complete = hpack.decode(block, builder);
+
+		if (goAwaySent || goAwayReceived) {
+			return;
+		}
+		if (streams.size() >= settings.maxConcurrentStreams()) {
+			throw Http2Exception.stream(streamId, Http2Exception.REFUSED_STREAM, "too many concurrent streams");
+		}
+		final HttpRequest head = complete ? builder.build() : null;
+
+		final Http2StreamChannel stream = openStream(streamId);
+		stream.remoteEnded = endStream;
+		if (head == null) {
+			reject(stream, HttpResponseStatus.REQUEST_HEADER_FIELDS_TOO_LARGE);
+			return;
+		}
+		if (HttpHeaders.getContentLength(head, -1) > maxRequestSize) {
+			reject(stream, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+			return;
+		}
+		stream.head = head;
+
+		if (endStream) {
+			receiveEnd(stream);
+		} else if (HttpHeaders.is100ContinueExpected(head)) {
+			// 由stream的pipeline决定是否接受, 接受之前不回复100
+			head.headers().remove(HttpHeaders.Names.EXPECT);
+			stream.continueExpected = true;
+			final ExpectContinue expect = new ExpectContinue(this, stream, head);
+			stream.pipeline().fireUserEventTriggered(expect);
+			if (!expect.isDeferred()) {
+				proceed(stream);
+			}
+		}
+	}
+
+	/**
+	 * 接受等待100 Continue的stream, 见 {@link ExpectContinue#proceed()}
+	 */
+	void proceed(final Http2StreamChannel stream) {
+		if (!stream.continueExpected || streams.get(stream.id) != stream) {
+			return;
+		}
+		stream.continueExpected = false;
+		final FullHttpRequest held = stream.held;
+		if (held == null) {
+			final ByteBuf continueBlock = ctx.alloc().buffer(4);
+			HpackEncoder.encodeStatus(continueBlock, HttpResponseStatus.CONTINUE.code());
+			writeHeaders(stream.id, continueBlock, false);
+			ctx.flush();
+		} else {
+			stream.held = null;
+			stream.pipeline().fireChannelRead(held);
+		}
+	}
+
+	private Http2StreamChannel openStream(final int streamId) {
+		final Http2StreamChannel stream = new Http2StreamChannel(ctx.channel(), this, streamId,
+				remoteInitialWindowSize, settings.initialWindowSize());
+		stream.bodyStart = stream.lastRead = System.nanoTime();
+		streams.put(streamId, stream);
+		stream.pipeline().addLast(streamInitializer);
+		ctx.channel().eventLoop().register(stream);
+		return stream;
+	}
+
+	/**
+	 * 请求接收完, 聚合成FullHttpRequest交给stream的pipeline
+	 */
+	private void receiveEnd(final Http2StreamChannel stream) {
+		stream.remoteEnded = true;
+		final HttpRequest head = stream.head;
+		ByteBuf body = stream.body != null ? stream.body : Unpooled.EMPTY_BUFFER;
+		if (stream.charged > 0) {
+			body = new ChargedBody(body, budget, stream.charged);
+			stream.charged = 0;
+		}
+		stream.head = null;
+		stream.body = null;
+
+		final FullHttpRequest request = new DefaultFullHttpRequest(head.getProtocolVersion(),
+				head.getMethod(), head.getUri(), body);
+		request.headers().set(head.headers());
+		HttpHeaders.setContentLength(request, body.readableBytes());
+
+		if (stream.continueExpected) {
+			// 没有等待100就发送了body, 接受之后再交付
+			stream.held = request;
+			return;
+		}
+		stream.pipeline().fireChannelRead(request);
+	}
+
+	/**
+	 * 不经过handler直接返回错误状态并结束stream
+	 */
+	private void reject(final Http2StreamChannel stream, final HttpResponseStatus status) {
+		final ByteBuf block = ctx.alloc().buffer(16);
+		HpackEncoder.encodeStatus(block, status.code());
+		HpackEncoder.encodeHeader(block, "content-length", "0");
+		writeHeaders(stream.id, block, true);
+		stream.localEnded = true;
+		closeStream(stream, stream.remoteEnded ? -1 : Http2Exception.NO_ERROR);
+	}
+
+	private void onData(final int flags, final int streamId, final ByteBuf payload)
+			throws Http2Exception {
+		requireStream(streamId);
+		final int length = payload.readableBytes();
+		final int padding = readPadding(flags, payload, false);
+
+		connectionRecvWindow -= length;
+		if (connectionRecvWindow < 0) {
+			throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "connection window exceeded");
+		}
+
+		final Http2StreamChannel stream = streams.get(streamId);
+		if (stream == null || stream.remoteEnded || stream.head == null) {
+			consumed(length);
+			if (streamId > lastStreamId) {
+				throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream");
+			}
+			if (stream != null && stream.remoteEnded) {
+				throw Http2Exception.stream(streamId, Http2Exception.STREAM_CLOSED, "DATA after END_STREAM");
+			}
+			// 已经重置的stream, 丢弃
+			return;
+		}
+
+		stream.recvWindow -= length;
+		if (stream.recvWindow < 0) {
+			consumed(length);
+			throw Http2Exception.stream(streamId, Http2Exception.FLOW_CONTROL_ERROR, "stream window exceeded");
+		}
+
+		final int dataLength = payload.readableBytes() - padding;
+		final int bodyLength = stream.body == null ? 0 : stream.body.readableBytes();
+		if (bodyLength + (long) dataLength > maxRequestSize) {
+			consumed(length);
+			reject(stream, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+			return;
+		}
+		if (dataLength > 0) {
+			if (budget != null && !charge(stream, dataLength)) {
+				consumed(length);
+				reject(stream, HttpResponseStatus.SERVICE_UNAVAILABLE);
+				return;
+			}
+			if (stream.body == null) {
+				stream.body = ctx.alloc().buffer(dataLength);
+			}
+			stream.body.writeBytes(payload, payload.readerIndex(), dataLength);
+		}
+		stream.bodyBytes += dataLength;
+		stream.lastRead = lastActivity;
+		consumed(length);
+
+		if ((flags & FLAG_END_STREAM) != 0) {
+			receiveEnd(stream);
+			return;
+		}
+		stream.recvUnacked += length;
+		if (stream.recvUnacked >= Math.max(1, settings.initialWindowSize() / 2)) {
+			writeWindowUpdate(streamId, stream.recvUnacked);
+			stream.recvWindow += stream.recvUnacked;
+			stream.recvUnacked = 0;
+		}
+	}
+
+	/**
+	 * 把缓冲的body计入预算. 超过上限时拒绝stream, 或者照常接收但暂停归还连接窗口,
+	 * 客户端用完窗口后停止发送, 降到低水位以下后再归还
+	 * @return false 如果stream应该被拒绝
+	 */
+	private boolean charge(final Http2StreamChannel stream, final int n) {
+		if (!budget.tryReserve(n)) {
+			if (budget.isReject()) {
+				budget.rejected();
+				return false;
+			}
+			budget.add(n);
+			if (!windowHeld) {
+				windowHeld = true;
+				budget.await(releaseWindow);
+			}
+		}
+		stream.charged += n;
+		return true;
+	}
+
+	/**
+	 * 数据已经取走, 归还连接的接收窗口
+	 */
+	private void consumed(final int length) {
+		connectionRecvUnacked += length;
+		if (!windowHeld && connectionRecvUnacked >= settings.connectionWindowSize() / 2) {
+			writeWindowUpdate(0, connectionRecvUnacked);
+			connectionRecvWindow += connectionRecvUnacked;
+			connectionRecvUnacked = 0;
+		}
+	}
+
+	private void onRstStream(final int streamId, final ByteBuf payload) throws Http2Exception {
+		requireStream(streamId);
+		if (payload.readableBytes() != 4) {
+			throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad RST_STREAM frame");
+		}
+		if (streamId > lastStreamId) {
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream");
+		}
+		final Http2StreamChannel stream = streams.get(streamId);
+		if (stream != null) {
+			closeStream(stream, -1);
+		}
+	}
+
+	private void onSettings(final int flags, final int streamId, final ByteBuf payload)
+			throws Http2Exception {
+		if (streamId != 0) {
+			throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+		}
+		if ((flags & FLAG_ACK) != 0) {
+			if (payload.isReadable()) {
+				throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+			}
+			return;
+		}
+		if (payload.readableBytes() % 6 != 0) {
+			throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad SETTINGS frame");
+		}
+		applySettings(payload);
+		writeFrame(SETTINGS, FLAG_ACK, 0, Unpooled.EMPTY_BUFFER);
+	}
+
+	private void applySettings(final ByteBuf payload) throws Http2Exception {
+		boolean windowChanged = false;
+		while (payload.readableBytes() >= 6) {
+			final int id = payload.readUnsignedShort();
+			final long value = payload.readUnsignedInt();
+			switch (id) {
+			case SETTINGS_ENABLE_PUSH:
+				if (value > 1) {
+					throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "bad ENABLE_PUSH");
+				}
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if (value > Integer.MAX_VALUE) {
+					throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "bad INITIAL_WINDOW_SIZE");
+				}
+				final int delta = (int) value - remoteInitialWindowSize;
+				remoteInitialWindowSize = (int) value;
+				for (final Http2StreamChannel stream : streams.values()) {
+					stream.sendWindow += delta;
+				}
+				windowChanged = delta > 0;
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if (value < DEFAULT_MAX_FRAME_SIZE || value > 16777215) {
+					throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "bad MAX_FRAME_SIZE");
+				}
+				remoteMaxFrameSize = (int) value;
+				break;
+			default:
+				// 编码器不使用动态表, 也不推送, 其他参数不影响服务端
+				break;
+			}
+		}
+		if (windowChanged) {
+			for (final Http2StreamChannel stream : new ArrayList<Http2StreamChannel>(streams.values())) {
+				writePending(stream);
+			}
+		}
+	}
+
+	private void onWindowUpdate(final int streamId, final ByteBuf payload) throws Http2Exception {
+		if (payload.readableBytes() != 4) {
+			throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad WINDOW_UPDATE frame");
+		}
+		final int increment = payload.readInt() & 0x7fffffff;
+
+		if (streamId == 0) {
+			if (increment == 0 || connectionSendWindow > Integer.MAX_VALUE - increment) {
+				throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "bad connection window update");
+			}
+			connectionSendWindow += increment;
+			Http2StreamChannel stream;
+			while (connectionSendWindow > 0 && (stream = blocked.poll()) != null) {
+				stream.blockedOnConnection = false;
+				writePending(stream);
+			}
+			return;
+		}
+
+		final Http2StreamChannel stream = streams.get(streamId);
+		if (stream == null) {
+			return;
+		}
+		if (increment == 0 || stream.sendWindow > Integer.MAX_VALUE - increment) {
+			throw Http2Exception.stream(streamId, Http2Exception.FLOW_CONTROL_ERROR, "bad stream window update");
+		}
+		stream.sendWindow += increment;
+		writePending(stream);
+	}
+
+	/* ---------------- 写出 ---------------- */
+
+	/**
+	 * stream的pipeline写出的消息
+	 */
+	void write(final Http2StreamChannel stream, Object msg, final ChannelPromise promise) {
+
+		if (msg instanceof ByteBuf) {
+			// EncodedResponse, ResponseCache 写出的是编码好的HTTP/1响应
+			final ByteBuf encoded = (ByteBuf) msg;
+			try {
+				msg = parseResponse(encoded);
+			} catch (final RuntimeException e) {
+				promise.tryFailure(e);
+				return;
+			} finally {
+				encoded.release();
+			}
+		}
+
+		try {
+			if (stream.endQueued || !streams.containsKey(stream.id)) {
+				promise.tryFailure(new ClosedChannelException());
+				return;
+			}
+
+			if (msg instanceof HttpResponse) {
+				final HttpResponse response = (HttpResponse) msg;
+				if (HttpHeaders.Values.CLOSE.equalsIgnoreCase(
+						response.headers().get(HttpHeaders.Names.CONNECTION))) {
+					// HTTP/1中关闭连接的响应(drain, 请求数上限), 在HTTP/2中是不再接受新的stream
+					goAway(Http2Exception.NO_ERROR, null);
+				}
+				final ByteBuf block = encodeHeaders(response);
+				if (msg instanceof HttpContent) {
+					enqueue(stream, block, ((HttpContent) msg).content().retain(),
+							msg instanceof LastHttpContent, promise);
+				} else {
+					enqueue(stream, block, null, false, promise);
+				}
+			} else if (msg instanceof HttpContent) {
+				enqueue(stream, null, ((HttpContent) msg).content().retain(),
+						msg instanceof LastHttpContent, promise);
+			} else {
+				promise.tryFailure(new UnsupportedOperationException(
+						"unsupported message type on HTTP/2 stream: " + StringUtil.simpleClassName(msg)));
+			}
+		} finally {
+			ReferenceCountUtil.release(msg);
+		}
+	}
+
+	void flush() {
+		ctx.flush();
+	}
+
+	private static FullHttpResponse parseResponse(final ByteBuf buf) {
+		final HttpHeaders headers = new DefaultHttpHeaders(false);
+		HttpResponseStatus status = null;
+		int pos = buf.readerIndex();
+		while (true) {
+			final int eol = buf.indexOf(pos, buf.writerIndex(), (byte) '\n');
+			if (eol < 0) {
+				throw new IllegalArgumentException("incomplete HTTP response head");
+			}
+			final int end = eol > pos && buf.getByte(eol - 1) == '\r' ? eol - 1 : eol;
+			final String line = buf.toString(pos, end - pos, CharsetUtil.ISO_8859_1);
+			pos = eol + 1;
+			if (line.isEmpty()) {
+				break;
+			}
+			if (status == null) {
+				final int sp = line.indexOf(' ');
+				status = HttpResponseStatus.valueOf(Integer.parseInt(line.substring(sp + 1, sp + 4)));
+			} else {
+				final int colon = line.indexOf(':');
+				headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+			}
+		}
+		final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+				buf.slice(pos, buf.writerIndex() - pos).retain());
+		response.headers().set(headers);
+		return response;
+	}
+
+	private ByteBuf encodeHeaders(final HttpResponse response) {
+		final ByteBuf block = ctx.alloc().buffer(256);
+		HpackEncoder.encodeStatus(block, response.getStatus().code());
+		for (final Map.Entry<String, String> header : response.headers()) {
+			final String name = header.getKey().toLowerCase(Locale.ENGLISH);
+			if (!CONNECTION_HEADERS.contains(name)) {
+				HpackEncoder.encodeHeader(block, name, header.getValue());
+			}
+		}
+		return block;
+	}
+
+	private void enqueue(final Http2StreamChannel stream, final ByteBuf headers, final ByteBuf data,
+			final boolean endStream, final ChannelPromise promise) {
+		if (endStream) {
+			stream.endQueued = true;
+		}
+		if (data != null) {
+			stream.pendingBytes += data.readableBytes();
+		}
+		stream.pending.add(new PendingWrite(headers, data, endStream, promise));
+		writePending(stream);
+	}
+
+	/**
+	 * 在发送窗口允许的范围内写出stream排队的帧(不flush)
+	 */
+	private void writePending(final Http2StreamChannel stream) {
+		PendingWrite w;
+		while ((w = stream.pending.peek()) != null) {
+			if (w.headers != null) {
+				w.last = writeHeaders(stream.id, w.headers, w.endStream && w.data == null);
+				w.headers = null;
+			}
+			if (w.data != null) {
+				final ByteBuf data = w.data;
+				boolean ended = false;
+				int readable;
+				while ((readable = data.readableBytes()) > 0) {
+					final int n = Math.min(Math.min(readable, remoteMaxFrameSize),
+							Math.min(stream.sendWindow, connectionSendWindow));
+					if (n <= 0) {
+						if (connectionSendWindow <= 0 && !stream.blockedOnConnection) {
+							stream.blockedOnConnection = true;
+							blocked.add(stream);
+						}
+						stream.updateWritability();
+						return;
+					}
+					stream.sendWindow -= n;
+					connectionSendWindow -= n;
+					stream.pendingBytes -= n;
+					ended = n == readable && w.endStream;
+					w.last = writeFrame(DATA, ended ? FLAG_END_STREAM : 0, stream.id,
+							data.readSlice(n).retain());
+				}
+				if (w.endStream && !ended) {
+					// 没有内容的结束帧
+					w.last = writeFrame(DATA, FLAG_END_STREAM, stream.id, Unpooled.EMPTY_BUFFER);
+				}
+				data.release();
+				w.data = null;
+			}
+
+			stream.pending.poll();
+			complete(stream, w);
+		}
+		stream.updateWritability();
+	}
+
+	private void complete(final Http2StreamChannel stream, final PendingWrite w) {
+		final ChannelPromise promise = w.promise;
+		final ChannelFuture future = w.last != null ? w.last : ctx.newSucceededFuture();
+		future.addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture f) {
+				if (f.isSuccess()) {
+					promise.trySuccess();
+				} else {
+					promise.tryFailure(f.cause());
+				}
+			}
+		});
+		if (w.endStream) {
+			stream.localEnded = true;
+			// 最后一帧写入socket后再关闭stream, 在此之前stream的pipeline还在等待写出的结果
+			future.addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(final ChannelFuture f) {
+					closeStream(stream, stream.remoteEnded ? -1 : Http2Exception.NO_ERROR);
+				}
+			});
+		}
+	}
+
+	private ChannelFuture writeHeaders(final int streamId, final ByteBuf block, final boolean endStream) {
+		ChannelFuture future;
+		int type = HEADERS;
+		int flags = endStream ? FLAG_END_STREAM : 0;
+		do {
+			final int n = Math.min(block.readableBytes(), remoteMaxFrameSize);
+			if (n == block.readableBytes()) {
+				flags |= FLAG_END_HEADERS;
+			}
+			future = writeFrame(type, flags, streamId, block.readSlice(n).retain());
+			type = CONTINUATION;
+			flags = 0;
+		} while (block.isReadable());
+		block.release();
+		return future;
+	}
+
+	private void writeWindowUpdate(final int streamId, final int increment) {
+		writeFrame(WINDOW_UPDATE, 0, streamId, ctx.alloc().buffer(4).writeInt(increment));
+	}
+
+	private ChannelFuture writeFrame(final int type, final int flags, final int streamId,
+			final ByteBuf payload) {
+		final ByteBuf header = ctx.alloc().buffer(FRAME_HEADER_LENGTH);
+		header.writeMedium(payload.readableBytes());
+		header.writeByte(type);
+		header.writeByte(flags);
+		header.writeInt(streamId);
+		if (!payload.isReadable()) {
+			payload.release();
+			return ctx.write(header);
+		}
+		ctx.write(header);
+		return ctx.write(payload);
+	}
+
+	/* ---------------- stream 和连接的关闭 ---------------- */
+
+	/**
+	 * stream的channel被关闭(handler关闭连接, 或响应带 Connection: close)
+	 */
+	void streamClosed(final Http2StreamChannel stream) {
+		if (streams.get(stream.id) == stream) {
+			closeStream(stream, stream.localEnded && stream.remoteEnded ? -1
+					: stream.localEnded ? Http2Exception.NO_ERROR : Http2Exception.CANCEL);
+		}
+	}
+
+	private void resetStream(final int streamId, final int error) {
+		final Http2StreamChannel stream = streams.get(streamId);
+		if (stream != null) {
+			closeStream(stream, error);
+		} else {
+			writeFrame(RST_STREAM, 0, streamId, ctx.alloc().buffer(4).writeInt(error));
+		}
+	}
+
+	/**
+	 * @param error 发送RST_STREAM的错误码, -1表示不发送
+	 */
+	private void closeStream(final Http2StreamChannel stream, final int error) {
+		if (streams.remove(stream.id) != stream) {
+			return;
+		}
+		lastActivity = System.nanoTime();
+
+		if (error >= 0 && ctx.channel().isActive()) {
+			writeFrame(RST_STREAM, 0, stream.id, ctx.alloc().buffer(4).writeInt(error));
+			ctx.flush();
+		}
+
+		PendingWrite w;
+		while ((w = stream.pending.poll()) != null) {
+			if (w.headers != null) {
+				w.headers.release();
+			}
+			if (w.data != null) {
+				w.data.release();
+			}
+			w.promise.tryFailure(new ClosedChannelException());
+		}
+		stream.pendingBytes = 0;
+		if (stream.blockedOnConnection) {
+			blocked.remove(stream);
+		}
+		if (stream.body != null) {
+			stream.body.release();
+			stream.body = null;
+		}
+		if (stream.charged > 0) {
+			budget.release(stream.charged);
+			stream.charged = 0;
+		}
+		if (stream.held != null) {
+			stream.held.release();
+			stream.held = null;
+		}
+		if (stream.isOpen()) {
+			stream.unsafe().close(stream.unsafe().voidPromise());
+		}
+
+		if ((goAwaySent || goAwayReceived) && streams.isEmpty()) {
+			closeAfterFlush();
+		}
+	}
+
+	/**
+	 * 检查读取时限: 空闲的连接和超时的请求头关闭连接, 读取body超时或者低于最低速率的stream被重置.
+	 * 服务端暂停读取或者暂停归还窗口期间不检查读取, 恢复后从恢复时刻重新计时. 只能在event loop中调用
+	 * @param readPaused 连接的读取是否被暂停
+	 * @return 下一次检查的时间(nanoTime), 或 {@link #CANCEL}
+	 */
+	public long check(final long now, final boolean readPaused) {
+
+		if (!ctx.channel().isActive() || pollNanos == Long.MAX_VALUE) {
+			return CANCEL;
+		}
+
+		long next = now + pollNanos;
+
+		final long idleTimeout = timeouts.idleTimeoutNanos();
+		if (streams.isEmpty() && headersStreamId == 0 && idleTimeout > 0) {
+			if (now - lastActivity >= idleTimeout) {
+				if (log.isDebugEnabled()) {
+					log.debug("closing idle HTTP/2 connection {}", ctx.channel().remoteAddress());
+				}
+				goAway(Http2Exception.NO_ERROR, null);
+				closeAfterFlush();
+				return CANCEL;
+			}
+			next = Math.min(next, lastActivity + idleTimeout);
+		}
+
+		if (readPaused || windowHeld) {
+			// 客户端无法发送, 不计入读取时限
+			if (pausedSince == 0) {
+				pausedSince = now;
+			}
+			return next;
+		}
+		if (pausedSince != 0) {
+			final long paused = now - pausedSince;
+			pausedSince = 0;
+			headersStart += paused;
+			for (final Http2StreamChannel stream : streams.values()) {
+				stream.bodyStart += paused;
+				stream.lastRead = now;
+			}
+		}
+
+		final long headerTimeout = timeouts.headerReadTimeoutNanos();
+		if (headersStreamId != 0 && headerTimeout > 0) {
+			if (now - headersStart >= headerTimeout) {
+				timeouts.timedOut();
+				connectionError(Http2Exception.connection(Http2Exception.PROTOCOL_ERROR,
+						"header read timeout"));
+				return CANCEL;
+			}
+			next = Math.min(next, headersStart + headerTimeout);
+		}
+
+		final long bodyTimeout = timeouts.bodyReadTimeoutNanos();
+		final long minRate = timeouts.minBytesPerSecond();
+		for (final Http2StreamChannel stream : new ArrayList<Http2StreamChannel>(streams.values())) {
+			// 已经收完或者在等待100 Continue的stream没有读取时限
+			if (stream.head == null || stream.remoteEnded || stream.continueExpected) {
+				continue;
+			}
+			if (bodyTimeout > 0) {
+				if (now - stream.lastRead >= bodyTimeout) {
+					timeouts.timedOut();
+					if (log.isDebugEnabled()) {
+						log.debug("resetting HTTP/2 stream {} from {}: body read timeout",
+								stream.id, ctx.channel().remoteAddress());
+					}
+					closeStream(stream, Http2Exception.CANCEL);
+					continue;
+				}
+				next = Math.min(next, stream.lastRead + bodyTimeout);
+			}
+			final long elapsed = now - stream.bodyStart;
+			if (minRate > 0 && elapsed >= timeouts.rateGraceNanos()) {
+				final double rate = stream.bodyBytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+				if (rate < minRate) {
+					timeouts.slowClient();
+					if (log.isDebugEnabled()) {
+						log.debug("resetting slow HTTP/2 stream {} from {}: {} bytes/s", new Object[] {
+								stream.id, ctx.channel().remoteAddress(), (long) rate });
+					}
+					closeStream(stream, Http2Exception.ENHANCE_YOUR_CALM);
+				}
+			}
+		}
+
+		return next;
+	}
+
+	private void goAway(final int error, final String message) {
+		if (goAwaySent || !ctx.channel().isActive()) {
+			return;
+		}
+		goAwaySent = true;
+		final ByteBuf payload = ctx.alloc().buffer(8);
+		payload.writeInt(lastStreamId).writeInt(error);
+		if (message != null) {
+			payload.writeBytes(message.getBytes(CharsetUtil.UTF_8));
+		}
+		writeFrame(GOAWAY, 0, 0, payload);
+	}
+
+	private void connectionError(final Http2Exception e) {
+		if (log.isDebugEnabled()) {
+			log.debug("HTTP/2 connection error from {}: {}", ctx.channel().remoteAddress(), e.getMessage());
+		}
+		goAway(e.error, e.getMessage());
+		closeAfterFlush();
+	}
+
+	private void closeAfterFlush() {
+		ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+	}
+
+	private void closeAllStreams() {
+		for (final Http2StreamChannel stream : new ArrayList<Http2StreamChannel>(streams.values())) {
+			closeStream(stream, -1);
+		}
+		if (headerBlock != null) {
+			headerBlock.release();
+			headerBlock = null;
+		}
+		if (upgradeRequest != null) {
+			upgradeRequest.release();
+			upgradeRequest = null;
+		}
+	}
+
+	@Override
+	public void channelReadComplete(final ChannelHandlerContext ctx_) throws Exception {
+		ctx_.flush();
+		// 请求直接交给stream的pipeline, decode从不输出消息, ByteToMessageDecoder会因此在
+		// autoRead关闭时继续读取, 使暂停读取失效. 这里不调用super, 只整理缓冲区
+		final ByteBuf buffer = internalBuffer();
+		if (buffer.refCnt() == 1) {
+			buffer.discardSomeReadBytes();
+		}
+		ctx_.fireChannelReadComplete();
+	}
+
+	@Override
+	public void channelWritabilityChanged(final ChannelHandlerContext ctx_) throws Exception {
+		for (final Http2StreamChannel stream : new ArrayList<Http2StreamChannel>(streams.values())) {
+			if (stream.isOpen()) {
+				stream.pipeline().fireChannelWritabilityChanged();
+			}
+		}
+		super.channelWritabilityChanged(ctx_);
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx_) throws Exception {
+		closeAllStreams();
+		super.channelInactive(ctx_);
+	}
+
+	@Override
+	protected void handlerRemoved0(final ChannelHandlerContext ctx_) throws Exception {
+		closeAllStreams();
+	}
+
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx_, final Throwable cause) throws Exception {
+		if (log.isDebugEnabled()) {
+			log.debug("closing HTTP/2 connection " + ctx_.channel().remoteAddress(), cause);
+		}
+		ctx_.close();
+	}
+
+	/**
+	 * stream排队等待发送窗口的一次写出: 头, 内容或两者
+	 */
+	static final class PendingWrite {
+		ByteBuf headers;
+		ByteBuf data;
+		final boolean endStream;
+		final ChannelPromise promise;
+		ChannelFuture last;
+
+		PendingWrite(final ByteBuf headers_, final ByteBuf data_, final boolean endStream_,
+				final ChannelPromise promise_) {
+			headers = headers_;
+			data = data_;
+			endStream = endStream_;
+			promise = promise_;
+		}
+	}
+
+	/**
+	 * 把解码出的头转成HTTP/1形式的请求: 伪头变成请求行, :authority变成Host, 多个cookie合并
+	 */
+	/**
+	 * 交付的请求body, 引用计数降到0时从预算中扣除
+	 */
+	private static final class ChargedBody extends CompositeByteBuf {
+
+		private final BodyBudget budget;
+		private final long bytes;
+
+		ChargedBody(final ByteBuf body, final BodyBudget budget_, final long bytes_) {
+			super(body.alloc(), body.isDirect(), Integer.MAX_VALUE, body);
+			budget = budget_;
+			bytes = bytes_;
+		}
+
+		@Override
+		protected void deallocate() {
+			super.deallocate();
+			budget.release(bytes);
+		}
+
+	}
+
+	private static final class RequestBuilder implements HpackDecoder.Listener {
+
+		private final int streamId;
+		private final HttpHeaders headers = new DefaultHttpHeaders(false);
+		private String method;
+		private String scheme;
+		private String path;
+		private String authority;
+		private StringBuilder cookie;
+		private boolean regularSeen = false;
+
+		RequestBuilder(final int streamId_) {
+			streamId = streamId_;
+		}
+
+		@Override
+		public void header(final String name, final String value) throws Http2Exception {
+			if (name.startsWith(":")) {
+				if (regularSeen) {
+					throw malformed("pseudo header after regular header");
+				}
+				if (":method".equals(name) && method == null) {
+					method = value;
+				} else if (":scheme".equals(name) && scheme == null) {
+					scheme = value;
+				} else if (":path".equals(name) && path == null) {
+					path = value;
+				} else if (":authority".equals(name) && authority == null) {
+					authority = value;
+				} else {
+					throw malformed("unexpected pseudo header " + name);
+				}
+				return;
+			}
+			regularSeen = true;
+			for (int i = 0; i < name.length(); i++) {
+				final char c = name.charAt(i);
+				if (c >= 'A' && c <= 'Z') {
+					throw malformed("uppercase header name " + name);
+				}
+			}
+			if (CONNECTION_HEADERS.contains(name) || "te".equals(name) && !"trailers".equals(value)) {
+				throw malformed("connection-specific header " + name);
+			}
+			if ("cookie".equals(name)) {
+				if (cookie == null) {
+					cookie = new StringBuilder(value);
+				} else {
+					cookie.append("; ").append(value);
+				}
+				return;
+			}
+			headers.add(name, value);
+		}
+
+		HttpRequest build() throws Http2Exception {
+			if (method == null || scheme == null || path == null || path.isEmpty()) {
+				throw malformed("missing pseudo header");
+			}
+			final HttpMethod httpMethod;
+			try {
+				httpMethod = HttpMethod.valueOf(method);
+			} catch (final IllegalArgumentException e) {
+				throw malformed("invalid method " + method);
+			}
+			final HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, httpMethod, path, false);
+			request.headers().set(headers);
+			if (authority != null && !request.headers().contains(HttpHeaders.Names.HOST)) {
+				request.headers().set(HttpHeaders.Names.HOST, authority);
+			}
+			if (cookie != null) {
+				request.headers().set(HttpHeaders.Names.COOKIE, cookie.toString());
+			}
+			return request;
+		}
+
+		private Http2Exception malformed(final String message) {
+			return Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, message);
+		}
+	}
+
+}
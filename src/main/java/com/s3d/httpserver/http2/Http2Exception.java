@@ -0,0 +1,42 @@
+package com.s3d.httpserver.http2;
+
+/**
+ * HTTP/2协议错误. streamId为0时是连接错误(发送GOAWAY后关闭连接), 否则只重置该stream.
+ */
+final class Http2Exception extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int STREAM_CLOSED = 0x5;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+	static final int ENHANCE_YOUR_CALM = 0xb;
+
+	final int error;
+	final int streamId;
+
+	private Http2Exception(final int streamId_, final int error_, final String message) {
+		super(message, null, false, false);
+		streamId = streamId_;
+		error = error_;
+	}
+
+	static Http2Exception connection(final int error, final String message) {
+		return new Http2Exception(0, error, message);
+	}
+
+	static Http2Exception stream(final int streamId, final int error, final String message) {
+		return new Http2Exception(streamId, error, message);
+	}
+
+	static Http2Exception compression(final String message) {
+		return connection(COMPRESSION_ERROR, message);
+	}
+
+}
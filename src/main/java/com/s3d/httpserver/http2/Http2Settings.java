@@ -0,0 +1,83 @@
+package com.s3d.httpserver.http2;
+
+/**
+ * 服务端的HTTP/2参数, 通过 {@link com.s3d.httpserver.server.HttpServerConfig#http2(Http2Settings)} 启用HTTP/2.
+ */
+public class Http2Settings {
+
+	private int maxConcurrentStreams = 100;
+	private int initialWindowSize = 65535;
+	private int connectionWindowSize = 1024 * 1024;
+	private int maxFrameSize = 16384;
+	private int maxHeaderListSize = 16 * 1024;
+
+	/**
+	 * 单个连接上同时处理的stream数, 超出的stream被拒绝(REFUSED_STREAM)
+	 */
+	public Http2Settings maxConcurrentStreams(final int max) {
+		maxConcurrentStreams = max;
+		return this;
+	}
+
+	/**
+	 * 每个stream的接收窗口(请求体)
+	 */
+	public Http2Settings initialWindowSize(final int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("window size must not be negative");
+		}
+		initialWindowSize = size;
+		return this;
+	}
+
+	/**
+	 * 整个连接的接收窗口, 所有stream共享
+	 */
+	public Http2Settings connectionWindowSize(final int size) {
+		if (size < 65535) {
+			throw new IllegalArgumentException("connection window must be at least 65535");
+		}
+		connectionWindowSize = size;
+		return this;
+	}
+
+	/**
+	 * 允许客户端发送的最大帧, 16384 - 16777215
+	 */
+	public Http2Settings maxFrameSize(final int size) {
+		if (size < 16384 || size > 16777215) {
+			throw new IllegalArgumentException("max frame size must be between 16384 and 16777215");
+		}
+		maxFrameSize = size;
+		return this;
+	}
+
+	/**
+	 * 解码后请求头的总大小上限
+	 */
+	public Http2Settings maxHeaderListSize(final int size) {
+		maxHeaderListSize = size;
+		return this;
+	}
+
+	public int maxConcurrentStreams() {
+		return maxConcurrentStreams;
+	}
+
+	public int initialWindowSize() {
+		return initialWindowSize;
+	}
+
+	public int connectionWindowSize() {
+		return connectionWindowSize;
+	}
+
+	public int maxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public int maxHeaderListSize() {
+		return maxHeaderListSize;
+	}
+
+}
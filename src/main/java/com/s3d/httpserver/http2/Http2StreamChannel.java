@@ -0,0 +1,194 @@
+package com.s3d.httpserver.http2;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AbstractChannel;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultChannelConfig;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+
+/**
+ * 一个HTTP/2 stream, 作为连接的子channel注册在连接所属的event loop上,
+ * 因此stream的pipeline和HTTP/1连接的pipeline一样使用 {@link com.s3d.httpserver.server.HttpRequestChannelHandler}.
+ * 写出的消息不经过ChannelOutboundBuffer, 由第一个handler直接交给 {@link Http2ConnectionHandler} 编码成帧,
+ * promise在帧写入socket后完成. channel属性委托给连接, 同一连接上的stream共享.
+ */
+final class Http2StreamChannel extends AbstractChannel {
+
+	private static final ChannelMetadata METADATA = new ChannelMetadata(false);
+
+	/* 待写出的数据超过这个值时isWritable()返回false */
+	static final int HIGH_WATER_MARK = 64 * 1024;
+
+	final int id;
+	private final Http2ConnectionHandler connection;
+	private final ChannelConfig config = new DefaultChannelConfig(this);
+	private boolean open = true;
+
+	/* 以下字段只在event loop线程中由Http2ConnectionHandler读写 */
+	int sendWindow;
+	int recvWindow;
+	int recvUnacked = 0;
+	boolean remoteEnded = false;
+	boolean localEnded = false;
+	/* 最后一帧已经进入发送队列 */
+	boolean endQueued = false;
+	HttpRequest head;
+	ByteBuf body;
+	/* body中计入预算的字节数 */
+	long charged = 0;
+	/* 读取时限: stream打开的时间, 最近一次收到DATA的时间, 收到的body字节数 */
+	long bodyStart;
+	long lastRead;
+	long bodyBytes = 0;
+	/* 在等待ExpectContinue.proceed(), 期间收到的完整请求暂存在held */
+	boolean continueExpected = false;
+	FullHttpRequest held;
+	final ArrayDeque<Http2ConnectionHandler.PendingWrite> pending =
+			new ArrayDeque<Http2ConnectionHandler.PendingWrite>();
+	int pendingBytes = 0;
+	/* 在等待连接的发送窗口 */
+	boolean blockedOnConnection = false;
+	boolean writable = true;
+
+	Http2StreamChannel(final Channel parent, final Http2ConnectionHandler connection_,
+			final int id_, final int sendWindow_, final int recvWindow_) {
+		super(parent);
+		connection = connection_;
+		id = id_;
+		sendWindow = sendWindow_;
+		recvWindow = recvWindow_;
+		pipeline().addFirst(new StreamWriter());
+	}
+
+	@Override
+	public ChannelConfig config() {
+		return config;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public boolean isActive() {
+		return open;
+	}
+
+	@Override
+	public ChannelMetadata metadata() {
+		return METADATA;
+	}
+
+	@Override
+	public boolean isWritable() {
+		return open && writable && parent().isWritable();
+	}
+
+	/**
+	 * 认证等连接级别的状态保存在连接上
+	 */
+	@Override
+	public <T> Attribute<T> attr(final AttributeKey<T> key) {
+		return parent().attr(key);
+	}
+
+	@Override
+	protected AbstractUnsafe newUnsafe() {
+		return new AbstractUnsafe() {
+			@Override
+			public void connect(final SocketAddress remoteAddress,
+					final SocketAddress localAddress, final ChannelPromise promise) {
+				promise.setFailure(new UnsupportedOperationException());
+			}
+		};
+	}
+
+	@Override
+	protected boolean isCompatible(final EventLoop loop) {
+		return loop == parent().eventLoop();
+	}
+
+	@Override
+	protected SocketAddress localAddress0() {
+		return parent().localAddress();
+	}
+
+	@Override
+	protected SocketAddress remoteAddress0() {
+		return parent().remoteAddress();
+	}
+
+	@Override
+	protected void doBind(final SocketAddress localAddress) throws Exception {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected void doDisconnect() throws Exception {
+		doClose();
+	}
+
+	@Override
+	protected void doClose() throws Exception {
+		if (open) {
+			open = false;
+			connection.streamClosed(this);
+		}
+	}
+
+	@Override
+	protected void doBeginRead() throws Exception {
+		// 请求由连接解码后推送, 不需要读
+	}
+
+	@Override
+	protected void doWrite(final ChannelOutboundBuffer in) throws Exception {
+		// 所有写出都被StreamWriter截获, 不会到达这里
+		while (in.current() != null) {
+			in.remove(new UnsupportedOperationException());
+		}
+	}
+
+	/**
+	 * 待写出的数据量变化后调用, 跨过水位时通知ChunkedWriteHandler等
+	 */
+	void updateWritability() {
+		final boolean now = pendingBytes < (writable ? HIGH_WATER_MARK : HIGH_WATER_MARK / 2);
+		if (now != writable) {
+			writable = now;
+			if (open) {
+				pipeline().fireChannelWritabilityChanged();
+			}
+		}
+	}
+
+	private final class StreamWriter extends ChannelOutboundHandlerAdapter {
+
+		@Override
+		public void write(final ChannelHandlerContext ctx, final Object msg,
+				final ChannelPromise promise) throws Exception {
+			connection.write(Http2StreamChannel.this, msg, promise);
+		}
+
+		@Override
+		public void flush(final ChannelHandlerContext ctx) throws Exception {
+			connection.flush();
+		}
+
+	}
+
+}
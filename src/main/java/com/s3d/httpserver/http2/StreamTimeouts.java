@@ -0,0 +1,41 @@
+package com.s3d.httpserver.http2;
+
+/**
+ * HTTP/2连接和stream的读取时限, 由外部定时调用 {@link Http2ConnectionHandler#check(long, boolean)} 检查.
+ * 时限小于等于0表示不限制.
+ */
+public interface StreamTimeouts {
+
+	/**
+	 * 没有打开的stream时连接的空闲时限
+	 */
+	long idleTimeoutNanos();
+
+	/**
+	 * 分成多帧(CONTINUATION)的请求头接收完的时限
+	 */
+	long headerReadTimeoutNanos();
+
+	/**
+	 * 正在接收body的stream两次DATA之间的最长间隔
+	 */
+	long bodyReadTimeoutNanos();
+
+	/**
+	 * 正在接收body的stream的最低传输速率, 在 {@link #rateGraceNanos()} 之后开始检查
+	 */
+	long minBytesPerSecond();
+
+	long rateGraceNanos();
+
+	/**
+	 * 连接或stream因超时被关闭
+	 */
+	void timedOut();
+
+	/**
+	 * stream因传输速率过低被重置
+	 */
+	void slowClient();
+
+}
@@ -0,0 +1,192 @@
+package com.s3d.httpserver.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * AIMD方式的自适应并发限制.
+ * 以handler的实际耗时为信号: 每个采样窗口的平均耗时超过无负载耗时的 tolerance 倍时,
+ * 并发上限按 backoffRatio 乘性减小; 否则在并发接近上限时加性增长.
+ * 超出上限的请求在分配PooledServerRequest之前就被拒绝.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	/* 每隔多少个窗口重新测量无负载耗时 */
+	private static final int RESET_WINDOWS = 600;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong shed = new AtomicLong();
+
+	private final int minLimit;
+	private final int maxLimit;
+	private volatile int limit;
+
+	private double backoffRatio = 0.9;
+	private double tolerance = 2.0;
+	private double lowPriorityRatio = 0.8;
+	private int windowSize = 100;
+	private int retryAfterSeconds = 1;
+
+	/* 当前窗口, 样本无锁累加 */
+	private final AtomicReference<Window> window = new AtomicReference<Window>(new Window());
+
+	/* 以下字段由 synchronized(this) 保护, 每个窗口结算一次 */
+	private double estimatedLimit;
+	private long noLoadNanos = Long.MAX_VALUE;
+	private int windows = 0;
+
+	public AdaptiveConcurrencyLimiter() {
+		this(20, 10, 1000);
+	}
+
+	public AdaptiveConcurrencyLimiter(final int initialLimit,
+			final int minLimit_, final int maxLimit_) {
+		minLimit = minLimit_;
+		maxLimit = maxLimit_;
+		limit = initialLimit;
+		estimatedLimit = initialLimit;
+	}
+
+	public AdaptiveConcurrencyLimiter backoffRatio(final double ratio) {
+		backoffRatio = ratio;
+		return this;
+	}
+
+	/**
+	 * 平均耗时超过无负载耗时的多少倍视为过载
+	 */
+	public AdaptiveConcurrencyLimiter tolerance(final double tolerance_) {
+		tolerance = tolerance_;
+		return this;
+	}
+
+	/**
+	 * {@link RequestPriority#LOW} 请求可用的并发额度比例
+	 */
+	public AdaptiveConcurrencyLimiter lowPriorityRatio(final double ratio) {
+		lowPriorityRatio = ratio;
+		return this;
+	}
+
+	public AdaptiveConcurrencyLimiter windowSize(final int samples) {
+		windowSize = samples;
+		return this;
+	}
+
+	public AdaptiveConcurrencyLimiter retryAfterSeconds(final int seconds) {
+		retryAfterSeconds = seconds;
+		return this;
+	}
+
+	/**
+	 * 申请一个并发额度, 成功后必须调用 {@link #release(long)} 或 {@link #cancel()}
+	 */
+	public boolean tryAcquire(final RequestPriority priority) {
+
+		if (priority == RequestPriority.CRITICAL) {
+			inFlight.incrementAndGet();
+			return true;
+		}
+
+		final int max = priority == RequestPriority.LOW ? (int) (limit * lowPriorityRatio) : limit;
+
+		for (;;) {
+			final int current = inFlight.get();
+			if (current >= max) {
+				shed.incrementAndGet();
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 归还额度并提交一个耗时样本
+	 */
+	public void release(final long latencyNanos) {
+		final int current = inFlight.getAndDecrement();
+		sample(latencyNanos, current);
+	}
+
+	/**
+	 * 归还没有用来处理请求的额度, 不提交样本
+	 */
+	public void cancel() {
+		inFlight.decrementAndGet();
+	}
+
+	private void sample(final long latencyNanos, final int inFlightAtRelease) {
+
+		final Window current = window.get();
+		if (current.count.incrementAndGet() > windowSize) {
+			// 窗口已满, 正在换成新窗口, 丢弃这个样本
+			return;
+		}
+		current.sum.addAndGet(latencyNanos);
+		for (;;) {
+			final int max = current.maxInFlight.get();
+			if (inFlightAtRelease <= max || current.maxInFlight.compareAndSet(max, inFlightAtRelease)) {
+				break;
+			}
+		}
+		// 最后一个累加完的线程结算, 这时窗口里正好是windowSize个样本
+		if (current.done.incrementAndGet() == windowSize) {
+			window.set(new Window());
+			closeWindow(current.sum.get() / windowSize, current.maxInFlight.get());
+		}
+	}
+
+	private synchronized void closeWindow(final long avg, final int maxInFlight) {
+
+		if (++windows >= RESET_WINDOWS) {
+			windows = 0;
+			noLoadNanos = avg;
+		} else {
+			noLoadNanos = Math.min(noLoadNanos, avg);
+		}
+
+		if (avg > noLoadNanos * tolerance) {
+			estimatedLimit = Math.max(minLimit, estimatedLimit * backoffRatio);
+		} else if (maxInFlight * 2 >= estimatedLimit) {
+			// 只有真正用到了一半以上额度才增长, 避免空闲时上限无限膨胀
+			estimatedLimit = Math.min(maxLimit, estimatedLimit + 1);
+		}
+		limit = (int) estimatedLimit;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getShedCount() {
+		return shed.get();
+	}
+
+	public long getNoLoadLatency(final TimeUnit unit) {
+		final long nanos;
+		synchronized (this) {
+			nanos = noLoadNanos == Long.MAX_VALUE ? 0 : noLoadNanos;
+		}
+		return unit.convert(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	public int retryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	private static final class Window {
+		final AtomicInteger count = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicLong sum = new AtomicLong();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.s3d.httpserver.limit;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * CIDR地址段, 如 {@code 10.0.0.0/8}, {@code fd00::/8}. 不带前缀长度时表示单个地址.
+ */
+public final class CidrRange {
+
+	private final byte[] network;
+	private final int prefixLength;
+
+	private CidrRange(final byte[] network_, final int prefixLength_) {
+		network = network_;
+		prefixLength = prefixLength_;
+	}
+
+	public static CidrRange parse(final String cidr) {
+		final int slash = cidr.indexOf('/');
+		final String host = slash == -1 ? cidr.trim() : cidr.substring(0, slash).trim();
+		final byte[] address;
+		try {
+			// 只接受IP字面量, 不做DNS解析
+			if (host.indexOf(':') == -1 && !host.matches("[0-9]+(\\.[0-9]+){3}")) {
+				throw new IllegalArgumentException("Not an IP address: " + cidr);
+			}
+			address = InetAddress.getByName(host).getAddress();
+		} catch (final UnknownHostException e) {
+			throw new IllegalArgumentException("Not an IP address: " + cidr, e);
+		}
+
+		final int bits = address.length * 8;
+		final int prefix = slash == -1 ? bits : Integer.parseInt(cidr.substring(slash + 1).trim());
+		if (prefix < 0 || prefix > bits) {
+			throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+		}
+		return new CidrRange(address, prefix);
+	}
+
+	public boolean contains(final InetAddress address) {
+		final byte[] bytes = address.getAddress();
+		if (bytes.length != network.length) {
+			return false;
+		}
+		final int fullBytes = prefixLength >> 3;
+		for (int i = 0; i < fullBytes; i++) {
+			if (bytes[i] != network[i]) {
+				return false;
+			}
+		}
+		final int remainder = prefixLength & 7;
+		if (remainder == 0) {
+			return true;
+		}
+		final int mask = (0xFF << (8 - remainder)) & 0xFF;
+		return (bytes[fullBytes] & mask) == (network[fullBytes] & mask);
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return InetAddress.getByAddress(network).getHostAddress() + "/" + prefixLength;
+		} catch (final UnknownHostException e) {
+			return super.toString();
+		}
+	}
+
+}
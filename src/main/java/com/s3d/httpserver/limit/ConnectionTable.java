@@ -0,0 +1,86 @@
+package com.s3d.httpserver.limit;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按客户端地址统计连接数, 分段加锁.
+ * 连接数降为0的条目立即移除, 内存占用与当前活跃的客户端数成正比.
+ */
+public class ConnectionTable {
+
+	private final Stripe[] stripes;
+	private final int mask;
+
+	public ConnectionTable() {
+		this(64);
+	}
+
+	/**
+	 * @param concurrency 分段数, 向上取整到2的幂
+	 */
+	public ConnectionTable(final int concurrency) {
+		int size = 1;
+		while (size < concurrency) {
+			size <<= 1;
+		}
+		stripes = new Stripe[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new Stripe();
+		}
+		mask = size - 1;
+	}
+
+	private Stripe stripe(final InetAddress address) {
+		int h = address.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & mask];
+	}
+
+	/**
+	 * 连接数加1, 超过上限时不做修改
+	 * @return false 如果该地址已达到 maxPerAddress
+	 */
+	public boolean tryAcquire(final InetAddress address, final int maxPerAddress) {
+		final Stripe stripe = stripe(address);
+		synchronized (stripe) {
+			final int[] count = stripe.counts.get(address);
+			if (count == null) {
+				if (maxPerAddress < 1) {
+					return false;
+				}
+				stripe.counts.put(address, new int[] { 1 });
+				return true;
+			}
+			if (count[0] >= maxPerAddress) {
+				return false;
+			}
+			count[0]++;
+			return true;
+		}
+	}
+
+	public void release(final InetAddress address) {
+		final Stripe stripe = stripe(address);
+		synchronized (stripe) {
+			final int[] count = stripe.counts.get(address);
+			if (count != null && --count[0] <= 0) {
+				stripe.counts.remove(address);
+			}
+		}
+	}
+
+	public int count(final InetAddress address) {
+		final Stripe stripe = stripe(address);
+		synchronized (stripe) {
+			final int[] count = stripe.counts.get(address);
+			return count == null ? 0 : count[0];
+		}
+	}
+
+	private static final class Stripe {
+		final Map<InetAddress, int[]> counts = new HashMap<InetAddress, int[]>();
+	}
+
+}
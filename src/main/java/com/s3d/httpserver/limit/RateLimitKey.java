@@ -0,0 +1,58 @@
+package com.s3d.httpserver.limit;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.s3d.httpserver.auth.UserSessionDetail;
+import com.s3d.httpserver.server.HttpRequestChannelHandler;
+
+/**
+ * 限流的分桶依据. 在分配PooledServerRequest之前调用, 只能使用netty原始请求.
+ */
+public interface RateLimitKey {
+
+	/**
+	 * @return 分桶key, 返回null表示该请求不受限
+	 */
+	String of(ChannelHandlerContext ctx, HttpRequest request);
+
+	/** 按客户端IP */
+	RateLimitKey REMOTE_ADDRESS = new RateLimitKey() {
+		@Override
+		public String of(final ChannelHandlerContext ctx, final HttpRequest request) {
+			final SocketAddress remote = ctx.channel().remoteAddress();
+			return remote instanceof InetSocketAddress
+					? ((InetSocketAddress) remote).getAddress().getHostAddress() : null;
+		}
+	};
+
+	/**
+	 * 按认证身份: 连接上已经认证过的用户, 否则按客户端IP.
+	 * 限流在认证之前, 不使用未经验证的Authorization头, 否则换一个头就能得到新的桶
+	 */
+	RateLimitKey IDENTITY = new RateLimitKey() {
+		@Override
+		public String of(final ChannelHandlerContext ctx, final HttpRequest request) {
+			final UserSessionDetail session = ctx.channel().attr(HttpRequestChannelHandler.ATTR_SESS).get();
+			if (session != null) {
+				return "user:" + session.getUserId();
+			}
+			final String address = REMOTE_ADDRESS.of(ctx, request);
+			return address == null ? null : "addr:" + address;
+		}
+	};
+
+	/** 按路径(不含query string), 即所有客户端共享 */
+	RateLimitKey ROUTE = new RateLimitKey() {
+		@Override
+		public String of(final ChannelHandlerContext ctx, final HttpRequest request) {
+			final String uri = request.getUri();
+			final int q = uri.indexOf('?');
+			return q == -1 ? uri : uri.substring(0, q);
+		}
+	};
+
+}
@@ -0,0 +1,17 @@
+package com.s3d.httpserver.limit;
+
+/**
+ * 请求优先级, 过载时按优先级从低到高丢弃.
+ */
+public enum RequestPriority {
+
+	/** 健康检查, 管理接口等, 永不丢弃 */
+	CRITICAL,
+
+	/** 默认 */
+	NORMAL,
+
+	/** 只能使用部分并发额度, 最先被丢弃 */
+	LOW
+
+}
@@ -0,0 +1,170 @@
+package com.s3d.httpserver.limit;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶限流.
+ * 每个key一个桶, 桶保存在分段加锁的哈希表中; 令牌在访问时按 {@link System#nanoTime()} 惰性补充,
+ * 不需要后台线程. 空闲时间超过填满一个桶所需时间的条目可以无损移除, 访问时顺带清理.
+ * 桶数量到达上限时移除最久未访问的桶, 新的key仍然受限.
+ */
+public class TokenBucketRateLimiter {
+
+	private final RateLimitKey key;
+	private final double permitsPerNano;
+	private final double burst;
+	private final long idleNanos;
+	private final int maxEntriesPerStripe;
+
+	private final Stripe[] stripes;
+	private final int mask;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param permitsPerSecond 每秒补充的令牌数
+	 * @param burst_ 桶容量
+	 * @param key_ 分桶依据
+	 */
+	public TokenBucketRateLimiter(final double permitsPerSecond, final int burst_,
+			final RateLimitKey key_) {
+		this(permitsPerSecond, burst_, key_, 64, 100000);
+	}
+
+	/**
+	 * @param concurrency 分段数
+	 * @param maxEntries 桶数量上限, 超出时移除最久未访问的桶
+	 */
+	public TokenBucketRateLimiter(final double permitsPerSecond, final int burst_,
+			final RateLimitKey key_, final int concurrency, final int maxEntries) {
+		if (permitsPerSecond <= 0 || burst_ < 1) {
+			throw new IllegalArgumentException("rate and burst must be positive");
+		}
+		key = key_;
+		permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		burst = burst_;
+		// 空闲这么久之后桶一定是满的, 删除等价于保留
+		idleNanos = (long) Math.ceil(burst / permitsPerNano);
+
+		int size = 1;
+		while (size < concurrency) {
+			size <<= 1;
+		}
+		stripes = new Stripe[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new Stripe();
+		}
+		mask = size - 1;
+		maxEntriesPerStripe = Math.max(1, maxEntries / size);
+	}
+
+	public RateLimitKey key() {
+		return key;
+	}
+
+	/**
+	 * 取一个令牌
+	 * @return false 如果该key的令牌已用完
+	 */
+	public boolean tryAcquire(final String bucketKey) {
+
+		if (bucketKey == null) {
+			return true;
+		}
+
+		final long now = System.nanoTime();
+		int h = bucketKey.hashCode();
+		h ^= (h >>> 16);
+		final Stripe stripe = stripes[h & mask];
+
+		synchronized (stripe) {
+			Bucket bucket = stripe.buckets.get(bucketKey);
+
+			if (bucket == null) {
+				if (stripe.buckets.size() >= maxEntriesPerStripe) {
+					stripe.evictIdle(now, idleNanos);
+					if (stripe.buckets.size() >= maxEntriesPerStripe) {
+						stripe.evictEldest();
+					}
+				}
+				bucket = new Bucket(burst, now);
+				stripe.buckets.put(bucketKey, bucket);
+			} else {
+				bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.lastNanos) * permitsPerNano);
+				bucket.lastNanos = now;
+			}
+
+			if ((++stripe.operations & 1023) == 0) {
+				stripe.evictIdle(now, idleNanos);
+			}
+
+			if (bucket.tokens >= 1) {
+				bucket.tokens -= 1;
+				return true;
+			}
+		}
+
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * 建议客户端重试的间隔(秒)
+	 */
+	public int retryAfterSeconds() {
+		return (int) Math.max(1, Math.ceil(1 / (permitsPerNano * TimeUnit.SECONDS.toNanos(1))));
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for (final Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.buckets.size();
+			}
+		}
+		return size;
+	}
+
+	private static final class Bucket {
+		double tokens;
+		long lastNanos;
+
+		Bucket(final double tokens_, final long now) {
+			tokens = tokens_;
+			lastNanos = now;
+		}
+	}
+
+	private static final class Stripe {
+		/* 按访问顺序, 最久未访问的在前 */
+		final Map<String, Bucket> buckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true);
+		int operations = 0;
+
+		void evictIdle(final long now, final long idleNanos) {
+			final Iterator<Bucket> it = buckets.values().iterator();
+			while (it.hasNext() && now - it.next().lastNanos >= idleNanos) {
+				it.remove();
+			}
+		}
+
+		/**
+		 * 移除最久未访问的桶, 它的key下次访问时得到一个满的桶
+		 */
+		void evictEldest() {
+			final Iterator<Bucket> it = buckets.values().iterator();
+			if (it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+}
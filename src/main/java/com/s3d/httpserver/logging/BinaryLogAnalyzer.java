@@ -0,0 +1,305 @@
+package com.s3d.httpserver.logging;
+
+import static com.s3d.httpserver.logging.BinaryLogFormat.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * {@link BinaryRequestLogger} 段文件的离线分析工具.
+ * 统计每个路由的耗时分位数, 状态码分布以及请求最多的客户端.
+ *
+ * <pre>
+ * java com.s3d.httpserver.logging.BinaryLogAnalyzer [-top N] file|dir...
+ * </pre>
+ */
+public class BinaryLogAnalyzer {
+
+	private final Map<String, RouteStats> routes = new HashMap<String, RouteStats>();
+	private final Map<String, long[]> clients = new HashMap<String, long[]>();
+	private final Map<Integer, long[]> statuses = new TreeMap<Integer, long[]>();
+
+	private long records = 0;
+	private long errors = 0;
+	private int segments = 0;
+
+	public static void main(final String[] args) throws IOException {
+		int top = 10;
+		final List<File> files = new ArrayList<File>();
+
+		for (int i = 0; i < args.length; i++) {
+			if ("-top".equals(args[i]) && i + 1 < args.length) {
+				top = Integer.parseInt(args[++i]);
+			} else {
+				collect(new File(args[i]), files);
+			}
+		}
+
+		if (files.isEmpty()) {
+			System.err.println("usage: BinaryLogAnalyzer [-top N] file|dir...");
+			System.exit(1);
+		}
+
+		final BinaryLogAnalyzer analyzer = new BinaryLogAnalyzer();
+		for (final File file : files) {
+			analyzer.read(file);
+		}
+		analyzer.report(System.out, top);
+	}
+
+	private static void collect(final File file, final List<File> files) {
+		if (file.isDirectory()) {
+			final File[] children = file.listFiles();
+			if (children != null) {
+				Arrays.sort(children);
+				for (final File child : children) {
+					if (child.getName().endsWith(FILE_SUFFIX)) {
+						files.add(child);
+					}
+				}
+			}
+		} else {
+			files.add(file);
+		}
+	}
+
+	/**
+	 * 读取一个段文件. 遇到长度为0或截断的记录视为段结束.
+	 */
+	public void read(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buf = null;
+		try {
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+				throw new IOException("Not a binary access log segment: " + file);
+			}
+			buf.getLong(); // baseTime
+			segments++;
+
+			final Map<Integer, String> dictionary = new HashMap<Integer, String>();
+			dictionary.put(OTHER_ID, OTHER_NAME);
+
+			while (buf.hasRemaining()) {
+				final int length = readVarInt(buf);
+				if (length <= 0 || length > buf.remaining()) {
+					break;
+				}
+				final int end = buf.position() + length;
+				try {
+					readRecord(buf, dictionary);
+				} catch (final BufferUnderflowException e) {
+					break;
+				}
+				buf.position(end);
+			}
+		} finally {
+			if (buf != null) {
+				PlatformDependent.freeDirectBuffer(buf);
+			}
+			raf.close();
+		}
+	}
+
+	private void readRecord(final ByteBuffer buf,
+			final Map<Integer, String> dictionary) {
+
+		final byte type = buf.get();
+
+		if (type == TYPE_DICT) {
+			final int id = readVarInt(buf);
+			final byte[] utf8 = new byte[readVarInt(buf)];
+			buf.get(utf8);
+			dictionary.put(id, new String(utf8, CharsetUtil.UTF_8));
+			return;
+		}
+
+		if (type != TYPE_ACCESS && type != TYPE_ERROR) {
+			return;
+		}
+
+		readVarLong(buf); // time offset
+		final String route = name(dictionary, readVarInt(buf));
+		final int status = readVarInt(buf);
+		final long duration = readVarLong(buf);
+		readVarLong(buf); // bytes
+		final byte[] addr = new byte[buf.get() & 0xFF];
+		buf.get(addr);
+
+		RouteStats stats = routes.get(route);
+		if (stats == null) {
+			stats = new RouteStats(route);
+			routes.put(route, stats);
+		}
+
+		if (type == TYPE_ERROR) {
+			readVarInt(buf); // exception class
+			stats.errors++;
+			errors++;
+			return;
+		}
+
+		records++;
+		stats.add(duration);
+		increment(statuses, status);
+		increment(clients, clientName(addr));
+	}
+
+	private static String name(final Map<Integer, String> dictionary, final int id) {
+		final String name = dictionary.get(id);
+		return name == null ? OTHER_NAME : name;
+	}
+
+	private static String clientName(final byte[] addr) {
+		if (addr.length == 0) {
+			return "-";
+		}
+		try {
+			return InetAddress.getByAddress(addr).getHostAddress();
+		} catch (final UnknownHostException e) {
+			return "-";
+		}
+	}
+
+	private static <K> void increment(final Map<K, long[]> counters, final K key) {
+		long[] counter = counters.get(key);
+		if (counter == null) {
+			counter = new long[1];
+			counters.put(key, counter);
+		}
+		counter[0]++;
+	}
+
+	public void report(final PrintStream out, final int top) {
+
+		out.printf("segments: %d, requests: %d, errors: %d%n%n", segments, records, errors);
+
+		final List<RouteStats> sorted = new ArrayList<RouteStats>(routes.values());
+		Collections.sort(sorted, new Comparator<RouteStats>() {
+			@Override
+			public int compare(final RouteStats o1, final RouteStats o2) {
+				return o1.count < o2.count ? 1 : (o1.count > o2.count ? -1 : 0);
+			}
+		});
+
+		out.printf("%-48s %10s %8s %8s %8s %8s %8s%n", "route", "count",
+				"errors", "p50", "p90", "p99", "max");
+		for (final RouteStats stats : sorted) {
+			out.printf("%-48s %10d %8d %8d %8d %8d %8d%n", stats.route,
+					stats.count, stats.errors, stats.percentile(50),
+					stats.percentile(90), stats.percentile(99),
+					stats.percentile(100));
+		}
+
+		out.printf("%nstatus%n");
+		for (final Map.Entry<Integer, long[]> entry : statuses.entrySet()) {
+			out.printf("%6d %10d%n", entry.getKey(), entry.getValue()[0]);
+		}
+
+		final List<Map.Entry<String, long[]>> topClients =
+				new ArrayList<Map.Entry<String, long[]>>(clients.entrySet());
+		Collections.sort(topClients, new Comparator<Map.Entry<String, long[]>>() {
+			@Override
+			public int compare(final Map.Entry<String, long[]> o1,
+					final Map.Entry<String, long[]> o2) {
+				final long c1 = o1.getValue()[0];
+				final long c2 = o2.getValue()[0];
+				return c1 < c2 ? 1 : (c1 > c2 ? -1 : 0);
+			}
+		});
+
+		out.printf("%ntop clients%n");
+		for (int i = 0; i < topClients.size() && i < top; i++) {
+			final Map.Entry<String, long[]> entry = topClients.get(i);
+			out.printf("%-40s %10d%n", entry.getKey(), entry.getValue()[0]);
+		}
+	}
+
+	Map<String, RouteStats> routes() {
+		return routes;
+	}
+
+	/**
+	 * 单个路由的耗时(毫秒)分布, 对数线性直方图: 64以下精确, 之上每个2的幂区间分32个桶, 相对误差不超过1/32.
+	 * 占用的内存是固定的, 与日志中的记录数无关
+	 */
+	static final class RouteStats {
+		private static final int SUB_BITS = 5;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+
+		final String route;
+		private final long[] buckets = new long[(64 - SUB_BITS) * SUB_COUNT];
+		int count = 0;
+		long errors = 0;
+		private long max = 0;
+
+		RouteStats(final String route_) {
+			route = route_;
+		}
+
+		void add(final long duration) {
+			final long value = Math.max(0, duration);
+			buckets[bucket(value)]++;
+			count++;
+			max = Math.max(max, value);
+		}
+
+		static int bucket(final long value) {
+			if (value < SUB_COUNT << 1) {
+				return (int) value;
+			}
+			final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return (shift << SUB_BITS) + (int) (value >>> shift);
+		}
+
+		/**
+		 * 桶内的最大值
+		 */
+		static long highest(final int bucket) {
+			if (bucket < SUB_COUNT << 1) {
+				return bucket;
+			}
+			final int shift = (bucket >>> SUB_BITS) - 1;
+			final long sub = bucket - (shift << SUB_BITS);
+			return ((sub + 1) << shift) - 1;
+		}
+
+		/**
+		 * nearest-rank 分位数, 返回所在桶的上界(不超过最大值)
+		 */
+		long percentile(final int p) {
+			if (count == 0) {
+				return 0;
+			}
+			final long rank = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return Math.min(highest(i), max);
+				}
+			}
+			return max;
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.s3d.httpserver.logging;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * 二进制访问日志的段文件格式.
+ *
+ * <pre>
+ * segment := MAGIC(int) baseTime(long) record* 0
+ * record  := varint(bodyLength) body
+ * body    := DICT   varint(id) varint(len) utf8
+ *          | ACCESS varint(time-baseTime) varint(routeId) varint(status)
+ *                   varint(durationMillis) varint(bytes) byte(addrLen) addr
+ *          | ERROR  (同ACCESS) varint(exceptionId)
+ * </pre>
+ *
+ * 字典(路由,异常类名)每个段单独编码, 因此每个段文件都可以独立解析.
+ */
+final class BinaryLogFormat {
+
+	static final int MAGIC = 0x48534C31; // "HSL1"
+
+	static final int HEADER_SIZE = 4 + 8;
+
+	static final byte TYPE_DICT = 1;
+	static final byte TYPE_ACCESS = 2;
+	static final byte TYPE_ERROR = 3;
+
+	/** 字典满了之后的路由统一编码为0 */
+	static final int OTHER_ID = 0;
+	static final String OTHER_NAME = "<other>";
+
+	static final String FILE_SUFFIX = ".hsal";
+
+	/** 单条记录体的上限(不含长度前缀) */
+	static final int MAX_BODY_SIZE = 4096;
+
+	private BinaryLogFormat() {
+	}
+
+	static void writeVarLong(final ByteBuffer buf, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	static long readVarLong(final ByteBuffer buf) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = buf.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new BufferUnderflowException();
+	}
+
+	static int readVarInt(final ByteBuffer buf) {
+		return (int) readVarLong(buf);
+	}
+
+	static int varLongSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,256 @@
+package com.s3d.httpserver.logging;
+
+import static com.s3d.httpserver.logging.BinaryLogFormat.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * 紧凑的二进制访问日志, 写入内存映射的段文件.
+ * 格式见 {@link BinaryLogFormat}, 离线分析见 {@link BinaryLogAnalyzer}.
+ */
+public class BinaryRequestLogger implements RequestLogger, Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(BinaryRequestLogger.class);
+
+	private static final Charset UTF_8 = CharsetUtil.UTF_8;
+
+	/* 每条记录之前段内至少剩余的空间: 两条字典记录 + 一条访问记录 + 结束标记 */
+	private static final int RESERVED_SPACE = MAX_BODY_SIZE * 3 + 16;
+
+	private final File directory;
+	private final String prefix;
+	private final int segmentSize;
+	private final int maxDictionaryEntries;
+
+	/* 当前段的字典, 换段时清空 */
+	private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+	/* 记录编码缓冲区, 只在锁内使用 */
+	private final ByteBuffer scratch = ByteBuffer.allocate(MAX_BODY_SIZE);
+
+	private RandomAccessFile file;
+	private MappedByteBuffer segment;
+	private long baseTime;
+	private int sequence = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param directory_ 段文件目录
+	 * @param prefix_ 段文件名前缀
+	 * @param segmentSize_ 单个段文件大小(字节)
+	 */
+	public BinaryRequestLogger(final File directory_, final String prefix_,
+			final int segmentSize_) {
+		this(directory_, prefix_, segmentSize_, 8192);
+	}
+
+	/**
+	 * @param maxDictionaryEntries_ 每个段中路由/异常字典的条目上限, 超出部分记为 {@code <other>}
+	 */
+	public BinaryRequestLogger(final File directory_, final String prefix_,
+			final int segmentSize_, final int maxDictionaryEntries_) {
+		if (segmentSize_ < HEADER_SIZE + RESERVED_SPACE * 2) {
+			throw new IllegalArgumentException("segmentSize too small: " + segmentSize_);
+		}
+		directory = directory_;
+		prefix = prefix_;
+		segmentSize = segmentSize_;
+		maxDictionaryEntries = maxDictionaryEntries_;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Cannot create log directory " + directory);
+		}
+	}
+
+	@Override
+	public void access(final ServerRequest request,
+			final ServerResponse response, final long duration) {
+		append(TYPE_ACCESS, System.currentTimeMillis(), routeOf(request),
+				response.getStatus().code(), duration, response.writtenBytes(),
+				addressOf(request.getRemoteAddress()), null);
+	}
+
+	@Override
+	public void error(final ServerRequest request,
+			final ServerResponse response, final Throwable exception) {
+		append(TYPE_ERROR, System.currentTimeMillis(), routeOf(request),
+				response.getStatus().code(), 0, response.writtenBytes(),
+				addressOf(request.getRemoteAddress()),
+				exception == null ? "" : exception.getClass().getName());
+	}
+
+	/**
+	 * 路由名, 默认为 "METHOD path"(不含query string).
+	 */
+	protected String routeOf(final ServerRequest request) {
+		return request.getMethod().name() + " " + request.getPathInfo();
+	}
+
+	private static byte[] addressOf(final InetSocketAddress remote) {
+		if (remote == null) {
+			return null;
+		}
+		final InetAddress address = remote.getAddress();
+		return address == null ? null : address.getAddress();
+	}
+
+	synchronized void append(final byte type, final long time,
+			final String route, final int status, final long duration,
+			final long bytes, final byte[] client, final String error) {
+
+		if (closed) {
+			return;
+		}
+
+		try {
+			if (segment == null) {
+				openSegment(time);
+			} else if (segment.remaining() < RESERVED_SPACE) {
+				rollSegment(time);
+			}
+
+			final int routeId = lookup(route);
+			final int errorId = error == null ? OTHER_ID : lookup(error);
+
+			scratch.clear();
+			scratch.put(type);
+			writeVarLong(scratch, Math.max(0, time - baseTime));
+			writeVarLong(scratch, routeId);
+			writeVarLong(scratch, status);
+			writeVarLong(scratch, Math.max(0, duration));
+			writeVarLong(scratch, Math.max(0, bytes));
+			if (client == null) {
+				scratch.put((byte) 0);
+			} else {
+				scratch.put((byte) client.length);
+				scratch.put(client);
+			}
+			if (type == TYPE_ERROR) {
+				writeVarLong(scratch, errorId);
+			}
+			scratch.flip();
+
+			writeRecord(scratch);
+		} catch (final IOException e) {
+			log.error("error on writing binary access log", e);
+		}
+	}
+
+	/**
+	 * 查字典, 新条目会先写入一条DICT记录.
+	 */
+	private int lookup(final String name) throws IOException {
+		final Integer id = dictionary.get(name);
+		if (id != null) {
+			return id;
+		}
+		if (dictionary.size() >= maxDictionaryEntries) {
+			return OTHER_ID;
+		}
+
+		final byte[] utf8 = name.getBytes(UTF_8);
+		if (utf8.length > MAX_BODY_SIZE / 2) {
+			return OTHER_ID;
+		}
+		final int newId = dictionary.size() + 1;
+
+		final ByteBuffer entry = ByteBuffer.allocate(1 + 5 + 5 + utf8.length);
+		entry.put(TYPE_DICT);
+		writeVarLong(entry, newId);
+		writeVarLong(entry, utf8.length);
+		entry.put(utf8);
+		entry.flip();
+
+		writeRecord(entry);
+		dictionary.put(name, newId);
+		return newId;
+	}
+
+	/**
+	 * 先写记录体, 最后写长度前缀; 写到一半崩溃时, 长度仍为0, 读取方会视为段结束.
+	 */
+	private void writeRecord(final ByteBuffer body) {
+		final int length = body.remaining();
+		final int start = segment.position();
+		final int bodyStart = start + varLongSize(length);
+
+		segment.position(bodyStart);
+		segment.put(body);
+		final int end = segment.position();
+
+		segment.position(start);
+		writeVarLong(segment, length);
+		segment.position(end);
+	}
+
+	private void openSegment(final long time) throws IOException {
+		final File f = new File(directory, String.format("%s-%d-%04d%s",
+				prefix, time, sequence++, FILE_SUFFIX));
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(segmentSize);
+		segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+
+		baseTime = time;
+		segment.putInt(MAGIC);
+		segment.putLong(baseTime);
+		dictionary.clear();
+	}
+
+	private void rollSegment(final long time) throws IOException {
+		closeSegment();
+		openSegment(time);
+	}
+
+	private void closeSegment() throws IOException {
+		if (segment == null) {
+			return;
+		}
+		final long length = segment.position() + 1;
+		segment.force();
+		PlatformDependent.freeDirectBuffer(segment);
+		segment = null;
+		try {
+			// 截掉未使用的部分, 保留一个0字节作为结束标记
+			file.setLength(length);
+		} catch (final IOException e) {
+			log.debug("cannot truncate access log segment", e);
+		} finally {
+			file.close();
+			file = null;
+		}
+	}
+
+	public synchronized void flush() {
+		if (segment != null) {
+			segment.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			closeSegment();
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.s3d.httpserver.request;
+
+/**
+ * Server-Sent Events (text/event-stream) 响应, 由 {@link ServerResponse#startEventStream()} 开始.
+ * 可以在任意线程中调用. 连接的写缓冲超过高水位(客户端读得慢)时事件被丢弃, send返回false.
+ * 心跳注释由server定时发送.
+ */
+public interface EventStream {
+
+	/**
+	 * 发送只有data的事件, 多行data按行拆分
+	 * @return false 如果stream已关闭或事件因写缓冲已满被丢弃
+	 */
+	boolean send(String data);
+
+	boolean send(String event, String data);
+
+	/**
+	 * @param id 客户端重连时通过Last-Event-ID带回, 可以为null
+	 * @param event 事件类型, 可以为null
+	 */
+	boolean send(String id, String event, String data);
+
+	/**
+	 * 结束响应
+	 */
+	void close();
+
+	/**
+	 * 响应没有结束且连接仍然打开
+	 */
+	boolean isOpen();
+
+}
@@ -1,10 +1,36 @@
 package com.s3d.httpserver.request;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 请求属性的key. 创建时分配一个递增的index, 请求中的属性按index保存在数组里,
+ * 因此key应该是常量, 不要每个请求创建.
+ */
 public class RequestAttributeKey<T> {
 
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
 	protected final String name;
+	private final int index;
 
 	public RequestAttributeKey(final String name_) {
 		name = name_;
+		index = COUNT.getAndIncrement();
+	}
+
+	public int index() {
+		return index;
+	}
+
+	/**
+	 * 已创建的key数量, 即当前最大index + 1
+	 */
+	public static int count() {
+		return COUNT.get();
+	}
+
+	@Override
+	public String toString() {
+		return name;
 	}
 }
@@ -0,0 +1,56 @@
+package com.s3d.httpserver.request;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * multipart/form-data请求中的一个part. 小的part保存在内存中, 超过阈值的文件写入临时文件,
+ * 都在请求结束后释放, 需要保留文件时使用 {@link #transferTo(File)}.
+ */
+public interface RequestPart {
+
+	/**
+	 * Content-Disposition中的name
+	 */
+	String getName();
+
+	/**
+	 * Content-Disposition中的filename, 普通字段为null
+	 */
+	String getFilename();
+
+	/**
+	 * part的Content-Type, 没有时为null
+	 */
+	String getContentType();
+
+	long getSize();
+
+	boolean isInMemory();
+
+	/**
+	 * @return null 如果内容已写入临时文件
+	 */
+	ByteBuf getContent();
+
+	/**
+	 * @return null 如果内容在内存中
+	 */
+	File getFile();
+
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * 按part的Content-Type中的charset解码, 没有时使用UTF-8
+	 */
+	String getString() throws IOException;
+
+	/**
+	 * 把内容保存到dest. 临时文件直接移动, 之后 {@link #getFile()} 返回dest
+	 */
+	void transferTo(File dest) throws IOException;
+
+}
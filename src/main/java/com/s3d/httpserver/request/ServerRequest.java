@@ -13,6 +13,8 @@ import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpVersion;
 
+import com.s3d.httpserver.auth.UserSessionDetail;
+
 
 /**
  * 扩展自netty {@link HttpRequest}.
@@ -73,6 +75,11 @@ public interface ServerRequest extends ServerMessage, HttpRequest {
 	 */
 	String getRemoteUser();
 
+	/**
+	 * 通过AuthorizationHandler认证的用户, 匿名请求为null
+	 */
+	UserSessionDetail getUserSession();
+
 	/**
 	 * The server hostname of this request.
 	 */
@@ -120,8 +127,23 @@ public interface ServerRequest extends ServerMessage, HttpRequest {
 	 */
 	Cookie getCookie(String name);
 
+	/**
+	 * 客户端是否接受这种content-coding(gzip, deflate等)
+	 */
+	boolean acceptsEncoding(String encoding);
+
 	/* Request content */
 
+	/**
+	 * multipart/form-data请求的所有part, 按出现的顺序. 其它请求为空
+	 */
+	List<RequestPart> getParts();
+
+	/**
+	 * @return 第一个名字为name的part, 没有时返回null
+	 */
+	RequestPart getPart(String name);
+
 	/**
 	 * The character encoding for this request.
 	 */
@@ -105,6 +105,12 @@ public interface ServerResponse extends ServerMessage, HttpResponse {
 	 */
 	void flush() throws IOException;
 	
+	/**
+	 * 以Server-Sent Events方式开始响应: 设置text/event-stream和chunked编码, 写出响应头并挂起response.
+	 * 之后通过返回的 {@link EventStream} 发送事件, 直到调用close或连接断开
+	 */
+	EventStream startEventStream() throws IOException;
+
 	/**
 	 * 挂起response,已异步方式resume
 	 * @param resumeFuture
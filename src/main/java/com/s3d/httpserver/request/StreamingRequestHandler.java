@@ -0,0 +1,23 @@
+package com.s3d.httpserver.request;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * 边接收边处理请求body的handler. 请求头到达时就调用 {@link #onRequest}, 此时 {@link ServerRequest#getContent()} 为空,
+ * 之后body按到达的顺序分块交给 {@link #onContent}, 不经过聚合, 不受全局maxRequestSize限制(按URI前缀单独设置的仍然有效).
+ * 最后一块之后handler没有挂起response时自动结束response.
+ * HTTP/2 stream上的请求已经聚合好, 整个body作为最后一块交付一次.
+ */
+public interface StreamingRequestHandler extends RequestHandler {
+
+	/**
+	 * 在连接的event loop中调用, content只在调用期间有效, 需要保留时retain或复制
+	 * @param last 是否是body的最后一块, 没有body的请求也会收到一次空的最后一块
+	 * @throws IOException
+	 */
+	void onContent(ServerRequest request, ServerResponse response, ByteBuf content, boolean last)
+			throws IOException;
+
+}
@@ -0,0 +1,68 @@
+package com.s3d.httpserver.server;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 某个路由的响应缓存策略, 通过 {@link HttpServerConfig#cachePolicy(String, CachePolicy)} 按URI前缀启用.
+ * 只缓存GET请求的200响应; 带Set-Cookie或 Cache-Control: no-store/private 的响应不缓存.
+ * 带Authorization头的请求不查也不存缓存, 总是经过认证并执行handler.
+ */
+public class CachePolicy {
+
+	private final long ttlNanos;
+	private long staleNanos = 0;
+	private String[] vary = new String[0];
+
+	/**
+	 * @param ttl 缓存的响应在这段时间内直接返回
+	 */
+	public CachePolicy(final long ttl, final TimeUnit unit) {
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("ttl must be positive");
+		}
+		ttlNanos = unit.toNanos(ttl);
+	}
+
+	/**
+	 * 过期后的这段时间内, 由一个请求重新执行handler刷新缓存, 同时其他请求仍返回旧的响应
+	 */
+	public CachePolicy staleWhileRevalidate(final long stale, final TimeUnit unit) {
+		staleNanos = unit.toNanos(stale);
+		return this;
+	}
+
+	/**
+	 * 响应内容取决于这些请求头, 它们的值加入缓存key
+	 */
+	public CachePolicy vary(final String... headerNames) {
+		vary = headerNames.clone();
+		return this;
+	}
+
+	long ttlNanos() {
+		return ttlNanos;
+	}
+
+	long staleNanos() {
+		return staleNanos;
+	}
+
+	/**
+	 * method + URI + vary头的值
+	 */
+	String key(final HttpRequest request) {
+		final StringBuilder sb = new StringBuilder(64);
+		sb.append(request.getMethod().name()).append(' ').append(request.getUri());
+		for (final String name : vary) {
+			final String value = request.headers().get(name);
+			sb.append('\n');
+			if (value != null) {
+				sb.append(value);
+			}
+		}
+		return sb.toString();
+	}
+
+}
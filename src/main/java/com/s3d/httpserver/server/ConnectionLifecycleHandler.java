@@ -0,0 +1,264 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 单个连接的生命周期状态, 位于HttpRequestDecoder之后, 由 {@link ConnectionManager} 的时间轮定期检查.
+ * 所有状态只在连接所属的event loop线程中读写.
+ * 服务端通过 {@link ReadPause} 暂停读取期间不检查读取超时和最低速率, 恢复后从恢复时刻重新计时.
+ */
+class ConnectionLifecycleHandler extends ChannelDuplexHandler implements TimeoutWheel.Entry {
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionLifecycleHandler.class);
+
+	private static final int AWAIT_REQUEST = 0;
+	private static final int READ_BODY = 1;
+	private static final int PROCESSING = 2;
+
+	private static final long RATE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final ConnectionManager manager;
+	/* 没有超时限制的阶段多久检查一次状态 */
+	private final long pollNanos;
+
+	private ChannelHandlerContext ctx;
+	private int phase = AWAIT_REQUEST;
+	private long phaseStart;
+	private long lastRead;
+	private long bodyBytes;
+	private int requests = 0;
+	/* 发现读取被暂停的时刻, 0表示没有暂停 */
+	private long pausedSince = 0;
+
+	private int pendingWrites = 0;
+	private long lastWriteProgress;
+
+	private boolean closed = false;
+
+	private final ChannelFutureListener writeProgress = new ChannelFutureListener() {
+		@Override
+		public void operationComplete(final ChannelFuture future) {
+			pendingWrites--;
+			lastWriteProgress = System.nanoTime();
+		}
+	};
+
+	ConnectionLifecycleHandler(final ConnectionManager manager_) {
+		manager = manager_;
+		long poll = Long.MAX_VALUE;
+		for (final long timeout : new long[] { manager.headerReadTimeoutNanos(),
+				manager.bodyReadTimeoutNanos(), manager.writeTimeoutNanos(),
+				manager.keepAliveTimeoutNanos() }) {
+			if (timeout > 0) {
+				poll = Math.min(poll, timeout);
+			}
+		}
+		if (manager.minBytesPerSecond() > 0) {
+			poll = Math.min(poll, RATE_CHECK_NANOS);
+		}
+		pollNanos = poll;
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx_) throws Exception {
+		ctx = ctx_;
+	}
+
+	@Override
+	public void channelActive(final ChannelHandlerContext ctx_) throws Exception {
+		final long now = System.nanoTime();
+		phaseStart = now;
+		lastWriteProgress = now;
+		if (pollNanos != Long.MAX_VALUE) {
+			manager.wheel(ctx.channel().eventLoop()).schedule(this, now + pollNanos);
+		}
+		super.channelActive(ctx_);
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx_) throws Exception {
+		closed = true;
+		super.channelInactive(ctx_);
+	}
+
+	/**
+	 * 切换到HTTP/2后不再检查
+	 */
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx_) throws Exception {
+		closed = true;
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx_, final Object msg) throws Exception {
+		final long now = System.nanoTime();
+
+		if (msg instanceof HttpRequest) {
+			phase = READ_BODY;
+			phaseStart = now;
+			bodyBytes = 0;
+		}
+		if (msg instanceof HttpContent) {
+			bodyBytes += ((HttpContent) msg).content().readableBytes();
+			// 流式body的响应可能在body结束之前就已经写完
+			if (msg instanceof LastHttpContent && phase == READ_BODY) {
+				phase = PROCESSING;
+			}
+		}
+		lastRead = now;
+
+		super.channelRead(ctx_, msg);
+	}
+
+	@Override
+	public void write(final ChannelHandlerContext ctx_, final Object msg,
+			final ChannelPromise promise) throws Exception {
+
+		final boolean lastRequest = isLastRequest();
+
+		if (lastRequest && msg instanceof HttpResponse) {
+			((HttpResponse) msg).headers().set(HttpHeaders.Names.CONNECTION,
+					HttpHeaders.Values.CLOSE);
+		}
+
+		track(promise, msg instanceof LastHttpContent || msg instanceof HttpChunkedInput,
+				lastRequest);
+
+		super.write(ctx_, msg, promise);
+	}
+
+	/**
+	 * 已编码的响应从HttpResponseEncoder处写出, 不经过本handler, 由写出方在写之前登记.
+	 * @return false 如果这是该连接允许的最后一个请求, 响应需要带 Connection: close
+	 */
+	boolean rawResponse(final ChannelPromise promise) {
+		final boolean lastRequest = isLastRequest();
+		track(promise, true, lastRequest);
+		return !lastRequest;
+	}
+
+	private boolean isLastRequest() {
+		final int max = manager.maxRequestsPerConnection();
+		return max > 0 && requests + 1 >= max;
+	}
+
+	private void track(final ChannelPromise promise, final boolean responseEnd,
+			final boolean lastRequest) {
+
+		if (promise != ctx.channel().voidPromise()) {
+			if (pendingWrites++ == 0) {
+				lastWriteProgress = System.nanoTime();
+			}
+			promise.addListener(writeProgress);
+			if (responseEnd && lastRequest) {
+				promise.addListener(ChannelFutureListener.CLOSE);
+			}
+		}
+
+		if (responseEnd) {
+			requests++;
+			phase = AWAIT_REQUEST;
+			phaseStart = System.nanoTime();
+		}
+	}
+
+	@Override
+	public long check(final long now) {
+
+		if (closed || !ctx.channel().isActive()) {
+			return TimeoutWheel.CANCEL;
+		}
+
+		long next = now + pollNanos;
+		final boolean readPaused = readPaused(now);
+
+		final long writeTimeout = manager.writeTimeoutNanos();
+		if (pendingWrites > 0 && writeTimeout > 0) {
+			if (now - lastWriteProgress >= writeTimeout) {
+				return close("write", now - lastWriteProgress);
+			}
+			next = Math.min(next, lastWriteProgress + writeTimeout);
+		}
+
+		if (readPaused) {
+			// 客户端无法发送, 不计入读取超时
+		} else if (phase == AWAIT_REQUEST && pendingWrites == 0) {
+			final long timeout = requests == 0 ? manager.headerReadTimeoutNanos()
+					: manager.keepAliveTimeoutNanos();
+			if (timeout > 0) {
+				if (now - phaseStart >= timeout) {
+					return close(requests == 0 ? "header read" : "keep-alive", now - phaseStart);
+				}
+				next = Math.min(next, phaseStart + timeout);
+			}
+		} else if (phase == READ_BODY) {
+			final long timeout = manager.bodyReadTimeoutNanos();
+			if (timeout > 0) {
+				if (now - lastRead >= timeout) {
+					return close("body read", now - lastRead);
+				}
+				next = Math.min(next, lastRead + timeout);
+			}
+			final long minRate = manager.minBytesPerSecond();
+			final long elapsed = now - phaseStart;
+			if (minRate > 0 && elapsed >= manager.rateGraceNanos()) {
+				final double rate = bodyBytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+				if (rate < minRate) {
+					manager.slowClient();
+					if (log.isDebugEnabled()) {
+						log.debug("closing slow client {}: {} bytes/s", ctx.channel().remoteAddress(), (long) rate);
+					}
+					ctx.close();
+					return TimeoutWheel.CANCEL;
+				}
+			}
+		}
+
+		return next;
+	}
+
+	/**
+	 * 跟踪读取暂停, 恢复时把读取计时移到恢复时刻, 暂停的时间不计入传输速率
+	 */
+	private boolean readPaused(final long now) {
+		if (ReadPause.isPaused(ctx.channel())) {
+			if (pausedSince == 0) {
+				pausedSince = now;
+			}
+			return true;
+		}
+		if (pausedSince != 0) {
+			phaseStart += now - pausedSince;
+			lastRead = now;
+			pausedSince = 0;
+		}
+		return false;
+	}
+
+	private long close(final String what, final long idleNanos) {
+		manager.timedOut();
+		if (log.isDebugEnabled()) {
+			log.debug("closing {}: {} timeout after {}ms", new Object[] {
+					ctx.channel().remoteAddress(), what,
+					TimeUnit.NANOSECONDS.toMillis(idleNanos) });
+		}
+		ctx.close();
+		return TimeoutWheel.CANCEL;
+	}
+
+}
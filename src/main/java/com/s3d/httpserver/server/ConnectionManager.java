@@ -0,0 +1,157 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.EventLoop;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接生命周期管理: 请求头读取, 请求体读取, 写出, keep-alive空闲 分别超时,
+ * 单连接最大请求数, 以及请求体最低传输速率(防止slowloris类的慢速客户端).
+ * 每个event loop共用一个 {@link TimeoutWheel}, 不为每个连接单独创建定时任务.
+ * 超时值小于等于0表示不限制.
+ */
+public class ConnectionManager {
+
+	private long headerReadTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+	private long bodyReadTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+	private long writeTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+	private long keepAliveTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+	private int maxRequestsPerConnection = -1;
+	private long minBytesPerSecond = -1;
+	private long rateGraceNanos = TimeUnit.SECONDS.toNanos(5);
+	private long tickMillis = 100;
+
+	private final ConcurrentMap<EventLoop, TimeoutWheel> wheels =
+			new ConcurrentHashMap<EventLoop, TimeoutWheel>();
+
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong slowClients = new AtomicLong();
+
+	/**
+	 * 从连接建立(或开始读取新请求)到请求头读取完成的时限
+	 */
+	public ConnectionManager headerReadTimeout(final long timeout, final TimeUnit unit) {
+		headerReadTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * 读取请求体时, 两次收到数据之间的最大间隔
+	 */
+	public ConnectionManager bodyReadTimeout(final long timeout, final TimeUnit unit) {
+		bodyReadTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * 有数据待写出时, 两次写出进展之间的最大间隔
+	 */
+	public ConnectionManager writeTimeout(final long timeout, final TimeUnit unit) {
+		writeTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * 上一个响应写完后等待下一个请求的最大空闲时间
+	 */
+	public ConnectionManager keepAliveTimeout(final long timeout, final TimeUnit unit) {
+		keepAliveTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * 单个连接最多处理的请求数, 达到后响应带 Connection: close
+	 */
+	public ConnectionManager maxRequestsPerConnection(final int max) {
+		maxRequestsPerConnection = max;
+		return this;
+	}
+
+	/**
+	 * 请求体的最低传输速率, 在gracePeriod之后开始检查
+	 */
+	public ConnectionManager minTransferRate(final long bytesPerSecond,
+			final long gracePeriod, final TimeUnit unit) {
+		minBytesPerSecond = bytesPerSecond;
+		rateGraceNanos = unit.toNanos(gracePeriod);
+		return this;
+	}
+
+	/**
+	 * 时间轮精度, 需在server启动前设置
+	 */
+	public ConnectionManager tickMillis(final long millis) {
+		tickMillis = millis;
+		return this;
+	}
+
+	long headerReadTimeoutNanos() {
+		return headerReadTimeoutNanos;
+	}
+
+	long bodyReadTimeoutNanos() {
+		return bodyReadTimeoutNanos;
+	}
+
+	long writeTimeoutNanos() {
+		return writeTimeoutNanos;
+	}
+
+	long keepAliveTimeoutNanos() {
+		return keepAliveTimeoutNanos;
+	}
+
+	int maxRequestsPerConnection() {
+		return maxRequestsPerConnection;
+	}
+
+	long minBytesPerSecond() {
+		return minBytesPerSecond;
+	}
+
+	long rateGraceNanos() {
+		return rateGraceNanos;
+	}
+
+	/**
+	 * 当前event loop的时间轮, 只能在event loop线程中调用
+	 */
+	TimeoutWheel wheel(final EventLoop loop) {
+		TimeoutWheel wheel = wheels.get(loop);
+		if (wheel == null) {
+			// 同一个loop只会在自己的线程里创建, 不存在竞争
+			final long timeout = Math.max(keepAliveTimeoutNanos,
+					Math.max(headerReadTimeoutNanos, bodyReadTimeoutNanos));
+			final int slots = (int) Math.min(4096, TimeUnit.NANOSECONDS.toMillis(timeout) / tickMillis + 1);
+			wheel = new TimeoutWheel(loop, tickMillis, slots);
+			wheels.put(loop, wheel);
+		}
+		return wheel;
+	}
+
+	void timedOut() {
+		timeouts.incrementAndGet();
+	}
+
+	void slowClient() {
+		slowClients.incrementAndGet();
+	}
+
+	/**
+	 * 因超时关闭的连接数
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * 因传输速率过低关闭的连接数
+	 */
+	public long getSlowClientCount() {
+		return slowClients.get();
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.s3d.httpserver.error.ResponseAlreadyFinishedException;
+import com.s3d.httpserver.request.EventStream;
+
+/**
+ * {@link EventStream} 实现. 事件编码成buffer后作为一个chunk写出,
+ * {@link EventTopic} 和心跳把同一个已编码的buffer的duplicate写给所有stream.
+ */
+final class DefaultEventStream implements EventStream {
+
+	private static final Logger log = LoggerFactory.getLogger(DefaultEventStream.class);
+
+	private final PooledServerResponse response;
+	private final ChannelHandlerContext context;
+	private final EventStreams owner;
+	private volatile boolean open = true;
+
+	DefaultEventStream(final PooledServerResponse response_, final ChannelHandlerContext context_,
+			final EventStreams owner_) {
+		response = response_;
+		context = context_;
+		owner = owner_;
+	}
+
+	@Override
+	public boolean send(final String data) {
+		return send(null, null, data);
+	}
+
+	@Override
+	public boolean send(final String event, final String data) {
+		return send(null, event, data);
+	}
+
+	@Override
+	public boolean send(final String id, final String event, final String data) {
+		final ByteBuf encoded = encode(id, event, data);
+		try {
+			return write(encoded);
+		} finally {
+			encoded.release();
+		}
+	}
+
+	/**
+	 * 写出已编码事件的duplicate, 不改变它的引用计数和读写位置
+	 * @return false 如果已关闭或写缓冲超过高水位
+	 */
+	boolean write(final ByteBuf encoded) {
+		if (!isOpen()) {
+			return false;
+		}
+		if (!isWritable()) {
+			owner.dropped();
+			return false;
+		}
+		context.writeAndFlush(new DefaultHttpContent(encoded.duplicate().retain()));
+		return true;
+	}
+
+	boolean isWritable() {
+		return context.channel().isWritable();
+	}
+
+	@Override
+	public void close() {
+		if (open) {
+			try {
+				response.finish();
+			} catch (final ResponseAlreadyFinishedException e) {
+				// 连接已经断开
+			} catch (final IOException e) {
+				log.error("error on finishing event stream", e);
+			}
+		}
+	}
+
+	/**
+	 * 直接断开连接, 不再等待写缓冲中的数据
+	 */
+	void abort() {
+		context.channel().close();
+	}
+
+	/**
+	 * response free时调用
+	 */
+	void closed() {
+		open = false;
+		owner.remove(this);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open && context.channel().isActive();
+	}
+
+	/**
+	 * 按text/event-stream格式编码, data中的每一行各占一个data字段
+	 */
+	static ByteBuf encode(final String id, final String event, final String data) {
+		final StringBuilder sb = new StringBuilder(data.length() + 32);
+		if (id != null) {
+			sb.append("id: ").append(id).append('\n');
+		}
+		if (event != null) {
+			sb.append("event: ").append(event).append('\n');
+		}
+		int start = 0;
+		int end;
+		while ((end = data.indexOf('\n', start)) >= 0) {
+			sb.append("data: ").append(data, start, end).append('\n');
+			start = end + 1;
+		}
+		sb.append("data: ").append(data, start, data.length()).append("\n\n");
+
+		final byte[] bytes = sb.toString().getBytes(CharsetUtil.UTF_8);
+		return Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+	}
+
+}
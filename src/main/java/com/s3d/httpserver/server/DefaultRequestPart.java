@@ -0,0 +1,200 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.s3d.httpserver.request.RequestPart;
+
+/**
+ * {@link RequestPart} 实现. 内容先写入内存, 写入磁盘后内存中的部分转存到临时文件并释放.
+ * 写入只在连接的event loop中进行, 请求交给handler之后只读.
+ */
+final class DefaultRequestPart implements RequestPart {
+
+	private final String name;
+	private final String filename;
+	private final String contentType;
+
+	private ByteBuf memory = null;
+	private File file = null;
+	private FileChannel channel = null;
+	/* 临时文件已经移走, 不再删除 */
+	private boolean transferred = false;
+	private long size = 0;
+
+	DefaultRequestPart(final String name_, final String filename_, final String contentType_) {
+		name = name_;
+		filename = filename_;
+		contentType = contentType_;
+	}
+
+	void writeMemory(final ByteBufAllocator alloc, final ByteBuf src, final int index, final int length) {
+		if (memory == null) {
+			memory = alloc.heapBuffer(length);
+		}
+		memory.writeBytes(src, index, length);
+		size += length;
+	}
+
+	/**
+	 * 打开临时文件, 内存中已有的内容写入文件并释放
+	 * @return 释放的内存字节数
+	 */
+	int spill(final File file_) throws IOException {
+		file = file_;
+		channel = new FileOutputStream(file).getChannel();
+		int released = 0;
+		if (memory != null) {
+			released = memory.readableBytes();
+			write(channel, memory, memory.readerIndex(), released);
+			memory.release();
+			memory = null;
+		}
+		return released;
+	}
+
+	void writeFile(final ByteBuf src, final int index, final int length) throws IOException {
+		write(channel, src, index, length);
+		size += length;
+	}
+
+	private static void write(final FileChannel out, final ByteBuf src, final int index,
+			final int length) throws IOException {
+		int written = 0;
+		while (written < length) {
+			written += src.getBytes(index + written, out, length - written);
+		}
+	}
+
+	boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * 内容已经全部收到
+	 */
+	void complete() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * 释放内存, 删除临时文件
+	 * @return 释放的内存字节数
+	 */
+	int discard() {
+		int released = 0;
+		if (memory != null) {
+			released = memory.readableBytes();
+			memory.release();
+			memory = null;
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (final IOException e) {
+				// 只是删除
+			}
+			channel = null;
+		}
+		if (file != null && !transferred) {
+			file.delete();
+		}
+		return released;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String getFilename() {
+		return filename;
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public boolean isInMemory() {
+		return file == null;
+	}
+
+	@Override
+	public ByteBuf getContent() {
+		if (file != null) {
+			return null;
+		}
+		return memory == null ? Unpooled.EMPTY_BUFFER : memory.duplicate();
+	}
+
+	@Override
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (file != null) {
+			return new FileInputStream(file);
+		}
+		return new ByteBufInputStream(getContent());
+	}
+
+	@Override
+	public String getString() throws IOException {
+		final Charset parsed = PooledServerRequest.parseCharset(contentType);
+		final Charset charset = parsed == null ? CharsetUtil.UTF_8 : parsed;
+		if (file != null) {
+			return new String(Files.readAllBytes(file.toPath()), charset);
+		}
+		return memory == null ? "" : memory.toString(charset);
+	}
+
+	@Override
+	public void transferTo(final File dest) throws IOException {
+		if (file != null) {
+			Files.move(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			file = dest;
+			transferred = true;
+			return;
+		}
+		final FileChannel out = new FileOutputStream(dest).getChannel();
+		try {
+			if (memory != null) {
+				write(out, memory, memory.readerIndex(), memory.readableBytes());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RequestPart[" + name + (filename == null ? "" : ", " + filename) + ", " + size + " bytes]";
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+/**
+ * 预先编码好的完整HTTP响应(状态行+头+内容), 所有连接共享同一个只读buffer.
+ * 用于拒绝/限流等高频的固定响应, 每次发送只产生一个duplicate, 不再经过HttpResponseEncoder.
+ */
+public final class EncodedResponse {
+
+	private static final ByteBuf CONTINUE = Unpooled.unreleasableBuffer(Unpooled.directBuffer(25)
+			.writeBytes("HTTP/1.1 100 Continue\r\n\r\n".getBytes(CharsetUtil.US_ASCII)));
+
+	private final ByteBuf keepAlive;
+	private final ByteBuf close;
+
+	private EncodedResponse(final ByteBuf keepAlive_, final ByteBuf close_) {
+		keepAlive = keepAlive_;
+		close = close_;
+	}
+
+	/**
+	 * @param headers 额外的头, 按 name, value 成对给出
+	 */
+	public static EncodedResponse of(final HttpResponseStatus status,
+			final String body, final String... headers) {
+		return new EncodedResponse(encode(status, body, false, headers),
+				encode(status, body, true, headers));
+	}
+
+	private static ByteBuf encode(final HttpResponseStatus status,
+			final String body, final boolean close, final String... headers) {
+
+		final byte[] content = body.getBytes(CharsetUtil.UTF_8);
+
+		final StringBuilder sb = new StringBuilder(128);
+		sb.append(HttpVersion.HTTP_1_1.text()).append(' ').append(status.code())
+				.append(' ').append(status.reasonPhrase()).append("\r\n");
+		header(sb, HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=UTF-8");
+		header(sb, HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(content.length));
+		header(sb, HttpHeaders.Names.CONNECTION, close ? HttpHeaders.Values.CLOSE
+				: HttpHeaders.Values.KEEP_ALIVE);
+		for (int i = 0; i + 1 < headers.length; i += 2) {
+			header(sb, headers[i], headers[i + 1]);
+		}
+		sb.append("\r\n");
+
+		final byte[] head = sb.toString().getBytes(CharsetUtil.US_ASCII);
+		final ByteBuf buf = Unpooled.directBuffer(head.length + content.length);
+		buf.writeBytes(head).writeBytes(content);
+		return Unpooled.unreleasableBuffer(buf);
+	}
+
+	private static void header(final StringBuilder sb, final String name,
+			final String value) {
+		sb.append(name).append(": ").append(value).append("\r\n");
+	}
+
+	/**
+	 * 发送响应. keepAlive为false时写完后关闭连接.
+	 */
+	public ChannelFuture write(final ChannelHandlerContext ctx, final boolean keepAlive_) {
+		final ChannelHandlerContext raw = rawContext(ctx);
+		final ChannelPromise promise = raw.newPromise();
+		final boolean keep = track(ctx, promise) && keepAlive_;
+		raw.writeAndFlush((keep ? keepAlive : close).duplicate(), promise);
+		if (!keep) {
+			promise.addListener(ChannelFutureListener.CLOSE);
+		}
+		return promise;
+	}
+
+	/**
+	 * 回复 100 Continue. 不是最终响应, 不登记到 {@link ConnectionLifecycleHandler}
+	 */
+	static void writeContinue(final ChannelHandlerContext ctx) {
+		rawContext(ctx).writeAndFlush(CONTINUE.duplicate());
+	}
+
+	/**
+	 * 已编码的响应不经过 {@link ConnectionLifecycleHandler}, 写出前要登记, 否则连接停留在处理中状态.
+	 * @return false 如果连接已达到请求数上限, 需要写出后关闭
+	 */
+	static boolean track(final ChannelHandlerContext ctx, final ChannelPromise promise) {
+		final ConnectionLifecycleHandler lifecycle = ctx.pipeline().get(ConnectionLifecycleHandler.class);
+		return lifecycle == null || lifecycle.rawResponse(promise);
+	}
+
+	/**
+	 * 已编码的数据要从HttpResponseEncoder所在位置写出, 否则encoder会拒绝裸ByteBuf.
+	 */
+	static ChannelHandlerContext rawContext(final ChannelHandlerContext ctx) {
+		final ChannelHandlerContext encoder = ctx.pipeline().context(HttpResponseEncoder.class);
+		return encoder != null ? encoder : ctx;
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 所有打开的event stream. 心跳由一个共享的定时任务发送, 所有stream写出同一个buffer,
+ * 没有stream时定时任务停止. 每个stream的连接使用较小的写缓冲水位, 慢速客户端的事件被丢弃.
+ */
+final class EventStreams {
+
+	private static final ByteBuf HEARTBEAT = Unpooled.unreleasableBuffer(
+			Unpooled.directBuffer(3).writeBytes(":\n\n".getBytes(CharsetUtil.US_ASCII)));
+
+	private final Set<DefaultEventStream> streams =
+			Collections.newSetFromMap(new ConcurrentHashMap<DefaultEventStream, Boolean>());
+	private final long heartbeatNanos;
+	private final int lowWaterMark;
+	private final int highWaterMark;
+	private final AtomicLong dropped = new AtomicLong();
+
+	private ScheduledFuture<?> heartbeat = null;
+
+	EventStreams(final long heartbeatNanos_, final int lowWaterMark_, final int highWaterMark_) {
+		heartbeatNanos = heartbeatNanos_;
+		lowWaterMark = lowWaterMark_;
+		highWaterMark = highWaterMark_;
+	}
+
+	DefaultEventStream open(final PooledServerResponse response, final ChannelHandlerContext context) {
+
+		final Channel channel = context.channel();
+		final ChannelConfig config = channel.config();
+		config.setWriteBufferLowWaterMark(0);
+		config.setWriteBufferHighWaterMark(highWaterMark);
+		config.setWriteBufferLowWaterMark(lowWaterMark);
+
+		final DefaultEventStream stream = new DefaultEventStream(response, context, this);
+		streams.add(stream);
+		if (heartbeatNanos > 0) {
+			startHeartbeat();
+		}
+		return stream;
+
+	}
+
+	void remove(final DefaultEventStream stream) {
+		streams.remove(stream);
+	}
+
+	void dropped() {
+		dropped.incrementAndGet();
+	}
+
+	int size() {
+		return streams.size();
+	}
+
+	/**
+	 * 因写缓冲已满被丢弃的事件数
+	 */
+	long droppedCount() {
+		return dropped.get();
+	}
+
+	private synchronized void startHeartbeat() {
+		if (heartbeat == null) {
+			heartbeat = GlobalEventExecutor.INSTANCE.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					beat();
+				}
+			}, heartbeatNanos, heartbeatNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void beat() {
+		for (final DefaultEventStream stream : streams) {
+			// 写缓冲有数据时连接本来就不空闲
+			if (stream.isWritable()) {
+				stream.write(HEARTBEAT);
+			}
+		}
+		synchronized (this) {
+			if (streams.isEmpty() && heartbeat != null) {
+				heartbeat.cancel(false);
+				heartbeat = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.s3d.httpserver.request.EventStream;
+
+/**
+ * 向订阅的 {@link EventStream} 广播事件. 每个事件只编码一次,
+ * 所有订阅者写出同一个buffer的duplicate. 写缓冲超过高水位的订阅者跳过本事件,
+ * 开启 {@link #dropSlowSubscribers(boolean)} 时改为关闭它的stream. 已关闭的stream在发布时移除.
+ */
+public class EventTopic {
+
+	private final Set<DefaultEventStream> subscribers =
+			Collections.newSetFromMap(new ConcurrentHashMap<DefaultEventStream, Boolean>());
+	private volatile boolean dropSlowSubscribers = false;
+
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * 关闭读得慢的订阅者的stream, 客户端重连后可以通过Last-Event-ID补发. 默认只跳过事件
+	 */
+	public EventTopic dropSlowSubscribers(final boolean drop) {
+		dropSlowSubscribers = drop;
+		return this;
+	}
+
+	/**
+	 * @param stream 必须是 {@link com.s3d.httpserver.request.ServerResponse#startEventStream()} 返回的
+	 */
+	public boolean subscribe(final EventStream stream) {
+		return subscribers.add((DefaultEventStream) stream);
+	}
+
+	public boolean unsubscribe(final EventStream stream) {
+		return subscribers.remove(stream);
+	}
+
+	public int size() {
+		return subscribers.size();
+	}
+
+	public int publish(final String data) {
+		return publish(null, null, data);
+	}
+
+	public int publish(final String event, final String data) {
+		return publish(null, event, data);
+	}
+
+	/**
+	 * @return 写出的订阅者数
+	 */
+	public int publish(final String id, final String event, final String data) {
+		final ByteBuf encoded = DefaultEventStream.encode(id, event, data);
+		int sent = 0;
+		try {
+			for (final DefaultEventStream stream : subscribers) {
+				if (!stream.isOpen()) {
+					subscribers.remove(stream);
+				} else if (!stream.isWritable()) {
+					if (dropSlowSubscribers) {
+						dropped.incrementAndGet();
+						subscribers.remove(stream);
+						stream.abort();
+					} else {
+						skipped.incrementAndGet();
+					}
+				} else if (stream.write(encoded)) {
+					sent++;
+				}
+			}
+		} finally {
+			encoded.release();
+		}
+		return sent;
+	}
+
+	/**
+	 * 因订阅者写缓冲已满而跳过的事件数
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * 因读得慢被关闭的订阅者数
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+}
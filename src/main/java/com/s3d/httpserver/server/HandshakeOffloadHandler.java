@@ -0,0 +1,401 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * 把TLS握手中SSLEngine的delegated task(JSSE在其中处理握手消息, 包括密钥交换和签名)
+ * 交给单独的executor执行, 不占用连接所在的event loop.
+ * Netty自带的delegatedTaskExecutor会在event loop上等待任务完成, 因此这里自己实现:
+ * SslHandler使用 {@link #engine()} 包装后的SSLEngine, 遇到NEED_TASK时取出任务提交给executor,
+ * 暂停autoRead并向SslHandler报告NEED_UNWRAP; 任务完成后回到event loop继续握手.
+ * 本handler位于SslHandler之前, 握手期间每次只交给SslHandler一个完整的TLS记录,
+ * 暂停时收到的数据先缓存, 握手完成后把剩余数据交出并移除自己.
+ */
+final class HandshakeOffloadHandler extends ChannelInboundHandlerAdapter {
+
+	private static final int RECORD_HEADER_LENGTH = 5;
+	private static final int MAX_WRAPS = 64;
+	private static final SSLEngineResult WAITING =
+			new SSLEngineResult(Status.OK, HandshakeStatus.NEED_UNWRAP, 0, 0);
+
+	private final SSLEngine delegate;
+	private final SSLEngine engine;
+	private final Executor executor;
+
+	/* 以下字段只在event loop线程中读写 */
+	private ChannelHandlerContext ctx;
+	private SslHandler sslHandler;
+	private ByteBuf buffered;
+	private boolean paused = false;
+	private boolean handshakeDone = false;
+
+	HandshakeOffloadHandler(final SSLEngine delegate_, final Executor executor_) {
+		delegate = delegate_;
+		executor = executor_;
+		engine = new OffloadingEngine();
+	}
+
+	/**
+	 * 交给SslHandler的SSLEngine
+	 */
+	SSLEngine engine() {
+		return engine;
+	}
+
+	/**
+	 * 握手结束后不再缓存数据
+	 */
+	void watch(final SslHandler sslHandler_) {
+		sslHandler = sslHandler_;
+		sslHandler.handshakeFuture().addListener(new GenericFutureListener<Future<Object>>() {
+			@Override
+			public void operationComplete(final Future<Object> future) {
+				handshakeDone = true;
+			}
+		});
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx_) {
+		ctx = ctx_;
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) {
+		if (buffered != null) {
+			buffered.release();
+			buffered = null;
+		}
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+		if (!(msg instanceof ByteBuf)) {
+			ctx.fireChannelRead(msg);
+			return;
+		}
+		final ByteBuf in = (ByteBuf) msg;
+		if (buffered == null) {
+			buffered = in;
+		} else {
+			final ByteBuf merged = ctx.alloc().buffer(buffered.readableBytes() + in.readableBytes());
+			merged.writeBytes(buffered).writeBytes(in);
+			buffered.release();
+			in.release();
+			buffered = merged;
+		}
+		forward();
+	}
+
+	/**
+	 * 不暂停时把完整的TLS记录逐个交给SslHandler, 握手完成后交出全部数据
+	 */
+	private void forward() {
+		while (!paused && buffered != null && buffered.isReadable()) {
+			if (handshakeDone) {
+				final ByteBuf rest = buffered;
+				buffered = null;
+				ctx.fireChannelRead(rest);
+				break;
+			}
+			final int length = recordLength(buffered);
+			if (length < 0) {
+				break;
+			}
+			ctx.fireChannelRead(buffered.readSlice(length).retain());
+		}
+		if (buffered != null && !buffered.isReadable()) {
+			buffered.release();
+			buffered = null;
+		}
+		if (handshakeDone && buffered == null && ctx.pipeline().context(this) != null) {
+			ctx.pipeline().remove(this);
+		}
+	}
+
+	/**
+	 * @return 第一个完整记录的长度, 数据不足时返回-1. 不是TLS记录时返回全部长度, 由SslHandler报错
+	 */
+	private static int recordLength(final ByteBuf buf) {
+		if (buf.readableBytes() < RECORD_HEADER_LENGTH) {
+			return -1;
+		}
+		final int type = buf.getUnsignedByte(buf.readerIndex());
+		if (type < 20 || type > 24) {
+			return buf.readableBytes();
+		}
+		final int length = RECORD_HEADER_LENGTH + buf.getUnsignedShort(buf.readerIndex() + 3);
+		return length <= buf.readableBytes() ? length : -1;
+	}
+
+	/**
+	 * 取出delegated task交给executor, 暂停读取
+	 */
+	private SSLEngineResult offload(final SSLEngineResult result) {
+
+		if (result.getHandshakeStatus() != HandshakeStatus.NEED_TASK) {
+			return result;
+		}
+
+		final List<Runnable> tasks = new ArrayList<Runnable>(2);
+		Runnable task;
+		while ((task = delegate.getDelegatedTask()) != null) {
+			tasks.add(task);
+		}
+		if (tasks.isEmpty()) {
+			return result;
+		}
+
+		paused = true;
+		ctx.channel().config().setAutoRead(false);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (final Runnable task : tasks) {
+							task.run();
+						}
+					} finally {
+						ctx.channel().eventLoop().execute(new Runnable() {
+							@Override
+							public void run() {
+								resume();
+							}
+						});
+					}
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			// 握手队列已满, 拒绝新连接而不是在event loop上握手
+			ctx.channel().close();
+		}
+
+		return new SSLEngineResult(result.getStatus(), HandshakeStatus.NEED_UNWRAP,
+				result.bytesConsumed(), result.bytesProduced());
+
+	}
+
+	private void resume() {
+
+		paused = false;
+		final ChannelHandlerContext sslContext = ctx.pipeline().context(sslHandler);
+		if (!ctx.channel().isOpen() || sslContext == null) {
+			return;
+		}
+		ctx.channel().config().setAutoRead(true);
+
+		// 让SslHandler写出握手消息, 至少一次, 以便它发现握手已经完成.
+		// 直接调用SslHandler.flush, 从pipeline尾部flush会被没有待写数据的ChunkedWriteHandler截住
+		int wraps = 0;
+		do {
+			try {
+				sslHandler.flush(sslContext);
+			} catch (final Exception e) {
+				ctx.fireExceptionCaught(e);
+				return;
+			}
+		} while (!paused && ctx.channel().isOpen() && ++wraps < MAX_WRAPS
+				&& delegate.getHandshakeStatus() == HandshakeStatus.NEED_WRAP);
+
+		forward();
+		ctx.fireChannelReadComplete();
+
+	}
+
+	/**
+	 * 代理到JSSE的SSLEngine, 在等待delegated task期间不调用它的wrap和unwrap
+	 */
+	private final class OffloadingEngine extends SSLEngine {
+
+		OffloadingEngine() {
+			super(delegate.getPeerHost(), delegate.getPeerPort());
+		}
+
+		@Override
+		public SSLEngineResult wrap(final ByteBuffer[] srcs, final int offset, final int length,
+				final ByteBuffer dst) throws SSLException {
+			if (paused) {
+				return WAITING;
+			}
+			return offload(delegate.wrap(srcs, offset, length, dst));
+		}
+
+		@Override
+		public SSLEngineResult unwrap(final ByteBuffer src, final ByteBuffer[] dsts, final int offset,
+				final int length) throws SSLException {
+			if (paused) {
+				return WAITING;
+			}
+			return offload(delegate.unwrap(src, dsts, offset, length));
+		}
+
+		@Override
+		public Runnable getDelegatedTask() {
+			return null;
+		}
+
+		@Override
+		public HandshakeStatus getHandshakeStatus() {
+			return paused ? HandshakeStatus.NEED_UNWRAP : delegate.getHandshakeStatus();
+		}
+
+		@Override
+		public void beginHandshake() throws SSLException {
+			delegate.beginHandshake();
+		}
+
+		@Override
+		public void closeInbound() throws SSLException {
+			delegate.closeInbound();
+		}
+
+		@Override
+		public boolean isInboundDone() {
+			return delegate.isInboundDone();
+		}
+
+		@Override
+		public void closeOutbound() {
+			delegate.closeOutbound();
+		}
+
+		@Override
+		public boolean isOutboundDone() {
+			return delegate.isOutboundDone();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public String[] getEnabledCipherSuites() {
+			return delegate.getEnabledCipherSuites();
+		}
+
+		@Override
+		public void setEnabledCipherSuites(final String[] suites) {
+			delegate.setEnabledCipherSuites(suites);
+		}
+
+		@Override
+		public String[] getSupportedProtocols() {
+			return delegate.getSupportedProtocols();
+		}
+
+		@Override
+		public String[] getEnabledProtocols() {
+			return delegate.getEnabledProtocols();
+		}
+
+		@Override
+		public void setEnabledProtocols(final String[] protocols) {
+			delegate.setEnabledProtocols(protocols);
+		}
+
+		@Override
+		public SSLSession getSession() {
+			return delegate.getSession();
+		}
+
+		@Override
+		public SSLSession getHandshakeSession() {
+			return delegate.getHandshakeSession();
+		}
+
+		@Override
+		public void setUseClientMode(final boolean mode) {
+			delegate.setUseClientMode(mode);
+		}
+
+		@Override
+		public boolean getUseClientMode() {
+			return delegate.getUseClientMode();
+		}
+
+		@Override
+		public void setNeedClientAuth(final boolean need) {
+			delegate.setNeedClientAuth(need);
+		}
+
+		@Override
+		public boolean getNeedClientAuth() {
+			return delegate.getNeedClientAuth();
+		}
+
+		@Override
+		public void setWantClientAuth(final boolean want) {
+			delegate.setWantClientAuth(want);
+		}
+
+		@Override
+		public boolean getWantClientAuth() {
+			return delegate.getWantClientAuth();
+		}
+
+		@Override
+		public void setEnableSessionCreation(final boolean flag) {
+			delegate.setEnableSessionCreation(flag);
+		}
+
+		@Override
+		public boolean getEnableSessionCreation() {
+			return delegate.getEnableSessionCreation();
+		}
+
+		@Override
+		public SSLParameters getSSLParameters() {
+			return delegate.getSSLParameters();
+		}
+
+		@Override
+		public void setSSLParameters(final SSLParameters params) {
+			delegate.setSSLParameters(params);
+		}
+
+		@Override
+		public String getApplicationProtocol() {
+			return delegate.getApplicationProtocol();
+		}
+
+		@Override
+		public String getHandshakeApplicationProtocol() {
+			return delegate.getHandshakeApplicationProtocol();
+		}
+
+		@Override
+		public void setHandshakeApplicationProtocolSelector(
+				final BiFunction<SSLEngine, List<String>, String> selector) {
+			delegate.setHandshakeApplicationProtocolSelector(selector);
+		}
+
+		@Override
+		public BiFunction<SSLEngine, List<String>, String> getHandshakeApplicationProtocolSelector() {
+			return delegate.getHandshakeApplicationProtocolSelector();
+		}
+
+	}
+
+}
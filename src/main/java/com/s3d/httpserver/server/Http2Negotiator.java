@@ -0,0 +1,145 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import com.s3d.httpserver.http2.Http2ConnectionHandler;
+
+/**
+ * 把HTTP/1连接切换成HTTP/2. 两种入口:
+ * 连接以HTTP/2前言开始(prior knowledge, 或TLS上ALPN协商了h2)时由 {@link #newPrefaceDetector()} 检测;
+ * 明文连接上带 Upgrade: h2c 的请求由本handler(位于 {@link RequestAggregator} 之后)回复101后切换, 该请求作为stream 1.
+ * 切换后连接的pipeline只剩 ssl, ConnectionTracker 和 {@link Http2ConnectionHandler},
+ * 每个stream的pipeline由streamInitializer初始化.
+ */
+@Sharable
+class Http2Negotiator extends ChannelInboundHandlerAdapter {
+
+	private static final String H2C = "h2c";
+	private static final String HTTP2_SETTINGS = "HTTP2-Settings";
+
+	private final HttpServerConfig config;
+	private final ChannelHandler streamInitializer;
+
+	Http2Negotiator(final HttpServerConfig config_, final ChannelHandler streamInitializer_) {
+		config = config_;
+		streamInitializer = streamInitializer_;
+	}
+
+	/**
+	 * 放在HttpRequestDecoder之前, 每个连接一个
+	 */
+	ChannelHandler newPrefaceDetector() {
+		return new PrefaceDetector();
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if (msg instanceof FullHttpRequest && isUpgrade((FullHttpRequest) msg)
+				&& ctx.pipeline().get(SslHandler.class) == null) {
+			final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+					HttpResponseStatus.SWITCHING_PROTOCOLS);
+			response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.UPGRADE);
+			response.headers().set(HttpHeaders.Names.UPGRADE, H2C);
+			ctx.writeAndFlush(response);
+			switchProtocol(ctx.pipeline(), HttpRequestDecoder.class, (FullHttpRequest) msg);
+			return;
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	private static boolean isUpgrade(final FullHttpRequest request) {
+		final HttpHeaders headers = request.headers();
+		return headers.getAll(HTTP2_SETTINGS).size() == 1
+				&& containsToken(headers.get(HttpHeaders.Names.UPGRADE), H2C)
+				&& containsToken(headers.get(HttpHeaders.Names.CONNECTION), HttpHeaders.Values.UPGRADE);
+	}
+
+	private static boolean containsToken(final String value, final String token) {
+		if (value == null) {
+			return false;
+		}
+		for (final String part : value.split(",")) {
+			if (part.trim().toLowerCase(Locale.ENGLISH).equals(token.toLowerCase(Locale.ENGLISH))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 移除HTTP/1的handler, 在anchor之后加入HTTP/2连接handler.
+	 * anchor最后移除, 它缓存的未解码数据交给HTTP/2 handler.
+	 */
+	private void switchProtocol(final ChannelPipeline pipeline,
+			final Class<? extends ChannelHandler> anchor, final FullHttpRequest upgradeRequest) {
+
+		removeIfPresent(pipeline, ConnectionLifecycleHandler.class);
+		removeIfPresent(pipeline, RequestDecompressor.class);
+		removeIfPresent(pipeline, RequestRouter.class);
+		removeIfPresent(pipeline, RequestAggregator.class);
+		removeIfPresent(pipeline, MultipartDecoder.class);
+		removeIfPresent(pipeline, HttpRequestChannelHandler.class);
+		removeIfPresent(pipeline, HttpResponseEncoder.class);
+		removeIfPresent(pipeline, ChunkedWriteHandler.class);
+		if (pipeline.get(Http2Negotiator.class) == this) {
+			pipeline.remove(this);
+		}
+		if (anchor != HttpRequestDecoder.class) {
+			removeIfPresent(pipeline, HttpRequestDecoder.class);
+		}
+
+		final Http2Timeouts timeouts = new Http2Timeouts(config.connectionManager());
+		final Http2ConnectionHandler handler = new Http2ConnectionHandler(config.http2(), streamInitializer,
+				config.maxAggregatedRequestSize(),
+				config.requestBodyBudget() == null ? null : config.requestBodyBudget().http2(),
+				timeouts, upgradeRequest);
+		pipeline.addAfter(pipeline.context(anchor).name(), "http2", handler);
+		pipeline.remove(anchor);
+		timeouts.register(handler, pipeline.channel());
+	}
+
+	private static void removeIfPresent(final ChannelPipeline pipeline,
+			final Class<? extends ChannelHandler> type) {
+		if (pipeline.get(type) != null) {
+			pipeline.remove(type);
+		}
+	}
+
+	/**
+	 * 比较连接的最初24字节, 是HTTP/2前言就切换, 否则移除自己, 数据交给HttpRequestDecoder
+	 */
+	private final class PrefaceDetector extends ByteToMessageDecoder {
+
+		@Override
+		protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out)
+				throws Exception {
+			if (!Http2ConnectionHandler.isPreface(in)) {
+				ctx.pipeline().remove(this);
+			} else if (in.readableBytes() >= Http2ConnectionHandler.prefaceLength()) {
+				switchProtocol(ctx.pipeline(), PrefaceDetector.class, null);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.Channel;
+
+import com.s3d.httpserver.http2.Http2ConnectionHandler;
+import com.s3d.httpserver.http2.StreamTimeouts;
+
+/**
+ * 把HTTP/2连接登记在 {@link ConnectionManager} 的时间轮上, 代替切换协议时移除的 {@link ConnectionLifecycleHandler}.
+ * 空闲使用keep-alive时限, stream的body和HTTP/1的请求体使用相同的读取时限和最低速率.
+ */
+final class Http2Timeouts implements StreamTimeouts, TimeoutWheel.Entry {
+
+	private final ConnectionManager manager;
+	private Http2ConnectionHandler handler;
+	private Channel channel;
+
+	Http2Timeouts(final ConnectionManager manager_) {
+		manager = manager_;
+	}
+
+	/**
+	 * 开始检查, 只能在连接的event loop中调用
+	 */
+	void register(final Http2ConnectionHandler handler_, final Channel channel_) {
+		handler = handler_;
+		channel = channel_;
+		manager.wheel(channel.eventLoop()).schedule(this, System.nanoTime());
+	}
+
+	@Override
+	public long check(final long now) {
+		final long next = handler.check(now, ReadPause.isPaused(channel));
+		return next == Http2ConnectionHandler.CANCEL ? TimeoutWheel.CANCEL : next;
+	}
+
+	@Override
+	public long idleTimeoutNanos() {
+		return manager.keepAliveTimeoutNanos();
+	}
+
+	@Override
+	public long headerReadTimeoutNanos() {
+		return manager.headerReadTimeoutNanos();
+	}
+
+	@Override
+	public long bodyReadTimeoutNanos() {
+		return manager.bodyReadTimeoutNanos();
+	}
+
+	@Override
+	public long minBytesPerSecond() {
+		return manager.minBytesPerSecond();
+	}
+
+	@Override
+	public long rateGraceNanos() {
+		return manager.rateGraceNanos();
+	}
+
+	@Override
+	public void timedOut() {
+		manager.timedOut();
+	}
+
+	@Override
+	public void slowClient() {
+		manager.slowClient();
+	}
+
+}
@@ -11,20 +11,33 @@ import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
-import com.s3d.httpserver.auth.AuthorizationHandler;
+import com.s3d.httpserver.auth.AsyncAuthorizationHandler;
 import com.s3d.httpserver.auth.UserSessionDetail;
 import com.s3d.httpserver.error.ResponseAlreadyFinishedException;
 import com.s3d.httpserver.error.ServerException;
 import com.s3d.httpserver.error.ServerTooBusyException;
 import com.s3d.httpserver.handlers.HttpStaticFileHandler;
+import com.s3d.httpserver.http2.ExpectContinue;
+import com.s3d.httpserver.limit.AdaptiveConcurrencyLimiter;
+import com.s3d.httpserver.limit.TokenBucketRateLimiter;
 import com.s3d.httpserver.request.RequestHandler;
+import com.s3d.httpserver.request.StreamingRequestHandler;
 import com.s3d.httpserver.util.StringUtils;
+import com.s3d.httpserver.websocket.WebSocketHandler;
 import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
 import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 
 import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,12 +55,26 @@ public class HttpRequestChannelHandler extends
 	private static final Logger log = LoggerFactory.getLogger(HttpRequestChannelHandler.class);	
 	
 	
+	/** 连接上最近一次认证成功的用户 */
 	public static final AttributeKey<UserSessionDetail> ATTR_SESS =
 			AttributeKey.<UserSessionDetail> valueOf("usersession");
+	/** ATTR_SESS对应的凭据和过期时间 */
+	private static final AttributeKey<CachedCredentials> ATTR_CREDENTIALS =
+			AttributeKey.<CachedCredentials> valueOf("usercredentials");
+	/** HTTP/2 stream上等待预检结果的100 Continue */
+	private static final AttributeKey<ExpectContinue> ATTR_CONTINUE =
+			AttributeKey.<ExpectContinue> valueOf("expectcontinue");
 	
 	private final HttpServerConfig config;
 	private final ServerMessagePool messagePool;
 	private final EventExecutorGroup executor;
+	private final EncodedResponse shedResponse;
+	private final EventStreams eventStreams;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile boolean draining = false;
+	/* 每个限流器的429, Retry-After按它的补充速率 */
+	private final Map<TokenBucketRateLimiter, EncodedResponse> rateLimitedResponses =
+			new IdentityHashMap<TokenBucketRateLimiter, EncodedResponse>();
 	
 	public HttpRequestChannelHandler(final HttpServerConfig config_) {
 		super();
@@ -55,13 +82,82 @@ public class HttpRequestChannelHandler extends
 		messagePool = new ServerMessagePool(config.maxConnections());
 		messagePool.init();
 		this.executor = config.childGroup();
+		eventStreams = new EventStreams(config.eventStreamHeartbeatNanos(),
+				config.eventStreamLowWaterMark(), config.eventStreamHighWaterMark());
+
+		for (final TokenBucketRateLimiter rateLimiter : config.rateLimiters().values()) {
+			rateLimitedResponses.put(rateLimiter, EncodedResponse.of(
+					HttpResponseStatus.TOO_MANY_REQUESTS, "429 Too Many Requests",
+					HttpHeaders.Names.RETRY_AFTER, String.valueOf(rateLimiter.retryAfterSeconds())));
+		}
+		
+		final AdaptiveConcurrencyLimiter limiter = config.concurrencyLimiter();
+		shedResponse = limiter == null ? null : EncodedResponse.of(
+				HttpResponseStatus.SERVICE_UNAVAILABLE,
+				"503 Service Unavailable - Server Too Busy",
+				HttpHeaders.Names.RETRY_AFTER, String.valueOf(limiter.retryAfterSeconds()));
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if (msg instanceof StreamedContent) {
+			bodyRead(ctx, (StreamedContent) msg);
+		} else {
+			super.channelRead(ctx, msg);
+		}
 	}
 
 	@Override
 	public void channelRead0(final ChannelHandlerContext ctx,
 			final FullHttpRequest msg) throws Exception {
-		final RequestHandler handler =
-				config.getRequestMapping(msg.getUri());
+		// 预检时已经限流, 路由和认证过
+		final PooledServerResponse awaiting = ctx.attr(PooledServerResponse.ATTR_BODY).get();
+		if (awaiting != null && awaiting.bodyState() == PooledServerResponse.BODY_AWAITING) {
+			ctx.attr(PooledServerResponse.ATTR_BODY).remove();
+			bodyReceived(ctx, awaiting, msg);
+			return;
+		}
+
+		if (config.hasRateLimiters()) {
+			final TokenBucketRateLimiter rateLimiter = rateLimitedBy(ctx, msg);
+			if (rateLimiter != null) {
+				rateLimitedResponses.get(rateLimiter).write(ctx, isKeepAlive(msg));
+				return;
+			}
+		}
+
+		// 缓存命中时直接写出, 不占用并发额度; 带凭证的请求要先认证, 响应也可能因用户而异, 既不查也不存缓存
+		final ResponseCache cache = config.responseCache();
+		CachePolicy cachePolicy = null;
+		String cacheKey = null;
+		ResponseCache.Entry stale = null;
+		if (cache != null && HttpMethod.GET.equals(msg.getMethod())
+				&& !msg.headers().contains(HttpHeaders.Names.AUTHORIZATION)) {
+			cachePolicy = config.getCachePolicy(msg.getUri());
+			if (cachePolicy != null) {
+				cacheKey = cachePolicy.key(msg);
+				final ResponseCache.Entry entry = cache.get(cacheKey);
+				if (entry != null) {
+					if (entry.isFresh() || !entry.tryRevalidate()) {
+						if (cache.write(ctx, entry, isKeepAlive(msg))) {
+							return;
+						}
+					} else {
+						stale = entry;
+					}
+				}
+			}
+		}
+		
+		// HTTP/1的请求在请求头到达时已经路由
+		final RequestHandler handler = msg instanceof UnaggregatedRequest
+				? ((UnaggregatedRequest) msg).handler() : config.getRequestMapping(msg.getUri());
+
+		// HTTP/2 stream上的请求按所有前缀中最大的上限聚合, 这里按路由检查
+		if (msg.content().readableBytes() > RequestRouter.maxRequestSize(config, msg.getUri(), handler)) {
+			RequestRouter.TOO_LARGE.write(ctx, isKeepAlive(msg));
+			return;
+		}
 		
 		if (handler != null) {
 			if (handler instanceof HttpStaticFileHandler) {
@@ -69,6 +165,10 @@ public class HttpRequestChannelHandler extends
 				staticFileHandler.onRequest(ctx , msg);
 				return;
 			}
+			if (handler instanceof WebSocketHandler) {
+				WebSocketUpgrader.upgrade(ctx, msg, (WebSocketHandler) handler);
+				return;
+			}
 		}
 		String relativePath = msg.getUri();
 
@@ -76,9 +176,26 @@ public class HttpRequestChannelHandler extends
 			//relativePath = relativePath.substring(handler.path().length());
 		//}
 
+		// 过载时在分配pooled对象之前就拒绝
+		final AdaptiveConcurrencyLimiter limiter = config.concurrencyLimiter();
+		if (limiter != null && !limiter.tryAcquire(config.getRequestPriority(relativePath))) {
+			if (stale != null) {
+				stale.revalidateFailed();
+			}
+			shedResponse.write(ctx, isKeepAlive(msg));
+			return;
+		}
+
 		final PooledServerRequest request = messagePool.getRequest();
 
 		if (request == null) {
+			if (limiter != null) {
+				// 没有处理请求, 不能作为耗时样本
+				limiter.cancel();
+			}
+			if (stale != null) {
+				stale.revalidateFailed();
+			}
 			sendServerError(ctx, new ServerTooBusyException(
 					"Maximum concurrent connections reached"));
 			return;
@@ -91,9 +208,25 @@ public class HttpRequestChannelHandler extends
 		final long traceTime = System.currentTimeMillis();
 		
 		response.init(ctx,
+				this,
 				traceTime,
-				//this, 
 				handler, request, config.logger());
+		if (limiter != null) {
+			response.admitted();
+		}
+		if (cacheKey != null) {
+			response.cacheAs(cache, cacheKey, cachePolicy, stale);
+		}
+		if (msg instanceof UnaggregatedRequest) {
+			final UnaggregatedRequest unaggregated = (UnaggregatedRequest) msg;
+			if (unaggregated.isStreaming()) {
+				response.bodyState(PooledServerResponse.BODY_QUEUED);
+				ctx.attr(PooledServerResponse.ATTR_BODY).set(response);
+			} else if (unaggregated.isPreflight()) {
+				response.bodyState(PooledServerResponse.BODY_AWAITING);
+			}
+		}
+		requestStarted(response);
 		
 		if (handler == null) {
 			// 404
@@ -113,6 +246,172 @@ public class HttpRequestChannelHandler extends
 			});
 		}
 		
+		// 相同的GET请求正在执行时挂起等待它的结果
+		RequestCoalescer coalescer = null;
+		String coalesceKey = null;
+		if (HttpMethod.GET.equals(msg.getMethod())) {
+			coalescer = config.getRequestCoalescer(msg.getUri());
+			if (coalescer != null) {
+				coalesceKey = coalescer.key(msg);
+				if (coalesceKey == null) {
+					coalescer = null;
+				}
+			}
+		}
+
+		if (config.hasAuthorizationHandlers()) {
+			final String credentials = msg.headers().get(HttpHeaders.Names.AUTHORIZATION);
+			if (credentials != null) {
+				// keep-alive连接上重复出现的凭据不再校验
+				final UserSessionDetail cached = cachedSession(ctx, credentials);
+				if (cached != null) {
+					request.setUserSession(cached);
+					dispatch(ctx, handler, request, response, lastResponse, null, null);
+					return;
+				}
+				final AsyncAuthorizationHandler authHandler = authorizationHandler(credentials);
+				if (authHandler != null) {
+					if (lastResponse != null) {
+						lastResponse.free();
+					}
+					authorize(ctx, authHandler, handler, request, response);
+					return;
+				}
+			}
+		}
+
+		dispatch(ctx, handler, request, response, lastResponse, coalescer, coalesceKey);
+	}
+
+	/**
+	 * 按Authorization头的scheme选择认证方式
+	 * @return null 如果scheme没有注册, 作为匿名请求处理
+	 */
+	private AsyncAuthorizationHandler authorizationHandler(final String credentials) {
+		final int sp = credentials.indexOf(' ');
+		return config.getAuthorizationHandler(sp < 0 ? credentials : credentials.substring(0, sp));
+	}
+
+	/**
+	 * 认证完成后执行handler. 异步认证未完成时挂起response, 完成后在本连接的event loop中继续
+	 */
+	private void authorize(final ChannelHandlerContext ctx, final AsyncAuthorizationHandler authHandler,
+			final RequestHandler handler, final PooledServerRequest request,
+			final PooledServerResponse response) {
+		Future<UserSessionDetail> future;
+		try {
+			future = authHandler.authenticate(ctx, request, response);
+		} catch (final Throwable t) {
+			future = ctx.executor().newFailedFuture(t);
+		}
+		if (future.isDone()) {
+			authorized(ctx, authHandler, handler, request, response, future);
+			return;
+		}
+
+		response.awaitAuthorization(future);
+		future.addListener(new FutureListener<UserSessionDetail>() {
+			@Override
+			public void operationComplete(final Future<UserSessionDetail> f) {
+				ctx.executor().execute(new Runnable() {
+					@Override
+					public void run() {
+						if (response.authorizationCompleted(f)) {
+							authorized(ctx, authHandler, handler, request, response, f);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void authorized(final ChannelHandlerContext ctx, final AsyncAuthorizationHandler authHandler,
+			final RequestHandler handler, final PooledServerRequest request,
+			final PooledServerResponse response, final Future<UserSessionDetail> future) {
+		if (!future.isSuccess()) {
+			serverError(request, response, future.cause());
+			return;
+		}
+		final UserSessionDetail session = future.getNow();
+		if (session == null) {
+			response.setStatus(HttpResponseStatus.UNAUTHORIZED);
+		}
+		if (response.getStatus() == HttpResponseStatus.UNAUTHORIZED) {
+			if (!response.headers().contains(HttpHeaders.Names.WWW_AUTHENTICATE)) {
+				response.headers().set(HttpHeaders.Names.WWW_AUTHENTICATE, authHandler.getMethod());
+			}
+			ctx.channel().attr(ATTR_CREDENTIALS).remove();
+			ctx.channel().attr(ATTR_SESS).remove();
+		} else {
+			request.setUserSession(session);
+			final long ttl = config.authorizationCacheNanos();
+			if (ttl > 0) {
+				ctx.channel().attr(ATTR_CREDENTIALS).set(new CachedCredentials(
+						request.headers().get(HttpHeaders.Names.AUTHORIZATION), System.nanoTime() + ttl));
+				ctx.channel().attr(ATTR_SESS).set(session);
+			}
+		}
+		// 响应可能因用户而不同, 带认证的请求不合并执行
+		dispatch(ctx, handler, request, response, null, null, null);
+	}
+
+	/**
+	 * @return null 如果连接上没有缓存, 凭据不同或已过期. 后两种情况清除缓存
+	 */
+	private static UserSessionDetail cachedSession(final ChannelHandlerContext ctx,
+			final String credentials) {
+		final CachedCredentials cached = ctx.channel().attr(ATTR_CREDENTIALS).get();
+		if (cached == null) {
+			return null;
+		}
+		if (cached.matches(credentials) && System.nanoTime() - cached.expiresNanos < 0) {
+			return ctx.channel().attr(ATTR_SESS).get();
+		}
+		ctx.channel().attr(ATTR_CREDENTIALS).remove();
+		ctx.channel().attr(ATTR_SESS).remove();
+		return null;
+	}
+
+	private static final class CachedCredentials {
+		private final byte[] credentials;
+		final long expiresNanos;
+
+		CachedCredentials(final String credentials_, final long expiresNanos_) {
+			credentials = credentials_.getBytes(CharsetUtil.ISO_8859_1);
+			expiresNanos = expiresNanos_;
+		}
+
+		/**
+		 * 逐字节比较全部内容, 耗时与凭据在哪里不同无关
+		 */
+		boolean matches(final String other) {
+			if (other.length() != credentials.length) {
+				return false;
+			}
+			int diff = 0;
+			for (int i = 0; i < credentials.length; i++) {
+				diff |= (credentials[i] & 0xff) ^ other.charAt(i);
+			}
+			return diff == 0;
+		}
+	}
+
+	/**
+	 * 执行handler, 出错时返回500, handler没有挂起response时结束response.
+	 * 合并执行失败后, 等待的请求也由此单独执行.
+	 */
+	void dispatch(final ChannelHandlerContext ctx, final RequestHandler handler,
+			final PooledServerRequest request, final PooledServerResponse response,
+			final PooledServerResponse lastResponse, final RequestCoalescer coalescer,
+			final String coalesceKey) {
+		if (response.bodyState() == PooledServerResponse.BODY_AWAITING
+				&& response.getStatus() != HttpResponseStatus.UNAUTHORIZED) {
+			if (lastResponse != null) {
+				lastResponse.free();
+			}
+			awaitBody(ctx, response);
+			return;
+		}
 		try {
 			if(lastResponse != null){//如果有lastResponse存在,说明之前的请求没有完成(出错或中断) 
 				lastResponse.free();
@@ -120,36 +419,19 @@ public class HttpRequestChannelHandler extends
 			// 401
 			if (response.getStatus() == HttpResponseStatus.UNAUTHORIZED ) {
 				config.errorHandler().onError(request, response, null);
-			} else {
-				handler.onRequest(ctx ,request, response);
-			}
-		} catch (final Throwable t) {
-			//500
-			response.setStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR);
-			try {
-				config.errorHandler().onError(request, response, t);
-			} catch (final Throwable t2) {
-				try {
-					response.write(t.getClass()
-							+ " was thrown while processing this request.  Additionally, "
-							+ t2.getClass()
-							+ " was thrown while handling this exception.");
-				} catch (IOException e) {
-					log.error("error on write to response", e);
+			} else if (coalescer == null || !coalescer.join(coalesceKey, response)) {
+				if (response.bodyState() == PooledServerResponse.BODY_QUEUED) {
+					proceed(ctx);
 				}
-			}
-			
-			config.logger().error(request, response, t);
-
-			if (!response.isFinished()) {
-				try {
-					response.finish();
-				} catch (IOException e) {
-					log.error("error on finishing response", e);
+				handler.onRequest(ctx ,request, response);
+				if (handler instanceof StreamingRequestHandler) {
+					startBody((StreamingRequestHandler) handler, request, response);
 				}
 			}
+		} catch (final Throwable t) {
+			serverError(request, response, t);
 		} finally {
-			if (!response.isFinished() && !response.isSuspended()) {
+			if (!response.isFinished() && !response.isSuspended() && !response.isReceivingBody()) {
 				try {
 					response.finish();
 				} catch (IOException e) {
@@ -159,7 +441,211 @@ public class HttpRequestChannelHandler extends
 				}
 			}
 		}
+	}
+
+	/**
+	 * 预检通过: 挂起response, 回复100 Continue, 聚合好的请求到达后由 {@link #bodyReceived} 继续
+	 */
+	private void awaitBody(final ChannelHandlerContext ctx, final PooledServerResponse response) {
+		response.suspend();
+		ctx.attr(PooledServerResponse.ATTR_BODY).set(response);
+		// 已经收到的body可能在这里就聚合完成
+		proceed(ctx);
+	}
+
+	/**
+	 * 回复100 Continue并继续接收body: HTTP/1由RequestRouter, HTTP/2 stream由连接
+	 */
+	private static void proceed(final ChannelHandlerContext ctx) {
+		final ExpectContinue expect = ctx.attr(ATTR_CONTINUE).getAndRemove();
+		if (expect != null) {
+			expect.proceed();
+		} else {
+			RequestRouter.proceed(ctx);
+		}
+	}
+
+	private void bodyReceived(final ChannelHandlerContext ctx, final PooledServerResponse response,
+			final FullHttpRequest msg) {
+		final PooledServerRequest request = response.request();
+		final UserSessionDetail session = request.getUserSession();
+		request.init(ctx.channel(), msg, msg.getUri());
+		if (session != null) {
+			request.setUserSession(session);
+		}
+		response.bodyReceived();
+		dispatch(ctx, response.handler(), request, response, null, null, null);
+	}
+
+	/**
+	 * 交给handler在onRequest之前到达的body分块, 之后到达的由 {@link #bodyRead} 直接交付.
+	 * HTTP/2 stream和没有body的请求, 整个body作为最后一块交付
+	 */
+	private void startBody(final StreamingRequestHandler handler, final PooledServerRequest request,
+			final PooledServerResponse response) throws IOException {
+		if (response.bodyState() != PooledServerResponse.BODY_QUEUED) {
+			handler.onContent(request, response, request.getContent(), true);
+			return;
+		}
+		response.bodyState(PooledServerResponse.BODY_STREAMING);
+		StreamedContent chunk;
+		while (response.bodyState() == PooledServerResponse.BODY_STREAMING
+				&& (chunk = response.queuedBody().poll()) != null) {
+			deliver(handler, request, response, chunk);
+		}
+	}
+
+	private void bodyRead(final ChannelHandlerContext ctx, final StreamedContent chunk) {
+		final PooledServerResponse response = ctx.attr(PooledServerResponse.ATTR_BODY).get();
+		if (chunk.isLast()) {
+			ctx.attr(PooledServerResponse.ATTR_BODY).remove();
+		}
+		if (response == null || response.bodyState() == PooledServerResponse.BODY_NONE) {
+			// 请求已经被拒绝或者response已经结束
+			chunk.release();
+			return;
+		}
+		if (response.bodyState() == PooledServerResponse.BODY_QUEUED) {
+			response.queuedBody().add(chunk);
+			return;
+		}
+		if (deliver((StreamingRequestHandler) response.handler(), response.request(), response, chunk)
+				&& !response.isFinished() && !response.isSuspended()) {
+			try {
+				response.finish();
+			} catch (IOException e) {
+				log.error("error on finishing response", e);
+			} catch (ResponseAlreadyFinishedException e){
+				//ignore 
+			}
+		}
+	}
+
+	/**
+	 * 出错时返回500, 丢弃剩余的body
+	 * @return true 如果最后一块正常交付
+	 */
+	private boolean deliver(final StreamingRequestHandler handler, final PooledServerRequest request,
+			final PooledServerResponse response, final StreamedContent chunk) {
+		final boolean last = chunk.isLast();
+		if (last) {
+			response.bodyState(PooledServerResponse.BODY_NONE);
+		}
+		try {
+			handler.onContent(request, response, chunk.content(), last);
+			return last;
+		} catch (final Throwable t) {
+			response.bodyState(PooledServerResponse.BODY_NONE);
+			serverError(request, response, t);
+			return false;
+		} finally {
+			chunk.release();
+		}
+	}
+
+	/**
+	 * 500
+	 */
+	private void serverError(final PooledServerRequest request,
+			final PooledServerResponse response, final Throwable t) {
+		response.setStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+		try {
+			config.errorHandler().onError(request, response, t);
+		} catch (final Throwable t2) {
+			try {
+				response.write(t.getClass()
+						+ " was thrown while processing this request.  Additionally, "
+						+ t2.getClass()
+						+ " was thrown while handling this exception.");
+			} catch (IOException e) {
+				log.error("error on write to response", e);
+			}
+		}
 		
+		config.logger().error(request, response, t);
+
+		if (!response.isFinished()) {
+			try {
+				response.finish();
+			} catch (IOException e) {
+				log.error("error on finishing response", e);
+			}
+		}
+	}
+
+	private void requestStarted(final PooledServerResponse response) {
+		inFlight.incrementAndGet();
+		final InboundBackpressure backpressure = config.inboundBackpressure();
+		if (backpressure != null) {
+			backpressure.requestStarted(response.context().channel());
+		}
+	}
+
+	/**
+	 * response free时调用, 正常结束, 出错, 连接中断都只调用一次
+	 */
+	void requestFinished(final PooledServerResponse response) {
+		inFlight.decrementAndGet();
+		if (response.isAdmitted()) {
+			config.concurrencyLimiter().release(System.nanoTime() - response.startNanos());
+		}
+		final InboundBackpressure backpressure = config.inboundBackpressure();
+		if (backpressure != null) {
+			backpressure.requestFinished(response.context().channel());
+		}
+	}
+
+	/**
+	 * 长时间保持的响应(event stream)开始后释放并发额度
+	 */
+	void releaseAdmission(final PooledServerResponse response) {
+		config.concurrencyLimiter().release(System.nanoTime() - response.startNanos());
+	}
+
+	EventStreams eventStreams() {
+		return eventStreams;
+	}
+
+	/**
+	 * 进入drain状态, 之后所有response都带 Connection: close
+	 */
+	void drain() {
+		draining = true;
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * 当前在途(已分配response尚未free)的请求数
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	private boolean isKeepAlive(final FullHttpRequest msg) {
+		return HttpHeaders.isKeepAlive(msg) && !draining;
+	}
+
+	/**
+	 * 所有匹配URI前缀的限流器都要取到令牌
+	 */
+	/**
+	 * @return 令牌已用完的第一个限流器, 都通过时为null
+	 */
+	private TokenBucketRateLimiter rateLimitedBy(final ChannelHandlerContext ctx,
+			final FullHttpRequest msg) {
+		final String uri = msg.getUri();
+		for (final Map.Entry<String, TokenBucketRateLimiter> entry : config.rateLimiters().entrySet()) {
+			if (uri.startsWith(entry.getKey())) {
+				final TokenBucketRateLimiter limiter = entry.getValue();
+				if (!limiter.tryAcquire(limiter.key().of(ctx, msg))) {
+					return limiter;
+				}
+			}
+		}
+		return null;
 	}
 
 	private void sendServerError(final ChannelHandlerContext ctx,
@@ -199,6 +685,27 @@ public class HttpRequestChannelHandler extends
 		}
 	}
 
+	/**
+	 * HTTP/2 stream的请求头带 Expect: 100-continue 时, 和HTTP/1一样先作为预检处理, 接受后才回复100
+	 */
+	@Override
+	public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+		if (!(evt instanceof ExpectContinue)) {
+			super.userEventTriggered(ctx, evt);
+			return;
+		}
+		final ExpectContinue expect = (ExpectContinue) evt;
+		expect.defer();
+		final HttpRequest head = expect.head();
+		final RequestHandler handler = config.getRequestMapping(head.getUri());
+		if (HttpHeaders.getContentLength(head, -1) > RequestRouter.maxRequestSize(config, head, handler)) {
+			RequestRouter.TOO_LARGE.write(ctx, false);
+			return;
+		}
+		ctx.attr(ATTR_CONTINUE).set(expect);
+		channelRead0(ctx, new UnaggregatedRequest(head, handler, false, true));
+	}
+
 	@Override
 	public void channelInactive(final ChannelHandlerContext ctx) {
 
@@ -228,7 +735,7 @@ public class HttpRequestChannelHandler extends
 				        }else{
 				        	if (exception.getCause() instanceof IOException) {
 					        	//TODO 远程主机强迫... / 连接被重置  .....
-				        		log.error("io error:",exception.getCause());
+				        		config.errorReporter().error(log, "io error:", exception.getCause());
 				        	}else{
 				        		response.setStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR);
 								config.errorHandler().onError(response.request(),
@@ -1,11 +1,8 @@
 package com.s3d.httpserver.server;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -16,43 +13,65 @@ import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpHeaders;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
 
-import javax.net.ssl.SSLEngine;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.s3d.httpserver.limit.ConnectionTable;
+
 /**
  * High performance HTTP server.
  */
 public class HttpServer {
 	private static final Logger log = LoggerFactory.getLogger(HttpServer.class);
+
+	/* ConnectionTracker 已计入全局连接数的连接 */
+	private static final AttributeKey<Boolean> ATTR_COUNTED =
+			AttributeKey.<Boolean> valueOf("connection-counted");
+	/* ConnectionTracker 按IP计数时使用的地址 */
+	private static final AttributeKey<InetAddress> ATTR_ADDRESS =
+			AttributeKey.<InetAddress> valueOf("connection-address");
 	
 	private Channel serverChannel;
 	private HttpServerConfig config;
 	private HttpRequestChannelHandler channelHandler;
 	private ConnectionTracker clientTracker;
+	private Http2Negotiator http2Negotiator;
 
 	private final ChannelGroup channelGroup = new DefaultChannelGroup(
 			GlobalEventExecutor.INSTANCE);
 
+	/* 停机后停止异常汇总的后台线程, 之后再有异常时会重新启动 */
+	private final GenericFutureListener<Future<Void>> stopReporter =
+			new GenericFutureListener<Future<Void>>() {
+				@Override
+				public void operationComplete(final Future<Void> future) {
+					config.errorReporter().shutdown();
+				}
+			};
+
 	public HttpServer configure(final HttpServerConfig config_) {
 
 		config = config_;
 		channelHandler = new HttpRequestChannelHandler(config);
-		clientTracker = new ConnectionTracker(config.maxConnections());
+		clientTracker = new ConnectionTracker(config.maxConnections(),
+				config.maxConnectionsPerAddress());
+		http2Negotiator = config.http2() == null ? null
+				: new Http2Negotiator(config, new Http2StreamInitializer());
 
 		return this;
 
@@ -72,7 +91,7 @@ public class HttpServer {
 				.group(config.parentGroup(), config.childGroup()) //
 				.channel(config.socketChannelClass()) //
 				.localAddress(config.address()) //
-				.childHandler(new HttpServerChannelInitializer(config.getSSLEngine())) //
+				.childHandler(new HttpServerChannelInitializer(config.sslEngineFactory())) //
 				.option(ChannelOption.SO_REUSEADDR, true) //
 				.option(ChannelOption.SO_SNDBUF, 262144) //
 				.option(ChannelOption.SO_RCVBUF, 262144) //
@@ -93,6 +112,7 @@ public class HttpServer {
 
 		final ChannelFuture future = serverChannel.close();
 		serverChannel = null;
+		future.addListener(stopReporter);
 
 		return future;
 
@@ -112,11 +132,88 @@ public class HttpServer {
 		final ChannelGroupFuture future = channelGroup.close();
 		channelGroup.remove(serverChannel);
 		serverChannel = null;
+		future.addListener(stopReporter);
 
 		return future;
 
 	}
 
+	/**
+	 * 平滑停机: 停止接受新连接, 之后的response都带 Connection: close,
+	 * 等待在途请求完成(最多等到timeout), 再关闭所有剩余的keep-alive连接.
+	 * 超时后仍未完成的请求会被强制断开.
+	 * @return 所有连接关闭后完成的future
+	 */
+	public Future<Void> drain(final long timeout, final TimeUnit unit) {
+
+		if (serverChannel == null) {
+			throw new IllegalStateException("Server is not running.");
+		}
+
+		final Promise<Void> promise = GlobalEventExecutor.INSTANCE.newPromise();
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		channelHandler.drain();
+		serverChannel.close();
+		serverChannel = null;
+
+		GlobalEventExecutor.INSTANCE.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (channelHandler.getInFlight() > 0 && System.nanoTime() < deadline) {
+					GlobalEventExecutor.INSTANCE.schedule(this, 50, TimeUnit.MILLISECONDS);
+					return;
+				}
+				if (channelHandler.getInFlight() > 0) {
+					log.warn("drain timed out, closing {} connections with {} requests in flight",
+							channelGroup.size(), channelHandler.getInFlight());
+				}
+				channelGroup.close().addListener(new GenericFutureListener<ChannelGroupFuture>() {
+					@Override
+					public void operationComplete(final ChannelGroupFuture future) {
+						config.errorReporter().shutdown();
+						promise.trySuccess(null);
+					}
+				});
+			}
+		});
+
+		return promise;
+
+	}
+
+	public boolean isDraining() {
+		return channelHandler != null && channelHandler.isDraining();
+	}
+
+	/**
+	 * 在途(已开始处理尚未结束)的请求数
+	 */
+	public int getInFlightRequests() {
+		return channelHandler == null ? 0 : channelHandler.getInFlight();
+	}
+
+	/**
+	 * 当前打开的event stream数
+	 */
+	public int getOpenEventStreams() {
+		return channelHandler == null ? 0 : channelHandler.eventStreams().size();
+	}
+
+	/**
+	 * event stream因客户端读得慢(写缓冲超过高水位)被丢弃的事件数, 包括心跳
+	 */
+	public long getDroppedEvents() {
+		return channelHandler == null ? 0 : channelHandler.eventStreams().droppedCount();
+	}
+
+	/**
+	 * 当前打开的客户端连接数
+	 */
+	public int getOpenConnections() {
+		return channelGroup.size();
+	}
+
 	public boolean isRunning() {
 		return serverChannel != null;
 	}
@@ -127,10 +224,14 @@ public class HttpServer {
 
 	private class HttpServerChannelInitializer extends
 			ChannelInitializer<SocketChannel> {
-		private final SSLEngine engine;
+		private final SslEngineFactory sslEngineFactory;
+		/* TLS上通过ALPN协商HTTP/2 */
+		private final String[] applicationProtocols;
 		
-		public HttpServerChannelInitializer(SSLEngine engine) {
-			this.engine = engine;
+		public HttpServerChannelInitializer(final SslEngineFactory sslEngineFactory_) {
+			sslEngineFactory = sslEngineFactory_;
+			applicationProtocols = http2Negotiator == null ? null
+					: new String[] { "h2", "http/1.1" };
 		}
 		
 		@Override
@@ -138,19 +239,53 @@ public class HttpServer {
 
 			final ChannelPipeline pipeline = ch.pipeline();
 			
-			if(this.engine!=null){
-				pipeline.addLast("ssl", new SslHandler(engine));
+			if (sslEngineFactory != null) {
+				sslEngineFactory.addHandlers(pipeline, applicationProtocols);
 			}
 			pipeline.addLast(new HttpResponseEncoder(), //
 					//new HttpContentCompressor(),
 					new ChunkedWriteHandler(), //
 					clientTracker, //
 					new HttpRequestDecoder(), //
-					new HttpObjectAggregator(config.maxRequestSize()), //
-					new IdleStateHandler(0, 0, config.IdleTimeSeconds()), //
+					new ConnectionLifecycleHandler(config.connectionManager()), //
+					new RequestRouter(config), //
+					new RequestAggregator(config.maxAggregatedRequestSize(), config.requestBodyBudget()), //
 					// new MessageLoggingHandler(LogLevel.INFO), //
 					channelHandler);
 
+			if (config.multipartUploads() != null) {
+				pipeline.addBefore(pipeline.context(RequestAggregator.class).name(), "multipart",
+						new MultipartDecoder(config.multipartUploads()));
+			}
+			if (config.requestDecompression() != null) {
+				pipeline.addBefore(pipeline.context(RequestRouter.class).name(), "decompress",
+						new RequestDecompressor(config.requestDecompression()));
+			}
+			if (http2Negotiator != null) {
+				pipeline.addBefore(pipeline.context(HttpRequestDecoder.class).name(), "http2-preface",
+						http2Negotiator.newPrefaceDetector());
+				pipeline.addBefore(pipeline.context(channelHandler).name(), "http2-upgrade", http2Negotiator);
+			}
+
+		}
+
+	}
+
+	/**
+	 * HTTP/2 stream的pipeline, 请求已由连接聚合好, 开启时先解压和解析multipart, 然后交给channelHandler
+	 */
+	private class Http2StreamInitializer extends ChannelInitializer<Channel> {
+
+		@Override
+		protected void initChannel(final Channel ch) throws Exception {
+			ch.pipeline().addLast(new ChunkedWriteHandler());
+			if (config.requestDecompression() != null) {
+				ch.pipeline().addLast(new RequestDecompressor(config.requestDecompression()));
+			}
+			if (config.multipartUploads() != null) {
+				ch.pipeline().addLast(new MultipartDecoder(config.multipartUploads()));
+			}
+			ch.pipeline().addLast(channelHandler);
 		}
 
 	}
@@ -158,17 +293,29 @@ public class HttpServer {
 	@Sharable
 	private class ConnectionTracker extends ChannelInboundHandlerAdapter {
 
+		private final AtomicInteger connections = new AtomicInteger();
+		private final ConnectionTable perAddress = new ConnectionTable();
+
+		private final EncodedResponse tooBusy = EncodedResponse.of(
+				HttpResponseStatus.SERVICE_UNAVAILABLE,
+				"503 Service Unavailable - Server Too Busy");
+		private final EncodedResponse tooManyFromAddress = EncodedResponse.of(
+				HttpResponseStatus.SERVICE_UNAVAILABLE,
+				"503 Service Unavailable - Too Many Connections From Address");
+
 		private int maxConnections = -1;
+		private int maxPerAddress = -1;
 
-		public ConnectionTracker(final int connections) {
+		public ConnectionTracker(final int connections, final int perAddress) {
 			maxConnections = connections;
+			maxPerAddress = perAddress;
 		}
 		
 		@Override
 		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
 				throws Exception {
 			if (this == ctx.pipeline().last()) { 
-				log.warn( 
+				config.errorReporter().warn(log,
 	                    "EXCEPTION, please implement " + getClass().getName() + 
 	                    ".exceptionCaught() for proper handling.", cause.getCause()); 
 	        } 
@@ -178,27 +325,25 @@ public class HttpServer {
 		@Override
 		public void channelActive(final ChannelHandlerContext context) {
 
-			if (maxConnections > -1 && channelGroup.size() >= maxConnections) {
-
-				final ByteBuf content = Unpooled.buffer();
-
-				content.writeBytes("503 Service Unavailable - Server Too Busy"
-						.getBytes());
-
-				final FullHttpResponse response =
-						new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
-								HttpResponseStatus.SERVICE_UNAVAILABLE);
-
-				response.headers().set(HttpHeaders.Names.CONTENT_LENGTH,
-						content.readableBytes());
-
-				response.content().writeBytes(content);
-
-				context.writeAndFlush(response).addListener(
-						ChannelFutureListener.CLOSE);
-
+			if (maxConnections > -1 && connections.incrementAndGet() > maxConnections) {
+				connections.decrementAndGet();
+				tooBusy.write(context, false);
 				return;
+			}
+			if (maxConnections > -1) {
+				context.attr(ATTR_COUNTED).set(Boolean.TRUE);
+			}
 
+			if (maxPerAddress > -1) {
+				final InetAddress address = remoteAddress(context);
+				if (address != null && !config.isConnectionAllowListed(address)) {
+					if (!perAddress.tryAcquire(address, maxPerAddress)) {
+						release(context);
+						tooManyFromAddress.write(context, false);
+						return;
+					}
+					context.attr(ATTR_ADDRESS).set(address);
+				}
 			}
 
 			channelGroup.add(context.channel());
@@ -209,9 +354,25 @@ public class HttpServer {
 		@Override
 		public void channelInactive(final ChannelHandlerContext context) {
 
+			release(context);
 			channelGroup.remove(context.channel());
 			context.fireChannelInactive();
 
 		}
+
+		private void release(final ChannelHandlerContext context) {
+			if (context.attr(ATTR_COUNTED).getAndRemove() != null) {
+				connections.decrementAndGet();
+			}
+			final InetAddress address = context.attr(ATTR_ADDRESS).getAndRemove();
+			if (address != null) {
+				perAddress.release(address);
+			}
+		}
+
+		private InetAddress remoteAddress(final ChannelHandlerContext context) {
+			final InetSocketAddress remote = (InetSocketAddress) context.channel().remoteAddress();
+			return remote == null ? null : remote.getAddress();
+		}
 	}
 }
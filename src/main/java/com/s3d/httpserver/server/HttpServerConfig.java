@@ -1,21 +1,39 @@
 package com.s3d.httpserver.server;
 
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
+import io.netty.util.concurrent.Future;
+import com.s3d.httpserver.auth.AsyncAuthorizationHandler;
 import com.s3d.httpserver.auth.AuthorizationHandler;
+import com.s3d.httpserver.auth.UserSessionDetail;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
 import com.s3d.httpserver.error.DefaultErrorHandler;
 import com.s3d.httpserver.error.ErrorHandler;
+import com.s3d.httpserver.error.ErrorReporter;
+import com.s3d.httpserver.http2.Http2Settings;
+import com.s3d.httpserver.limit.AdaptiveConcurrencyLimiter;
+import com.s3d.httpserver.limit.CidrRange;
+import com.s3d.httpserver.limit.RequestPriority;
+import com.s3d.httpserver.limit.TokenBucketRateLimiter;
 import com.s3d.httpserver.logging.NullRequestLogger;
 import com.s3d.httpserver.logging.RequestLogger;
 import com.s3d.httpserver.request.RequestHandler;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.SocketAddress;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,18 +45,48 @@ import org.slf4j.LoggerFactory;
  */
 public class HttpServerConfig {
 	private static final Logger log = LoggerFactory.getLogger(HttpServerConfig.class);
-	private final Map<String, AuthorizationHandler> authorizationHandlers =
-			new ConcurrentHashMap<String, AuthorizationHandler>();
+	/* key为小写的认证方式, 同步的handler包装成已完成的future */
+	private final Map<String, AsyncAuthorizationHandler> authorizationHandlers =
+			new ConcurrentHashMap<String, AsyncAuthorizationHandler>();
 	
 	private final Map<String, RequestHandler> handlers =
 			new ConcurrentSkipListMap<String, RequestHandler>(
 					new ReverseLengthComparator());
-	private SSLEngine engine;
+	private final Map<String, Integer> requestSizeLimits =
+			new ConcurrentSkipListMap<String, Integer>(
+					new ReverseLengthComparator());
+	private final Map<String, RequestPriority> priorities =
+			new ConcurrentSkipListMap<String, RequestPriority>(
+					new ReverseLengthComparator());
+	private final Map<String, TokenBucketRateLimiter> rateLimiters =
+			new ConcurrentSkipListMap<String, TokenBucketRateLimiter>(
+					new ReverseLengthComparator());
+	private final Map<String, CachePolicy> cachePolicies =
+			new ConcurrentSkipListMap<String, CachePolicy>(
+					new ReverseLengthComparator());
+	private ResponseCache responseCache = null;
+	private final Map<String, RequestCoalescer> coalescers =
+			new ConcurrentSkipListMap<String, RequestCoalescer>(
+					new ReverseLengthComparator());
+	private AdaptiveConcurrencyLimiter concurrencyLimiter = null;
+	private InboundBackpressure inboundBackpressure = null;
+	private Http2Settings http2 = null;
+	private MultipartUploads multipartUploads = null;
+	private RequestBodyBudget requestBodyBudget = null;
+	private RequestDecompression requestDecompression = null;
+	private long authorizationCacheNanos = TimeUnit.SECONDS.toNanos(60);
+	private long eventStreamHeartbeatNanos = TimeUnit.SECONDS.toNanos(15);
+	private int eventStreamLowWaterMark = 16 * 1024;
+	private int eventStreamHighWaterMark = 32 * 1024;
+	private SslEngineFactory sslEngineFactory = null;
 	private SocketAddress address;
 	private int maxConnections = -1;
+	private int maxConnectionsPerAddress = -1;
+	private final List<CidrRange> connectionAllowList = new CopyOnWriteArrayList<CidrRange>();
 	private int maxRequestSize = 1024 * 1024; //1Mb
-	private int idleTimeSeconds = 60 * 30;
-	private ErrorHandler errorHandler = new DefaultErrorHandler();
+	private ConnectionManager connectionManager = new ConnectionManager();
+	private ErrorReporter errorReporter = new ErrorReporter();
+	private ErrorHandler errorHandler = null;
 	private RequestLogger requestLogger = new NullRequestLogger();
 	private EventLoopGroup parentGroup = null;
 	private EventLoopGroup childGroup = null;
@@ -49,8 +97,19 @@ public class HttpServerConfig {
 		return this;
 	}
 	
-	public HttpServerConfig sslEngine(SSLEngine engine) {
-		this.engine = engine;
+	/**
+	 * 开启TLS, 每个连接用这个SSLContext创建自己的SSLEngine
+	 */
+	public HttpServerConfig sslContext(final SSLContext context) {
+		sslEngineFactory = new SslEngineFactory(context);
+		return this;
+	}
+
+	/**
+	 * 开启TLS, 需要定制SSLEngine或session cache时使用
+	 */
+	public HttpServerConfig sslEngineFactory(final SslEngineFactory factory) {
+		sslEngineFactory = factory;
 		return this;
 	}
 	
@@ -64,8 +123,37 @@ public class HttpServerConfig {
 		return this;
 	}
 	
+	/**
+	 * 单个客户端IP的最大连接数, -1表示不限制
+	 */
+	public HttpServerConfig maxConnectionsPerAddress(final int max) {
+		maxConnectionsPerAddress = max;
+		return this;
+	}
+
+	/**
+	 * 不受 {@link #maxConnectionsPerAddress(int)} 限制的地址段, 如 {@code 10.0.0.0/8}
+	 */
+	public HttpServerConfig connectionAllowList(final String... cidrs) {
+		for (final String cidr : cidrs) {
+			connectionAllowList.add(CidrRange.parse(cidr));
+		}
+		return this;
+	}
+
+	/**
+	 * keep-alive连接的空闲时间, 等同于 {@code connectionManager().keepAliveTimeout(s, SECONDS)}
+	 */
 	public HttpServerConfig IdleTimeSeconds(final int s) {
-		idleTimeSeconds = s;
+		connectionManager.keepAliveTimeout(s, TimeUnit.SECONDS);
+		return this;
+	}
+
+	/**
+	 * 连接各阶段的超时, 单连接请求数和最低传输速率
+	 */
+	public HttpServerConfig connectionManager(final ConnectionManager manager) {
+		connectionManager = manager;
 		return this;
 	}
 
@@ -74,11 +162,41 @@ public class HttpServerConfig {
 		return this;
 	}
 
+	/**
+	 * 按URI前缀设置请求body的最大字节数, 覆盖全局的maxRequestSize, 可以比它大或小.
+	 * 请求头到达时就按Content-Length检查, chunked body边接收边计数, 超过时返回413, 不再缓冲剩余的body.
+	 * 对流式body的handler也有效, multipart上传由 {@link MultipartUploads} 限制.
+	 * 开启 {@link RequestDecompression} 时压缩的body按解压后的字节数计算
+	 */
+	public HttpServerConfig maxRequestSize(final String prefix, final int max) {
+		requestSizeLimits.put(prefix, max);
+		return this;
+	}
+
 	public HttpServerConfig errorHandler(final ErrorHandler handler) {
 		errorHandler = handler;
+		bindErrorReporter();
 		return this;
 	}
 
+	/**
+	 * 异常日志的限流去重策略, 未设置自定义ErrorHandler时也用于默认的 {@link DefaultErrorHandler}
+	 */
+	public HttpServerConfig errorReporter(final ErrorReporter reporter) {
+		errorReporter = reporter;
+		bindErrorReporter();
+		return this;
+	}
+
+	/**
+	 * 没有指定ErrorReporter的DefaultErrorHandler使用这里的, 限流状态和后台线程只有一份
+	 */
+	private void bindErrorReporter() {
+		if (errorHandler instanceof DefaultErrorHandler) {
+			((DefaultErrorHandler) errorHandler).bind(errorReporter);
+		}
+	}
+
 	public HttpServerConfig logger(final RequestLogger logger_) {
 		requestLogger = logger_;
 		return this;
@@ -108,40 +226,247 @@ public class HttpServerConfig {
 		return this;
 	}
 
+	/**
+	 * 按URI前缀设置请求优先级, 如健康检查和管理接口设为 {@link RequestPriority#CRITICAL}
+	 */
+	public HttpServerConfig requestPriority(final String prefix,
+			final RequestPriority priority) {
+		priorities.put(prefix, priority);
+		return this;
+	}
+
+	/**
+	 * 对URI前缀开启令牌桶限流. 一个请求匹配多个前缀时, 所有匹配的限流器都要通过
+	 */
+	public HttpServerConfig rateLimiter(final String prefix,
+			final TokenBucketRateLimiter limiter) {
+		rateLimiters.put(prefix, limiter);
+		return this;
+	}
+
+	/**
+	 * 响应缓存的存储, 需要再通过 {@link #cachePolicy(String, CachePolicy)} 为路由启用
+	 */
+	public HttpServerConfig responseCache(final ResponseCache cache) {
+		responseCache = cache;
+		return this;
+	}
+
+	/**
+	 * 按URI前缀启用GET响应缓存
+	 */
+	public HttpServerConfig cachePolicy(final String prefix, final CachePolicy policy) {
+		cachePolicies.put(prefix, policy);
+		return this;
+	}
+
+	/**
+	 * 按URI前缀合并相同的并发GET请求
+	 */
+	public HttpServerConfig requestCoalescing(final String prefix, final RequestCoalescer coalescer) {
+		coalescers.put(prefix, coalescer);
+		return this;
+	}
+
+	/**
+	 * 开启自适应并发限制, 默认关闭
+	 */
+	public HttpServerConfig concurrencyLimiter(final AdaptiveConcurrencyLimiter limiter) {
+		concurrencyLimiter = limiter;
+		return this;
+	}
+
+	/**
+	 * 开启基于autoRead的入站背压, 默认关闭
+	 */
+	public HttpServerConfig inboundBackpressure(final InboundBackpressure backpressure) {
+		inboundBackpressure = backpressure;
+		return this;
+	}
+
+	/**
+	 * 限制所有连接聚合中的请求body占用的内存总量, 默认不限制
+	 */
+	public HttpServerConfig requestBodyBudget(final RequestBodyBudget budget) {
+		requestBodyBudget = budget;
+		return this;
+	}
+
+	/**
+	 * 开启multipart/form-data上传的流式解析, 默认关闭(上传和其它请求一样聚合, 受maxRequestSize限制)
+	 */
+	public HttpServerConfig multipartUploads(final MultipartUploads uploads) {
+		multipartUploads = uploads;
+		return this;
+	}
+
+	/**
+	 * 开启gzip/deflate请求body的解压, 默认关闭(带Content-Encoding的body原样交给handler)
+	 */
+	public HttpServerConfig requestDecompression(final RequestDecompression decompression) {
+		requestDecompression = decompression;
+		return this;
+	}
+
+	/**
+	 * 开启HTTP/2: 明文连接支持prior knowledge和h2c升级, TLS连接通过ALPN协商. 默认关闭
+	 */
+	public HttpServerConfig http2(final Http2Settings settings) {
+		http2 = settings;
+		return this;
+	}
+
+	/**
+	 * event stream心跳注释的间隔, 防止代理关闭空闲连接. 小于等于0表示不发送. 默认15秒
+	 */
+	public HttpServerConfig eventStreamHeartbeat(final long interval, final TimeUnit unit) {
+		eventStreamHeartbeatNanos = unit.toNanos(interval);
+		return this;
+	}
+
+	/**
+	 * event stream连接的写缓冲水位, 超过high后事件被丢弃, 降到low以下恢复. 默认16K/32K
+	 */
+	public HttpServerConfig eventStreamWriteBufferWaterMark(final int low, final int high) {
+		eventStreamLowWaterMark = low;
+		eventStreamHighWaterMark = high;
+		return this;
+	}
+
+	/**
+	 * 按Authorization头的scheme选择认证方式, 认证成功的用户通过
+	 * {@link ServerRequest#getUserSession()} 获取. 没有Authorization头或scheme没有注册的请求作为匿名请求处理
+	 */
 	public HttpServerConfig authorizationHandler(
 			final AuthorizationHandler authHandler) {
-		authorizationHandlers.put(authHandler.getMethod(),
+		return authorizationHandler(new AsyncAuthorizationHandler() {
+			@Override
+			public String getMethod() {
+				return authHandler.getMethod();
+			}
+
+			@Override
+			public Future<UserSessionDetail> authenticate(final ChannelHandlerContext ctx,
+					final ServerRequest request, final ServerResponse response) {
+				try {
+					return ctx.executor().newSucceededFuture(
+							authHandler.authenticate(ctx, request, response));
+				} catch (final IOException e) {
+					return ctx.executor().newFailedFuture(e);
+				}
+			}
+		});
+	}
+
+	public HttpServerConfig authorizationHandler(
+			final AsyncAuthorizationHandler authHandler) {
+		authorizationHandlers.put(authHandler.getMethod().toLowerCase(Locale.ROOT),
 				authHandler);
 		return this;
 	}
+
+	/**
+	 * 认证成功的用户在连接上缓存的时间, 同一连接上带相同Authorization头的请求不再调用AuthorizationHandler.
+	 * 凭据改变或认证失败时清除. 小于等于0表示不缓存. 默认60秒
+	 */
+	public HttpServerConfig authorizationCache(final long ttl, final TimeUnit unit) {
+		authorizationCacheNanos = unit.toNanos(ttl);
+		return this;
+	}
 	
-	public SSLEngine getSSLEngine() {
-		return engine;
+	/**
+	 * 握手次数, 会话恢复比例等统计也在这里
+	 */
+	public SslEngineFactory sslEngineFactory() {
+		return sslEngineFactory;
 	}
 
 	public  Class<? extends ServerChannel> socketChannelClass(){
 		return socketChannelClass;
 	}
+	public long eventStreamHeartbeatNanos() {
+		return eventStreamHeartbeatNanos;
+	}
+
+	public int eventStreamLowWaterMark() {
+		return eventStreamLowWaterMark;
+	}
+
+	public int eventStreamHighWaterMark() {
+		return eventStreamHighWaterMark;
+	}
+
 	public SocketAddress address() {
 		return address;
 	}
 	
 	public int IdleTimeSeconds() {
-		return idleTimeSeconds;
+		return (int) TimeUnit.NANOSECONDS.toSeconds(connectionManager.keepAliveTimeoutNanos());
+	}
+
+	public ConnectionManager connectionManager() {
+		return connectionManager;
 	}
 
 	public int maxConnections() {
 		return maxConnections;
 	}
 
+	public int maxConnectionsPerAddress() {
+		return maxConnectionsPerAddress;
+	}
+
+	public boolean isConnectionAllowListed(final InetAddress address) {
+		for (final CidrRange range : connectionAllowList) {
+			if (range.contains(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public int maxRequestSize() {
 		return maxRequestSize;
 	}
 
+	/**
+	 * @return 匹配URI前缀的body上限, 没有单独设置时为-1
+	 */
+	public int getRouteMaxRequestSize(final String uri) {
+		if (!requestSizeLimits.isEmpty()) {
+			for (final Map.Entry<String, Integer> entry : requestSizeLimits.entrySet()) {
+				if (uri.startsWith(entry.getKey())) {
+					return entry.getValue();
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 聚合时的上限: 全局和所有前缀中最大的, 具体请求的上限在路由后检查
+	 */
+	int maxAggregatedRequestSize() {
+		int max = maxRequestSize;
+		for (final Integer limit : requestSizeLimits.values()) {
+			max = Math.max(max, limit);
+		}
+		return max;
+	}
+
 	public ErrorHandler errorHandler() {
+		if (errorHandler == null) {
+			// 不指定reporter, 之后设置的errorReporter仍然生效
+			errorHandler = new DefaultErrorHandler();
+			bindErrorReporter();
+		}
 		return errorHandler;
 	}
 
+	public ErrorReporter errorReporter() {
+		return errorReporter;
+	}
+
 	public RequestLogger logger() {
 		return requestLogger;
 	}
@@ -163,6 +488,90 @@ public class HttpServerConfig {
 		return null;
 	}
 	
+	public RequestPriority getRequestPriority(final String uri) {
+		if (!priorities.isEmpty()) {
+			for (final Map.Entry<String, RequestPriority> entry : priorities.entrySet()) {
+				if (uri.startsWith(entry.getKey())) {
+					return entry.getValue();
+				}
+			}
+		}
+		return RequestPriority.NORMAL;
+	}
+
+	/**
+	 * @return 匹配URI的缓存策略, 未配置 {@link ResponseCache} 或没有匹配时为null
+	 */
+	public CachePolicy getCachePolicy(final String uri) {
+		if (responseCache != null && !cachePolicies.isEmpty()) {
+			for (final Map.Entry<String, CachePolicy> entry : cachePolicies.entrySet()) {
+				if (uri.startsWith(entry.getKey())) {
+					return entry.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	public RequestCoalescer getRequestCoalescer(final String uri) {
+		if (!coalescers.isEmpty()) {
+			for (final Map.Entry<String, RequestCoalescer> entry : coalescers.entrySet()) {
+				if (uri.startsWith(entry.getKey())) {
+					return entry.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	public ResponseCache responseCache() {
+		return responseCache;
+	}
+
+	public boolean hasRateLimiters() {
+		return !rateLimiters.isEmpty();
+	}
+
+	Map<String, TokenBucketRateLimiter> rateLimiters() {
+		return rateLimiters;
+	}
+
+	public AdaptiveConcurrencyLimiter concurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	public InboundBackpressure inboundBackpressure() {
+		return inboundBackpressure;
+	}
+
+	/**
+	 * @return null 如果没有限制
+	 */
+	public RequestBodyBudget requestBodyBudget() {
+		return requestBodyBudget;
+	}
+
+	/**
+	 * @return null 如果没有开启流式上传
+	 */
+	public MultipartUploads multipartUploads() {
+		return multipartUploads;
+	}
+
+	/**
+	 * @return null 如果没有开启请求解压
+	 */
+	public RequestDecompression requestDecompression() {
+		return requestDecompression;
+	}
+
+	/**
+	 * @return null 如果没有开启HTTP/2
+	 */
+	public Http2Settings http2() {
+		return http2;
+	}
+
 	public Object removeRequestHandler(final String path) {
 		if(log.isInfoEnabled()){
 			log.info("removed Mapping on  \"" + path + "\"");
@@ -174,8 +583,12 @@ public class HttpServerConfig {
 		return !authorizationHandlers.isEmpty();
 	}
 
-	public AuthorizationHandler getAuthorizationHandler(final String method) {
-		return authorizationHandlers.get(method);
+	public long authorizationCacheNanos() {
+		return authorizationCacheNanos;
+	}
+
+	public AsyncAuthorizationHandler getAuthorizationHandler(final String method) {
+		return authorizationHandlers.get(method.toLowerCase(Locale.ROOT));
 	}
 	
 	private class ReverseLengthComparator implements Comparator<String> {
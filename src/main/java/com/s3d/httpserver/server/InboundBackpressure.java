@@ -0,0 +1,155 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于autoRead的入站背压, 和其它暂停读取的机制通过 {@link ReadPause} 共享autoRead.
+ * 在途请求(已分配PooledServerResponse但尚未free)数量超过高水位时,
+ * 停止读取新请求所在连接的socket, 降到低水位以下后恢复读取.
+ * 分别按event loop和全局统计, 任一维度配置为-1表示不限制.
+ * 被暂停的连接在所属event loop和全局都降到低水位以下时恢复:
+ * 请求结束时检查本loop, 全局降到低水位时检查所有loop.
+ */
+public class InboundBackpressure {
+
+	private final int loopHigh;
+	private final int loopLow;
+	private final int globalHigh;
+	private final int globalLow;
+
+	private final AtomicInteger global = new AtomicInteger();
+	private final ConcurrentMap<EventLoop, LoopState> loops =
+			new ConcurrentHashMap<EventLoop, LoopState>();
+
+	private final AtomicInteger paused = new AtomicInteger();
+	private final AtomicLong pauseCount = new AtomicLong();
+
+	/**
+	 * @param loopHigh_ 单个event loop的在途请求高水位
+	 * @param loopLow_ 单个event loop的在途请求低水位
+	 * @param globalHigh_ 全局在途请求高水位
+	 * @param globalLow_ 全局在途请求低水位
+	 */
+	public InboundBackpressure(final int loopHigh_, final int loopLow_,
+			final int globalHigh_, final int globalLow_) {
+		if (loopLow_ > loopHigh_ || globalLow_ > globalHigh_) {
+			throw new IllegalArgumentException("low watermark must not exceed high watermark");
+		}
+		loopHigh = loopHigh_;
+		loopLow = loopLow_;
+		globalHigh = globalHigh_;
+		globalLow = globalLow_;
+	}
+
+	private LoopState loop(final EventLoop eventLoop) {
+		LoopState state = loops.get(eventLoop);
+		if (state == null) {
+			state = new LoopState();
+			final LoopState raced = loops.putIfAbsent(eventLoop, state);
+			if (raced != null) {
+				state = raced;
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * 一个请求开始处理, 超过水位时暂停该连接的读取
+	 */
+	void requestStarted(final Channel channel) {
+
+		final LoopState state = loop(channel.eventLoop());
+		final int loopCount = state.inFlight.incrementAndGet();
+		final int globalCount = global.incrementAndGet();
+
+		final boolean overLoop = loopHigh > -1 && loopCount >= loopHigh;
+		final boolean overGlobal = globalHigh > -1 && globalCount >= globalHigh;
+
+		if (overLoop || overGlobal) {
+			pause(state, channel);
+		}
+	}
+
+	/**
+	 * 一个请求结束, 降到低水位以下时恢复被暂停的连接
+	 */
+	void requestFinished(final Channel channel) {
+
+		final LoopState state = loop(channel.eventLoop());
+		state.inFlight.decrementAndGet();
+		final int globalCount = global.decrementAndGet();
+
+		if (globalLow > -1 && globalCount > globalLow) {
+			// 全局还在低水位之上, 降到低水位时再检查所有loop
+			return;
+		}
+
+		if (globalCount == globalLow) {
+			// 每次从上方降到低水位都经过这里, 恢复所有本loop也已经降下来的连接,
+			// 包括本loop的请求都结束时全局还没有降下来的
+			for (final LoopState other : loops.values()) {
+				resumeBelowLow(other);
+			}
+		} else {
+			resumeBelowLow(state);
+		}
+	}
+
+	private void resumeBelowLow(final LoopState state) {
+		if (loopLow == -1 || state.inFlight.get() <= loopLow) {
+			resume(state);
+		}
+	}
+
+	private void pause(final LoopState state, final Channel requestChannel) {
+		final Channel channel = ReadPause.connection(requestChannel);
+		if (ReadPause.pause(channel, ReadPause.BACKPRESSURE)) {
+			state.paused.add(channel);
+			paused.incrementAndGet();
+			pauseCount.incrementAndGet();
+		}
+	}
+
+	private void resume(final LoopState state) {
+		Channel channel;
+		while ((channel = state.paused.poll()) != null) {
+			paused.decrementAndGet();
+			ReadPause.resume(channel, ReadPause.BACKPRESSURE);
+		}
+	}
+
+	/**
+	 * 当前在途请求数
+	 */
+	public int getInFlight() {
+		return global.get();
+	}
+
+	/**
+	 * 当前被暂停读取的连接数
+	 */
+	public int getPausedChannels() {
+		return paused.get();
+	}
+
+	/**
+	 * 累计暂停次数
+	 */
+	public long getPauseCount() {
+		return pauseCount.get();
+	}
+
+	private static final class LoopState {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final Queue<Channel> paused = new ConcurrentLinkedQueue<Channel>();
+	}
+
+}
@@ -0,0 +1,227 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 位于HttpObjectAggregator之前, multipart/form-data请求的body边接收边解析,
+ * 完成后把带有part的 {@link MultipartRequest} 交给后面的handler, 其它请求原样传递.
+ * 超过 {@link MultipartUploads} 的限制时立即返回413并关闭连接, 不再解析剩余的body.
+ * HTTP/2 stream上收到的是已经聚合好的请求, 一次解析完.
+ */
+final class MultipartDecoder extends ChannelInboundHandlerAdapter {
+
+	private static final Logger log = LoggerFactory.getLogger(MultipartDecoder.class);
+
+	private static final EncodedResponse TOO_LARGE = EncodedResponse.of(
+			HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "413 Request Entity Too Large");
+	private static final EncodedResponse MALFORMED = EncodedResponse.of(
+			HttpResponseStatus.BAD_REQUEST, "400 Bad Request - Malformed Multipart Body");
+	private static final EncodedResponse FAILED = EncodedResponse.of(
+			HttpResponseStatus.INTERNAL_SERVER_ERROR, "500 Internal Server Error");
+
+	private final MultipartUploads uploads;
+
+	private Upload upload = null;
+	/* 被拒绝的请求剩余的body直接丢弃 */
+	private boolean discarding = false;
+
+	MultipartDecoder(final MultipartUploads uploads_) {
+		uploads = uploads_;
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if (msg instanceof HttpRequest && !(msg instanceof UnaggregatedRequest)
+				&& upload == null && !discarding) {
+			final HttpRequest head = (HttpRequest) msg;
+			final String boundary = head.getDecoderResult().isSuccess()
+					? MultipartParser.boundary(head.headers().get(HttpHeaders.Names.CONTENT_TYPE)) : null;
+			if (boundary != null) {
+				begin(ctx, head, boundary);
+				return;
+			}
+		} else if (msg instanceof HttpContent && (upload != null || discarding)) {
+			content(ctx, (HttpContent) msg);
+			return;
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	private void begin(final ChannelHandlerContext ctx, final HttpRequest head, final String boundary) {
+		if (HttpHeaders.getContentLength(head, -1) > uploads.maxUploadSize()) {
+			uploads.rejected();
+			reject(ctx, TOO_LARGE, head instanceof LastHttpContent);
+			ReferenceCountUtil.release(head);
+			return;
+		}
+		upload = new Upload(head, boundary, ctx.alloc());
+		if (head instanceof HttpContent) {
+			content(ctx, (HttpContent) head);
+		}
+	}
+
+	private void content(final ChannelHandlerContext ctx, final HttpContent chunk) {
+		final boolean last = chunk instanceof LastHttpContent;
+		MultipartRequest complete = null;
+		try {
+			if (discarding) {
+				discarding = !last;
+				return;
+			}
+			upload.offer(chunk.content());
+			if (last) {
+				complete = upload.complete();
+				upload = null;
+			}
+		} catch (final TooLongFrameException e) {
+			uploads.rejected();
+			reject(ctx, TOO_LARGE, last);
+		} catch (final CorruptedFrameException e) {
+			reject(ctx, MALFORMED, last);
+		} catch (final IOException e) {
+			log.error("error on writing upload", e);
+			reject(ctx, FAILED, last);
+		} finally {
+			chunk.release();
+		}
+		if (complete != null) {
+			ctx.fireChannelRead(complete);
+		}
+	}
+
+	private void reject(final ChannelHandlerContext ctx, final EncodedResponse response,
+			final boolean last) {
+		abort();
+		discarding = !last;
+		response.write(ctx, false);
+	}
+
+	private void abort() {
+		if (upload != null) {
+			upload.abort();
+			upload = null;
+		}
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		abort();
+		super.channelInactive(ctx);
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		abort();
+	}
+
+	/**
+	 * 一个正在接收的上传请求
+	 */
+	private final class Upload implements MultipartParser.Listener {
+
+		private final HttpRequest head;
+		private final MultipartParser parser;
+		private final ByteBufAllocator alloc;
+		private final List<DefaultRequestPart> parts = new ArrayList<DefaultRequestPart>();
+		private DefaultRequestPart part = null;
+		private long received = 0;
+		/* 本请求内存中的part字节数 */
+		private long memory = 0;
+
+		Upload(final HttpRequest head_, final String boundary, final ByteBufAllocator alloc_) {
+			head = head_;
+			parser = new MultipartParser(boundary, this);
+			alloc = alloc_;
+		}
+
+		void offer(final ByteBuf content) throws IOException {
+			received += content.readableBytes();
+			if (received > uploads.maxUploadSize()) {
+				throw new TooLongFrameException("upload is larger than " + uploads.maxUploadSize() + " bytes");
+			}
+			parser.offer(content);
+		}
+
+		MultipartRequest complete() {
+			parser.finish();
+			parser.close();
+			return new MultipartRequest(head, parts, uploads);
+		}
+
+		void abort() {
+			parser.close();
+			MultipartRequest.discard(parts, uploads);
+		}
+
+		@Override
+		public void partStarted(final String name, final String filename, final String contentType)
+				throws IOException {
+			part = new DefaultRequestPart(name, filename, contentType);
+			parts.add(part);
+			if (filename != null && uploads.spillThreshold() <= 0) {
+				spill();
+			}
+		}
+
+		@Override
+		public void partData(final ByteBuf buffer, final int index, final int length) throws IOException {
+			if (!part.isSpilled()) {
+				final boolean file = part.getFilename() != null;
+				if (file && part.getSize() + length > uploads.spillThreshold()) {
+					spill();
+				} else if (reserve(length)) {
+					part.writeMemory(alloc, buffer, index, length);
+					return;
+				} else if (file) {
+					spill();
+				} else {
+					throw new TooLongFrameException("multipart fields exceed the memory budget");
+				}
+			}
+			part.writeFile(buffer, index, length);
+		}
+
+		@Override
+		public void partEnded() throws IOException {
+			part.complete();
+			part = null;
+		}
+
+		/**
+		 * 同时占用本请求和全局的内存预算
+		 */
+		private boolean reserve(final int length) {
+			if (memory + length > uploads.maxRequestMemory() || !uploads.reserve(length)) {
+				return false;
+			}
+			memory += length;
+			return true;
+		}
+
+		private void spill() throws IOException {
+			final int released = part.spill(uploads.createTempFile());
+			memory -= released;
+			uploads.release(released);
+		}
+
+	}
+
+}
@@ -0,0 +1,338 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+
+/**
+ * multipart/form-data body的增量解析器. 每收到一段body调用一次 {@link #offer(ByteBuf)},
+ * part的头和数据立即交给 {@link Listener}. 数据直接给出收到的buffer中的区间, 不复制,
+ * 只保留末尾可能是边界开头的几个字节等下一段body.
+ */
+final class MultipartParser {
+
+	interface Listener {
+
+		void partStarted(String name, String filename, String contentType) throws IOException;
+
+		/**
+		 * buffer只在调用期间有效
+		 */
+		void partData(ByteBuf buffer, int index, int length) throws IOException;
+
+		void partEnded() throws IOException;
+
+	}
+
+	private static final int MAX_HEADER_SIZE = 8 * 1024;
+	private static final int MAX_BOUNDARY_LENGTH = 200;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+	private static final int PREAMBLE = 0;
+	private static final int DELIMITER = 1;
+	private static final int HEADERS = 2;
+	private static final int BODY = 3;
+	private static final int EPILOGUE = 4;
+
+	/* CRLF "--" boundary, 第一个边界前补一个CRLF, 所有边界按同样方式查找 */
+	private final byte[] delimiter;
+	private final Listener listener;
+	private final CompositeByteBuf pending = Unpooled.compositeBuffer();
+	private int state = PREAMBLE;
+
+	MultipartParser(final String boundary, final Listener listener_) {
+		final byte[] b = boundary.getBytes(CharsetUtil.ISO_8859_1);
+		delimiter = new byte[b.length + 4];
+		delimiter[0] = '\r';
+		delimiter[1] = '\n';
+		delimiter[2] = '-';
+		delimiter[3] = '-';
+		System.arraycopy(b, 0, delimiter, 4, b.length);
+		listener = listener_;
+		append(Unpooled.wrappedBuffer(CRLF));
+	}
+
+	/**
+	 * @return null 如果不是multipart/form-data或没有合法的boundary参数
+	 */
+	static String boundary(final String contentType) {
+		final String type = "multipart/form-data";
+		if (contentType == null || !contentType.regionMatches(true, 0, type, 0, type.length())) {
+			return null;
+		}
+		final int length = contentType.length();
+		for (int i = contentType.indexOf(';'); i >= 0; i = contentType.indexOf(';', i + 1)) {
+			int start = i + 1;
+			while (start < length && contentType.charAt(start) == ' ') {
+				start++;
+			}
+			if (!contentType.regionMatches(true, start, "boundary=", 0, 9)) {
+				continue;
+			}
+			start += 9;
+			int end = contentType.indexOf(';', start);
+			if (end < 0) {
+				end = length;
+			}
+			while (end > start && contentType.charAt(end - 1) == ' ') {
+				end--;
+			}
+			if (end - start >= 2 && contentType.charAt(start) == '"' && contentType.charAt(end - 1) == '"') {
+				start++;
+				end--;
+			}
+			return end > start && end - start <= MAX_BOUNDARY_LENGTH ? contentType.substring(start, end) : null;
+		}
+		return null;
+	}
+
+	/**
+	 * 解析一段body, 不改变chunk的readerIndex, 调用者仍负责释放chunk
+	 * @throws CorruptedFrameException 格式错误
+	 * @throws TooLongFrameException part头太大
+	 */
+	void offer(final ByteBuf chunk) throws IOException {
+		if (chunk.isReadable()) {
+			append(chunk.retain());
+			parse();
+			pending.discardReadComponents();
+		}
+	}
+
+	/**
+	 * body已经结束
+	 * @throws CorruptedFrameException 没有收到结束边界
+	 */
+	void finish() {
+		if (state != EPILOGUE) {
+			throw new CorruptedFrameException("multipart body ended before the closing boundary");
+		}
+	}
+
+	boolean isFinished() {
+		return state == EPILOGUE;
+	}
+
+	void close() {
+		pending.release();
+	}
+
+	private void append(final ByteBuf buf) {
+		final int length = buf.readableBytes();
+		pending.addComponent(buf);
+		pending.writerIndex(pending.writerIndex() + length);
+	}
+
+	private void parse() throws IOException {
+		for (;;) {
+			final int r = pending.readerIndex();
+			switch (state) {
+			case PREAMBLE: {
+				final int found = indexOf(delimiter, r);
+				if (found < 0) {
+					pending.readerIndex(keepFrom(r));
+					return;
+				}
+				pending.readerIndex(found + delimiter.length);
+				state = DELIMITER;
+				break;
+			}
+			case DELIMITER: {
+				if (pending.readableBytes() < 2) {
+					return;
+				}
+				if (pending.getByte(r) == '-' && pending.getByte(r + 1) == '-') {
+					state = EPILOGUE;
+					break;
+				}
+				// 边界之后到行尾只允许空白
+				final int eol = indexOf(CRLF, r);
+				if (eol < 0) {
+					if (pending.readableBytes() > MAX_HEADER_SIZE) {
+						throw new CorruptedFrameException("invalid multipart boundary line");
+					}
+					return;
+				}
+				for (int i = r; i < eol; i++) {
+					final byte c = pending.getByte(i);
+					if (c != ' ' && c != '\t') {
+						throw new CorruptedFrameException("invalid multipart boundary line");
+					}
+				}
+				pending.readerIndex(eol + 2);
+				state = HEADERS;
+				break;
+			}
+			case HEADERS: {
+				final int end;
+				if (pending.readableBytes() >= 2 && pending.getByte(r) == '\r' && pending.getByte(r + 1) == '\n') {
+					end = r;
+				} else {
+					end = indexOf(HEADER_END, r);
+				}
+				if (end < 0 || end - r > MAX_HEADER_SIZE) {
+					if (pending.readableBytes() > MAX_HEADER_SIZE) {
+						throw new TooLongFrameException("multipart headers are larger than " + MAX_HEADER_SIZE + " bytes");
+					}
+					return;
+				}
+				final String headers = pending.toString(r, end - r, CharsetUtil.UTF_8);
+				pending.readerIndex(end == r ? r + 2 : end + 4);
+				startPart(headers);
+				state = BODY;
+				break;
+			}
+			case BODY: {
+				final int found = indexOf(delimiter, r);
+				if (found < 0) {
+					final int keep = keepFrom(r);
+					if (keep > r) {
+						listener.partData(pending, r, keep - r);
+						pending.readerIndex(keep);
+					}
+					return;
+				}
+				if (found > r) {
+					listener.partData(pending, r, found - r);
+				}
+				pending.readerIndex(found + delimiter.length);
+				listener.partEnded();
+				state = DELIMITER;
+				break;
+			}
+			default:
+				pending.skipBytes(pending.readableBytes());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 没有找到边界时, 从末尾 delimiter.length - 1 字节中的第一个CR开始保留
+	 */
+	private int keepFrom(final int r) {
+		final int w = pending.writerIndex();
+		final int from = Math.max(r, w - delimiter.length + 1);
+		final int cr = indexOf((byte) '\r', from, w);
+		return cr < 0 ? w : cr;
+	}
+
+	private int indexOf(final byte[] pattern, final int from) {
+		final int last = pending.writerIndex() - pattern.length;
+		int i = from;
+		while (i <= last) {
+			i = indexOf(pattern[0], i, last + 1);
+			if (i < 0) {
+				return -1;
+			}
+			int j = 1;
+			while (j < pattern.length && pending.getByte(i + j) == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return i;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * 在每个component中分别查找, 不按字节在composite中定位component
+	 */
+	private int indexOf(final byte value, final int from, final int to) {
+		int i = from;
+		while (i < to) {
+			final int c = pending.toComponentIndex(i);
+			final int offset = pending.toByteIndex(c);
+			final ByteBuf component = pending.internalComponent(c);
+			final int end = Math.min(to, offset + component.readableBytes());
+			final int found = component.indexOf(i - offset, end - offset, value);
+			if (found >= 0) {
+				return found + offset;
+			}
+			i = end;
+		}
+		return -1;
+	}
+
+	private void startPart(final String headers) throws IOException {
+		String name = null;
+		String filename = null;
+		String contentType = null;
+		for (final String line : headers.split("\r\n")) {
+			final int colon = line.indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			final String header = line.substring(0, colon).trim();
+			final String value = line.substring(colon + 1).trim();
+			if ("Content-Disposition".equalsIgnoreCase(header)) {
+				name = parameter(value, "name");
+				filename = parameter(value, "filename");
+			} else if ("Content-Type".equalsIgnoreCase(header)) {
+				contentType = value;
+			}
+		}
+		if (name == null) {
+			throw new CorruptedFrameException("multipart part without Content-Disposition name");
+		}
+		listener.partStarted(name, filename, contentType);
+	}
+
+	/**
+	 * 取Content-Disposition中的参数值, 支持带引号和\转义的值
+	 */
+	static String parameter(final String disposition, final String name) {
+		final int length = disposition.length();
+		int i = disposition.indexOf(';');
+		while (i >= 0 && i < length) {
+			int start = i + 1;
+			while (start < length && (disposition.charAt(start) == ' ' || disposition.charAt(start) == '\t')) {
+				start++;
+			}
+			final int eq = disposition.indexOf('=', start);
+			if (eq < 0) {
+				return null;
+			}
+			final boolean match = disposition.substring(start, eq).trim().equalsIgnoreCase(name);
+			int valueStart = eq + 1;
+			while (valueStart < length && disposition.charAt(valueStart) == ' ') {
+				valueStart++;
+			}
+			if (valueStart < length && disposition.charAt(valueStart) == '"') {
+				final StringBuilder sb = new StringBuilder();
+				int j = valueStart + 1;
+				for (; j < length && disposition.charAt(j) != '"'; j++) {
+					char c = disposition.charAt(j);
+					if (c == '\\' && j + 1 < length) {
+						c = disposition.charAt(++j);
+					}
+					sb.append(c);
+				}
+				if (match) {
+					return sb.toString();
+				}
+				i = disposition.indexOf(';', j);
+			} else {
+				int end = disposition.indexOf(';', valueStart);
+				if (end < 0) {
+					end = length;
+				}
+				if (match) {
+					return disposition.substring(valueStart, end).trim();
+				}
+				i = end;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,58 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.s3d.httpserver.request.RequestPart;
+
+/**
+ * 已经解析成part的multipart/form-data请求, content为空.
+ * 引用计数降到0时释放part占用的内存并删除临时文件.
+ */
+final class MultipartRequest extends DefaultFullHttpRequest {
+
+	private final List<DefaultRequestPart> parts;
+	private final MultipartUploads uploads;
+
+	MultipartRequest(final HttpRequest head, final List<DefaultRequestPart> parts_,
+			final MultipartUploads uploads_) {
+		// EMPTY_BUFFER没有引用计数, 用一个真正的空buffer跟踪释放
+		super(head.getProtocolVersion(), head.getMethod(), head.getUri(), Unpooled.buffer(0));
+		headers().set(head.headers());
+		setDecoderResult(head.getDecoderResult());
+		parts = parts_;
+		uploads = uploads_;
+	}
+
+	List<RequestPart> parts() {
+		return Collections.<RequestPart> unmodifiableList(parts);
+	}
+
+	@Override
+	public boolean release() {
+		return discardIf(super.release());
+	}
+
+	@Override
+	public boolean release(final int decrement) {
+		return discardIf(super.release(decrement));
+	}
+
+	private boolean discardIf(final boolean released) {
+		if (released) {
+			discard(parts, uploads);
+		}
+		return released;
+	}
+
+	static void discard(final List<DefaultRequestPart> parts, final MultipartUploads uploads) {
+		for (final DefaultRequestPart part : parts) {
+			uploads.release(part.discard());
+		}
+	}
+
+}
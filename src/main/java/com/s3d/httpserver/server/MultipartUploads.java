@@ -0,0 +1,121 @@
+package com.s3d.httpserver.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * multipart/form-data上传的流式解析设置.
+ * part边接收边解析, 不经过HttpObjectAggregator, 不受maxRequestSize限制.
+ * 普通字段保存在内存中, 文件超过spillThreshold后写入临时文件.
+ * 内存中的part按请求和全局两级计算, 超过预算或body超过maxUploadSize时立即返回413并关闭连接.
+ */
+public class MultipartUploads {
+
+	private File directory = new File(System.getProperty("java.io.tmpdir"));
+	private int spillThreshold = 16 * 1024;
+	private long maxUploadSize = 100L * 1024 * 1024;
+	private long maxRequestMemory = 1024 * 1024;
+	private long maxMemory = 64L * 1024 * 1024;
+
+	private final AtomicLong memory = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * 临时文件目录, 默认java.io.tmpdir
+	 */
+	public MultipartUploads directory(final File dir) {
+		directory = dir;
+		return this;
+	}
+
+	/**
+	 * 文件part超过多少字节后写入临时文件, 默认16K. 0表示文件总是写入磁盘
+	 */
+	public MultipartUploads spillThreshold(final int threshold) {
+		spillThreshold = threshold;
+		return this;
+	}
+
+	/**
+	 * 单个上传请求body的最大字节数, 默认100M
+	 */
+	public MultipartUploads maxUploadSize(final long max) {
+		maxUploadSize = max;
+		return this;
+	}
+
+	/**
+	 * 单个请求保存在内存中的part的最大字节数, 默认1M
+	 */
+	public MultipartUploads maxRequestMemory(final long max) {
+		maxRequestMemory = max;
+		return this;
+	}
+
+	/**
+	 * 所有请求保存在内存中的part的最大字节数, 默认64M
+	 */
+	public MultipartUploads maxMemory(final long max) {
+		maxMemory = max;
+		return this;
+	}
+
+	public File directory() {
+		return directory;
+	}
+
+	public int spillThreshold() {
+		return spillThreshold;
+	}
+
+	public long maxUploadSize() {
+		return maxUploadSize;
+	}
+
+	public long maxRequestMemory() {
+		return maxRequestMemory;
+	}
+
+	public long maxMemory() {
+		return maxMemory;
+	}
+
+	/**
+	 * @return false 如果超过全局预算, 此时没有占用
+	 */
+	boolean reserve(final long bytes) {
+		if (memory.addAndGet(bytes) > maxMemory) {
+			memory.addAndGet(-bytes);
+			return false;
+		}
+		return true;
+	}
+
+	void release(final long bytes) {
+		memory.addAndGet(-bytes);
+	}
+
+	void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	File createTempFile() throws IOException {
+		return File.createTempFile("upload-", ".part", directory);
+	}
+
+	/**
+	 * 当前内存中的part占用的字节数
+	 */
+	public long getMemoryInUse() {
+		return memory.get();
+	}
+
+	/**
+	 * 因超过大小或内存预算被拒绝的上传数
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+}
@@ -0,0 +1,223 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * application/x-www-form-urlencoded 格式(query string或表单)的参数索引.
+ * 创建时扫描一次, 只记录每个参数的位置; 按名字查找时直接比较原始字节,
+ * 只有返回的值才解码成String. 数据来源是String或ByteBuf, 不复制.
+ */
+final class ParameterIndex {
+
+	private static final int[] NONE = new int[0];
+
+	private final String string;
+	private final ByteBuf buffer;
+	private final Charset charset;
+
+	/* 每个参数三个int: name开始, name结束('='的位置或参数结束), value结束 */
+	private final int[] pairs;
+	private final int count;
+
+	private ParameterIndex(final String string_, final ByteBuf buffer_, final int start,
+			final int end, final Charset charset_) {
+		string = string_;
+		buffer = buffer_;
+		charset = charset_;
+
+		int[] p = NONE;
+		int n = 0;
+		int pairStart = start;
+		int eq = -1;
+		for (int i = start; i <= end; i++) {
+			final int c = i == end ? '&' : at(i);
+			if (c == '=' && eq < 0) {
+				eq = i;
+			} else if (c == '&' || c == ';') {
+				if (i > pairStart) {
+					if (p.length < (n + 1) * 3) {
+						final int[] grown = new int[Math.max(12, p.length * 2)];
+						System.arraycopy(p, 0, grown, 0, n * 3);
+						p = grown;
+					}
+					p[n * 3] = pairStart;
+					p[n * 3 + 1] = eq < 0 ? i : eq;
+					p[n * 3 + 2] = i;
+					n++;
+				}
+				pairStart = i + 1;
+				eq = -1;
+			}
+		}
+		pairs = p;
+		count = n;
+	}
+
+	static ParameterIndex of(final String query, final Charset charset) {
+		return new ParameterIndex(query, null, 0, query.length(), charset);
+	}
+
+	/**
+	 * 索引readerIndex到writerIndex之间的内容, 之后buffer的readerIndex改变不影响索引
+	 */
+	static ParameterIndex of(final ByteBuf content, final Charset charset) {
+		return new ParameterIndex(null, content, content.readerIndex(), content.writerIndex(), charset);
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return 第一个值, 没有时返回null
+	 */
+	String get(final String name) {
+		final byte[] encoded = encode(name);
+		for (int i = 0; i < count; i++) {
+			if (nameEquals(i, name, encoded)) {
+				return value(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return null 如果没有这个参数
+	 */
+	List<String> getAll(final String name) {
+		final byte[] encoded = encode(name);
+		List<String> values = null;
+		for (int i = 0; i < count; i++) {
+			if (nameEquals(i, name, encoded)) {
+				if (values == null) {
+					values = new ArrayList<String>(1);
+				}
+				values.add(value(i));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * 解码全部参数, 保持出现的顺序
+	 */
+	Map<String, List<String>> toMap() {
+		final Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+		for (int i = 0; i < count; i++) {
+			final String name = decode(pairs[i * 3], pairs[i * 3 + 1]);
+			List<String> values = map.get(name);
+			if (values == null) {
+				values = new ArrayList<String>(1);
+				map.put(name, values);
+			}
+			values.add(value(i));
+		}
+		return map;
+	}
+
+	private String value(final int i) {
+		final int nameEnd = pairs[i * 3 + 1];
+		final int end = pairs[i * 3 + 2];
+		return nameEnd == end ? "" : decode(nameEnd + 1, end);
+	}
+
+	private int at(final int i) {
+		return string != null ? string.charAt(i) : buffer.getByte(i) & 0xFF;
+	}
+
+	/**
+	 * ASCII的名字直接按字符比较, 不分配
+	 */
+	private byte[] encode(final String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) >= 0x80) {
+				return name.getBytes(charset);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 边解码边比较
+	 */
+	private boolean nameEquals(final int pair, final String name, final byte[] encoded) {
+		final int length = encoded == null ? name.length() : encoded.length;
+		final int end = pairs[pair * 3 + 1];
+		int n = 0;
+		for (int i = pairs[pair * 3]; i < end; i++) {
+			int c = at(i);
+			if (c == '+') {
+				c = ' ';
+			} else if (c == '%') {
+				final int decoded = unescape(i, end);
+				if (decoded >= 0) {
+					c = decoded;
+					i += 2;
+				}
+			}
+			if (n >= length || (byte) c != (encoded == null ? (byte) name.charAt(n) : encoded[n])) {
+				return false;
+			}
+			n++;
+		}
+		return n == length;
+	}
+
+	private String decode(final int start, final int end) {
+		boolean escaped = false;
+		boolean ascii = true;
+		for (int i = start; i < end; i++) {
+			final int c = at(i);
+			if (c == '%' || c == '+') {
+				escaped = true;
+				break;
+			}
+			if (c >= 0x80) {
+				ascii = false;
+			}
+		}
+		if (!escaped) {
+			if (string == null) {
+				return buffer.toString(start, end - start, charset);
+			}
+			if (ascii) {
+				return string.substring(start, end);
+			}
+		}
+
+		final byte[] bytes = new byte[end - start];
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			final int c = at(i);
+			if (c == '+') {
+				bytes[n++] = ' ';
+			} else if (c == '%' && unescape(i, end) >= 0) {
+				bytes[n++] = (byte) unescape(i, end);
+				i += 2;
+			} else {
+				// 请求行中的非ASCII字节按ISO-8859-1转成了char, 这里还原
+				bytes[n++] = (byte) c;
+			}
+		}
+		return new String(bytes, 0, n, charset);
+	}
+
+	/**
+	 * @return -1 如果不是合法的%XX, 此时'%'按原样保留
+	 */
+	private int unescape(final int i, final int end) {
+		if (i + 2 >= end) {
+			return -1;
+		}
+		final int hi = Character.digit(at(i + 1), 16);
+		final int lo = Character.digit(at(i + 2), 16);
+		return hi < 0 || lo < 0 ? -1 : hi * 16 + lo;
+	}
+
+}
@@ -6,11 +6,11 @@ import io.netty.channel.Channel;
 import io.netty.handler.codec.DecoderResult;
 import io.netty.handler.codec.http.Cookie;
 import io.netty.handler.codec.http.CookieDecoder;
+import io.netty.handler.codec.http.DefaultCookie;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.util.CharsetUtil;
 
 import java.io.BufferedReader;
@@ -18,13 +18,17 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
+import com.s3d.httpserver.auth.UserSessionDetail;
 import com.s3d.httpserver.request.RequestAttribute;
 import com.s3d.httpserver.request.RequestAttributeKey;
+import com.s3d.httpserver.request.RequestPart;
 import com.s3d.httpserver.request.ServerRequest;
 
 
@@ -44,12 +48,19 @@ public class PooledServerRequest implements ServerRequest {
 	private InetSocketAddress local;
 	private InetSocketAddress remote;
 
-	private Map<String, List<String>> queryStringDecoded = null;
+	/* 以下都在第一次使用时解析, 在请求期间缓存 */
+	private ParameterIndex parameters = null;
+	private Map<String, List<String>> parameterMap = null;
 	private Map<String, Cookie> cookies;
+	private boolean contentTypeParsed = false;
+	private Charset contentCharset = null;
+	private Map<String, Boolean> acceptedEncodings = null;
 
-	private Map<RequestAttributeKey<?>, RequestAttribute<?>> attributes;
+	/* 按RequestAttributeKey.index()保存, 随pooled request重用, release时清空值 */
+	private RequestAttribute<?>[] attributes = new RequestAttribute<?>[0];
 
 	private String remoteUser = null;
+	private UserSessionDetail userSession = null;
 		
 	public PooledServerRequest() {
 	}
@@ -76,17 +87,24 @@ public class PooledServerRequest implements ServerRequest {
 		}
 
 		// Reset previous state
-		queryStringDecoded = null;
+		parameters = null;
+		parameterMap = null;
 		cookies = null;
-		attributes = null;
+		contentTypeParsed = false;
+		contentCharset = null;
+		acceptedEncodings = null;
 
 		remoteUser = null;
+		userSession = null;
 	}
 
 	void release() {
 		if (nettyRequest != null) {
 			nettyRequest.release();
 		}
+		for (final RequestAttribute<?> attribute : attributes) {
+			attribute.set(null);
+		}
 	}
 
 	@Override
@@ -136,18 +154,87 @@ public class PooledServerRequest implements ServerRequest {
 				HttpHeaders.Names.CONTENT_TYPE);
 	}
 
+	/**
+	 * Content-Type中的charset参数, 没有或不支持时为ISO-8859-1
+	 */
 	@Override
 	public Charset getCharacterEncoding() {
+		final Charset charset = contentCharset();
+		return charset == null ? CharsetUtil.ISO_8859_1 : charset;
+	}
 
-		final String contentType = getContentType();
-		final int pos = contentType.indexOf(";");
+	private Charset contentCharset() {
+		if (!contentTypeParsed) {
+			contentTypeParsed = true;
+			contentCharset = parseCharset(getContentType());
+		}
+		return contentCharset;
+	}
 
-		if (pos == -1) {
-			return CharsetUtil.ISO_8859_1;
+	/**
+	 * @return null 如果没有charset参数或不支持
+	 */
+	static Charset parseCharset(final String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		final int length = contentType.length();
+		for (int i = contentType.indexOf(';'); i >= 0 && i < length; i = contentType.indexOf(';', i + 1)) {
+			int start = i + 1;
+			while (start < length && contentType.charAt(start) == ' ') {
+				start++;
+			}
+			if (!contentType.regionMatches(true, start, "charset=", 0, 8)) {
+				continue;
+			}
+			start += 8;
+			int end = contentType.indexOf(';', start);
+			if (end < 0) {
+				end = length;
+			}
+			while (end > start && contentType.charAt(end - 1) == ' ') {
+				end--;
+			}
+			if (end - start >= 2 && contentType.charAt(start) == '"' && contentType.charAt(end - 1) == '"') {
+				start++;
+				end--;
+			}
+			try {
+				return Charset.forName(contentType.substring(start, end));
+			} catch (final IllegalArgumentException e) {
+				return null;
+			}
 		}
+		return null;
+	}
 
-		return Charset.forName(contentType.substring(pos + 1).trim());
+	private boolean isForm() {
+		final String contentType = getContentType();
+		final String form = HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED;
+		return contentType != null && contentType.regionMatches(true, 0, form, 0, form.length())
+				&& (contentType.length() == form.length() || contentType.charAt(form.length()) == ';'
+						|| contentType.charAt(form.length()) == ' ');
+	}
+
+	/**
+	 * 开启 {@link MultipartUploads} 时已经在接收过程中解析好, 否则为空
+	 */
+	@Override
+	public List<RequestPart> getParts() {
+		if (nettyRequest instanceof MultipartRequest) {
+			return ((MultipartRequest) nettyRequest).parts();
+		}
+		return Collections.emptyList();
+	}
 
+	@Override
+	public RequestPart getPart(final String name) {
+		for (final RequestPart part : getParts()) {
+			if (part.getName().equals(name)) {
+				return part;
+			}
+		}
+		return null;
 	}
 
 	@Override
@@ -166,58 +253,50 @@ public class PooledServerRequest implements ServerRequest {
 				getCharacterEncoding()));
 	}
 
-	@Override
-	public Map<String, List<String>> getParameters() {
-
-		if (queryStringDecoded == null) {
-
-			if (HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED
-					.equals(headers().get(HttpHeaders.Names.CONTENT_TYPE))) {
-				queryStringDecoded =
-						new QueryStringDecoder(nettyRequest.content().toString(
-								getCharacterEncoding()), false).parameters();
-			} else if (queryString != null) {
-				queryStringDecoded =
-						new QueryStringDecoder(queryString, false).parameters();
+	/**
+	 * 表单请求时为表单中的参数, 否则为query string中的参数. 只扫描一次记录位置,
+	 * 按名字取值时只解码这一个值
+	 */
+	private ParameterIndex parameterIndex() {
+		if (parameters == null) {
+			if (isForm()) {
+				final Charset charset = contentCharset();
+				parameters = ParameterIndex.of(nettyRequest.content(),
+						charset == null ? CharsetUtil.UTF_8 : charset);
 			} else {
-				queryStringDecoded = new HashMap<String, List<String>>();
+				parameters = ParameterIndex.of(queryString == null ? "" : queryString,
+						CharsetUtil.UTF_8);
 			}
-
 		}
+		return parameters;
+	}
 
-		return queryStringDecoded;
-
+	/**
+	 * 解码全部参数, 只需要个别参数时使用 {@link #getParameter(String)}
+	 */
+	@Override
+	public Map<String, List<String>> getParameters() {
+		if (parameterMap == null) {
+			parameterMap = parameterIndex().toMap();
+		}
+		return parameterMap;
 	}
 
 	@Override
 	public String getParameter(final String name) {
-
-		final Map<String, List<String>> params = getParameters();
-
-		if (params != null) {
-
-			final List<String> values = params.get(name);
-
-			if (values != null && values.size() > 0) {
-				return values.get(0);
-			}
-
+		if (parameterMap != null) {
+			final List<String> values = parameterMap.get(name);
+			return values == null ? null : values.get(0);
 		}
-
-		return null;
-
+		return parameterIndex().get(name);
 	}
 
 	@Override
 	public List<String> getParameterList(final String name) {
-
-		final Map<String, List<String>> params = getParameters();
-
-		if (params != null) {
-			return params.get(name);
+		if (parameterMap != null) {
+			return parameterMap.get(name);
 		}
-
-		return null;
+		return parameterIndex().getAll(name);
 	}
 
 	@Override
@@ -241,18 +320,106 @@ public class PooledServerRequest implements ServerRequest {
 
 	}
 
+	/**
+	 * 没有调用过 {@link #getCookies()} 时直接在Cookie头中查找, 只创建这一个cookie
+	 */
 	@Override
 	public Cookie getCookie(final String name) {
-
-		final Map<String, Cookie> cookies = getCookies();
-
 		if (cookies != null) {
 			return cookies.get(name);
 		}
+		final String header = nettyRequest.headers().get(HttpHeaders.Names.COOKIE);
+		return header == null ? null : findCookie(header, name);
+	}
 
+	static Cookie findCookie(final String header, final String name) {
+		final int length = header.length();
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			while (end < length && header.charAt(end) != ';' && header.charAt(end) != ',') {
+				end++;
+			}
+			int nameStart = start;
+			while (nameStart < end && header.charAt(nameStart) == ' ') {
+				nameStart++;
+			}
+			final int eq = header.indexOf('=', nameStart);
+			if (eq > nameStart && eq < end) {
+				int nameEnd = eq;
+				while (header.charAt(nameEnd - 1) == ' ') {
+					nameEnd--;
+				}
+				if (nameEnd - nameStart == name.length()
+						&& header.regionMatches(nameStart, name, 0, name.length())) {
+					int valueStart = eq + 1;
+					int valueEnd = end;
+					while (valueStart < valueEnd && header.charAt(valueStart) == ' ') {
+						valueStart++;
+					}
+					while (valueEnd > valueStart && header.charAt(valueEnd - 1) == ' ') {
+						valueEnd--;
+					}
+					if (valueEnd - valueStart >= 2 && header.charAt(valueStart) == '"'
+							&& header.charAt(valueEnd - 1) == '"') {
+						valueStart++;
+						valueEnd--;
+					}
+					return new DefaultCookie(name, header.substring(valueStart, valueEnd));
+				}
+			}
+			start = end + 1;
+		}
 		return null;
 	}
 
+	/**
+	 * 按Accept-Encoding判断, q=0表示拒绝. 没有Accept-Encoding头时只接受identity
+	 */
+	@Override
+	public boolean acceptsEncoding(final String encoding) {
+		if (acceptedEncodings == null) {
+			acceptedEncodings = parseAcceptEncoding(
+					nettyRequest.headers().get(HttpHeaders.Names.ACCEPT_ENCODING));
+		}
+		final Boolean accepted = acceptedEncodings.get(encoding.toLowerCase(Locale.ROOT));
+		if (accepted != null) {
+			return accepted;
+		}
+		final Boolean any = acceptedEncodings.get("*");
+		if (any != null) {
+			return any;
+		}
+		return HttpHeaders.Values.IDENTITY.equalsIgnoreCase(encoding);
+	}
+
+	private static Map<String, Boolean> parseAcceptEncoding(final String header) {
+		if (header == null) {
+			return Collections.emptyMap();
+		}
+		final Map<String, Boolean> encodings = new HashMap<String, Boolean>(4);
+		for (final String part : header.split(",")) {
+			final int semi = part.indexOf(';');
+			final String name = (semi < 0 ? part : part.substring(0, semi)).trim().toLowerCase(Locale.ROOT);
+			if (name.isEmpty()) {
+				continue;
+			}
+			boolean accepted = true;
+			if (semi >= 0) {
+				final String param = part.substring(semi + 1).trim();
+				if (param.startsWith("q=") || param.startsWith("Q=")) {
+					try {
+						accepted = Float.parseFloat(param.substring(2).trim()) > 0;
+					} catch (final NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+			encodings.put(name, accepted);
+		}
+		return encodings;
+	}
+
 	public void setRemoteUser(final String user) {
 		remoteUser = user;
 	}
@@ -262,6 +429,16 @@ public class PooledServerRequest implements ServerRequest {
 		return remoteUser;
 	}
 
+	void setUserSession(final UserSessionDetail session) {
+		userSession = session;
+		remoteUser = session.getUserId();
+	}
+
+	@Override
+	public UserSessionDetail getUserSession() {
+		return userSession;
+	}
+
 	/*
 	 * Delegate to FullHttpRequest
 	 */
@@ -324,24 +501,29 @@ public class PooledServerRequest implements ServerRequest {
 		nettyRequest.setDecoderResult(result);
 	}
 
+	/**
+	 * 不加锁. 请求交给其他线程处理时, 提交任务本身保证了可见性
+	 */
 	@Override
 	@SuppressWarnings("unchecked")
-	public synchronized <T> RequestAttribute<T> attr(
-			final RequestAttributeKey<T> key) {
-
-		if (attributes == null) {
-			attributes =
-					new HashMap<RequestAttributeKey<?>, RequestAttribute<?>>(2);
+	public <T> RequestAttribute<T> attr(final RequestAttributeKey<T> key) {
+		final int index = key.index();
+		if (index >= attributes.length) {
+			growAttributes();
 		}
+		return (RequestAttribute<T>) attributes[index];
+	}
 
-		RequestAttribute<T> attr = (RequestAttribute<T>) attributes.get(key);
-		if (attr == null) {
-			attr = new RequestAttribute<T>();
-			attributes.put(key, attr);
+	/**
+	 * 为所有已创建的key分配属性对象, 之后的请求不再分配
+	 */
+	private void growAttributes() {
+		final RequestAttribute<?>[] grown = new RequestAttribute<?>[RequestAttributeKey.count()];
+		System.arraycopy(attributes, 0, grown, 0, attributes.length);
+		for (int i = attributes.length; i < grown.length; i++) {
+			grown[i] = new RequestAttribute<Object>();
 		}
-
-		return attr;
-
+		attributes = grown;
 	}
 
 }
@@ -5,14 +5,17 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Queue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.s3d.httpserver.error.ResponseAlreadyFinishedException;
 import com.s3d.httpserver.logging.RequestLogger;
+import com.s3d.httpserver.request.EventStream;
 import com.s3d.httpserver.request.RequestHandler;
 import com.s3d.httpserver.request.ServerResponse;
 
@@ -46,6 +49,16 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 	
 	public static final AttributeKey<PooledServerResponse> ATTR_RESPONSE =
 			AttributeKey.<PooledServerResponse> valueOf("response");
+	/** 正在接收body的response */
+	static final AttributeKey<PooledServerResponse> ATTR_BODY =
+			AttributeKey.<PooledServerResponse> valueOf("streamingbody");
+
+	/* body的状态: 没有或已结束, 流式body在handler开始之前到达的分块排队, 流式body直接交给handler,
+	 * 预检通过后等待聚合好的请求 */
+	static final int BODY_NONE = 0;
+	static final int BODY_QUEUED = 1;
+	static final int BODY_STREAMING = 2;
+	static final int BODY_AWAITING = 3;
 	
 	private static final Logger log = LoggerFactory
 			.getLogger(PooledServerResponse.class);
@@ -54,7 +67,7 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 
 	private final Collection<Cookie> cookies = new HashSet<Cookie>();
 
-	//private HttpRequestChannelHandler channelHandler;
+	private HttpRequestChannelHandler channelHandler;
 	private ChannelHandlerContext context;
 	private RequestHandler handler;
 	private PooledServerRequest request;
@@ -71,13 +84,37 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 	private long requestTime = 0;
 	private RequestLogger logger;
 
+	private long startNanos = 0;
+	/* 通过并发限制准入的请求, 在free时归还额度 */
+	private boolean admitted = false;
+
+	/* 可缓存的请求, 响应在写出前存入cache */
+	private ResponseCache cache;
+	private String cacheKey;
+	private CachePolicy cachePolicy;
+	/* 正在由本请求刷新的过期条目 */
+	private ResponseCache.Entry revalidating;
+
+	/* 合并执行时, 本请求作为执行者或等待者所在的flight */
+	private RequestCoalescer coalescer;
+	private volatile RequestCoalescer.Flight flight;
+	private boolean leader;
+
+	private DefaultEventStream eventStream;
+
+	/* 等待中的异步认证, 完成时用来确认response没有被释放重用 */
+	private Future<?> authorization;
+
+	private int bodyState = BODY_NONE;
+	private final Queue<StreamedContent> queuedBody = new ArrayDeque<StreamedContent>();
+
 	public PooledServerResponse(final ServerMessagePool pool_) {
 		super(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
 		pool = pool_;
 	}
 	
 	void init(final ChannelHandlerContext context_,
-			//final HttpRequestChannelHandler channelHandler_,
+			final HttpRequestChannelHandler channelHandler_,
 			final long requestTime,
 			final RequestHandler handler_, final PooledServerRequest request_,
 			final RequestLogger logger_) {
@@ -92,7 +129,7 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		retain();
 
 		context = context_;
-		//channelHandler = channelHandler_;
+		channelHandler = channelHandler_;
 		handler = handler_;
 		request = request_;
 		logger = logger_;
@@ -107,6 +144,147 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		writer = new OutputStreamWriter(out, charSet);
 
 		this.requestTime = requestTime;
+		startNanos = System.nanoTime();
+		admitted = false;
+		cache = null;
+		cacheKey = null;
+		cachePolicy = null;
+		revalidating = null;
+		coalescer = null;
+		flight = null;
+		leader = false;
+		authorization = null;
+		bodyState = BODY_NONE;
+	}
+
+	void admitted() {
+		admitted = true;
+	}
+
+	boolean isAdmitted() {
+		return admitted;
+	}
+
+	/**
+	 * @param stale 本请求负责刷新的过期条目, 可以为null
+	 */
+	void cacheAs(final ResponseCache cache_, final String key, final CachePolicy policy,
+			final ResponseCache.Entry stale) {
+		cache = cache_;
+		cacheKey = key;
+		cachePolicy = policy;
+		revalidating = stale;
+	}
+
+	void leadFlight(final RequestCoalescer coalescer_, final RequestCoalescer.Flight flight_) {
+		coalescer = coalescer_;
+		flight = flight_;
+		leader = true;
+	}
+
+	void waitFlight(final RequestCoalescer.Flight flight_) {
+		flight = flight_;
+		leader = false;
+	}
+
+	/**
+	 * 等待者用执行者的结果完成, 在本连接的event loop中调用
+	 */
+	void completeFrom(final RequestCoalescer.Flight flight_, final HttpResponseStatus status,
+			final HttpHeaders headers_, final byte[] body) {
+		if (flight != flight_ || finished) {
+			return;
+		}
+		flight = null;
+		suspended = false;
+		setStatus(status);
+		headers().set(headers_);
+		content().writeBytes(body);
+		try {
+			finish();
+		} catch (IOException e) {
+			log.error("error on finishing response", e);
+		}
+	}
+
+	/**
+	 * 执行者失败, 等待者自己执行handler, 在本连接的event loop中调用
+	 */
+	void runAlone(final RequestCoalescer.Flight flight_) {
+		if (flight != flight_ || finished) {
+			return;
+		}
+		flight = null;
+		suspended = false;
+		channelHandler.dispatch(context, handler, request, this, null, null, null);
+	}
+
+	/**
+	 * @param success 执行者的响应可以共享给等待者
+	 */
+	private void completeFlight(final boolean success) {
+		final RequestCoalescer.Flight f = flight;
+		if (f != null) {
+			flight = null;
+			if (leader) {
+				coalescer.complete(f, success ? this : null);
+			} else {
+				f.leave(this);
+			}
+		}
+	}
+
+	void awaitAuthorization(final Future<?> authorization_) {
+		authorization = authorization_;
+		suspend();
+	}
+
+	/**
+	 * 在本连接的event loop中调用
+	 * @return false 如果response已经结束或被重用
+	 */
+	boolean authorizationCompleted(final Future<?> authorization_) {
+		if (authorization != authorization_ || finished) {
+			return false;
+		}
+		authorization = null;
+		suspended = false;
+		return true;
+	}
+
+	int bodyState() {
+		return bodyState;
+	}
+
+	void bodyState(final int bodyState_) {
+		bodyState = bodyState_;
+	}
+
+	Queue<StreamedContent> queuedBody() {
+		return queuedBody;
+	}
+
+	/**
+	 * 预检通过的请求收到了聚合好的body, 在本连接的event loop中调用
+	 */
+	void bodyReceived() {
+		bodyState = BODY_NONE;
+		suspended = false;
+	}
+
+	/**
+	 * 流式body还没有全部交给handler, 此时不自动结束response
+	 */
+	boolean isReceivingBody() {
+		return bodyState == BODY_QUEUED || bodyState == BODY_STREAMING;
+	}
+
+	long startNanos() {
+		return startNanos;
+	}
+
+	ChannelHandlerContext context() {
+		return context;
 	}
 
 	@Override
@@ -230,6 +408,31 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		return 0;
 	}
 
+	@Override
+	public EventStream startEventStream() throws IOException {
+
+		checkFinished();
+		if (started) {
+			throw new IllegalStateException("Response already started");
+		}
+
+		headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/event-stream; charset=UTF-8");
+		headers().set(HttpHeaders.Names.CACHE_CONTROL, HttpHeaders.Values.NO_CACHE);
+		setChunkedEncoding(true);
+		startResponse();
+		suspend();
+
+		// stream会持续很久, 不应一直占用并发额度, 也不应作为延迟样本
+		if (admitted) {
+			admitted = false;
+			channelHandler.releaseAdmission(this);
+		}
+
+		eventStream = channelHandler.eventStreams().open(this, context);
+		return eventStream;
+
+	}
+
 	@Override
 	public void suspend(){
 		suspended  = true;
@@ -256,17 +459,26 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 			log.error("Set Cookies Failed", e);
 		}
 
-		if (HttpHeaders.isKeepAlive(request)) {
+		if (isKeepAlive()) {
 			headers().set(HttpHeaders.Names.CONNECTION,
 					HttpHeaders.Values.KEEP_ALIVE);
+		} else {
+			headers().set(HttpHeaders.Names.CONNECTION,
+					HttpHeaders.Values.CLOSE);
 		}
 		
 		started = true;
 		
 		if (!isChunkedEncoding()) {
 			setContentLength(content().readableBytes());
+			if (cacheKey != null && isCacheable()) {
+				cache.store(cacheKey, cachePolicy, this);
+				revalidating = null;
+			}
+			completeFlight(getStatus().code() < 500 && cookies.isEmpty());
 			return context.writeAndFlush(this);
 		} else {
+			completeFlight(false);
 			final DefaultHttpResponse resp = new DefaultHttpResponse(getProtocolVersion(), getStatus());
 			resp.headers().add(headers());
 			HttpHeaders.setTransferEncodingChunked(resp);
@@ -296,7 +508,7 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 			}
 			
 			if (writeFuture != null) {
-				if(!HttpHeaders.isKeepAlive(request)){
+				if(!isKeepAlive()){
 					writeFuture.addListener(ChannelFutureListener.CLOSE);
 				}
 				writeFuture.addListener(new GenericFutureListener<Future<? super Void>>() {
@@ -322,6 +534,24 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		}	
 	}
 
+	private boolean isCacheable() {
+		if (getStatus().code() != HttpResponseStatus.OK.code() || !cookies.isEmpty()) {
+			return false;
+		}
+		final String cacheControl = headers().get(HttpHeaders.Names.CACHE_CONTROL);
+		return cacheControl == null
+				|| (!cacheControl.contains(HttpHeaders.Values.NO_STORE)
+						&& !cacheControl.contains(HttpHeaders.Values.PRIVATE));
+	}
+
+	/**
+	 * 客户端要求keep-alive, 且服务器没有处于drain状态
+	 */
+	private boolean isKeepAlive() {
+		final HttpRequestChannelHandler ch = channelHandler;
+		return HttpHeaders.isKeepAlive(request) && (ch == null || !ch.isDraining());
+	}
+
 	private void checkFinished() {
 		if (finished) {
 			throw new ResponseAlreadyFinishedException();
@@ -344,6 +574,28 @@ public class PooledServerResponse extends DefaultFullHttpResponse implements
 		if(!finished){
 			finished = true;
 			suspended = false;
+			if (channelHandler != null) {
+				channelHandler.requestFinished(this);
+				channelHandler = null;
+			}
+			if (revalidating != null) {
+				revalidating.revalidateFailed();
+				revalidating = null;
+			}
+			completeFlight(false);
+			authorization = null;
+			if (eventStream != null) {
+				eventStream.closed();
+				eventStream = null;
+			}
+			if (bodyState != BODY_NONE) {
+				bodyState = BODY_NONE;
+				context.attr(ATTR_BODY).compareAndSet(this, null);
+				StreamedContent chunk;
+				while ((chunk = queuedBody.poll()) != null) {
+					chunk.release();
+				}
+			}
 			synchronized (context) {
 				PooledServerResponse response = context.attr(ATTR_RESPONSE).getAndRemove();
 				if(this == response){
@@ -0,0 +1,109 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.s3d.httpserver.http2.Http2ConnectionHandler;
+
+/**
+ * 一个连接上暂停读取的原因, 按位记录.
+ * 多个机制({@link InboundBackpressure}, {@link RequestBodyBudget})各自暂停和恢复,
+ * 只有所有原因都解除后才重新打开autoRead, 互相不会覆盖.
+ * autoRead总是在连接的event loop上按当前的原因设置, 不在event loop上的恢复提交给它执行.
+ * HTTP/2 stream的暂停作用在所属的连接上, 调用者也应该用 {@link #connection(Channel)} 记录被暂停的channel.
+ */
+final class ReadPause {
+
+	static final int BACKPRESSURE = 1;
+	static final int BODY_BUDGET = 1 << 1;
+
+	private static final AttributeKey<AtomicInteger> ATTR_REASONS =
+			AttributeKey.valueOf("ReadPause.reasons");
+
+	private ReadPause() {
+	}
+
+	/**
+	 * 实际暂停读取的channel
+	 */
+	static Channel connection(final Channel channel) {
+		return Http2ConnectionHandler.connection(channel);
+	}
+
+	private static AtomicInteger reasons(final Channel channel) {
+		final Attribute<AtomicInteger> attr = channel.attr(ATTR_REASONS);
+		AtomicInteger reasons = attr.get();
+		if (reasons == null) {
+			reasons = new AtomicInteger();
+			final AtomicInteger raced = attr.setIfAbsent(reasons);
+			if (raced != null) {
+				reasons = raced;
+			}
+		}
+		return reasons;
+	}
+
+	/**
+	 * 是否有任何原因暂停了读取
+	 */
+	static boolean isPaused(final Channel requestChannel) {
+		final AtomicInteger reasons = connection(requestChannel).attr(ATTR_REASONS).get();
+		return reasons != null && reasons.get() != 0;
+	}
+
+	/**
+	 * @return false 如果这个原因已经暂停了读取
+	 */
+	static boolean pause(final Channel requestChannel, final int reason) {
+		final Channel channel = connection(requestChannel);
+		final AtomicInteger reasons = reasons(channel);
+		for (;;) {
+			final int current = reasons.get();
+			if ((current & reason) != 0) {
+				return false;
+			}
+			if (reasons.compareAndSet(current, current | reason)) {
+				break;
+			}
+		}
+		apply(channel, reasons);
+		return true;
+	}
+
+	/**
+	 * 解除这个原因, 没有其他原因时恢复读取
+	 */
+	static void resume(final Channel requestChannel, final int reason) {
+		final Channel channel = connection(requestChannel);
+		final AtomicInteger reasons = reasons(channel);
+		for (;;) {
+			final int current = reasons.get();
+			if ((current & reason) == 0) {
+				return;
+			}
+			if (reasons.compareAndSet(current, current & ~reason)) {
+				break;
+			}
+		}
+		if (channel.isActive()) {
+			apply(channel, reasons);
+		}
+	}
+
+	private static void apply(final Channel channel, final AtomicInteger reasons) {
+		if (channel.eventLoop().inEventLoop()) {
+			channel.config().setAutoRead(reasons.get() == 0);
+		} else {
+			channel.eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					channel.config().setAutoRead(reasons.get() == 0);
+				}
+			});
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.List;
+
+/**
+ * 和HttpObjectAggregator相同, 但已经完整的请求(例如 {@link MultipartDecoder} 解析好的上传)直接传递.
+ * HttpObjectAggregator会把FullHttpMessage当作新请求的开头, 等待不会再来的body.
+ * 配置了 {@link RequestBodyBudget} 时, 请求头到达时检查预算, body在聚合前计入, 聚合好的请求释放时扣除.
+ */
+class RequestAggregator extends HttpObjectAggregator {
+
+	private static final EncodedResponse OVER_BUDGET = EncodedResponse.of(
+			HttpResponseStatus.SERVICE_UNAVAILABLE,
+			"503 Service Unavailable - Request Body Budget Exceeded",
+			"Retry-After", "1");
+
+	private final int maxContentLength;
+	private final RequestBodyBudget budget;
+	/* 正在聚合的请求已经计入(预留或收到)的字节数 */
+	private long held = 0;
+	private long received = 0;
+	/* 被拒绝后连接正在关闭, 丢弃之后收到的所有数据 */
+	private boolean rejected = false;
+	/* 当前请求超过maxContentLength, 丢弃它剩下的body, 不再计入 */
+	private boolean discarding = false;
+
+	RequestAggregator(final int maxContentLength_, final RequestBodyBudget budget_) {
+		super(maxContentLength_);
+		maxContentLength = maxContentLength_;
+		budget = budget_;
+	}
+
+	@Override
+	public boolean acceptInboundMessage(final Object msg) throws Exception {
+		return !(msg instanceof FullHttpMessage) && super.acceptInboundMessage(msg);
+	}
+
+	@Override
+	protected void decode(final ChannelHandlerContext ctx, final HttpObject msg, final List<Object> out)
+			throws Exception {
+		if (budget == null) {
+			super.decode(ctx, msg, out);
+			return;
+		}
+		if (rejected) {
+			return;
+		}
+		if (msg instanceof HttpRequest) {
+			// 上一个请求没有聚合完成时还计入的部分
+			releaseHeld();
+			received = 0;
+			discarding = false;
+			final HttpRequest head = (HttpRequest) msg;
+			if (HttpHeaders.isTransferEncodingChunked(head) || HttpHeaders.getContentLength(head, 0) > 0) {
+				final long declared = Math.min(HttpHeaders.getContentLength(head, 0), maxContentLength);
+				if (budget.tryReserve(declared)) {
+					held = declared;
+				} else if (budget.isReject()) {
+					budget.rejected();
+					rejected = true;
+					OVER_BUDGET.write(ctx, false);
+					return;
+				} else {
+					// 还没有开始读body, 暂停不会让已经计入的请求无法完成
+					budget.pause(ctx.channel());
+				}
+			}
+		}
+		if (msg instanceof HttpContent) {
+			if (discarding) {
+				return;
+			}
+			received += ((HttpContent) msg).content().readableBytes();
+			if (received > held) {
+				budget.add(received - held);
+				held = received;
+			}
+		}
+		try {
+			super.decode(ctx, msg, out);
+		} catch (final Exception e) {
+			// 超过maxContentLength, 已经聚合的内容被释放
+			releaseHeld();
+			discarding = true;
+			throw e;
+		}
+		if (!out.isEmpty() && held > 0) {
+			final int last = out.size() - 1;
+			final FullHttpRequest aggregated = (FullHttpRequest) out.get(last);
+			final FullHttpRequest request = new DefaultFullHttpRequest(aggregated.getProtocolVersion(),
+					aggregated.getMethod(), aggregated.getUri(),
+					new BudgetedContent(aggregated.content(), budget, held));
+			request.headers().set(aggregated.headers());
+			request.trailingHeaders().set(aggregated.trailingHeaders());
+			request.setDecoderResult(aggregated.getDecoderResult());
+			out.set(last, request);
+			held = 0;
+		}
+	}
+
+	private void releaseHeld() {
+		budget.release(held);
+		held = 0;
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		super.channelInactive(ctx);
+		if (budget != null) {
+			releaseHeld();
+		}
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		super.handlerRemoved(ctx);
+		if (budget != null) {
+			releaseHeld();
+		}
+	}
+
+	/**
+	 * 接管聚合好的请求的content, 引用计数降到0时从预算中扣除.
+	 * 无论通过请求, content()还是duplicate()/slice()释放, 都共享这个引用计数
+	 */
+	private static final class BudgetedContent extends CompositeByteBuf {
+
+		private final RequestBodyBudget budget;
+		private final long bytes;
+
+		BudgetedContent(final ByteBuf content, final RequestBodyBudget budget_, final long bytes_) {
+			super(content.alloc(), content.isDirect(), Integer.MAX_VALUE, content);
+			budget = budget_;
+			bytes = bytes_;
+		}
+
+		@Override
+		protected void deallocate() {
+			super.deallocate();
+			budget.release(bytes);
+		}
+
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.Channel;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.s3d.httpserver.http2.BodyBudget;
+
+/**
+ * 所有连接正在聚合或等待处理的请求body占用的内存上限.
+ * 请求头到达时按Content-Length预留, 超出预留的数据(chunked body)到达时计入, 请求释放(response free)时扣除.
+ * 预留会超过高水位的请求在读取body之前暂停该连接, 降到低水位以下后恢复;
+ * 开启 {@link #reject(boolean)} 时改为返回503并关闭连接.
+ * 已经开始接收的body不会被暂停, 保证它们能完成并释放内存. 没有任何占用时总是允许.
+ * 流式上传({@link MultipartUploads})不经过聚合, 不计入.
+ * HTTP/2连接不暂停socket, 而是暂停归还连接的接收窗口, 见 {@link #http2()}.
+ */
+public class RequestBodyBudget {
+
+	private final long high;
+	private final long low;
+	private volatile boolean reject = false;
+
+	private final AtomicLong bytes = new AtomicLong();
+	private final Queue<Channel> paused = new ConcurrentLinkedQueue<Channel>();
+	private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger pausedCount = new AtomicInteger();
+	private final AtomicLong pauses = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param high_ 超过这个字节数时暂停或拒绝
+	 * @param low_ 降到这个字节数以下时恢复被暂停的连接
+	 */
+	public RequestBodyBudget(final long high_, final long low_) {
+		if (low_ > high_) {
+			throw new IllegalArgumentException("low watermark must not exceed high watermark");
+		}
+		high = high_;
+		low = low_;
+	}
+
+	/**
+	 * 超过上限时返回503并关闭连接, 而不是暂停读取. 默认关闭
+	 */
+	public RequestBodyBudget reject(final boolean reject_) {
+		reject = reject_;
+		return this;
+	}
+
+	/**
+	 * 为一个请求的body预留
+	 * @return false 如果会超过上限, 此时没有计入
+	 */
+	boolean tryReserve(final long n) {
+		for (;;) {
+			final long current = bytes.get();
+			if (current > 0 && current + n > high) {
+				return false;
+			}
+			if (bytes.compareAndSet(current, current + n)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 计入超出预留的数据, 不检查上限
+	 */
+	void add(final long n) {
+		bytes.addAndGet(n);
+	}
+
+	boolean isReject() {
+		return reject;
+	}
+
+	void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	/**
+	 * 暂停读取, 直到降到低水位以下
+	 */
+	void pause(final Channel requestChannel) {
+		final Channel channel = ReadPause.connection(requestChannel);
+		if (ReadPause.pause(channel, ReadPause.BODY_BUDGET)) {
+			paused.add(channel);
+			pausedCount.incrementAndGet();
+			pauses.incrementAndGet();
+		}
+		// 暂停和release之间的竞争: 已经降到低水位时立即恢复
+		if (bytes.get() <= low) {
+			resume();
+		}
+	}
+
+	/**
+	 * 和 {@link #pause(Channel)} 相同, 但降到低水位以下时执行resume而不是恢复读取
+	 */
+	void await(final Runnable resume) {
+		waiting.add(resume);
+		pausedCount.incrementAndGet();
+		pauses.incrementAndGet();
+		if (bytes.get() <= low) {
+			resume();
+		}
+	}
+
+	void release(final long n) {
+		if (n > 0 && bytes.addAndGet(-n) <= low) {
+			resume();
+		}
+	}
+
+	private void resume() {
+		Channel channel;
+		while ((channel = paused.poll()) != null) {
+			pausedCount.decrementAndGet();
+			ReadPause.resume(channel, ReadPause.BODY_BUDGET);
+		}
+		Runnable waiter;
+		while ((waiter = waiting.poll()) != null) {
+			pausedCount.decrementAndGet();
+			waiter.run();
+		}
+	}
+
+	/**
+	 * 供HTTP/2连接计入stream缓冲的body
+	 */
+	BodyBudget http2() {
+		return new BodyBudget() {
+			@Override
+			public boolean tryReserve(final long n) {
+				return RequestBodyBudget.this.tryReserve(n);
+			}
+
+			@Override
+			public void add(final long n) {
+				RequestBodyBudget.this.add(n);
+			}
+
+			@Override
+			public void release(final long n) {
+				RequestBodyBudget.this.release(n);
+			}
+
+			@Override
+			public boolean isReject() {
+				return reject;
+			}
+
+			@Override
+			public void rejected() {
+				RequestBodyBudget.this.rejected();
+			}
+
+			@Override
+			public void await(final Runnable resume) {
+				RequestBodyBudget.this.await(resume);
+			}
+		};
+	}
+
+	/**
+	 * 当前计入的请求body字节数
+	 */
+	public long getBytesInUse() {
+		return bytes.get();
+	}
+
+	/**
+	 * 当前被暂停读取的连接数
+	 */
+	public int getPausedChannels() {
+		return pausedCount.get();
+	}
+
+	/**
+	 * 累计暂停次数
+	 */
+	public long getPauseCount() {
+		return pauses.get();
+	}
+
+	/**
+	 * 累计拒绝的请求数
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+}
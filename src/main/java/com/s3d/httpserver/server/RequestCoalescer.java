@@ -0,0 +1,189 @@
+package com.s3d.httpserver.server;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 相同请求合并执行(single-flight). 同一个key的请求正在执行时, 后到的请求挂起等待,
+ * 第一个请求完成后用它的响应完成所有等待的请求.
+ * 第一个请求失败(5xx, 分块响应, 设置了cookie, 或中断)时, 等待的请求各自执行handler.
+ * 通过 {@link HttpServerConfig#requestCoalescing(String, RequestCoalescer)} 按URI前缀启用, 只作用于GET请求.
+ */
+public class RequestCoalescer {
+
+	/**
+	 * 判断两个请求是否相同
+	 */
+	public interface Key {
+		/**
+		 * @return 合并的key, 返回null表示该请求不合并
+		 */
+		String of(HttpRequest request);
+	}
+
+	/** method + URI */
+	public static final Key METHOD_AND_URI = new Key() {
+		@Override
+		public String of(final HttpRequest request) {
+			return request.getMethod().name() + ' ' + request.getUri();
+		}
+	};
+
+	private final Key key;
+	private final int maxWaiters;
+
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong fallbacks = new AtomicLong();
+
+	public RequestCoalescer() {
+		this(METHOD_AND_URI, 1000);
+	}
+
+	/**
+	 * @param maxWaiters_ 单个key最多挂起的请求数, 超出的请求单独执行
+	 */
+	public RequestCoalescer(final Key key_, final int maxWaiters_) {
+		key = key_;
+		maxWaiters = maxWaiters_;
+	}
+
+	String key(final HttpRequest request) {
+		return key.of(request);
+	}
+
+	/**
+	 * 加入正在执行的同key请求, 或成为执行者
+	 * @return true 如果response已挂起等待, 调用方不再执行handler
+	 */
+	boolean join(final String key_, final PooledServerResponse response) {
+		final Flight flight = new Flight(key_, maxWaiters);
+		final Flight existing = flights.putIfAbsent(key_, flight);
+		if (existing == null) {
+			response.leadFlight(this, flight);
+			return false;
+		}
+		if (existing.add(response)) {
+			response.suspend();
+			response.waitFlight(existing);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 执行者的响应开始写出(或被释放)时调用. 成功时把状态, 头和内容复制给等待的请求.
+	 * @param leader 为null表示执行失败, 等待的请求各自执行
+	 */
+	void complete(final Flight flight, final FullHttpResponse leader) {
+		flights.remove(flight.key, flight);
+		final List<PooledServerResponse> waiting = flight.finish();
+		if (waiting.isEmpty()) {
+			return;
+		}
+
+		if (leader == null) {
+			fallbacks.addAndGet(waiting.size());
+			for (final PooledServerResponse response : waiting) {
+				response.context().executor().execute(new Runnable() {
+					@Override
+					public void run() {
+						response.runAlone(flight);
+					}
+				});
+			}
+			return;
+		}
+
+		final HttpResponseStatus status = leader.getStatus();
+		final HttpHeaders headers = new DefaultHttpHeaders().set(leader.headers());
+		headers.remove(HttpHeaders.Names.CONNECTION);
+		final byte[] body = new byte[leader.content().readableBytes()];
+		leader.content().getBytes(leader.content().readerIndex(), body);
+
+		coalesced.addAndGet(waiting.size());
+		for (final PooledServerResponse response : waiting) {
+			response.context().executor().execute(new Runnable() {
+				@Override
+				public void run() {
+					response.completeFrom(flight, status, headers, body);
+				}
+			});
+		}
+	}
+
+	/**
+	 * 当前正在执行的key数
+	 */
+	public int size() {
+		return flights.size();
+	}
+
+	/**
+	 * 用其他请求的结果完成的请求数
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * 因执行者失败而单独执行的请求数
+	 */
+	public long getFallbackCount() {
+		return fallbacks.get();
+	}
+
+	static final class Flight {
+		final String key;
+		private final int maxWaiters;
+		/* 以下字段由this保护 */
+		private List<PooledServerResponse> waiting = null;
+		private boolean done = false;
+
+		Flight(final String key_, final int maxWaiters_) {
+			key = key_;
+			maxWaiters = maxWaiters_;
+		}
+
+		synchronized boolean add(final PooledServerResponse response) {
+			if (done) {
+				return false;
+			}
+			if (waiting == null) {
+				waiting = new ArrayList<PooledServerResponse>();
+			} else if (waiting.size() >= maxWaiters) {
+				return false;
+			}
+			waiting.add(response);
+			return true;
+		}
+
+		/**
+		 * 等待中的请求被中断(连接关闭)
+		 */
+		synchronized void leave(final PooledServerResponse response) {
+			if (!done && waiting != null) {
+				waiting.remove(response);
+			}
+		}
+
+		synchronized List<PooledServerResponse> finish() {
+			done = true;
+			final List<PooledServerResponse> result = waiting;
+			waiting = null;
+			return result == null ? Collections.<PooledServerResponse> emptyList() : result;
+		}
+	}
+
+}
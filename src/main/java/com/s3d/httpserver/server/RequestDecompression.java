@@ -0,0 +1,97 @@
+package com.s3d.httpserver.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * Content-Encoding为gzip, x-gzip或deflate的请求body的解压设置.
+ * body在聚合, 流式交付和multipart解析之前边接收边解压, maxRequestSize和其它限制都按解压后的字节数计算.
+ * 解压后超过maxDecompressedSize时立即返回413并关闭连接, 不再解压剩余的body.
+ * Inflater使用本地内存, 用完后重置放回池中, 池满时释放.
+ */
+public class RequestDecompression {
+
+	private long maxDecompressedSize = 10L * 1024 * 1024;
+	private int poolSize = 64;
+
+	private final Queue<Inflater> pool = new ConcurrentLinkedQueue<Inflater>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * 单个请求body解压后的最大字节数, 默认10M
+	 */
+	public RequestDecompression maxDecompressedSize(final long max) {
+		maxDecompressedSize = max;
+		return this;
+	}
+
+	/**
+	 * 池中最多保留的空闲Inflater数, 默认64
+	 */
+	public RequestDecompression poolSize(final int size) {
+		poolSize = size;
+		return this;
+	}
+
+	public long maxDecompressedSize() {
+		return maxDecompressedSize;
+	}
+
+	public int poolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * 不处理zlib和gzip的头和校验, 由 {@link RequestDecompressor} 解析
+	 */
+	Inflater acquire() {
+		final Inflater inflater = pool.poll();
+		if (inflater != null) {
+			pooled.decrementAndGet();
+			return inflater;
+		}
+		created.incrementAndGet();
+		return new Inflater(true);
+	}
+
+	void release(final Inflater inflater) {
+		inflater.reset();
+		if (pooled.incrementAndGet() <= poolSize) {
+			pool.offer(inflater);
+		} else {
+			pooled.decrementAndGet();
+			inflater.end();
+		}
+	}
+
+	void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	/**
+	 * 累计创建的Inflater数
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * 当前池中空闲的Inflater数
+	 */
+	public int getPooledCount() {
+		return pooled.get();
+	}
+
+	/**
+	 * 因解压后超过maxDecompressedSize被拒绝的请求数
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+}
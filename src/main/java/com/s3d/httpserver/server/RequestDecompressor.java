@@ -0,0 +1,454 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.Locale;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 位于ConnectionLifecycleHandler之后, {@link RequestRouter} 之前, 每个连接一个.
+ * Content-Encoding为gzip, x-gzip或deflate的请求body边接收边解压, 后面的路由, 限制, 聚合和流式交付都只看到解压后的数据.
+ * 解压的请求去掉Content-Encoding和Content-Length, 改为chunked, 聚合后的Content-Length为解压后的长度.
+ * 解压后超过 {@link RequestDecompression#maxDecompressedSize()} 时返回413, 数据损坏时返回400, 不支持的编码返回415, 然后关闭连接.
+ * HTTP/2 stream上收到的是已经聚合好的请求, 一次解压完.
+ */
+final class RequestDecompressor extends ChannelInboundHandlerAdapter {
+
+	private static final EncodedResponse MALFORMED = EncodedResponse.of(
+			HttpResponseStatus.BAD_REQUEST, "400 Bad Request - Malformed Content Encoding");
+	private static final EncodedResponse UNSUPPORTED = EncodedResponse.of(
+			HttpResponseStatus.UNSUPPORTED_MEDIA_TYPE, "415 Unsupported Media Type - Unsupported Content Encoding");
+
+	/* 没有需要解压的请求 */
+	private static final int NONE = 0;
+	private static final int GZIP_HEADER = 1;
+	private static final int ZLIB_HEADER = 2;
+	private static final int INFLATE = 3;
+	private static final int TRAILER = 4;
+	/* zlib或原始deflate数据已经结束, 之后的数据丢弃 */
+	private static final int FINISHED = 5;
+
+	private static final int FEXTRA = 0x04;
+	private static final int FNAME = 0x08;
+	private static final int FCOMMENT = 0x10;
+	private static final int FHCRC = 0x02;
+	private static final int FRESERVED = 0xe0;
+
+	/* gzip头(包括文件名和注释)的最大长度 */
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+	/* 输出buffer每次最多扩大的字节数 */
+	private static final int MAX_GROWTH = 64 * 1024;
+
+	private final RequestDecompression decompression;
+	private final CRC32 crc = new CRC32();
+	private final Adler32 adler = new Adler32();
+
+	private int state = NONE;
+	private Inflater inflater = null;
+	private boolean gzip = false;
+	/* 当前member的校验, 原始deflate数据为null */
+	private Checksum checksum = null;
+	private int trailerLength = 0;
+	/* 已经解压的字节数, 整个body和当前gzip member */
+	private long size = 0;
+	private long memberSize = 0;
+	/* 处于member的边界, body可以在这里结束 */
+	private boolean complete = false;
+	/* 不完整的头或校验, 等待下一块数据 */
+	private ByteBuf pending = null;
+	private ByteBuf output = null;
+	private byte[] scratch = new byte[0];
+	/* 被拒绝的请求剩余的body直接丢弃 */
+	private boolean discarding = false;
+
+	RequestDecompressor(final RequestDecompression decompression_) {
+		decompression = decompression_;
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+		if (discarding) {
+			discarding = !(msg instanceof LastHttpContent);
+			ReferenceCountUtil.release(msg);
+			return;
+		}
+		if (msg instanceof HttpRequest) {
+			end();
+			final HttpRequest head = (HttpRequest) msg;
+			final String encoding = head.getDecoderResult().isSuccess() && hasBody(head)
+					? head.headers().get(HttpHeaders.Names.CONTENT_ENCODING) : null;
+			if (encoding != null) {
+				if (!begin(ctx, head, encoding)) {
+					ReferenceCountUtil.release(head);
+					return;
+				}
+				if (state != NONE && head instanceof FullHttpRequest) {
+					full(ctx, (FullHttpRequest) head);
+					return;
+				}
+			}
+		} else if (msg instanceof HttpContent && state != NONE) {
+			content(ctx, (HttpContent) msg);
+			return;
+		}
+		ctx.fireChannelRead(msg);
+	}
+
+	private static boolean hasBody(final HttpRequest head) {
+		if (head instanceof FullHttpMessage) {
+			return ((FullHttpMessage) head).content().isReadable();
+		}
+		return HttpHeaders.isTransferEncodingChunked(head) || HttpHeaders.getContentLength(head, -1) > 0;
+	}
+
+	/**
+	 * @return false 如果编码不支持, 已经拒绝
+	 */
+	private boolean begin(final ChannelHandlerContext ctx, final HttpRequest head, final String encoding) {
+		final String coding = encoding.trim().toLowerCase(Locale.ENGLISH);
+		if (coding.equals("gzip") || coding.equals("x-gzip")) {
+			state = GZIP_HEADER;
+			gzip = true;
+		} else if (coding.equals("deflate")) {
+			state = ZLIB_HEADER;
+			gzip = false;
+		} else if (coding.isEmpty() || coding.equals("identity")) {
+			return true;
+		} else {
+			reject(ctx, UNSUPPORTED, head instanceof LastHttpContent);
+			return false;
+		}
+		head.headers().remove(HttpHeaders.Names.CONTENT_ENCODING);
+		if (!(head instanceof FullHttpMessage)) {
+			head.headers().remove(HttpHeaders.Names.CONTENT_LENGTH);
+			HttpHeaders.setTransferEncodingChunked(head);
+		}
+		inflater = decompression.acquire();
+		size = 0;
+		memberSize = 0;
+		complete = false;
+		return true;
+	}
+
+	private void content(final ChannelHandlerContext ctx, final HttpContent chunk) {
+		final boolean last = chunk instanceof LastHttpContent;
+		final ByteBuf decoded = decompress(ctx, chunk, last);
+		if (decoded == null) {
+			return;
+		}
+		if (last) {
+			final LastHttpContent tail = new DefaultLastHttpContent(decoded);
+			tail.trailingHeaders().set(((LastHttpContent) chunk).trailingHeaders());
+			chunk.release();
+			ctx.fireChannelRead(tail);
+		} else {
+			chunk.release();
+			if (decoded.isReadable()) {
+				ctx.fireChannelRead(new DefaultHttpContent(decoded));
+			} else {
+				decoded.release();
+			}
+		}
+	}
+
+	private void full(final ChannelHandlerContext ctx, final FullHttpRequest request) {
+		final ByteBuf decoded = decompress(ctx, request, true);
+		if (decoded == null) {
+			return;
+		}
+		final FullHttpRequest decompressed = new DefaultFullHttpRequest(request.getProtocolVersion(),
+				request.getMethod(), request.getUri(), decoded);
+		decompressed.headers().set(request.headers());
+		decompressed.trailingHeaders().set(request.trailingHeaders());
+		HttpHeaders.setContentLength(decompressed, decoded.readableBytes());
+		request.release();
+		ctx.fireChannelRead(decompressed);
+	}
+
+	/**
+	 * @return null 如果请求被拒绝, 此时chunk已经释放
+	 */
+	private ByteBuf decompress(final ChannelHandlerContext ctx, final HttpContent chunk, final boolean last) {
+		try {
+			final ByteBuf decoded = decode(ctx.alloc(), chunk.content(), last);
+			if (size <= decompression.maxDecompressedSize()) {
+				if (last) {
+					end();
+				}
+				return decoded;
+			}
+			decoded.release();
+			decompression.rejected();
+			reject(ctx, RequestRouter.TOO_LARGE, last);
+		} catch (final DataFormatException e) {
+			reject(ctx, MALFORMED, last);
+		}
+		chunk.release();
+		return null;
+	}
+
+	/**
+	 * 解压一块body, 超过上限时停止, 由调用者检查size
+	 */
+	private ByteBuf decode(final ByteBufAllocator alloc, final ByteBuf chunk, final boolean last)
+			throws DataFormatException {
+		ByteBuf in = chunk;
+		if (pending != null) {
+			pending.writeBytes(chunk);
+			in = pending;
+		}
+		output = Unpooled.EMPTY_BUFFER;
+		try {
+			loop: while (size <= decompression.maxDecompressedSize()) {
+				switch (state) {
+				case GZIP_HEADER:
+					if (!readGzipHeader(in)) {
+						break loop;
+					}
+					state = INFLATE;
+					break;
+				case ZLIB_HEADER:
+					if (in.readableBytes() < 2) {
+						break loop;
+					}
+					readZlibHeader(in);
+					state = INFLATE;
+					break;
+				case INFLATE:
+					inflate(alloc, in);
+					if (!inflater.finished()) {
+						break loop;
+					}
+					state = TRAILER;
+					break;
+				case TRAILER:
+					if (in.readableBytes() < trailerLength) {
+						break loop;
+					}
+					readTrailer(in);
+					complete = true;
+					if (gzip) {
+						// 后面可能还有gzip member
+						inflater.reset();
+						state = GZIP_HEADER;
+					} else {
+						state = FINISHED;
+					}
+					break;
+				default:
+					in.skipBytes(in.readableBytes());
+					break loop;
+				}
+			}
+			if (size <= decompression.maxDecompressedSize()) {
+				if (last && !(complete && !in.isReadable())) {
+					throw new DataFormatException("truncated body");
+				}
+				keepPending(in);
+			}
+			final ByteBuf decoded = output;
+			output = null;
+			return decoded;
+		} catch (final DataFormatException e) {
+			output.release();
+			output = null;
+			throw e;
+		}
+	}
+
+	private void keepPending(final ByteBuf in) throws DataFormatException {
+		if (!in.isReadable()) {
+			if (pending != null) {
+				pending.release();
+				pending = null;
+			}
+		} else if (in.readableBytes() > MAX_HEADER_SIZE) {
+			throw new DataFormatException("header too long");
+		} else if (in == pending) {
+			pending.discardReadBytes();
+		} else {
+			pending = Unpooled.buffer(in.readableBytes());
+			pending.writeBytes(in);
+		}
+	}
+
+	/**
+	 * @return false 如果头还不完整, 此时没有读取
+	 */
+	private boolean readGzipHeader(final ByteBuf in) throws DataFormatException {
+		final int start = in.readerIndex();
+		if (in.readableBytes() < 10) {
+			return false;
+		}
+		if (in.getUnsignedShort(start) != 0x1f8b || in.getUnsignedByte(start + 2) != 8) {
+			throw new DataFormatException("not in gzip format");
+		}
+		final int flags = in.getUnsignedByte(start + 3);
+		if ((flags & FRESERVED) != 0) {
+			throw new DataFormatException("reserved gzip flags");
+		}
+		int index = start + 10;
+		if ((flags & FEXTRA) != 0) {
+			if (in.writerIndex() < index + 2) {
+				return false;
+			}
+			index += 2 + (in.getUnsignedByte(index) | in.getUnsignedByte(index + 1) << 8);
+		}
+		if ((flags & FNAME) != 0) {
+			index = skipString(in, index);
+		}
+		if ((flags & FCOMMENT) != 0) {
+			index = skipString(in, index);
+		}
+		if ((flags & FHCRC) != 0) {
+			index += 2;
+		}
+		if (index < 0 || index > in.writerIndex()) {
+			return false;
+		}
+		in.readerIndex(index);
+		checksum = crc;
+		crc.reset();
+		trailerLength = 8;
+		memberSize = 0;
+		complete = false;
+		return true;
+	}
+
+	/**
+	 * @return 0结尾的字符串之后的位置, -1 如果还没有收到结尾
+	 */
+	private static int skipString(final ByteBuf in, final int index) {
+		if (index < 0 || index >= in.writerIndex()) {
+			return -1;
+		}
+		final int end = in.indexOf(index, in.writerIndex(), (byte) 0);
+		return end < 0 ? -1 : end + 1;
+	}
+
+	private void readZlibHeader(final ByteBuf in) throws DataFormatException {
+		final int cmf = in.getUnsignedByte(in.readerIndex());
+		final int flg = in.getUnsignedByte(in.readerIndex() + 1);
+		if ((cmf & 0x0f) == 8 && (cmf >> 4) <= 7 && (cmf << 8 | flg) % 31 == 0) {
+			if ((flg & 0x20) != 0) {
+				throw new DataFormatException("preset dictionary is not supported");
+			}
+			in.skipBytes(2);
+			checksum = adler;
+			adler.reset();
+			trailerLength = 4;
+		} else {
+			// 部分客户端发送没有zlib头的原始deflate数据
+			checksum = null;
+			trailerLength = 0;
+		}
+	}
+
+	private void readTrailer(final ByteBuf in) throws DataFormatException {
+		if (gzip) {
+			final long value = Integer.reverseBytes(in.readInt()) & 0xffffffffL;
+			final long length = Integer.reverseBytes(in.readInt()) & 0xffffffffL;
+			if (value != crc.getValue() || length != (memberSize & 0xffffffffL)) {
+				throw new DataFormatException("corrupt gzip trailer");
+			}
+		} else if (checksum != null && (in.readInt() & 0xffffffffL) != adler.getValue()) {
+			throw new DataFormatException("corrupt zlib trailer");
+		}
+	}
+
+	/**
+	 * 解压in中所有的数据, 直到deflate数据结束或超过上限
+	 */
+	private void inflate(final ByteBufAllocator alloc, final ByteBuf in) throws DataFormatException {
+		final int length = in.readableBytes();
+		if (length == 0) {
+			return;
+		}
+		if (in.hasArray()) {
+			inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), length);
+		} else {
+			if (scratch.length < length) {
+				scratch = new byte[length];
+			}
+			in.getBytes(in.readerIndex(), scratch, 0, length);
+			inflater.setInput(scratch, 0, length);
+		}
+		for (;;) {
+			if (!output.isWritable()) {
+				if (output == Unpooled.EMPTY_BUFFER) {
+					output = alloc.heapBuffer(Math.min(Math.max(length * 4, 1024), MAX_GROWTH));
+				} else {
+					output.ensureWritable(Math.min(output.capacity(), MAX_GROWTH));
+				}
+			}
+			final int offset = output.arrayOffset() + output.writerIndex();
+			final int n = inflater.inflate(output.array(), offset, output.writableBytes());
+			if (n > 0) {
+				if (checksum != null) {
+					checksum.update(output.array(), offset, n);
+				}
+				output.writerIndex(output.writerIndex() + n);
+				size += n;
+				memberSize += n;
+				if (size > decompression.maxDecompressedSize()) {
+					break;
+				}
+			} else if (inflater.needsDictionary()) {
+				throw new DataFormatException("preset dictionary is not supported");
+			} else if (inflater.finished() || inflater.needsInput()) {
+				break;
+			}
+		}
+		in.skipBytes(length - inflater.getRemaining());
+	}
+
+	private void reject(final ChannelHandlerContext ctx, final EncodedResponse response,
+			final boolean last) {
+		end();
+		discarding = !last;
+		response.write(ctx, false);
+	}
+
+	private void end() {
+		state = NONE;
+		if (inflater != null) {
+			decompression.release(inflater);
+			inflater = null;
+		}
+		if (pending != null) {
+			pending.release();
+			pending = null;
+		}
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		end();
+		super.channelInactive(ctx);
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		end();
+	}
+
+}
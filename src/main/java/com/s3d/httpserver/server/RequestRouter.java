@@ -0,0 +1,273 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.FullHttpMessage;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.s3d.httpserver.request.RequestHandler;
+import com.s3d.httpserver.request.StreamingRequestHandler;
+
+/**
+ * 位于ConnectionLifecycleHandler之后, multipart解析和聚合之前, 请求头解码出来时就路由, 每个连接一个.
+ * 没有body的请求(GET, HEAD, 静态文件等)不经过聚合, 收到结束标记后以 {@link UnaggregatedRequest} 传递;
+ * {@link StreamingRequestHandler} 的请求头立即传递, body以 {@link StreamedContent} 分块传递;
+ * 其它请求原样交给聚合. 缓冲之前按URI前缀的maxRequestSize检查, 超过时返回413并关闭连接.
+ * <p>
+ * 带 Expect: 100-continue 的请求不由聚合回复100: 请求头先作为预检交给 {@link HttpRequestChannelHandler},
+ * 限流, 路由和认证都通过后调用 {@link #proceed}, 这时才回复100并继续传递请求.
+ * 被拒绝的请求直接得到413/404/401等最终响应, 连接随后关闭, 客户端不需要发送body.
+ */
+final class RequestRouter extends ChannelInboundHandlerAdapter {
+
+	static final EncodedResponse TOO_LARGE = EncodedResponse.of(
+			HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "413 Request Entity Too Large");
+
+	private static final int AGGREGATE = 0;
+	private static final int BODYLESS = 1;
+	private static final int STREAMING = 2;
+	/* 等待预检的结果, 收到的数据暂存 */
+	private static final int HOLD = 3;
+	/* 被拒绝后连接正在关闭 */
+	private static final int DISCARD = 4;
+
+	private final HttpServerConfig config;
+
+	private ChannelHandlerContext ctx;
+	private int mode = AGGREGATE;
+	/* 等待结束标记的无body请求 */
+	private UnaggregatedRequest bodyless = null;
+	private long limit = Long.MAX_VALUE;
+	private long received = 0;
+	/* 当前请求是multipart上传时不为null */
+	private MultipartUploads uploads = null;
+
+	/* 等待100 Continue的请求头, 和它原来的Connection头 */
+	private HttpRequest expecting = null;
+	private String connection = null;
+	/* HOLD期间收到的请求头和body, 不包括expecting */
+	private final List<Object> held = new ArrayList<Object>();
+
+	RequestRouter(final HttpServerConfig config_) {
+		config = config_;
+	}
+
+	/**
+	 * 请求body的上限: URI前缀单独设置的优先, 流式body没有单独设置时不限制, 其它请求为全局的maxRequestSize
+	 */
+	static long maxRequestSize(final HttpServerConfig config, final String uri,
+			final RequestHandler handler) {
+		final int route = config.getRouteMaxRequestSize(uri);
+		if (route >= 0) {
+			return route;
+		}
+		return handler instanceof StreamingRequestHandler ? Long.MAX_VALUE : config.maxRequestSize();
+	}
+
+	/**
+	 * 请求头到达时检查的上限, multipart上传按MultipartUploads的maxUploadSize
+	 */
+	static long maxRequestSize(final HttpServerConfig config, final HttpRequest head,
+			final RequestHandler handler) {
+		if (!(handler instanceof StreamingRequestHandler) && isMultipart(config, head)) {
+			return config.multipartUploads().maxUploadSize();
+		}
+		return maxRequestSize(config, head.getUri(), handler);
+	}
+
+	/**
+	 * 接受等待100 Continue的请求, 在连接的event loop中调用. 没有等待中的请求时什么也不做
+	 */
+	static void proceed(final ChannelHandlerContext ctx) {
+		final RequestRouter router = ctx.pipeline().get(RequestRouter.class);
+		if (router != null) {
+			router.proceed();
+		}
+	}
+
+	@Override
+	public void handlerAdded(final ChannelHandlerContext ctx_) throws Exception {
+		ctx = ctx_;
+	}
+
+	@Override
+	public void channelRead(final ChannelHandlerContext ctx_, final Object msg) throws Exception {
+		route(msg);
+	}
+
+	private void route(final Object msg) {
+		if (mode == DISCARD) {
+			ReferenceCountUtil.release(msg);
+		} else if (mode == HOLD) {
+			hold(msg);
+		} else if (msg instanceof HttpRequest && !(msg instanceof FullHttpMessage)) {
+			head((HttpRequest) msg);
+		} else if (msg instanceof HttpContent) {
+			content((HttpContent) msg);
+		} else {
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	private void head(final HttpRequest head) {
+		mode = AGGREGATE;
+		limit = Long.MAX_VALUE;
+		received = 0;
+		uploads = null;
+		if (!head.getDecoderResult().isSuccess()) {
+			ctx.fireChannelRead(head);
+			return;
+		}
+
+		final RequestHandler handler = config.getRequestMapping(head.getUri());
+		final long contentLength = HttpHeaders.getContentLength(head, -1);
+		if (!HttpHeaders.isTransferEncodingChunked(head) && contentLength <= 0) {
+			mode = BODYLESS;
+			bodyless = new UnaggregatedRequest(head, handler, false, false);
+			return;
+		}
+
+		final boolean streaming = handler instanceof StreamingRequestHandler;
+		if (!streaming && isMultipart(config, head)) {
+			// multipart上传不聚合, 按MultipartUploads的限制
+			uploads = config.multipartUploads();
+			limit = uploads.maxUploadSize();
+		} else {
+			limit = maxRequestSize(config, head.getUri(), handler);
+		}
+		if (contentLength > limit) {
+			reject();
+			return;
+		}
+
+		final boolean expectContinue = HttpHeaders.is100ContinueExpected(head);
+		if (expectContinue) {
+			// 接受之前的最终响应都要关闭连接, 客户端可能不会再发送body
+			head.headers().remove(HttpHeaders.Names.EXPECT);
+			expecting = head;
+			connection = head.headers().get(HttpHeaders.Names.CONNECTION);
+			head.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+		}
+		if (streaming) {
+			mode = STREAMING;
+			ctx.fireChannelRead(new UnaggregatedRequest(head, handler, true, expectContinue));
+		} else if (expectContinue) {
+			mode = HOLD;
+			ctx.fireChannelRead(new UnaggregatedRequest(head, handler, false, true));
+		} else {
+			ctx.fireChannelRead(head);
+		}
+	}
+
+	private void content(final HttpContent chunk) {
+		final boolean last = chunk instanceof LastHttpContent;
+		if (mode == BODYLESS) {
+			chunk.release();
+			if (last) {
+				final UnaggregatedRequest request = bodyless;
+				bodyless = null;
+				mode = AGGREGATE;
+				ctx.fireChannelRead(request);
+			}
+			return;
+		}
+		received += chunk.content().readableBytes();
+		if (received > limit) {
+			chunk.release();
+			reject();
+			return;
+		}
+		if (mode == STREAMING) {
+			if (last) {
+				mode = AGGREGATE;
+			}
+			ctx.fireChannelRead(new StreamedContent(chunk.content(), last));
+		} else {
+			ctx.fireChannelRead(chunk);
+		}
+	}
+
+	/**
+	 * 没有等待100就发送的body暂存到接受为止, 最多到请求的上限
+	 */
+	private void hold(final Object msg) {
+		if (msg instanceof HttpContent) {
+			received += ((HttpContent) msg).content().readableBytes();
+			if (received > limit) {
+				ReferenceCountUtil.release(msg);
+				reject();
+				return;
+			}
+		}
+		held.add(msg);
+	}
+
+	private void proceed() {
+		final HttpRequest head = expecting;
+		if (head == null || mode == DISCARD) {
+			return;
+		}
+		expecting = null;
+		if (connection == null) {
+			head.headers().remove(HttpHeaders.Names.CONNECTION);
+		} else {
+			head.headers().set(HttpHeaders.Names.CONNECTION, connection);
+			connection = null;
+		}
+		EncodedResponse.writeContinue(ctx);
+
+		if (mode == HOLD) {
+			mode = AGGREGATE;
+			received = 0;
+			ctx.fireChannelRead(head);
+			final Object[] messages = held.toArray();
+			held.clear();
+			for (final Object msg : messages) {
+				route(msg);
+			}
+		}
+	}
+
+	private static boolean isMultipart(final HttpServerConfig config, final HttpRequest head) {
+		return config.multipartUploads() != null
+				&& MultipartParser.boundary(head.headers().get(HttpHeaders.Names.CONTENT_TYPE)) != null;
+	}
+
+	private void reject() {
+		if (uploads != null) {
+			uploads.rejected();
+		}
+		mode = DISCARD;
+		release();
+		TOO_LARGE.write(ctx, false);
+	}
+
+	private void release() {
+		bodyless = null;
+		expecting = null;
+		for (final Object msg : held) {
+			ReferenceCountUtil.release(msg);
+		}
+		held.clear();
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx_) throws Exception {
+		release();
+		super.channelInactive(ctx_);
+	}
+
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx_) throws Exception {
+		release();
+	}
+
+}
@@ -0,0 +1,269 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.CharsetUtil;
+import io.netty.util.IllegalReferenceCountException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GET响应缓存. 编码好的状态行, 头和内容顺序写入堆外的slab, 写满后新开一个slab,
+ * 总量超出时整块淘汰最旧的slab. 命中时在event loop中直接写出slab的slice, 不执行handler,
+ * 也不经过HttpResponseEncoder; 被淘汰的slab在最后一个引用它的写出完成后才释放.
+ * Connection头因请求而异, 不存入缓存, 写出时拼接.
+ */
+public class ResponseCache {
+
+	private static final ByteBuf CONNECTION_KEEP_ALIVE = constant(
+			HttpHeaders.Names.CONNECTION + ": " + HttpHeaders.Values.KEEP_ALIVE + "\r\n\r\n");
+	private static final ByteBuf CONNECTION_CLOSE = constant(
+			HttpHeaders.Names.CONNECTION + ": " + HttpHeaders.Values.CLOSE + "\r\n\r\n");
+
+	private final int slabSize;
+	private final int maxSlabs;
+
+	private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+
+	/* 以下两个字段由this保护 */
+	private final ArrayDeque<Slab> slabs = new ArrayDeque<Slab>();
+	private Slab current = null;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong staleHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param capacityBytes 堆外内存上限
+	 */
+	public ResponseCache(final long capacityBytes) {
+		this(capacityBytes, 1024 * 1024);
+	}
+
+	/**
+	 * @param slabSize_ 每个slab的大小, 也是单个响应的大小上限
+	 */
+	public ResponseCache(final long capacityBytes, final int slabSize_) {
+		if (slabSize_ <= 0 || capacityBytes < slabSize_) {
+			throw new IllegalArgumentException("capacity must hold at least one slab");
+		}
+		slabSize = slabSize_;
+		maxSlabs = (int) Math.min(Integer.MAX_VALUE, capacityBytes / slabSize_);
+	}
+
+	/**
+	 * @return 新鲜或在stale-while-revalidate期间内的条目, 否则null
+	 */
+	Entry get(final String key) {
+		final Entry entry = index.get(key);
+		if (entry != null) {
+			if (System.nanoTime() - entry.staleUntil < 0) {
+				return entry;
+			}
+			index.remove(key, entry);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * 写出缓存的响应
+	 * @return false 如果条目所在的slab已被淘汰, 调用方按未命中处理
+	 */
+	boolean write(final ChannelHandlerContext ctx, final Entry entry, final boolean keepAlive) {
+
+		final ByteBuf slab = entry.slab;
+		final int refs = entry.bodyLength > 0 ? 2 : 1;
+		try {
+			slab.retain(refs);
+		} catch (final IllegalReferenceCountException e) {
+			return false;
+		}
+
+		final ChannelHandlerContext raw = EncodedResponse.rawContext(ctx);
+		final ChannelPromise promise = raw.newPromise();
+		final boolean keep = EncodedResponse.track(ctx, promise) && keepAlive;
+		final ByteBuf connection = (keep ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE).duplicate();
+		final ByteBuf head = slab.slice(entry.offset, entry.headLength);
+
+		// CompositeByteBuf会丢弃(而不释放)空的组件, 所以空内容时只引用一次
+		raw.writeAndFlush(refs == 2
+				? Unpooled.wrappedBuffer(head, connection,
+						slab.slice(entry.offset + entry.headLength, entry.bodyLength))
+				: Unpooled.wrappedBuffer(head, connection), promise);
+
+		if (!keep) {
+			promise.addListener(ChannelFutureListener.CLOSE);
+		}
+
+		(entry.isFresh() ? hits : staleHits).incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * 存入handler生成的完整响应, 在响应写出之前调用(写出会移动content的readerIndex)
+	 */
+	void store(final String key, final CachePolicy policy, final FullHttpResponse response) {
+
+		final byte[] head = encodeHead(response);
+		final ByteBuf content = response.content();
+		final int bodyLength = content.readableBytes();
+		final int size = head.length + bodyLength;
+
+		if (size > slabSize) {
+			return;
+		}
+
+		final long now = System.nanoTime();
+
+		synchronized (this) {
+			if (current == null || current.used + size > slabSize) {
+				if (slabs.size() >= maxSlabs) {
+					evict(slabs.poll());
+				}
+				current = new Slab(Unpooled.directBuffer(slabSize, slabSize));
+				slabs.add(current);
+			}
+
+			final int offset = current.used;
+			current.buf.setBytes(offset, head);
+			content.getBytes(content.readerIndex(), current.buf, offset + head.length, bodyLength);
+			current.used += size;
+
+			final Entry entry = new Entry(key, current.buf, offset, head.length, bodyLength,
+					now + policy.ttlNanos(), now + policy.ttlNanos() + policy.staleNanos());
+			current.entries.add(entry);
+			index.put(key, entry);
+		}
+	}
+
+	private void evict(final Slab slab) {
+		for (final Entry entry : slab.entries) {
+			if (index.remove(entry.key, entry)) {
+				evictions.incrementAndGet();
+			}
+		}
+		slab.buf.release();
+	}
+
+	/**
+	 * 释放所有slab, 正在写出的slab在写完后释放
+	 */
+	public synchronized void clear() {
+		Slab slab;
+		while ((slab = slabs.poll()) != null) {
+			evict(slab);
+		}
+		current = null;
+		index.clear();
+	}
+
+	/**
+	 * 状态行和除Connection外的头, 不含结尾的空行
+	 */
+	private static byte[] encodeHead(final FullHttpResponse response) {
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append(response.getProtocolVersion().text()).append(' ')
+				.append(response.getStatus().code()).append(' ')
+				.append(response.getStatus().reasonPhrase()).append("\r\n");
+		for (final Map.Entry<String, String> header : response.headers()) {
+			if (!HttpHeaders.Names.CONNECTION.equalsIgnoreCase(header.getKey())) {
+				sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+		}
+		return sb.toString().getBytes(CharsetUtil.ISO_8859_1);
+	}
+
+	private static ByteBuf constant(final String s) {
+		final byte[] bytes = s.getBytes(CharsetUtil.US_ASCII);
+		return Unpooled.unreleasableBuffer(Unpooled.directBuffer(bytes.length).writeBytes(bytes));
+	}
+
+	/**
+	 * 当前缓存的条目数, 包括已过期但还没被访问到的
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getStaleHitCount() {
+		return staleHits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private static final class Slab {
+		final ByteBuf buf;
+		final List<Entry> entries = new ArrayList<Entry>();
+		int used = 0;
+
+		Slab(final ByteBuf buf_) {
+			buf = buf_;
+		}
+	}
+
+	static final class Entry {
+		final String key;
+		final ByteBuf slab;
+		final int offset;
+		final int headLength;
+		final int bodyLength;
+		final long freshUntil;
+		final long staleUntil;
+		private final AtomicBoolean revalidating = new AtomicBoolean();
+
+		Entry(final String key_, final ByteBuf slab_, final int offset_,
+				final int headLength_, final int bodyLength_,
+				final long freshUntil_, final long staleUntil_) {
+			key = key_;
+			slab = slab_;
+			offset = offset_;
+			headLength = headLength_;
+			bodyLength = bodyLength_;
+			freshUntil = freshUntil_;
+			staleUntil = staleUntil_;
+		}
+
+		boolean isFresh() {
+			return System.nanoTime() - freshUntil < 0;
+		}
+
+		/**
+		 * 过期条目只允许一个请求去刷新
+		 */
+		boolean tryRevalidate() {
+			return revalidating.compareAndSet(false, true);
+		}
+
+		/**
+		 * 刷新的请求没有产生可缓存的响应时调用, 让下一个请求重试
+		 */
+		void revalidateFailed() {
+			revalidating.set(false);
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * 为每个连接创建一个服务端SSLEngine, SSLEngine有状态, 不能在连接之间共用.
+ * 同一个SSLContext的session cache在连接之间共享, 客户端可以通过session id或session ticket恢复会话,
+ * 省去完整握手. 同时统计握手次数, 会话恢复比例和握手耗时.
+ * 需要定制cipher suite, 客户端认证等参数时覆盖 {@link #configure(SSLEngine)}.
+ */
+public class SslEngineFactory {
+
+	private static final String SESSION_TICKETS = "jdk.tls.server.enableSessionTicketExtension";
+
+	private final SSLContext context;
+	private Executor handshakeExecutor = null;
+
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong handshakeNanos = new AtomicLong();
+
+	public SslEngineFactory(final SSLContext context_) {
+		context = context_;
+		sessionCacheSize(100000);
+		sessionTimeout(24, TimeUnit.HOURS);
+	}
+
+	/**
+	 * 开启无状态的session ticket(RFC 5077), 服务端不必保存会话也能恢复.
+	 * JDK在SSLContext初始化时读取这个设置, 因此要在 {@code SSLContext.init()} 之前调用.
+	 * JDK 13以上默认开启, 这里只是防止被系统属性关闭.
+	 */
+	public static void enableSessionTickets() {
+		System.setProperty(SESSION_TICKETS, "true");
+	}
+
+	/**
+	 * 服务端session cache的最大条目数, 0表示不限制. 默认100000
+	 */
+	public SslEngineFactory sessionCacheSize(final int size) {
+		context.getServerSessionContext().setSessionCacheSize(size);
+		return this;
+	}
+
+	/**
+	 * 缓存的会话(以及session ticket)的有效期. 默认24小时
+	 */
+	public SslEngineFactory sessionTimeout(final long timeout, final TimeUnit unit) {
+		context.getServerSessionContext().setSessionTimeout((int) unit.toSeconds(timeout));
+		return this;
+	}
+
+	/**
+	 * 在这个executor上执行握手中耗CPU的部分(JSSE的delegated task), 期间暂停连接的读取,
+	 * 避免大量新连接握手时拖慢同一event loop上已建立的连接.
+	 * 应使用有界队列, 队列满时新连接直接关闭. null表示在event loop上握手(默认)
+	 */
+	public SslEngineFactory handshakeExecutor(final Executor executor) {
+		handshakeExecutor = executor;
+		return this;
+	}
+
+	public SSLContext context() {
+		return context;
+	}
+
+	public SSLSessionContext sessionContext() {
+		return context.getServerSessionContext();
+	}
+
+	/**
+	 * 新连接的SSLEngine
+	 */
+	public SSLEngine newEngine() {
+		final SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		configure(engine);
+		return engine;
+	}
+
+	/**
+	 * 子类可以在这里设置cipher suite, 协议版本, 客户端认证等
+	 */
+	protected void configure(final SSLEngine engine) {
+	}
+
+	/**
+	 * 在pipeline末尾加入新连接的SslHandler, 握手完成后记入统计
+	 * @param applicationProtocols ALPN协商的协议, null表示不协商
+	 */
+	void addHandlers(final ChannelPipeline pipeline, final String[] applicationProtocols) {
+
+		final SSLEngine engine = newEngine();
+		if (applicationProtocols != null) {
+			final SSLParameters params = engine.getSSLParameters();
+			params.setApplicationProtocols(applicationProtocols);
+			engine.setSSLParameters(params);
+		}
+
+		final SslHandler handler;
+		if (handshakeExecutor != null) {
+			final HandshakeOffloadHandler offload = new HandshakeOffloadHandler(engine, handshakeExecutor);
+			handler = new SslHandler(offload.engine());
+			offload.watch(handler);
+			pipeline.addLast("ssl-offload", offload);
+		} else {
+			handler = new SslHandler(engine);
+		}
+		pipeline.addLast("ssl", handler);
+
+		final long startNanos = System.nanoTime();
+		final long startMillis = System.currentTimeMillis();
+		handler.handshakeFuture().addListener(new GenericFutureListener<Future<Object>>() {
+			@Override
+			public void operationComplete(final Future<Object> future) {
+				if (!future.isSuccess()) {
+					failures.incrementAndGet();
+					return;
+				}
+				handshakeNanos.addAndGet(System.nanoTime() - startNanos);
+				handshakes.incrementAndGet();
+				// 恢复的会话沿用原会话的创建时间
+				final SSLSession session = engine.getSession();
+				if (session != null && session.getCreationTime() < startMillis) {
+					resumed.incrementAndGet();
+				}
+			}
+		});
+
+	}
+
+	/**
+	 * 成功完成的握手次数, 包括会话恢复
+	 */
+	public long getHandshakeCount() {
+		return handshakes.get();
+	}
+
+	/**
+	 * 通过会话恢复完成的握手次数
+	 */
+	public long getResumedCount() {
+		return resumed.get();
+	}
+
+	/**
+	 * 失败的握手次数, 包括握手完成前断开的连接
+	 */
+	public long getFailedHandshakeCount() {
+		return failures.get();
+	}
+
+	/**
+	 * 会话恢复占成功握手的比例
+	 */
+	public double getResumptionRatio() {
+		final long total = handshakes.get();
+		return total == 0 ? 0 : (double) resumed.get() / total;
+	}
+
+	/**
+	 * 成功握手的平均耗时(毫秒), 从连接初始化到握手完成
+	 */
+	public double getAverageHandshakeMillis() {
+		final long total = handshakes.get();
+		return total == 0 ? 0 : handshakeNanos.get() / 1e6 / total;
+	}
+
+}
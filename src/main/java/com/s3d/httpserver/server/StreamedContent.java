@@ -0,0 +1,23 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * 交给 {@link com.s3d.httpserver.request.StreamingRequestHandler} 的一块body.
+ * 不是HttpObject, multipart解析和聚合都会直接传递.
+ */
+final class StreamedContent extends DefaultByteBufHolder {
+
+	private final boolean last;
+
+	StreamedContent(final ByteBuf content, final boolean last_) {
+		super(content);
+		last = last_;
+	}
+
+	boolean isLast() {
+		return last;
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.EventLoop;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个event loop上的哈希时间轮. 所有方法只能在该event loop线程中调用.
+ * 连接活动时只更新自己的时间戳, 不操作时间轮; 到期检查时由 {@link Entry#check(long)}
+ * 根据最新的时间戳决定关闭连接还是重新登记下一次检查时间.
+ */
+final class TimeoutWheel implements Runnable {
+
+	/** {@link Entry#check(long)} 返回该值表示不再检查 */
+	static final long CANCEL = Long.MIN_VALUE;
+
+	interface Entry {
+		/**
+		 * @return 下一次检查的时间(nanoTime), 或 {@link TimeoutWheel#CANCEL}
+		 */
+		long check(long now);
+	}
+
+	private final ArrayDeque<Entry>[] slots;
+	private final long tickNanos;
+	private final int mask;
+
+	private long tick;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	TimeoutWheel(final EventLoop loop, final long tickMillis, final int slotCount) {
+		int size = 1;
+		while (size < slotCount) {
+			size <<= 1;
+		}
+		slots = new ArrayDeque[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new ArrayDeque<Entry>();
+		}
+		mask = size - 1;
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		tick = System.nanoTime() / tickNanos;
+
+		loop.scheduleAtFixedRate(this, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 登记一次检查. 时间超过一圈的条目会在中途被检查并重新登记.
+	 */
+	void schedule(final Entry entry, final long deadlineNanos) {
+		long target = deadlineNanos / tickNanos;
+		if (target <= tick) {
+			target = tick + 1;
+		}
+		slots[(int) (target & mask)].add(entry);
+	}
+
+	@Override
+	public void run() {
+		final long now = System.nanoTime();
+		final long current = now / tickNanos;
+
+		// 时间轮线程被阻塞时, 追赶错过的槽, 最多一圈
+		final long from = Math.max(tick + 1, current - mask);
+		tick = current;
+
+		for (long t = from; t <= current; t++) {
+			final ArrayDeque<Entry> slot = slots[(int) (t & mask)];
+			final int n = slot.size();
+			for (int i = 0; i < n; i++) {
+				final Entry entry = slot.poll();
+				final long next = entry.check(now);
+				if (next != CANCEL) {
+					schedule(entry, next);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package com.s3d.httpserver.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderResult;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+import com.s3d.httpserver.request.RequestHandler;
+
+/**
+ * 没有经过聚合的请求: 直接包装解码出的请求头, 不复制头, content为空.
+ * 由 {@link RequestRouter} 为没有body的请求和流式body的请求生成, 带着路由好的handler.
+ * 带 Expect: 100-continue 的请求先以预检的形式传递, 接受之后才回复100并接收body.
+ */
+final class UnaggregatedRequest implements FullHttpRequest {
+
+	private final HttpRequest head;
+	private final RequestHandler handler;
+	private final boolean streaming;
+	private final boolean expectContinue;
+
+	UnaggregatedRequest(final HttpRequest head_, final RequestHandler handler_,
+			final boolean streaming_, final boolean expectContinue_) {
+		head = head_;
+		handler = handler_;
+		streaming = streaming_;
+		expectContinue = expectContinue_;
+	}
+
+	RequestHandler handler() {
+		return handler;
+	}
+
+	/**
+	 * body随后以 {@link StreamedContent} 分块到达
+	 */
+	boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * 客户端在等待100 Continue, 需要聚合的body还没有开始接收.
+	 * 接受后由 {@link RequestRouter#proceed} 继续, 聚合好的请求另外到达
+	 */
+	boolean isPreflight() {
+		return expectContinue && !streaming;
+	}
+
+	@Override
+	public HttpMethod getMethod() {
+		return head.getMethod();
+	}
+
+	@Override
+	public String getUri() {
+		return head.getUri();
+	}
+
+	@Override
+	public HttpVersion getProtocolVersion() {
+		return head.getProtocolVersion();
+	}
+
+	@Override
+	public HttpHeaders headers() {
+		return head.headers();
+	}
+
+	@Override
+	public HttpHeaders trailingHeaders() {
+		return HttpHeaders.EMPTY_HEADERS;
+	}
+
+	@Override
+	public DecoderResult getDecoderResult() {
+		return head.getDecoderResult();
+	}
+
+	@Override
+	public void setDecoderResult(final DecoderResult result) {
+		head.setDecoderResult(result);
+	}
+
+	@Override
+	public FullHttpRequest setMethod(final HttpMethod method) {
+		head.setMethod(method);
+		return this;
+	}
+
+	@Override
+	public FullHttpRequest setUri(final String uri) {
+		head.setUri(uri);
+		return this;
+	}
+
+	@Override
+	public FullHttpRequest setProtocolVersion(final HttpVersion version) {
+		head.setProtocolVersion(version);
+		return this;
+	}
+
+	@Override
+	public ByteBuf content() {
+		return Unpooled.EMPTY_BUFFER;
+	}
+
+	@Override
+	public FullHttpRequest copy() {
+		final DefaultFullHttpRequest copy = new DefaultFullHttpRequest(getProtocolVersion(),
+				getMethod(), getUri());
+		copy.headers().set(headers());
+		return copy;
+	}
+
+	@Override
+	public FullHttpRequest duplicate() {
+		return copy();
+	}
+
+	@Override
+	public int refCnt() {
+		return 1;
+	}
+
+	@Override
+	public FullHttpRequest retain() {
+		return this;
+	}
+
+	@Override
+	public FullHttpRequest retain(final int increment) {
+		return this;
+	}
+
+	@Override
+	public boolean release() {
+		return false;
+	}
+
+	@Override
+	public boolean release(final int decrement) {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return head.toString();
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.s3d.httpserver.server;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.handler.ssl.SslHandler;
+
+import com.s3d.httpserver.websocket.WebSocketFrameHandler;
+import com.s3d.httpserver.websocket.WebSocketHandler;
+
+/**
+ * 把路由到 {@link WebSocketHandler} 的HTTP/1.1请求升级为WebSocket连接.
+ * 升级后pipeline只剩 ssl, ConnectionTracker, WebSocket编解码和 {@link WebSocketFrameHandler},
+ * 连接不再受HTTP的超时和请求数限制.
+ */
+final class WebSocketUpgrader {
+
+	private static final EncodedResponse UPGRADE_REQUIRED = EncodedResponse.of(
+			HttpResponseStatus.UPGRADE_REQUIRED, "426 Upgrade Required",
+			HttpHeaders.Names.UPGRADE, HttpHeaders.Values.WEBSOCKET);
+
+	private WebSocketUpgrader() {
+	}
+
+	static void upgrade(final ChannelHandlerContext ctx, final FullHttpRequest request,
+			final WebSocketHandler handler) {
+
+		final ChannelPipeline pipeline = ctx.pipeline();
+		// HTTP/2 stream上没有HttpRequestDecoder, 不支持升级
+		if (!HttpMethod.GET.equals(request.getMethod())
+				|| !HttpHeaders.Values.WEBSOCKET.equalsIgnoreCase(
+						request.headers().get(HttpHeaders.Names.UPGRADE))
+				|| pipeline.get(HttpRequestDecoder.class) == null) {
+			UPGRADE_REQUIRED.write(ctx, HttpHeaders.isKeepAlive(request));
+			return;
+		}
+
+		final WebSocketServerHandshaker handshaker = new WebSocketServerHandshakerFactory(
+				location(ctx, request), handler.subprotocols(), false,
+				handler.maxFramePayloadLength()).newHandshaker(request);
+		if (handshaker == null) {
+			WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
+			return;
+		}
+
+		removeIfPresent(pipeline, ConnectionLifecycleHandler.class);
+		removeIfPresent(pipeline, Http2Negotiator.class);
+		pipeline.remove(ctx.handler());
+
+		final WebSocketFrameHandler frameHandler = new WebSocketFrameHandler(handler, handshaker,
+				ctx.channel(), request.getUri());
+		pipeline.addLast("ws-aggregator", new WebSocketFrameAggregator(handler.maxFramePayloadLength()));
+		pipeline.addLast("ws-handler", frameHandler);
+
+		// 握手会把HttpRequestDecoder换成帧解码器, 响应写出后移除HttpResponseEncoder
+		handshaker.handshake(ctx.channel(), request).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) {
+				if (future.isSuccess()) {
+					frameHandler.opened();
+				} else {
+					future.channel().close();
+				}
+			}
+		});
+
+	}
+
+	private static String location(final ChannelHandlerContext ctx, final FullHttpRequest request) {
+		final String scheme = ctx.pipeline().get(SslHandler.class) != null ? "wss://" : "ws://";
+		return scheme + request.headers().get(HttpHeaders.Names.HOST) + request.getUri();
+	}
+
+	private static void removeIfPresent(final ChannelPipeline pipeline,
+			final Class<? extends ChannelHandler> type) {
+		if (pipeline.get(type) != null) {
+			pipeline.remove(type);
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.s3d.httpserver.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 向一组WebSocket连接广播消息. 每条消息只编码一次成完整的帧,
+ * 每个订阅者写出同一buffer的duplicate, 不复制内容.
+ * 写缓冲超过高水位(不可写)的订阅者按 {@link SlowSubscriberPolicy} 跳过本条消息或断开.
+ * 关闭的连接自动退出订阅.
+ */
+public class WebSocketBroadcaster {
+
+	public enum SlowSubscriberPolicy {
+		/* 不发送本条消息 */
+		SKIP,
+		/* 关闭连接 */
+		DROP
+	}
+
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+
+	private final ChannelGroup subscribers =
+			new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+	private final SlowSubscriberPolicy policy;
+
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public WebSocketBroadcaster() {
+		this(SlowSubscriberPolicy.SKIP);
+	}
+
+	public WebSocketBroadcaster(final SlowSubscriberPolicy policy_) {
+		policy = policy_;
+	}
+
+	public boolean subscribe(final WebSocketSession session) {
+		return subscribers.add(session.channel());
+	}
+
+	public boolean unsubscribe(final WebSocketSession session) {
+		return subscribers.remove(session.channel());
+	}
+
+	public int size() {
+		return subscribers.size();
+	}
+
+	/**
+	 * @return 写出的订阅者数
+	 */
+	public int broadcast(final String text) {
+		final byte[] payload = text.getBytes(CharsetUtil.UTF_8);
+		return send(encode(OPCODE_TEXT, Unpooled.wrappedBuffer(payload)));
+	}
+
+	/**
+	 * @param data 不会被修改或释放
+	 * @return 写出的订阅者数
+	 */
+	public int broadcast(final ByteBuf data) {
+		return send(encode(OPCODE_BINARY, data));
+	}
+
+	private int send(final ByteBuf frame) {
+		int sent = 0;
+		try {
+			for (final Channel channel : subscribers) {
+				if (!channel.isWritable()) {
+					if (policy == SlowSubscriberPolicy.DROP) {
+						dropped.incrementAndGet();
+						channel.close();
+					} else {
+						skipped.incrementAndGet();
+					}
+					continue;
+				}
+				channel.writeAndFlush(frame.duplicate().retain(), channel.voidPromise());
+				sent++;
+			}
+		} finally {
+			frame.release();
+		}
+		return sent;
+	}
+
+	/**
+	 * 服务端发出的帧不加掩码: FIN + opcode, 长度, 内容
+	 */
+	static ByteBuf encode(final int opcode, final ByteBuf payload) {
+		final int length = payload.readableBytes();
+		final int headerLength = length < 126 ? 2 : length <= 0xffff ? 4 : 10;
+		final ByteBuf frame = Unpooled.directBuffer(headerLength + length);
+		frame.writeByte(0x80 | opcode);
+		if (length < 126) {
+			frame.writeByte(length);
+		} else if (length <= 0xffff) {
+			frame.writeByte(126).writeShort(length);
+		} else {
+			frame.writeByte(127).writeLong(length);
+		}
+		frame.writeBytes(payload, payload.readerIndex(), length);
+		return frame;
+	}
+
+	/**
+	 * 因不可写而跳过的消息数
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * 因不可写而断开的连接数
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+}
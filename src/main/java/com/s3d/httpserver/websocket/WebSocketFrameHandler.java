@@ -0,0 +1,90 @@
+package com.s3d.httpserver.websocket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 升级后连接pipeline的最后一个handler, 把合并好的消息交给 {@link WebSocketHandler},
+ * 自己回复ping和close.
+ */
+public final class WebSocketFrameHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
+
+	private static final Logger log = LoggerFactory.getLogger(WebSocketFrameHandler.class);
+
+	private final WebSocketHandler handler;
+	private final WebSocketServerHandshaker handshaker;
+	private final WebSocketSession session;
+	private boolean open = false;
+
+	public WebSocketFrameHandler(final WebSocketHandler handler_,
+			final WebSocketServerHandshaker handshaker_, final Channel channel, final String uri) {
+		handler = handler_;
+		handshaker = handshaker_;
+		session = new WebSocketSession(channel, uri, handshaker);
+	}
+
+	/**
+	 * 握手响应写出后由server调用, 在event loop中执行
+	 */
+	public void opened() {
+		open = true;
+		try {
+			handler.onOpen(session);
+		} catch (final Throwable t) {
+			failed(t);
+		}
+	}
+
+	@Override
+	protected void channelRead0(final ChannelHandlerContext ctx, final WebSocketFrame frame) {
+		try {
+			if (frame instanceof TextWebSocketFrame) {
+				handler.onText(session, ((TextWebSocketFrame) frame).text());
+			} else if (frame instanceof BinaryWebSocketFrame) {
+				handler.onBinary(session, frame.content());
+			} else if (frame instanceof PingWebSocketFrame) {
+				ctx.writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
+			} else if (frame instanceof CloseWebSocketFrame) {
+				handshaker.close(ctx.channel(), (CloseWebSocketFrame) frame.retain());
+			}
+		} catch (final Throwable t) {
+			failed(t);
+		}
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		if (open) {
+			open = false;
+			try {
+				handler.onClose(session);
+			} catch (final Throwable t) {
+				log.error("error in WebSocketHandler.onClose", t);
+			}
+		}
+		super.channelInactive(ctx);
+	}
+
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+		log.debug("websocket connection failed", cause);
+		ctx.close();
+	}
+
+	private void failed(final Throwable t) {
+		log.error("error in WebSocketHandler", t);
+		session.channel().close();
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.s3d.httpserver.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.io.IOException;
+
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+
+/**
+ * WebSocket端点, 和普通handler一样通过 {@code HttpServerConfig.requestHandler(prefix, handler)} 注册.
+ * 路径匹配的请求完成握手后, 该连接上的消息交给本handler的回调, 回调在连接的event loop中执行.
+ * 不是WebSocket升级的请求返回426.
+ */
+public abstract class WebSocketHandler extends RequestHandlerBase {
+
+	private int maxFramePayloadLength = 64 * 1024;
+	private String subprotocols = null;
+
+	/**
+	 * 单个消息(包括分片合并后)的最大长度, 超过时关闭连接. 默认64K
+	 */
+	public WebSocketHandler maxFramePayloadLength(final int max) {
+		maxFramePayloadLength = max;
+		return this;
+	}
+
+	/**
+	 * 支持的子协议, 逗号分隔, null表示不协商
+	 */
+	public WebSocketHandler subprotocols(final String subprotocols_) {
+		subprotocols = subprotocols_;
+		return this;
+	}
+
+	public int maxFramePayloadLength() {
+		return maxFramePayloadLength;
+	}
+
+	public String subprotocols() {
+		return subprotocols;
+	}
+
+	/**
+	 * 升级请求由server直接处理, 不经过这里
+	 */
+	@Override
+	public final void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+			final ServerResponse response) throws IOException {
+		return;
+	}
+
+	/**
+	 * 握手完成
+	 */
+	public void onOpen(final WebSocketSession session) {
+	}
+
+	public void onText(final WebSocketSession session, final String text) {
+	}
+
+	/**
+	 * @param data 回调返回后释放, 需要保留时调用retain()
+	 */
+	public void onBinary(final WebSocketSession session, final ByteBuf data) {
+	}
+
+	/**
+	 * 连接关闭, 包括对方断开
+	 */
+	public void onClose(final WebSocketSession session) {
+	}
+
+}
@@ -0,0 +1,67 @@
+package com.s3d.httpserver.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+
+/**
+ * 一个已完成握手的WebSocket连接
+ */
+public final class WebSocketSession {
+
+	private final Channel channel;
+	private final String uri;
+	private final WebSocketServerHandshaker handshaker;
+
+	WebSocketSession(final Channel channel_, final String uri_,
+			final WebSocketServerHandshaker handshaker_) {
+		channel = channel_;
+		uri = uri_;
+		handshaker = handshaker_;
+	}
+
+	public ChannelFuture send(final String text) {
+		return channel.writeAndFlush(new TextWebSocketFrame(text));
+	}
+
+	/**
+	 * @param data 写出后释放
+	 */
+	public ChannelFuture send(final ByteBuf data) {
+		return channel.writeAndFlush(new BinaryWebSocketFrame(data));
+	}
+
+	/**
+	 * 发送close帧后关闭连接
+	 */
+	public ChannelFuture close() {
+		return handshaker.close(channel, new CloseWebSocketFrame());
+	}
+
+	public boolean isOpen() {
+		return channel.isActive();
+	}
+
+	/**
+	 * 握手请求的URI
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * 协商的子协议, 没有时为null
+	 */
+	public String getSubprotocol() {
+		return handshaker.selectedSubprotocol();
+	}
+
+	public Channel channel() {
+		return channel;
+	}
+
+}
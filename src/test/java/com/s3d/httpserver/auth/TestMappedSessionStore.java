@@ -0,0 +1,179 @@
+package com.s3d.httpserver.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMappedSessionStore {
+
+	private File dir;
+	private final SessionCodec<Session> codec = new SerializableSessionCodec<Session>(Session.class);
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "hss-" + System.nanoTime());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testPutGetRemove() throws Exception {
+		final MappedSessionStore<Session> store =
+				new MappedSessionStore<Session>(dir, codec, 1, TimeUnit.HOURS, 64 * 1024);
+		try {
+			// enough sessions to grow the index and roll over segments
+			for (int i = 0; i < 5000; i++) {
+				store.put(new Session("s" + i, "user" + i));
+			}
+			assertEquals(5000, store.size());
+			assertTrue(store.segmentCount() > 1);
+			for (int i = 0; i < 5000; i++) {
+				assertEquals("user" + i, store.get("s" + i).getUserId());
+			}
+			assertNull(store.get("missing"));
+
+			store.put(new Session("s1", "replaced"));
+			assertEquals("replaced", store.get("s1").getUserId());
+			assertEquals(5000, store.size());
+
+			assertTrue(store.remove("s2"));
+			assertFalse(store.remove("s2"));
+			assertNull(store.get("s2"));
+			assertEquals(4999, store.size());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		final MappedSessionStore<Session> store =
+				new MappedSessionStore<Session>(dir, codec, 1000, TimeUnit.MILLISECONDS, 64 * 1024);
+		try {
+			for (int i = 0; i < 2000; i++) {
+				store.put(new Session("s" + i, "user" + i));
+			}
+			final long written = System.currentTimeMillis();
+			final int segments = store.segmentCount();
+			assertTrue(segments > 1);
+
+			Thread.sleep(300);
+			assertTrue(store.touch("s0"));
+			store.put(new Session("fresh", "fresh"));
+			Thread.sleep(written + 1050 - System.currentTimeMillis());
+
+			assertNull(store.get("s1"));
+			assertFalse(store.touch("s1"));
+			assertEquals("user0", store.get("s0").getUserId());
+
+			assertEquals(1999, store.sweep());
+			assertEquals(2, store.size());
+			assertEquals("user0", store.get("s0").getUserId());
+			assertEquals("fresh", store.get("fresh").getUserId());
+			// segments without live sessions are compacted away
+			assertTrue(store.segmentCount() < segments);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		MappedSessionStore<Session> store =
+				new MappedSessionStore<Session>(dir, codec, 1, TimeUnit.HOURS, 64 * 1024);
+		for (int i = 0; i < 1000; i++) {
+			store.put(new Session("s" + i, "user" + i));
+		}
+		store.put(new Session("s5", "replaced"));
+		store.remove("s6");
+		store.close();
+
+		store = new MappedSessionStore<Session>(dir, codec, 1, TimeUnit.HOURS, 64 * 1024);
+		try {
+			assertEquals(999, store.size());
+			assertEquals("user0", store.get("s0").getUserId());
+			assertEquals("replaced", store.get("s5").getUserId());
+			assertNull(store.get("s6"));
+			assertEquals("user999", store.get("s999").getUserId());
+			store.put(new Session("after", "after"));
+			assertEquals("after", store.get("after").getUserId());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testTornWrite() throws Exception {
+		MappedSessionStore<Session> store =
+				new MappedSessionStore<Session>(dir, codec, 1, TimeUnit.HOURS, 64 * 1024);
+		store.put(new Session("a", "alice"));
+		store.put(new Session("b", "bob"));
+		store.close();
+
+		// corrupt the payload of the last record, as if the process died mid-write
+		final File segment = dir.listFiles()[0];
+		final RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			int pos = MappedSessionStore.HEADER_SIZE;
+			raf.seek(pos);
+			pos += raf.readInt();
+			raf.seek(pos + 40);
+			raf.write(0x55);
+		} finally {
+			raf.close();
+		}
+
+		store = new MappedSessionStore<Session>(dir, codec, 1, TimeUnit.HOURS, 64 * 1024);
+		try {
+			assertEquals(1, store.size());
+			assertEquals("alice", store.get("a").getUserId());
+			assertNull(store.get("b"));
+			store.put(new Session("c", "carol"));
+		} finally {
+			store.close();
+		}
+
+		store = new MappedSessionStore<Session>(dir, codec, 1, TimeUnit.HOURS, 64 * 1024);
+		try {
+			assertEquals(2, store.size());
+			assertEquals("carol", store.get("c").getUserId());
+		} finally {
+			store.close();
+		}
+	}
+
+	static class Session implements UserSessionDetail {
+		private static final long serialVersionUID = 1L;
+		private final String id;
+		private final String user;
+
+		Session(final String id_, final String user_) {
+			id = id_;
+			user = user_;
+		}
+
+		@Override
+		public String getSessionId() {
+			return id;
+		}
+
+		@Override
+		public String getUserId() {
+			return user;
+		}
+	}
+
+}
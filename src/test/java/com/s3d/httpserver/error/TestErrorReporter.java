@@ -0,0 +1,121 @@
+package com.s3d.httpserver.error;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.s3d.httpserver.server.HttpServer;
+import com.s3d.httpserver.server.HttpServerConfig;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+public class TestErrorReporter {
+
+	private final ErrorReporter reporter = new ErrorReporter(2, 5, 60000);
+
+	@After
+	public void tearDown() {
+		reporter.shutdown();
+	}
+
+	@Test
+	public void testThrottlesRepeatedExceptions() {
+		for (int i = 0; i < 3; i++) {
+			// the same type thrown from the same frames on every iteration
+			assertTrue(reporter.firstOccurrence(failure()) == (i == 0));
+		}
+		assertTrue(reporter.firstOccurrence(new IllegalStateException()));
+		assertTrue(reporter.isSummaryRunning());
+	}
+
+	@Test
+	public void testFingerprintCoversCause() {
+		final Exception plain = failure();
+		final Exception wrapped = failure();
+		wrapped.initCause(new IllegalStateException());
+		assertNotEquals(reporter.fingerprint(plain), reporter.fingerprint(wrapped));
+		assertTrue(reporter.firstOccurrence(plain));
+		assertTrue(reporter.firstOccurrence(wrapped));
+	}
+
+	@Test
+	public void testFullTable() {
+		assertTrue(reporter.firstOccurrence(new IllegalStateException()));
+		assertTrue(reporter.firstOccurrence(new IllegalArgumentException()));
+		// the table holds 2 fingerprints, a third one is only counted
+		assertFalse(reporter.firstOccurrence(new UnsupportedOperationException()));
+	}
+
+	@Test
+	public void testIdleFingerprintsExpire() {
+		final Exception e = failure();
+		assertTrue(reporter.firstOccurrence(e));
+		assertFalse(reporter.firstOccurrence(e));
+		// one summary reports the repetition, five idle ones drop the fingerprint
+		for (int i = 0; i < 6; i++) {
+			reporter.summarize();
+		}
+		assertTrue(reporter.firstOccurrence(e));
+	}
+
+	@Test
+	public void testDefaultHandlerUsesConfigReporter() {
+		final DefaultErrorHandler handler = new DefaultErrorHandler();
+		final HttpServerConfig config = new HttpServerConfig().errorHandler(handler);
+		assertSame(config.errorReporter(), handler.reporter());
+
+		config.errorReporter(reporter);
+		assertSame(reporter, handler.reporter());
+
+		// an explicitly given reporter is kept
+		final ErrorReporter own = new ErrorReporter();
+		final DefaultErrorHandler explicit = new DefaultErrorHandler(own);
+		new HttpServerConfig().errorHandler(explicit).errorReporter(reporter);
+		assertSame(own, explicit.reporter());
+
+		// the lazily created default handler follows a reporter set afterwards
+		final HttpServerConfig lazy = new HttpServerConfig();
+		final DefaultErrorHandler created = (DefaultErrorHandler) lazy.errorHandler();
+		assertSame(lazy.errorReporter(), created.reporter());
+		lazy.errorReporter(reporter);
+		assertSame(reporter, created.reporter());
+	}
+
+	@Test
+	public void testStoppedWithServer() throws Exception {
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+
+		final HttpServer server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.errorReporter(reporter));
+		server.listen().sync();
+
+		reporter.firstOccurrence(failure());
+		assertTrue(reporter.isSummaryRunning());
+		server.shutdown().sync();
+		// the listener may run just after sync() returns
+		for (int i = 0; i < 100 && reporter.isSummaryRunning(); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(reporter.isSummaryRunning());
+	}
+
+	private static Exception failure() {
+		return new Exception("failed");
+	}
+
+}
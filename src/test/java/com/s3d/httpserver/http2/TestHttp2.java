@@ -0,0 +1,477 @@
+package com.s3d.httpserver.http2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+import com.s3d.httpserver.server.ConnectionManager;
+import com.s3d.httpserver.server.HttpServer;
+import com.s3d.httpserver.server.HttpServerConfig;
+import com.s3d.httpserver.server.InboundBackpressure;
+import com.s3d.httpserver.server.RequestBodyBudget;
+import com.s3d.httpserver.server.TestRequestHandler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.CharsetUtil;
+
+public class TestHttp2 {
+
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(CharsetUtil.US_ASCII);
+	private static final int BIG = 100000;
+
+	private HttpServer server;
+	private int port;
+	private Socket socket;
+	private final AtomicReference<ServerResponse> held = new AtomicReference<ServerResponse>();
+	private final CountDownLatch holding = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws Exception {
+		start(config().http2(new Http2Settings().maxConcurrentStreams(2)));
+	}
+
+	private HttpServerConfig config() throws IOException {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		return new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.requestHandler("/slow", new TestRequestHandler("slow", true, 200, 0, false, false))
+				.requestHandler("/echo", new EchoHandler())
+				.requestHandler("/big", new BigHandler())
+				.requestHandler("/hold", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+							final ServerResponse response) throws IOException {
+						response.suspend();
+						held.set(response);
+						holding.countDown();
+					}
+				});
+	}
+
+	/**
+	 * replaces the server started by setUp
+	 */
+	private void start(final HttpServerConfig config) throws Exception {
+		if (server != null) {
+			server.shutdown().sync();
+		}
+		server = new HttpServer();
+		server.configure(config);
+		server.listen().sync();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (socket != null) {
+			socket.close();
+		}
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testPriorKnowledgeMultiplexing() throws Exception {
+
+		final Client client = connect();
+		client.settings();
+		client.request(1, "GET", "/slow", null);
+		client.request(3, "GET", "/slow", null);
+		// over the concurrency limit
+		client.request(5, "GET", "/slow", null);
+
+		final Map<Integer, String> responses = client.readResponses(3);
+		assertEquals("200 slow", responses.get(1));
+		assertEquals("200 slow", responses.get(3));
+		assertEquals("RST 7", responses.get(5));
+	}
+
+	@Test
+	public void testRequestBody() throws Exception {
+
+		final Client client = connect();
+		client.settings();
+		client.request(1, "POST", "/echo", new byte[40000]);
+
+		assertEquals("200 40000", client.readResponses(1).get(1));
+	}
+
+	@Test
+	public void testExpectContinue() throws Exception {
+
+		final Client client = connect();
+		client.settings();
+		client.expect(1, "/echo");
+		Frame frame;
+		while ((frame = client.read()).type != 0x1) {
+		}
+		assertEquals(1, frame.streamId);
+		assertEquals(0, frame.flags & 0x1);
+		assertEquals("100", client.status(frame));
+		client.frame(0x0, 0x1, 1, Unpooled.wrappedBuffer(new byte[5]));
+		assertEquals("200 5", client.readResponses(1).get(1));
+
+		// rejected by the channel handler before any 100 is sent
+		client.expect(3, "/missing");
+		while ((frame = client.read()).type != 0x1) {
+		}
+		assertEquals(3, frame.streamId);
+		assertEquals("404", client.status(frame));
+	}
+
+	@Test
+	public void testBackpressurePausesConnection() throws Exception {
+
+		final InboundBackpressure backpressure = new InboundBackpressure(1, 0, -1, -1);
+		start(config().http2(new Http2Settings()).inboundBackpressure(backpressure));
+
+		final Client client = connect();
+		client.settings();
+		client.request(1, "GET", "/slow", null);
+		Thread.sleep(100);
+		// the socket is not read while the first stream is in flight
+		client.request(3, "GET", "/echo", null);
+
+		Frame frame;
+		while (((frame = client.read()).flags & 0x1) == 0 || frame.type > 0x1) {
+		}
+		assertEquals(1, frame.streamId);
+		assertEquals("200 0", client.readResponses(1).get(3));
+		// high watermark 1: every request pauses the connection once
+		assertEquals(2, backpressure.getPauseCount());
+	}
+
+	@Test
+	public void testBodyBudget() throws Exception {
+
+		final RequestBodyBudget budget = new RequestBodyBudget(1000, 500);
+		start(config().http2(new Http2Settings()).requestBodyBudget(budget));
+
+		final Client client = connect();
+		client.settings();
+		// an empty budget admits a body of any size
+		client.request(1, "POST", "/hold", new byte[2000]);
+		assertTrue(holding.await(5, TimeUnit.SECONDS));
+		assertEquals(2000, budget.getBytesInUse());
+
+		// the connection window is not returned while the budget is exceeded
+		client.request(3, "POST", "/echo", new byte[10]);
+		waitFor(1, budget);
+
+		held.get().finish();
+		final Map<Integer, String> responses = client.readResponses(2);
+		assertEquals("200 ", responses.get(1));
+		assertEquals("200 10", responses.get(3));
+		waitFor(0, budget);
+		assertEquals(1, budget.getPauseCount());
+		waitForBytes(0, budget);
+	}
+
+	@Test
+	public void testBodyBudgetReject() throws Exception {
+
+		final RequestBodyBudget budget = new RequestBodyBudget(1000, 500).reject(true);
+		start(config().http2(new Http2Settings()).requestBodyBudget(budget));
+
+		final Client client = connect();
+		client.settings();
+		client.request(1, "POST", "/hold", new byte[2000]);
+		assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+		client.request(3, "POST", "/echo", new byte[10]);
+		assertEquals("503 ", client.readResponses(1).get(3));
+		assertEquals(1, budget.getRejectedCount());
+
+		// a reset stream returns what it buffered
+		client.frame(0x3, 0, 1, Unpooled.buffer().writeInt(0x8));
+		waitForBytes(0, budget);
+		client.request(5, "POST", "/echo", new byte[10]);
+		// the rejected stream is also reset since its body was not read to the end
+		assertEquals("200 10", client.readResponses(2).get(5));
+	}
+
+	@Test
+	public void testBodyReadTimeout() throws Exception {
+
+		final ConnectionManager manager = new ConnectionManager()
+				.bodyReadTimeout(200, TimeUnit.MILLISECONDS)
+				.tickMillis(20);
+		start(config().http2(new Http2Settings()).connectionManager(manager));
+
+		final Client client = connect();
+		client.settings();
+		// the body never arrives
+		client.head(1, "POST", "/echo", false);
+		assertEquals("RST 8", client.readResponses(1).get(1));
+		assertEquals(1, manager.getTimeoutCount());
+
+		// only the stream is reset
+		client.request(3, "GET", "/echo", null);
+		assertEquals("200 0", client.readResponses(1).get(3));
+	}
+
+	@Test
+	public void testSlowStream() throws Exception {
+
+		final ConnectionManager manager = new ConnectionManager()
+				.minTransferRate(1000, 200, TimeUnit.MILLISECONDS)
+				.tickMillis(20);
+		start(config().http2(new Http2Settings()).connectionManager(manager));
+
+		final Client client = connect();
+		client.settings();
+		client.head(1, "POST", "/echo", false);
+		client.frame(0x0, 0, 1, Unpooled.wrappedBuffer(new byte[10]));
+		assertEquals("RST 11", client.readResponses(1).get(1));
+		assertEquals(1, manager.getSlowClientCount());
+	}
+
+	@Test
+	public void testFlowControl() throws Exception {
+
+		final Client client = connect();
+		// stream window of 1000 bytes
+		client.frame(0x4, 0, 0, Unpooled.buffer().writeShort(0x4).writeInt(1000));
+		client.request(1, "GET", "/big", null);
+
+		Frame frame;
+		int received = 0;
+		while ((frame = client.read()).type != 0x1) {
+		}
+		assertEquals(1, frame.streamId);
+		while (received < 1000) {
+			frame = client.read();
+			if (frame.type == 0x0) {
+				received += frame.payload.readableBytes();
+			}
+		}
+		assertEquals(1000, received);
+
+		client.frame(0x8, 0, 1, Unpooled.buffer().writeInt(BIG));
+		client.frame(0x8, 0, 0, Unpooled.buffer().writeInt(BIG));
+		while ((frame.flags & 0x1) == 0) {
+			frame = client.read();
+			if (frame.type == 0x0) {
+				received += frame.payload.readableBytes();
+			}
+		}
+		assertEquals(BIG, received);
+	}
+
+	@Test
+	public void testUpgrade() throws Exception {
+
+		socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		final OutputStream out = socket.getOutputStream();
+		out.write(("GET /slow HTTP/1.1\r\n"
+				+ "Host: localhost\r\n"
+				+ "Connection: Upgrade, HTTP2-Settings\r\n"
+				+ "Upgrade: h2c\r\n"
+				+ "HTTP2-Settings: AAMAAABkAARAAAAAAAIAAAAA\r\n\r\n").getBytes(CharsetUtil.US_ASCII));
+
+		final DataInputStream in = new DataInputStream(socket.getInputStream());
+		final StringBuilder head = new StringBuilder();
+		while (!head.toString().endsWith("\r\n\r\n")) {
+			head.append((char) in.readByte());
+		}
+		assertTrue(head.toString(), head.toString().startsWith("HTTP/1.1 101 Switching Protocols"));
+
+		final Client client = new Client(out, in);
+		out.write(PREFACE);
+		client.settings();
+		assertEquals("200 slow", client.readResponses(1).get(1));
+	}
+
+	private static void waitFor(final int paused, final RequestBodyBudget budget) throws InterruptedException {
+		for (int i = 0; i < 100 && budget.getPausedChannels() != paused; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(paused, budget.getPausedChannels());
+	}
+
+	private static void waitForBytes(final long bytes, final RequestBodyBudget budget)
+			throws InterruptedException {
+		for (int i = 0; i < 100 && budget.getBytesInUse() != bytes; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(bytes, budget.getBytesInUse());
+	}
+
+	private Client connect() throws IOException {
+		socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		final Client client = new Client(socket.getOutputStream(),
+				new DataInputStream(socket.getInputStream()));
+		client.out.write(PREFACE);
+		return client;
+	}
+
+	private static final class Frame {
+		int type;
+		int flags;
+		int streamId;
+		ByteBuf payload;
+	}
+
+	private static final class Client {
+
+		final OutputStream out;
+		final DataInputStream in;
+		final HpackDecoder decoder = new HpackDecoder(64 * 1024);
+
+		Client(final OutputStream out_, final DataInputStream in_) {
+			out = out_;
+			in = in_;
+		}
+
+		void settings() throws IOException {
+			frame(0x4, 0, 0, Unpooled.EMPTY_BUFFER);
+		}
+
+		void request(final int streamId, final String method, final String path,
+				final byte[] body) throws IOException {
+			head(streamId, method, path, body == null);
+			if (body != null) {
+				for (int offset = 0; offset < body.length; offset += 16384) {
+					final int n = Math.min(16384, body.length - offset);
+					frame(0x0, offset + n == body.length ? 0x1 : 0, streamId,
+							Unpooled.wrappedBuffer(body, offset, n));
+				}
+			}
+		}
+
+		void head(final int streamId, final String method, final String path,
+				final boolean endStream) throws IOException {
+			final ByteBuf block = Unpooled.buffer();
+			HpackEncoder.encodeHeader(block, ":method", method);
+			HpackEncoder.encodeHeader(block, ":scheme", "http");
+			HpackEncoder.encodeHeader(block, ":path", path);
+			HpackEncoder.encodeHeader(block, ":authority", "localhost");
+			frame(0x1, endStream ? 0x5 : 0x4, streamId, block);
+		}
+
+		void expect(final int streamId, final String path) throws IOException {
+			final ByteBuf block = Unpooled.buffer();
+			HpackEncoder.encodeHeader(block, ":method", "POST");
+			HpackEncoder.encodeHeader(block, ":scheme", "http");
+			HpackEncoder.encodeHeader(block, ":path", path);
+			HpackEncoder.encodeHeader(block, ":authority", "localhost");
+			HpackEncoder.encodeHeader(block, "expect", "100-continue");
+			frame(0x1, 0x4, streamId, block);
+		}
+
+		String status(final Frame headers) throws Exception {
+			final StringBuilder status = new StringBuilder();
+			decoder.decode(headers.payload, new HpackDecoder.Listener() {
+				@Override
+				public void header(final String name, final String value) {
+					if (":status".equals(name)) {
+						status.append(value);
+					}
+				}
+			});
+			return status.toString();
+		}
+
+		void frame(final int type, final int flags, final int streamId, final ByteBuf payload)
+				throws IOException {
+			final ByteBuf frame = Unpooled.buffer();
+			frame.writeMedium(payload.readableBytes()).writeByte(type).writeByte(flags)
+					.writeInt(streamId).writeBytes(payload);
+			out.write(frame.array(), frame.arrayOffset(), frame.readableBytes());
+			out.flush();
+		}
+
+		Frame read() throws IOException {
+			final Frame frame = new Frame();
+			final int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+			frame.type = in.readUnsignedByte();
+			frame.flags = in.readUnsignedByte();
+			frame.streamId = in.readInt() & 0x7fffffff;
+			final byte[] payload = new byte[length];
+			in.readFully(payload);
+			frame.payload = Unpooled.wrappedBuffer(payload);
+			return frame;
+		}
+
+		/**
+		 * @return streamId -> "status body" or "RST error"
+		 */
+		Map<Integer, String> readResponses(final int count) throws Exception {
+			final Map<Integer, String> status = new HashMap<Integer, String>();
+			final Map<Integer, StringBuilder> bodies = new HashMap<Integer, StringBuilder>();
+			final Map<Integer, String> done = new HashMap<Integer, String>();
+			while (done.size() < count) {
+				final Frame frame = read();
+				final int id = frame.streamId;
+				if (frame.type == 0x1) {
+					decoder.decode(frame.payload, new HpackDecoder.Listener() {
+						@Override
+						public void header(final String name, final String value) {
+							if (":status".equals(name)) {
+								status.put(id, value);
+							}
+						}
+					});
+					bodies.put(id, new StringBuilder());
+				} else if (frame.type == 0x0) {
+					bodies.get(id).append(frame.payload.toString(CharsetUtil.UTF_8));
+				} else if (frame.type == 0x3) {
+					done.put(id, "RST " + frame.payload.readInt());
+					continue;
+				}
+				if ((frame.type == 0x0 || frame.type == 0x1) && (frame.flags & 0x1) != 0) {
+					done.put(id, status.get(id) + " " + bodies.get(id));
+				}
+			}
+			return done;
+		}
+	}
+
+	private static class EchoHandler extends RequestHandlerBase {
+		@Override
+		public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write(String.valueOf(request.getContent().readableBytes()));
+		}
+	}
+
+	private static class BigHandler extends RequestHandlerBase {
+		@Override
+		public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write(new byte[BIG]);
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package com.s3d.httpserver.limit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestAdaptiveConcurrencyLimiter {
+
+	private static final int WINDOW = 10;
+
+	@Test
+	public void testAdditiveIncrease() {
+
+		final AdaptiveConcurrencyLimiter limiter =
+				new AdaptiveConcurrencyLimiter(10, 2, 12).windowSize(WINDOW);
+
+		window(limiter, 10, 1000);
+		assertEquals(11, limiter.getLimit());
+		window(limiter, 10, 1000);
+		assertEquals(12, limiter.getLimit());
+
+		// capped at maxLimit
+		window(limiter, 10, 1000);
+		assertEquals(12, limiter.getLimit());
+		assertEquals(1000, limiter.getNoLoadLatency(TimeUnit.NANOSECONDS));
+	}
+
+	@Test
+	public void testIdleDoesNotGrow() {
+
+		final AdaptiveConcurrencyLimiter limiter =
+				new AdaptiveConcurrencyLimiter(10, 2, 100).windowSize(WINDOW);
+
+		// one request at a time never uses half of the limit
+		for (int i = 0; i < 30; i++) {
+			assertTrue(limiter.tryAcquire(RequestPriority.NORMAL));
+			limiter.release(1000);
+		}
+		assertEquals(10, limiter.getLimit());
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() {
+
+		final AdaptiveConcurrencyLimiter limiter =
+				new AdaptiveConcurrencyLimiter(10, 3, 100).windowSize(WINDOW).backoffRatio(0.5);
+
+		window(limiter, 10, 1000);
+		assertEquals(11, limiter.getLimit());
+
+		// latency above twice the no-load latency
+		window(limiter, 10, 2500);
+		assertEquals(5, limiter.getLimit());
+
+		// within the tolerance, but in-flight below half of the limit
+		window(limiter, 2, 2000);
+		assertEquals(5, limiter.getLimit());
+
+		// never below minLimit
+		window(limiter, 5, 5000);
+		window(limiter, 5, 5000);
+		assertEquals(3, limiter.getLimit());
+	}
+
+	@Test
+	public void testPriorities() {
+
+		final AdaptiveConcurrencyLimiter limiter =
+				new AdaptiveConcurrencyLimiter(10, 2, 100).lowPriorityRatio(0.5);
+
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.tryAcquire(RequestPriority.LOW));
+		}
+		assertFalse(limiter.tryAcquire(RequestPriority.LOW));
+
+		// normal requests can still use the rest of the limit
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.tryAcquire(RequestPriority.NORMAL));
+		}
+		assertFalse(limiter.tryAcquire(RequestPriority.NORMAL));
+
+		// critical requests are never shed
+		assertTrue(limiter.tryAcquire(RequestPriority.CRITICAL));
+		assertEquals(11, limiter.getInFlight());
+		assertEquals(2, limiter.getShedCount());
+
+		limiter.release(1000);
+		assertFalse(limiter.tryAcquire(RequestPriority.NORMAL));
+		limiter.release(1000);
+		assertTrue(limiter.tryAcquire(RequestPriority.NORMAL));
+	}
+
+	@Test
+	public void testCancelIsNotSampled() {
+
+		final AdaptiveConcurrencyLimiter limiter =
+				new AdaptiveConcurrencyLimiter(10, 2, 100).windowSize(WINDOW);
+
+		window(limiter, 10, 1000);
+		assertEquals(11, limiter.getLimit());
+		for (int i = 0; i < WINDOW * 3; i++) {
+			assertTrue(limiter.tryAcquire(RequestPriority.NORMAL));
+			limiter.cancel();
+		}
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(1000, limiter.getNoLoadLatency(TimeUnit.NANOSECONDS));
+
+		// a normal window afterwards is not mistaken for overload
+		window(limiter, 10, 1500);
+		assertEquals(12, limiter.getLimit());
+	}
+
+	@Test
+	public void testConcurrentSamples() throws Exception {
+
+		final AdaptiveConcurrencyLimiter limiter =
+				new AdaptiveConcurrencyLimiter(10, 2, 10000).windowSize(WINDOW);
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						limiter.tryAcquire(RequestPriority.CRITICAL);
+						limiter.release(1000);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, limiter.getInFlight());
+		// every window averages exactly the sampled latency
+		assertEquals(1000, limiter.getNoLoadLatency(TimeUnit.NANOSECONDS));
+	}
+
+	/**
+	 * one sampling window: concurrency requests acquired together, the rest one at a time,
+	 * all with the same latency
+	 */
+	private static void window(final AdaptiveConcurrencyLimiter limiter, final int concurrency,
+			final long latencyNanos) {
+		for (int i = 0; i < concurrency; i++) {
+			assertTrue(limiter.tryAcquire(RequestPriority.CRITICAL));
+		}
+		for (int i = 0; i < WINDOW; i++) {
+			if (i >= concurrency) {
+				assertTrue(limiter.tryAcquire(RequestPriority.CRITICAL));
+			}
+			limiter.release(latencyNanos);
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+package com.s3d.httpserver.limit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+import com.s3d.httpserver.server.HttpServer;
+import com.s3d.httpserver.server.HttpServerConfig;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+public class TestConnectionTable {
+
+	private HttpServer server;
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null && server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testPerAddressCap() throws Exception {
+		final ConnectionTable table = new ConnectionTable(4);
+		final InetAddress a = InetAddress.getByName("10.0.0.1");
+		final InetAddress b = InetAddress.getByName("10.0.0.2");
+
+		assertTrue(table.tryAcquire(a, 2));
+		assertTrue(table.tryAcquire(a, 2));
+		assertFalse(table.tryAcquire(a, 2));
+		assertEquals(2, table.count(a));
+
+		// other addresses have their own count
+		assertTrue(table.tryAcquire(b, 2));
+
+		table.release(a);
+		assertTrue(table.tryAcquire(a, 2));
+		table.release(a);
+		table.release(a);
+		assertEquals(0, table.count(a));
+
+		// releasing an unknown address does not go negative
+		table.release(a);
+		assertEquals(0, table.count(a));
+		assertFalse(table.tryAcquire(a, 0));
+	}
+
+	@Test
+	public void testConcurrentAcquire() throws Exception {
+		final ConnectionTable table = new ConnectionTable(2);
+		final InetAddress address = InetAddress.getByName("10.0.0.1");
+		final AtomicInteger acquired = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] threads = new Thread[8];
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (final InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < 1000; j++) {
+						if (table.tryAcquire(address, 5)) {
+							acquired.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(5, acquired.get());
+		assertEquals(5, table.count(address));
+	}
+
+	@Test
+	public void testCidrRange() throws Exception {
+		final CidrRange range = CidrRange.parse("10.1.0.0/16");
+		assertTrue(range.contains(InetAddress.getByName("10.1.255.3")));
+		assertFalse(range.contains(InetAddress.getByName("10.2.0.1")));
+		assertFalse(range.contains(InetAddress.getByName("::1")));
+	}
+
+	@Test
+	public void testServerCap() throws Exception {
+		final int port = start(new HttpServerConfig().maxConnectionsPerAddress(2));
+		final Socket first = open(port);
+		final Socket second = open(port);
+		try {
+			assertEquals("200", get(first));
+			assertEquals("200", get(second));
+			assertEquals("503", rejected(port));
+
+			// the slot is released when a connection closes
+			first.close();
+			String status = "503";
+			for (int i = 0; i < 100 && status.equals("503"); i++) {
+				Thread.sleep(10);
+				final Socket third = open(port);
+				status = get(third);
+				third.close();
+			}
+			assertEquals("200", status);
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void testServerAllowList() throws Exception {
+		final int port = start(new HttpServerConfig().maxConnectionsPerAddress(1)
+				.connectionAllowList("127.0.0.0/8"));
+		final Socket first = open(port);
+		final Socket second = open(port);
+		try {
+			assertEquals("200", get(first));
+			assertEquals("200", get(second));
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	private int start(final HttpServerConfig config) throws Exception {
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(config
+				.address(new InetSocketAddress("127.0.0.1", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.requestHandler("/", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+							final ServerResponse response) throws IOException {
+						response.write("ok");
+					}
+				}));
+		server.listen().sync();
+		return port;
+	}
+
+	private static Socket open(final int port) throws IOException {
+		final Socket socket = new Socket("127.0.0.1", port);
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	/**
+	 * the status of a keep-alive request on the connection
+	 */
+	private static String get(final Socket socket) throws IOException {
+		socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+		return read(socket);
+	}
+
+	private static String read(final Socket socket) throws IOException {
+		final InputStream in = socket.getInputStream();
+		final StringBuilder head = new StringBuilder();
+		while (head.indexOf("\r\n\r\n") < 0) {
+			final int b = in.read();
+			if (b < 0) {
+				break;
+			}
+			head.append((char) b);
+		}
+		final String lower = head.toString().toLowerCase();
+		final int cl = lower.indexOf("content-length:");
+		if (cl >= 0) {
+			final int length = Integer.parseInt(lower.substring(cl + 15, lower.indexOf('\r', cl)).trim());
+			for (int i = 0; i < length; i++) {
+				in.read();
+			}
+		}
+		return head.length() < 12 ? "closed" : head.substring(9, 12);
+	}
+
+	/**
+	 * the status written to a connection over the cap, which is then closed
+	 */
+	private static String rejected(final int port) throws IOException {
+		final Socket socket = open(port);
+		try {
+			// written as soon as the connection is accepted, without a request
+			final String status = read(socket);
+			assertTrue(socket.getInputStream().read() < 0);
+			return status;
+		} finally {
+			socket.close();
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.s3d.httpserver.limit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import org.junit.Test;
+
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+import com.s3d.httpserver.server.HttpServer;
+import com.s3d.httpserver.server.HttpServerConfig;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+public class TestTokenBucketRateLimiter {
+
+	@Test
+	public void testBurstAndRefill() throws Exception {
+
+		final TokenBucketRateLimiter limiter =
+				new TokenBucketRateLimiter(20, 5, RateLimitKey.REMOTE_ADDRESS);
+
+		for (int i = 0; i < 5; i++) {
+			assertTrue(limiter.tryAcquire("10.0.0.1"));
+		}
+		assertFalse(limiter.tryAcquire("10.0.0.1"));
+		assertEquals(1, limiter.getRejectedCount());
+
+		// other keys have their own bucket
+		assertTrue(limiter.tryAcquire("10.0.0.2"));
+
+		// 20 permits/s -> one token every 50ms
+		Thread.sleep(120);
+		assertTrue(limiter.tryAcquire("10.0.0.1"));
+		assertTrue(limiter.tryAcquire("10.0.0.1"));
+	}
+
+	@Test
+	public void testNullKeyIsNotLimited() throws Exception {
+
+		final TokenBucketRateLimiter limiter =
+				new TokenBucketRateLimiter(1, 1, RateLimitKey.IDENTITY);
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(limiter.tryAcquire(null));
+		}
+		assertEquals(0, limiter.size());
+	}
+
+	@Test
+	public void testMaxEntries() throws Exception {
+
+		final TokenBucketRateLimiter limiter =
+				new TokenBucketRateLimiter(1, 1, RateLimitKey.ROUTE, 1, 2);
+
+		assertTrue(limiter.tryAcquire("/a"));
+		assertTrue(limiter.tryAcquire("/b"));
+		assertFalse(limiter.tryAcquire("/a"));
+		// table full: the least recently used bucket (/b) makes room, new keys are still limited
+		assertTrue(limiter.tryAcquire("/c"));
+		assertFalse(limiter.tryAcquire("/c"));
+		assertEquals(2, limiter.size());
+		assertFalse(limiter.tryAcquire("/a"));
+		assertTrue(limiter.tryAcquire("/b"));
+	}
+
+	@Test
+	public void testRetryAfter() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+
+		final HttpServer server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.rateLimiter("/slow", new TokenBucketRateLimiter(0.2, 1, RateLimitKey.ROUTE))
+				.rateLimiter("/fast", new TokenBucketRateLimiter(2, 1, RateLimitKey.ROUTE))
+				.rateLimiter("/identity", new TokenBucketRateLimiter(0.2, 1, RateLimitKey.IDENTITY))
+				.requestHandler("/", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+							final ServerResponse response) throws IOException {
+						response.write("ok");
+					}
+				}));
+		server.listen().sync();
+		try {
+			// the hint follows each limiter's refill rate
+			assertEquals(200, open(port, "/slow").getResponseCode());
+			final HttpURLConnection slow = open(port, "/slow");
+			assertEquals(429, slow.getResponseCode());
+			assertEquals("5", slow.getHeaderField("Retry-After"));
+
+			assertEquals(200, open(port, "/fast").getResponseCode());
+			final HttpURLConnection fast = open(port, "/fast");
+			assertEquals(429, fast.getResponseCode());
+			assertEquals("1", fast.getHeaderField("Retry-After"));
+
+			// unverified credentials do not get a bucket of their own
+			final HttpURLConnection first = open(port, "/identity");
+			first.setRequestProperty("Authorization", "Basic a");
+			assertEquals(200, first.getResponseCode());
+			final HttpURLConnection second = open(port, "/identity");
+			second.setRequestProperty("Authorization", "Basic b");
+			assertEquals(429, second.getResponseCode());
+		} finally {
+			server.shutdown().sync();
+		}
+	}
+
+	private static HttpURLConnection open(final int port, final String path) throws IOException {
+		return (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+	}
+
+}
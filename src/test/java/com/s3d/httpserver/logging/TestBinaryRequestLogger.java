@@ -0,0 +1,91 @@
+package com.s3d.httpserver.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.s3d.httpserver.logging.BinaryLogAnalyzer.RouteStats;
+
+public class TestBinaryRequestLogger {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(System.getProperty("java.io.tmpdir"), "hsal-" + System.nanoTime());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		final BinaryRequestLogger logger = new BinaryRequestLogger(dir, "access", 64 * 1024);
+		final byte[] client = new byte[] { 10, 0, 0, 1 };
+		final long now = System.currentTimeMillis();
+
+		// enough records to roll over several segments
+		for (int i = 0; i < 10000; i++) {
+			logger.append(BinaryLogFormat.TYPE_ACCESS, now + i, "GET /basic", 200, i % 100, 12, client, null);
+		}
+		logger.append(BinaryLogFormat.TYPE_ACCESS, now, "POST /upload", 404, 7, 0, null, null);
+		logger.append(BinaryLogFormat.TYPE_ERROR, now, "POST /upload", 500, 0, 0, null, "java.io.IOException");
+		logger.close();
+
+		final File[] segments = dir.listFiles();
+		assertTrue(segments.length > 1);
+
+		final BinaryLogAnalyzer analyzer = new BinaryLogAnalyzer();
+		for (final File segment : segments) {
+			analyzer.read(segment);
+		}
+
+		final Map<String, RouteStats> routes = analyzer.routes();
+		final RouteStats basic = routes.get("GET /basic");
+		assertEquals(10000, basic.count);
+		assertEquals(49, basic.percentile(50));
+		assertEquals(99, basic.percentile(100));
+
+		final RouteStats upload = routes.get("POST /upload");
+		assertEquals(1, upload.count);
+		assertEquals(1, upload.errors);
+	}
+
+	@Test
+	public void testPercentileHistogram() {
+		final RouteStats stats = new RouteStats("GET /slow");
+		for (long i = 1; i <= 100000; i++) {
+			stats.add(i);
+		}
+		assertEquals(100000, stats.count);
+		assertEquals(100000, stats.percentile(100));
+		assertWithin(50000, stats.percentile(50));
+		assertWithin(90000, stats.percentile(90));
+		assertWithin(99000, stats.percentile(99));
+
+		for (long value = 0; value < (1L << 40); value = value * 3 + 1) {
+			final int bucket = RouteStats.bucket(value);
+			assertTrue(RouteStats.highest(bucket) >= value);
+			assertTrue(bucket == 0 || RouteStats.highest(bucket - 1) < value);
+		}
+	}
+
+	/**
+	 * the bucket upper bound is at most 1/32 above the exact value
+	 */
+	private static void assertWithin(final long exact, final long actual) {
+		assertTrue(actual + " < " + exact, actual >= exact);
+		assertTrue(actual + " > " + exact, actual <= exact + exact / 32);
+	}
+
+}
@@ -0,0 +1,275 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.s3d.httpserver.auth.AsyncAuthorizationHandler;
+import com.s3d.httpserver.auth.AuthorizationHandler;
+import com.s3d.httpserver.auth.UserSessionDetail;
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+public class TestAuthorization {
+
+	private HttpServer server;
+	private int port;
+	private final AtomicInteger handled = new AtomicInteger();
+	private final AtomicInteger verified = new AtomicInteger();
+	private final AtomicInteger cachedHandled = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.authorizationHandler(new AuthorizationHandler() {
+					@Override
+					public String getMethod() {
+						return "Basic";
+					}
+
+					@Override
+					public UserSessionDetail authenticate(final ChannelHandlerContext ctx,
+							final ServerRequest request, final ServerResponse response) {
+						verified.incrementAndGet();
+						final String credentials = request.headers().get("Authorization");
+						return credentials.endsWith(" alice") ? new Session("alice") : null;
+					}
+				})
+				.authorizationHandler(new AsyncAuthorizationHandler() {
+					@Override
+					public String getMethod() {
+						return "Bearer";
+					}
+
+					@Override
+					public Future<UserSessionDetail> authenticate(final ChannelHandlerContext ctx,
+							final ServerRequest request, final ServerResponse response) {
+						final String token = request.headers().get("Authorization").substring(7);
+						final Promise<UserSessionDetail> promise = GlobalEventExecutor.INSTANCE.newPromise();
+						GlobalEventExecutor.INSTANCE.schedule(new Runnable() {
+							@Override
+							public void run() {
+								if (token.equals("error")) {
+									promise.setFailure(new IOException("introspection failed"));
+								} else {
+									promise.setSuccess(token.equals("bob") ? new Session("bob") : null);
+								}
+							}
+						}, 50, TimeUnit.MILLISECONDS);
+						return promise;
+					}
+				})
+				.responseCache(new ResponseCache(1024 * 1024))
+				.cachePolicy("/cached", new CachePolicy(1, TimeUnit.MINUTES))
+				.requestHandler("/cached", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+							final ServerResponse response) throws IOException {
+						cachedHandled.incrementAndGet();
+						final UserSessionDetail session = request.getUserSession();
+						response.write(session == null ? "anonymous" : session.getUserId());
+					}
+				})
+				.requestHandler("/", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+							final ServerResponse response) throws IOException {
+						handled.incrementAndGet();
+						final UserSessionDetail session = request.getUserSession();
+						response.write(session == null ? "anonymous" : session.getUserId());
+					}
+				}));
+		server.listen().sync();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testAnonymous() throws Exception {
+		assertEquals("200 anonymous", get(null));
+		assertEquals("200 anonymous", get("Digest abc"));
+		assertEquals(2, handled.get());
+	}
+
+	@Test
+	public void testSync() throws Exception {
+		assertEquals("200 alice", get("Basic alice"));
+		assertEquals("200 alice", get("basic alice"));
+		assertTrue(get("Basic mallory").startsWith("401"));
+		assertEquals(2, handled.get());
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		assertEquals("200 bob", get("Bearer bob"));
+		assertTrue(get("Bearer mallory").startsWith("401"));
+		assertTrue(get("Bearer error").startsWith("500"));
+		assertEquals(1, handled.get());
+		// connection stays usable after an async failure
+		assertEquals("200 bob", get("Bearer bob"));
+	}
+
+	@Test
+	public void testWwwAuthenticate() throws Exception {
+		final HttpURLConnection conn = open("Bearer mallory");
+		assertEquals(401, conn.getResponseCode());
+		assertEquals("Bearer", conn.getHeaderField("WWW-Authenticate"));
+	}
+
+	@Test
+	public void testConnectionCache() throws Exception {
+		final Socket socket = new Socket("localhost", port);
+		try {
+			socket.setSoTimeout(5000);
+			assertEquals("200 alice", request(socket, "Basic alice"));
+			assertEquals("200 alice", request(socket, "Basic alice"));
+			assertEquals(1, verified.get());
+			assertEquals("200 anonymous", request(socket, null));
+
+			// credential changed: verified again and the cached identity is dropped
+			assertTrue(request(socket, "Basic mallory").startsWith("401"));
+			assertEquals(2, verified.get());
+			assertEquals("200 alice", request(socket, "Basic alice"));
+			assertEquals(3, verified.get());
+		} finally {
+			socket.close();
+		}
+
+		// cache is per connection
+		assertEquals("200 alice", get("Basic alice"));
+		assertEquals(4, verified.get());
+	}
+
+	@Test
+	public void testResponseCache() throws Exception {
+		// authenticated responses are never stored
+		assertEquals("200 alice", get("/cached", "Basic alice"));
+		assertEquals("200 anonymous", get("/cached", null));
+		assertEquals(2, cachedHandled.get());
+
+		// anonymous responses are cached, but never served to a request with credentials
+		assertEquals("200 anonymous", get("/cached", null));
+		assertEquals(2, cachedHandled.get());
+		assertEquals("200 alice", get("/cached", "Basic alice"));
+		assertTrue(get("/cached", "Basic mallory").startsWith("401"));
+		assertEquals(3, cachedHandled.get());
+	}
+
+	private static String request(final Socket socket, final String authorization) throws IOException {
+		final OutputStream out = socket.getOutputStream();
+		out.write(("GET / HTTP/1.1\r\nHost: localhost\r\n"
+				+ (authorization == null ? "" : "Authorization: " + authorization + "\r\n")
+				+ "\r\n").getBytes("US-ASCII"));
+		out.flush();
+
+		final InputStream in = socket.getInputStream();
+		final StringBuilder head = new StringBuilder();
+		while (head.indexOf("\r\n\r\n") < 0) {
+			final int b = in.read();
+			if (b < 0) {
+				throw new IOException("closed: " + head);
+			}
+			head.append((char) b);
+		}
+		final String lower = head.toString().toLowerCase();
+		final int cl = lower.indexOf("content-length:");
+		int length = 0;
+		if (cl >= 0) {
+			length = Integer.parseInt(lower.substring(cl + 15, lower.indexOf('\r', cl)).trim());
+		}
+		final StringBuilder sb = new StringBuilder(head.substring(9, 12)).append(' ');
+		for (int i = 0; i < length; i++) {
+			sb.append((char) in.read());
+		}
+		return sb.toString();
+	}
+
+	private HttpURLConnection open(final String authorization) throws IOException {
+		return open("/", authorization);
+	}
+
+	private HttpURLConnection open(final String path, final String authorization) throws IOException {
+		final HttpURLConnection conn =
+				(HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+		if (authorization != null) {
+			conn.setRequestProperty("Authorization", authorization);
+		}
+		return conn;
+	}
+
+	private String get(final String authorization) throws IOException {
+		return get("/", authorization);
+	}
+
+	private String get(final String path, final String authorization) throws IOException {
+		final HttpURLConnection conn = open(path, authorization);
+		final int code = conn.getResponseCode();
+		final InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+		final StringBuilder sb = new StringBuilder().append(code).append(' ');
+		if (in != null) {
+			int b;
+			while ((b = in.read()) >= 0) {
+				sb.append((char) b);
+			}
+			in.close();
+		}
+		return sb.toString();
+	}
+
+	private static class Session implements UserSessionDetail {
+		private static final long serialVersionUID = 1L;
+		private final String user;
+
+		Session(final String user_) {
+			user = user_;
+		}
+
+		@Override
+		public String getSessionId() {
+			return user;
+		}
+
+		@Override
+		public String getUserId() {
+			return user;
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.s3d.httpserver.request.EventStream;
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.CharsetUtil;
+
+public class TestEventStream {
+
+	private HttpServer server;
+	private int port;
+	private final EventTopic topic = new EventTopic();
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private final Map<String, EventStream> streams = new ConcurrentHashMap<String, EventStream>();
+
+	private void start(final HttpServerConfig config) throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(config
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.requestHandler("/events", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request, final ServerResponse response)
+							throws IOException {
+						final EventStream stream = response.startEventStream();
+						stream.send("welcome");
+						if (request.getQueryString() != null) {
+							streams.put(request.getQueryString(), stream);
+						}
+						topic.subscribe(stream);
+					}
+				}));
+		server.listen().sync();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (final Socket socket : sockets) {
+			socket.close();
+		}
+		if (server != null && server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testPublish() throws Exception {
+
+		start(new HttpServerConfig());
+
+		final Socket a = connect(0);
+		final Socket b = connect(0);
+		final String head = readUntil(a, "data: welcome\n\n");
+		assertTrue(head, head.startsWith("HTTP/1.1 200"));
+		assertTrue(head, head.contains("text/event-stream"));
+		readUntil(b, "data: welcome\n\n");
+		waitFor(2);
+		assertEquals(2, server.getOpenEventStreams());
+
+		assertEquals(2, topic.publish("7", "news", "line1\nline2"));
+		for (final Socket socket : Arrays.asList(a, b)) {
+			readUntil(socket, "id: 7\nevent: news\ndata: line1\ndata: line2\n\n");
+		}
+
+		a.close();
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (server.getOpenEventStreams() > 1 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, server.getOpenEventStreams());
+		assertEquals(1, topic.publish("after"));
+		readUntil(b, "data: after\n\n");
+		assertEquals(1, topic.size());
+	}
+
+	@Test
+	public void testHeartbeat() throws Exception {
+
+		start(new HttpServerConfig().eventStreamHeartbeat(50, TimeUnit.MILLISECONDS));
+
+		final Socket socket = connect(0);
+		readUntil(socket, "data: welcome\n\n");
+		readUntil(socket, ":\n\n");
+	}
+
+	@Test
+	public void testSlowSubscriber() throws Exception {
+
+		start(new HttpServerConfig().eventStreamWriteBufferWaterMark(1024, 4096));
+
+		// client that never reads
+		final Socket slow = connect(4096, "/events?slow");
+		final Socket fast = connect(0, "/events?fast");
+		readUntil(fast, "data: welcome\n\n");
+		waitFor(2);
+
+		final char[] chars = new char[16 * 1024];
+		Arrays.fill(chars, 'x');
+		final String data = new String(chars);
+		final DefaultEventStream fastStream = (DefaultEventStream) streams.get("fast");
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (topic.getSkippedCount() == 0 && System.nanoTime() < deadline) {
+			awaitWritable(fastStream);
+			assertTrue(topic.publish(data) >= 1);
+			readUntil(fast, "\n\n");
+		}
+		assertTrue(topic.getSkippedCount() > 0);
+		assertEquals(2, topic.size());
+
+		topic.dropSlowSubscribers(true);
+		final long deadline2 = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (topic.getDroppedCount() == 0 && System.nanoTime() < deadline2) {
+			awaitWritable(fastStream);
+			assertTrue(topic.publish(data) >= 1);
+			readUntil(fast, "\n\n");
+		}
+		assertEquals(1, topic.getDroppedCount());
+		assertEquals(1, topic.size());
+		assertTrue(slow.isConnected());
+	}
+
+	private void waitFor(final int subscribers) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (topic.size() < subscribers && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(subscribers, topic.size());
+	}
+
+	/**
+	 * the event loop marks the channel writable again only after the client may already have read the event
+	 */
+	private static void awaitWritable(final DefaultEventStream stream) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!stream.isWritable() && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+
+	private Socket connect(final int receiveBuffer) throws IOException {
+		return connect(receiveBuffer, "/events");
+	}
+
+	private Socket connect(final int receiveBuffer, final String uri) throws IOException {
+		final Socket socket = new Socket();
+		if (receiveBuffer > 0) {
+			socket.setReceiveBufferSize(receiveBuffer);
+		}
+		socket.connect(new InetSocketAddress("localhost", port));
+		socket.setSoTimeout(5000);
+		sockets.add(socket);
+		final OutputStream out = socket.getOutputStream();
+		out.write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n"
+				+ "Accept: text/event-stream\r\n\r\n").getBytes(CharsetUtil.US_ASCII));
+		out.flush();
+		return socket;
+	}
+
+	private static String readUntil(final Socket socket, final String expected) throws IOException {
+		final InputStream in = socket.getInputStream();
+		final StringBuilder sb = new StringBuilder();
+		while (sb.indexOf(expected) < 0) {
+			final int b = in.read();
+			if (b < 0) {
+				throw new IOException("closed before " + expected + ": " + sb);
+			}
+			sb.append((char) b);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,290 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.s3d.httpserver.auth.AsyncAuthorizationHandler;
+import com.s3d.httpserver.auth.UserSessionDetail;
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+import com.s3d.httpserver.request.StreamingRequestHandler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+public class TestExpectContinue {
+
+	private HttpServer server;
+	private int port;
+	private final AtomicInteger handled = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.maxRequestSize("/upload", 1000)
+				.authorizationHandler(new AsyncAuthorizationHandler() {
+					@Override
+					public String getMethod() {
+						return "Bearer";
+					}
+
+					@Override
+					public Future<UserSessionDetail> authenticate(final ChannelHandlerContext ctx,
+							final ServerRequest request, final ServerResponse response) {
+						final String token = request.headers().get("Authorization").substring(7);
+						final Promise<UserSessionDetail> promise = GlobalEventExecutor.INSTANCE.newPromise();
+						GlobalEventExecutor.INSTANCE.schedule(new Runnable() {
+							@Override
+							public void run() {
+								promise.setSuccess(token.equals("bob") ? new Session("bob") : null);
+							}
+						}, 50, TimeUnit.MILLISECONDS);
+						return promise;
+					}
+				})
+				.requestHandler("/upload", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+							final ServerResponse response) throws IOException {
+						handled.incrementAndGet();
+						final UserSessionDetail session = request.getUserSession();
+						response.write((session == null ? "anonymous" : session.getUserId()) + " "
+								+ request.getContent().readableBytes());
+					}
+				})
+				.requestHandler("/stream", new StreamingCounter()));
+		server.listen().sync();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testAccepted() throws Exception {
+		final Socket socket = socket();
+		try {
+			head(socket, "/upload", 500, null);
+			assertEquals("100", readStatus(socket.getInputStream()));
+			socket.getOutputStream().write(new byte[500]);
+			assertEquals("200 anonymous 500", read(socket));
+
+			// the connection stays usable after an accepted upload
+			head(socket, "/upload", 10, null);
+			assertEquals("100", readStatus(socket.getInputStream()));
+			socket.getOutputStream().write(new byte[10]);
+			assertEquals("200 anonymous 10", read(socket));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testAuthorized() throws Exception {
+		final Socket socket = socket();
+		try {
+			head(socket, "/upload", 20, "Bearer bob");
+			assertEquals("100", readStatus(socket.getInputStream()));
+			socket.getOutputStream().write(new byte[20]);
+			assertEquals("200 bob 20", read(socket));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testUnauthorized() throws Exception {
+		assertRejected("/upload", 20, "Bearer mallory", "401");
+	}
+
+	@Test
+	public void testNotFound() throws Exception {
+		assertRejected("/missing", 20, null, "404");
+	}
+
+	@Test
+	public void testTooLarge() throws Exception {
+		assertRejected("/upload", 5000, null, "413");
+	}
+
+	@Test
+	public void testStreaming() throws Exception {
+		final Socket socket = socket();
+		try {
+			head(socket, "/stream", 3000, null);
+			assertEquals("100", readStatus(socket.getInputStream()));
+			socket.getOutputStream().write(new byte[3000]);
+			assertEquals("200 3000", read(socket));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testBodySentWithoutWaiting() throws Exception {
+		final Socket socket = socket();
+		try {
+			// the authorization takes 50ms, the body arrives while the request is held
+			head(socket, "/upload", 300, "Bearer bob");
+			socket.getOutputStream().write(new byte[300]);
+			assertEquals("100", readStatus(socket.getInputStream()));
+			assertEquals("200 bob 300", read(socket));
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * the final response arrives without sending the body, and the connection is closed
+	 */
+	private void assertRejected(final String uri, final int length, final String authorization,
+			final String status) throws IOException {
+		final Socket socket = socket();
+		try {
+			head(socket, uri, length, authorization);
+			final InputStream in = socket.getInputStream();
+			assertEquals(status, readStatus(in));
+			assertTrue(skipHead(in).contains("connection: close"));
+			while (in.read() >= 0) {
+				// the body of the error response
+			}
+			assertEquals(0, handled.get());
+		} finally {
+			socket.close();
+		}
+	}
+
+	private Socket socket() throws IOException {
+		final Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private static void head(final Socket socket, final String uri, final int length,
+			final String authorization) throws IOException {
+		final OutputStream out = socket.getOutputStream();
+		out.write(("POST " + uri + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + length
+				+ "\r\nExpect: 100-continue\r\n"
+				+ (authorization == null ? "" : "Authorization: " + authorization + "\r\n") + "\r\n")
+				.getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	/**
+	 * reads the status line, and the rest of an interim response
+	 */
+	private static String readStatus(final InputStream in) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new IOException("closed: " + line);
+			}
+			line.append((char) b);
+		}
+		final String status = line.substring(9, 12);
+		if (status.equals("100")) {
+			skipHead(in);
+		}
+		return status;
+	}
+
+	/**
+	 * @return the lower-cased headers
+	 */
+	private static String skipHead(final InputStream in) throws IOException {
+		final StringBuilder head = new StringBuilder("\r\n");
+		while (head.indexOf("\r\n\r\n") < 0) {
+			final int b = in.read();
+			if (b < 0) {
+				throw new IOException("closed: " + head);
+			}
+			head.append((char) b);
+		}
+		return head.toString().toLowerCase();
+	}
+
+	private static String read(final Socket socket) throws IOException {
+		final InputStream in = socket.getInputStream();
+		final String status = readStatus(in);
+		final String head = skipHead(in);
+		final int cl = head.indexOf("content-length:");
+		final int length = Integer.parseInt(head.substring(cl + 15, head.indexOf('\r', cl)).trim());
+		final StringBuilder sb = new StringBuilder(status).append(' ');
+		for (int i = 0; i < length; i++) {
+			sb.append((char) in.read());
+		}
+		return sb.toString();
+	}
+
+	private static final class StreamingCounter extends RequestHandlerBase implements StreamingRequestHandler {
+		private long received;
+
+		@Override
+		public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			received = 0;
+		}
+
+		@Override
+		public void onContent(final ServerRequest request, final ServerResponse response,
+				final ByteBuf content, final boolean last) throws IOException {
+			received += content.readableBytes();
+			if (last) {
+				response.write(String.valueOf(received));
+			}
+		}
+	}
+
+	private static class Session implements UserSessionDetail {
+		private static final long serialVersionUID = 1L;
+		private final String user;
+
+		Session(final String user_) {
+			user = user_;
+		}
+
+		@Override
+		public String getSessionId() {
+			return user;
+		}
+
+		@Override
+		public String getUserId() {
+			return user;
+		}
+	}
+
+}
@@ -12,9 +12,11 @@ import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -374,6 +376,34 @@ public class TestHttpServer {
 
 	}
 
+	@Test
+	public void testDrain() throws Exception {
+
+		final ScheduledExecutorService executor =
+				Executors.newScheduledThreadPool(1);
+
+		final ScheduledFuture<io.netty.util.concurrent.Future<Void>> drain =
+				executor.schedule(new Callable<io.netty.util.concurrent.Future<Void>>() {
+					@Override
+					public io.netty.util.concurrent.Future<Void> call() {
+						return server.drain(5, TimeUnit.SECONDS);
+					}
+				}, 300, TimeUnit.MILLISECONDS);
+
+		// in-flight request started before the drain still completes
+		final HttpGet get = new HttpGet("http://localhost:" + port + "/client-disconnect");
+		final HttpResponse response = client.execute(get);
+		EntityUtils.consume(response.getEntity());
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals("close", response.getFirstHeader("Connection").getValue());
+
+		assertTrue(drain.get().await(5, TimeUnit.SECONDS));
+		assertEquals(0, server.getInFlightRequests());
+		assertEquals(0, server.getOpenConnections());
+		assertFalse(server.isRunning());
+
+	}
+
 	@Test(expected = ConnectException.class)
 	public void testKill() throws Exception {
 
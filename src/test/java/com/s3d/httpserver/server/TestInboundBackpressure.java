@@ -0,0 +1,146 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * every EmbeddedChannel runs on its own event loop
+ */
+public class TestInboundBackpressure {
+
+	@Test
+	public void testLoopWatermarks() {
+		final InboundBackpressure backpressure = new InboundBackpressure(3, 1, -1, -1);
+		final EmbeddedChannel a = channel();
+		final EmbeddedChannel b = channel();
+
+		start(backpressure, a, 2);
+		start(backpressure, b, 2);
+		assertTrue(a.config().isAutoRead());
+
+		backpressure.requestStarted(a);
+		assertFalse(a.config().isAutoRead());
+		assertTrue(b.config().isAutoRead());
+		assertEquals(1, backpressure.getPausedChannels());
+
+		// above the low watermark
+		finish(backpressure, a, 1);
+		assertFalse(a.config().isAutoRead());
+		finish(backpressure, a, 1);
+		assertTrue(a.config().isAutoRead());
+		assertEquals(0, backpressure.getPausedChannels());
+		assertEquals(1, backpressure.getPauseCount());
+		assertEquals(3, backpressure.getInFlight());
+	}
+
+	@Test
+	public void testGlobalWatermarks() {
+		final InboundBackpressure backpressure = new InboundBackpressure(-1, -1, 4, 1);
+		final EmbeddedChannel a = channel();
+		final EmbeddedChannel b = channel();
+
+		start(backpressure, a, 2);
+		start(backpressure, b, 2);
+		assertTrue(a.config().isAutoRead());
+		assertFalse(b.config().isAutoRead());
+
+		backpressure.requestStarted(a);
+		assertFalse(a.config().isAutoRead());
+		assertEquals(2, backpressure.getPausedChannels());
+
+		// both loops are resumed when the global count reaches the low watermark
+		finish(backpressure, a, 3);
+		assertFalse(b.config().isAutoRead());
+		finish(backpressure, b, 1);
+		assertTrue(a.config().isAutoRead());
+		assertTrue(b.config().isAutoRead());
+		assertEquals(0, backpressure.getPausedChannels());
+	}
+
+	@Test
+	public void testLoopPausedWhileGlobalAboveLow() {
+		final InboundBackpressure backpressure = new InboundBackpressure(2, 0, 10, 1);
+		final EmbeddedChannel a = channel();
+		final EmbeddedChannel b = channel();
+
+		start(backpressure, a, 2);
+		assertFalse(a.config().isAutoRead());
+		backpressure.requestStarted(b);
+		backpressure.requestStarted(b);
+		assertFalse(b.config().isAutoRead());
+
+		// the requests of a finish while the global count is above its low watermark
+		finish(backpressure, a, 2);
+		assertFalse(a.config().isAutoRead());
+
+		// the global count drains through other loops, a is resumed, b is still busy
+		finish(backpressure, b, 1);
+		assertTrue(a.config().isAutoRead());
+		assertFalse(b.config().isAutoRead());
+		finish(backpressure, b, 1);
+		assertTrue(b.config().isAutoRead());
+	}
+
+	@Test
+	public void testClosedChannelIsDropped() {
+		final InboundBackpressure backpressure = new InboundBackpressure(1, 0, -1, -1);
+		final EmbeddedChannel a = channel();
+
+		backpressure.requestStarted(a);
+		a.close();
+		backpressure.requestFinished(a);
+		assertEquals(0, backpressure.getPausedChannels());
+		assertEquals(0, backpressure.getInFlight());
+	}
+
+	@Test
+	public void testSharedWithBodyBudget() {
+		final InboundBackpressure backpressure = new InboundBackpressure(1, 0, -1, -1);
+		final RequestBodyBudget budget = new RequestBodyBudget(50, 10);
+		final EmbeddedChannel a = channel();
+
+		assertTrue(budget.tryReserve(100));
+		budget.pause(a);
+		backpressure.requestStarted(a);
+		assertFalse(a.config().isAutoRead());
+
+		// the budget still holds the channel
+		backpressure.requestFinished(a);
+		assertFalse(a.config().isAutoRead());
+		assertEquals(0, backpressure.getPausedChannels());
+		assertEquals(1, budget.getPausedChannels());
+
+		// and the other way round
+		backpressure.requestStarted(a);
+		budget.release(100);
+		assertFalse(a.config().isAutoRead());
+		assertEquals(0, budget.getPausedChannels());
+		backpressure.requestFinished(a);
+		assertTrue(a.config().isAutoRead());
+	}
+
+	private static EmbeddedChannel channel() {
+		return new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+	}
+
+	private static void start(final InboundBackpressure backpressure, final EmbeddedChannel channel,
+			final int n) {
+		for (int i = 0; i < n; i++) {
+			backpressure.requestStarted(channel);
+		}
+	}
+
+	private static void finish(final InboundBackpressure backpressure, final EmbeddedChannel channel,
+			final int n) {
+		for (int i = 0; i < n; i++) {
+			backpressure.requestFinished(channel);
+		}
+	}
+
+}
@@ -0,0 +1,295 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.RequestPart;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.CharsetUtil;
+
+public class TestMultipartUpload {
+
+	private static final String BOUNDARY = "----b0undary";
+
+	private HttpServer server;
+	private int port;
+	private File directory;
+	private MultipartUploads uploads;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		directory = Files.createTempDirectory("uploads").toFile();
+		uploads = new MultipartUploads()
+				.directory(directory)
+				.spillThreshold(1024)
+				.maxUploadSize(256 * 1024)
+				.maxRequestMemory(4096);
+
+		server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.maxRequestSize(8 * 1024)
+				.multipartUploads(uploads)
+				.requestHandler("/", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+							final ServerResponse response) throws IOException {
+						final StringBuilder sb = new StringBuilder();
+						for (final RequestPart part : request.getParts()) {
+							sb.append(part.getName()).append(',').append(part.getFilename()).append(',')
+									.append(part.getSize()).append(',').append(part.isInMemory()).append(',')
+									.append(part.getString().hashCode()).append(';');
+						}
+						response.write(sb.toString());
+					}
+				}));
+		server.listen().sync();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+		for (final File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testParserSplitChunks() throws Exception {
+		final String file = repeat("0123456789\r\n--", 50);
+		final byte[] body = body("title", null, "hello", "upload", "a.txt", file);
+
+		// every split position, including inside the boundary
+		for (final int size : new int[] { 1, 2, 3, 7, 19, body.length }) {
+			final List<String> events = new ArrayList<String>();
+			final MultipartParser parser = new MultipartParser(BOUNDARY, new Recorder(events));
+			for (int i = 0; i < body.length; i += size) {
+				final ByteBuf chunk = Unpooled.wrappedBuffer(body, i, Math.min(size, body.length - i));
+				parser.offer(chunk);
+				chunk.release();
+			}
+			parser.finish();
+			parser.close();
+			assertEquals(String.valueOf(size), "[start title null, hello, end, start upload a.txt, "
+					+ file + ", end]", merge(events).toString());
+		}
+	}
+
+	@Test(expected = CorruptedFrameException.class)
+	public void testParserTruncated() throws Exception {
+		final byte[] body = body("title", null, "hello", null, null, null);
+		final MultipartParser parser = new MultipartParser(BOUNDARY, new Recorder(new ArrayList<String>()));
+		parser.offer(Unpooled.wrappedBuffer(body, 0, body.length - 10));
+		parser.finish();
+	}
+
+	@Test
+	public void testBoundary() {
+		assertEquals("abc", MultipartParser.boundary("multipart/form-data; boundary=abc"));
+		assertEquals("a b", MultipartParser.boundary("multipart/form-data; charset=UTF-8; boundary=\"a b\""));
+		assertNull(MultipartParser.boundary("multipart/form-data"));
+		assertNull(MultipartParser.boundary("application/x-www-form-urlencoded; boundary=abc"));
+		assertEquals("x;y.txt", MultipartParser.parameter("form-data; name=\"f\"; filename=\"x;y.txt\"", "filename"));
+		assertEquals("f", MultipartParser.parameter("form-data; name=\"f\"; filename=\"x;y.txt\"", "name"));
+	}
+
+	@Test
+	public void testUpload() throws Exception {
+		final String file = repeat("abcdefghij", 5000);
+		final byte[] body = body("title", null, "hello", "upload", "a.txt", file);
+
+		// larger than maxRequestSize, but multipart uploads are not aggregated
+		assertEquals("200 title,null,5,true," + "hello".hashCode() + ";upload,a.txt,50000,false,"
+				+ file.hashCode() + ";", post(body, false));
+		assertEquals("200 title,null,5,true," + "hello".hashCode() + ";upload,a.txt,50000,false,"
+				+ file.hashCode() + ";", post(body, true));
+
+		// temporary files and memory are released with the request
+		Thread.sleep(100);
+		assertEquals(0, directory.listFiles().length);
+		assertEquals(0, uploads.getMemoryInUse());
+	}
+
+	@Test
+	public void testSmallFileInMemory() throws Exception {
+		final byte[] body = body("upload", "a.txt", "tiny", null, null, null);
+		assertEquals("200 upload,a.txt,4,true," + "tiny".hashCode() + ";", post(body, true));
+	}
+
+	@Test
+	public void testTooLarge() throws Exception {
+		final byte[] body = body("upload", "a.txt", repeat("x", 300 * 1024), null, null, null);
+		assertEquals(413, code(body, false));
+		assertEquals(413, code(body, true));
+		assertEquals(2, uploads.getRejectedCount());
+	}
+
+	@Test
+	public void testMemoryBudget() throws Exception {
+		// a plain field cannot spill to disk
+		final byte[] body = body("field", null, repeat("x", 8000), null, null, null);
+		assertEquals(413, code(body, true));
+		assertEquals(0, uploads.getMemoryInUse());
+		Thread.sleep(100);
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	@Test
+	public void testMalformed() throws Exception {
+		final byte[] body = "no boundary here".getBytes(CharsetUtil.US_ASCII);
+		assertEquals(400, code(body, false));
+	}
+
+	private static byte[] body(final String name1, final String filename1, final String value1,
+			final String name2, final String filename2, final String value2) {
+		final StringBuilder sb = new StringBuilder("preamble\r\n");
+		part(sb, name1, filename1, value1);
+		if (name2 != null) {
+			part(sb, name2, filename2, value2);
+		}
+		sb.append("--").append(BOUNDARY).append("--\r\n");
+		return sb.toString().getBytes(CharsetUtil.UTF_8);
+	}
+
+	private static void part(final StringBuilder sb, final String name, final String filename,
+			final String value) {
+		sb.append("--").append(BOUNDARY).append("\r\n");
+		sb.append("Content-Disposition: form-data; name=\"").append(name).append('"');
+		if (filename != null) {
+			sb.append("; filename=\"").append(filename).append("\"\r\nContent-Type: text/plain");
+		}
+		sb.append("\r\n\r\n").append(value).append("\r\n");
+	}
+
+	private static String repeat(final String s, final int n) {
+		final StringBuilder sb = new StringBuilder(s.length() * n);
+		for (int i = 0; i < n; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private HttpURLConnection send(final byte[] body, final boolean chunked) throws IOException {
+		final HttpURLConnection conn =
+				(HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+		if (chunked) {
+			conn.setChunkedStreamingMode(1000);
+		} else {
+			conn.setFixedLengthStreamingMode(body.length);
+		}
+		try {
+			final OutputStream out = conn.getOutputStream();
+			out.write(body);
+			out.close();
+		} catch (final IOException e) {
+			// the server may reject and close before the whole body is sent
+		}
+		return conn;
+	}
+
+	private int code(final byte[] body, final boolean chunked) throws IOException {
+		return send(body, chunked).getResponseCode();
+	}
+
+	private String post(final byte[] body, final boolean chunked) throws IOException {
+		final HttpURLConnection conn = send(body, chunked);
+		final int code = conn.getResponseCode();
+		final InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (in != null) {
+			int b;
+			while ((b = in.read()) >= 0) {
+				out.write(b);
+			}
+			in.close();
+		}
+		return code + " " + new String(out.toByteArray(), CharsetUtil.UTF_8);
+	}
+
+	/**
+	 * consecutive data events are merged, so that the result does not depend on chunk sizes
+	 */
+	private static List<String> merge(final List<String> events) {
+		final List<String> merged = new ArrayList<String>();
+		StringBuilder data = null;
+		for (final String event : events) {
+			if (event.startsWith("data:")) {
+				if (data == null) {
+					data = new StringBuilder();
+				}
+				data.append(event.substring(5));
+			} else {
+				if (data != null) {
+					merged.add(data.toString());
+					data = null;
+				}
+				merged.add(event);
+			}
+		}
+		return merged;
+	}
+
+	private static final class Recorder implements MultipartParser.Listener {
+		private final List<String> events;
+
+		Recorder(final List<String> events_) {
+			events = events_;
+		}
+
+		@Override
+		public void partStarted(final String name, final String filename, final String contentType) {
+			events.add("start " + name + " " + filename);
+		}
+
+		@Override
+		public void partData(final ByteBuf buffer, final int index, final int length) {
+			events.add("data:" + buffer.toString(index, length, CharsetUtil.UTF_8));
+		}
+
+		@Override
+		public void partEnded() {
+			events.add("end");
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.s3d.httpserver.request.RequestAttribute;
+import com.s3d.httpserver.request.RequestAttributeKey;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+public class TestPooledServerRequest {
+
+	private static final RequestAttributeKey<String> USER = new RequestAttributeKey<String>("user");
+	private static final RequestAttributeKey<Integer> COUNT = new RequestAttributeKey<Integer>("count");
+
+	private final EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter()) {
+		@Override
+		public InetSocketAddress localAddress() {
+			return new InetSocketAddress("127.0.0.1", 80);
+		}
+
+		@Override
+		public InetSocketAddress remoteAddress() {
+			return new InetSocketAddress("127.0.0.1", 50000);
+		}
+	};
+
+	private static FullHttpRequest request(final HttpMethod method, final String uri, final String body) {
+		return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri,
+				Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+	}
+
+	@Test
+	public void testAttributes() {
+		final PooledServerRequest request = new PooledServerRequest();
+		request.init(channel, request(HttpMethod.GET, "/", ""), "/");
+
+		assertNull(request.attr(USER).get());
+		request.attr(USER).set("alice");
+		request.attr(COUNT).set(3);
+		assertEquals("alice", request.attr(USER).get());
+		assertEquals(Integer.valueOf(3), request.attr(COUNT).get());
+
+		final RequestAttribute<String> attr = request.attr(USER);
+		assertSame(attr, request.attr(USER));
+
+		// key created after the request was first used
+		final RequestAttributeKey<String> late = new RequestAttributeKey<String>("late");
+		request.attr(late).set("x");
+		assertEquals("x", request.attr(late).get());
+		assertEquals("alice", request.attr(USER).get());
+
+		// values are cleared on recycle, the slots are reused
+		request.release();
+		request.init(channel, request(HttpMethod.GET, "/", ""), "/");
+		assertNull(request.attr(USER).get());
+		assertNull(request.attr(late).get());
+		assertSame(attr, request.attr(USER));
+	}
+
+	@Test
+	public void testQueryParameters() {
+		final PooledServerRequest request = new PooledServerRequest();
+		final String uri = "/search?q=hello+world&tag=a&tag=b%20c&empty=&flag&n%C3%A9=%C3%A9t%C3%A9&bad=%zz";
+		request.init(channel, request(HttpMethod.GET, uri, ""), uri);
+
+		assertEquals("hello world", request.getParameter("q"));
+		assertEquals(Arrays.asList("a", "b c"), request.getParameterList("tag"));
+		assertEquals("", request.getParameter("empty"));
+		assertEquals("", request.getParameter("flag"));
+		assertEquals("\u00e9t\u00e9", request.getParameter("n\u00e9"));
+		assertEquals("%zz", request.getParameter("bad"));
+		assertNull(request.getParameter("missing"));
+		assertNull(request.getParameterList("missing"));
+
+		final Map<String, List<String>> all = request.getParameters();
+		assertEquals(6, all.size());
+		assertEquals(Arrays.asList("a", "b c"), all.get("tag"));
+		assertEquals("hello world", request.getParameter("q"));
+	}
+
+	@Test
+	public void testFormParameters() {
+		final PooledServerRequest request = new PooledServerRequest();
+		final FullHttpRequest msg = request(HttpMethod.POST, "/form?ignored=1", "name=J%C3%BCrgen&city=K\u00f6ln");
+		msg.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/x-www-form-urlencoded; charset=UTF-8");
+		request.init(channel, msg, "/form?ignored=1");
+
+		assertEquals("J\u00fcrgen", request.getParameter("name"));
+		assertEquals("K\u00f6ln", request.getParameter("city"));
+		assertNull(request.getParameter("ignored"));
+		assertEquals("UTF-8", request.getCharacterEncoding().name());
+		// reading the body does not affect the index
+		request.getContent().skipBytes(5);
+		assertEquals("J\u00fcrgen", request.getParameter("name"));
+	}
+
+	@Test
+	public void testCharacterEncoding() {
+		final PooledServerRequest request = new PooledServerRequest();
+		final FullHttpRequest msg = request(HttpMethod.POST, "/", "x");
+		request.init(channel, msg, "/");
+		// no Content-Type
+		assertEquals(CharsetUtil.ISO_8859_1, request.getCharacterEncoding());
+
+		msg.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/plain;Charset=\"utf-8\"");
+		request.init(channel, msg, "/");
+		assertEquals(CharsetUtil.UTF_8, request.getCharacterEncoding());
+
+		msg.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=no-such-charset");
+		request.init(channel, msg, "/");
+		assertEquals(CharsetUtil.ISO_8859_1, request.getCharacterEncoding());
+	}
+
+	@Test
+	public void testCookies() {
+		final PooledServerRequest request = new PooledServerRequest();
+		final FullHttpRequest msg = request(HttpMethod.GET, "/", "");
+		msg.headers().set(HttpHeaders.Names.COOKIE, "a=1; session = \"abc\" ;theme=dark");
+		request.init(channel, msg, "/");
+
+		assertEquals("abc", request.getCookie("session").getValue());
+		assertEquals("dark", request.getCookie("theme").getValue());
+		assertEquals("1", request.getCookie("a").getValue());
+		assertNull(request.getCookie("sess"));
+		assertEquals(3, request.getCookies().size());
+		assertEquals("dark", request.getCookie("theme").getValue());
+	}
+
+	@Test
+	public void testAcceptsEncoding() {
+		final PooledServerRequest request = new PooledServerRequest();
+		final FullHttpRequest msg = request(HttpMethod.GET, "/", "");
+		request.init(channel, msg, "/");
+		assertFalse(request.acceptsEncoding("gzip"));
+		assertTrue(request.acceptsEncoding("identity"));
+
+		msg.headers().set(HttpHeaders.Names.ACCEPT_ENCODING, "GZIP, deflate;q=0, br;q=0.5");
+		request.init(channel, msg, "/");
+		assertTrue(request.acceptsEncoding("gzip"));
+		assertFalse(request.acceptsEncoding("deflate"));
+		assertTrue(request.acceptsEncoding("br"));
+		assertTrue(request.acceptsEncoding("identity"));
+		assertFalse(request.acceptsEncoding("zstd"));
+	}
+
+}
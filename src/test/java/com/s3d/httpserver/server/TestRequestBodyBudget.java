@@ -0,0 +1,305 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.util.CharsetUtil;
+
+public class TestRequestBodyBudget {
+
+	private HttpServer server;
+	private int port;
+	private RequestBodyBudget budget;
+	private final AtomicLong inUse = new AtomicLong();
+	private final AtomicReference<ServerResponse> held = new AtomicReference<ServerResponse>();
+	private final CountDownLatch holding = new CountDownLatch(1);
+
+	private void start(final RequestBodyBudget budget_) throws Exception {
+		start(budget_, new ConnectionManager());
+	}
+
+	private void start(final RequestBodyBudget budget_, final ConnectionManager manager) throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		budget = budget_;
+		server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.connectionManager(manager)
+				.requestBodyBudget(budget)
+				.requestHandler("/", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+							final ServerResponse response) throws IOException {
+						inUse.set(budget.getBytesInUse());
+						if (request.getUri().startsWith("/hold")) {
+							response.suspend();
+							held.set(response);
+							holding.countDown();
+						} else {
+							response.write(String.valueOf(request.getContent().readableBytes()));
+						}
+					}
+				}));
+		server.listen().sync();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null && server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testGauge() throws Exception {
+		start(new RequestBodyBudget(1024 * 1024, 512 * 1024));
+		final Socket socket = new Socket("localhost", port);
+		try {
+			socket.setSoTimeout(5000);
+			assertEquals("200 10000", post(socket, "/", 10000));
+			assertEquals(10000, inUse.get());
+			assertEquals("200 0", post(socket, "/", 0));
+			assertEquals(0, inUse.get());
+		} finally {
+			socket.close();
+		}
+		assertEquals(0, budget.getBytesInUse());
+	}
+
+	@Test
+	public void testPause() throws Exception {
+		start(new RequestBodyBudget(1000, 500));
+		final Socket first = new Socket("localhost", port);
+		final Socket second = new Socket("localhost", port);
+		try {
+			first.setSoTimeout(5000);
+			second.setSoTimeout(5000);
+			// an empty budget admits a body of any size
+			send(first, "/hold", 2000);
+			assertTrue(holding.await(5, TimeUnit.SECONDS));
+			assertEquals(2000, budget.getBytesInUse());
+
+			// the second body is not read while the first one is held
+			second.getOutputStream().write(("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\n")
+					.getBytes("US-ASCII"));
+			second.getOutputStream().flush();
+			waitFor(1, budget);
+			second.getOutputStream().write(new byte[10]);
+			second.getOutputStream().flush();
+			Thread.sleep(200);
+			assertEquals(0, second.getInputStream().available());
+
+			held.get().finish();
+			assertEquals("200 ", read(first));
+			assertEquals("200 10", read(second));
+			assertEquals(0, budget.getPausedChannels());
+			assertEquals(1, budget.getPauseCount());
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void testPauseStopsReadTimeouts() throws Exception {
+		start(new RequestBodyBudget(1000, 500), new ConnectionManager()
+				.bodyReadTimeout(200, TimeUnit.MILLISECONDS)
+				.minTransferRate(100, 100, TimeUnit.MILLISECONDS)
+				.tickMillis(20));
+		final Socket first = new Socket("localhost", port);
+		final Socket second = new Socket("localhost", port);
+		try {
+			first.setSoTimeout(5000);
+			second.setSoTimeout(5000);
+			send(first, "/hold", 2000);
+			assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+			// the head arrives and the server stops reading the body
+			second.getOutputStream().write(("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\n")
+					.getBytes("US-ASCII"));
+			second.getOutputStream().flush();
+			waitFor(1, budget);
+			Thread.sleep(500);
+			second.getOutputStream().write(new byte[10]);
+			second.getOutputStream().flush();
+
+			held.get().finish();
+			assertEquals("200 ", read(first));
+			assertEquals("200 10", read(second));
+			assertEquals(0, server.config().connectionManager().getTimeoutCount());
+			assertEquals(0, server.config().connectionManager().getSlowClientCount());
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void testReject() throws Exception {
+		start(new RequestBodyBudget(1000, 500).reject(true));
+		final Socket first = new Socket("localhost", port);
+		final Socket second = new Socket("localhost", port);
+		try {
+			first.setSoTimeout(5000);
+			second.setSoTimeout(5000);
+			send(first, "/hold", 2000);
+			assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+			assertTrue(post(second, "/", 500).startsWith("503"));
+			assertEquals(1, budget.getRejectedCount());
+			assertEquals(2000, budget.getBytesInUse());
+
+			held.get().finish();
+			assertEquals("200 ", read(first));
+			// a body-less request is never counted
+			assertEquals("200 0", post(first, "/", 0));
+		} finally {
+			first.close();
+			second.close();
+		}
+		assertEquals(0, budget.getBytesInUse());
+	}
+
+	@Test
+	public void testReleaseThroughContent() {
+		budget = new RequestBodyBudget(1024 * 1024, 512 * 1024);
+		final EmbeddedChannel channel = new EmbeddedChannel(new HttpRequestDecoder(),
+				new RequestAggregator(1024 * 1024, budget));
+
+		// the reservation follows the content, whichever reference releases it
+		channel.writeInbound(Unpooled.copiedBuffer("POST / HTTP/1.1\r\nContent-Length: 100\r\n\r\n"
+				+ new String(new char[100]), CharsetUtil.US_ASCII));
+		FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+		assertEquals(100, budget.getBytesInUse());
+		request.content().release();
+		assertEquals(0, budget.getBytesInUse());
+
+		channel.writeInbound(Unpooled.copiedBuffer("POST / HTTP/1.1\r\nContent-Length: 50\r\n\r\n"
+				+ new String(new char[50]), CharsetUtil.US_ASCII));
+		request = (FullHttpRequest) channel.readInbound();
+		final FullHttpRequest copy = request.copy();
+		request.duplicate().content().retain();
+		request.content().duplicate().release();
+		assertEquals(50, budget.getBytesInUse());
+		request.release();
+		assertEquals(0, budget.getBytesInUse());
+		copy.release();
+		assertEquals(0, budget.getBytesInUse());
+	}
+
+	@Test
+	public void testOversizedRequestIsNotRecharged() {
+		budget = new RequestBodyBudget(1024 * 1024, 512 * 1024);
+		final EmbeddedChannel channel = new EmbeddedChannel(new HttpRequestDecoder(),
+				new RequestAggregator(100, budget));
+		final String chunk = "40\r\n" + new String(new char[64]) + "\r\n";
+
+		channel.writeInbound(ascii("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + chunk));
+		assertEquals(64, budget.getBytesInUse());
+		try {
+			channel.writeInbound(ascii(chunk));
+			fail();
+		} catch (final TooLongFrameException e) {
+			// over maxContentLength
+		}
+		assertEquals(0, budget.getBytesInUse());
+
+		// the rest of the rejected body is discarded without being counted
+		channel.writeInbound(ascii(chunk + chunk + "0\r\n\r\n"));
+		assertEquals(0, budget.getBytesInUse());
+
+		channel.writeInbound(ascii("POST / HTTP/1.1\r\nContent-Length: 10\r\n\r\n0123456789"));
+		final FullHttpRequest request = (FullHttpRequest) channel.readInbound();
+		assertEquals(10, budget.getBytesInUse());
+		request.release();
+		assertEquals(0, budget.getBytesInUse());
+	}
+
+	private static ByteBuf ascii(final String s) {
+		return Unpooled.copiedBuffer(s, CharsetUtil.US_ASCII);
+	}
+
+	private static void waitFor(final int paused, final RequestBodyBudget budget) throws InterruptedException {
+		for (int i = 0; i < 100 && budget.getPausedChannels() != paused; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(paused, budget.getPausedChannels());
+	}
+
+	private static void send(final Socket socket, final String uri, final int length) throws IOException {
+		final OutputStream out = socket.getOutputStream();
+		out.write(("POST " + uri + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + length
+				+ "\r\n\r\n").getBytes("US-ASCII"));
+		final byte[] body = new byte[length];
+		try {
+			out.write(body);
+			out.flush();
+		} catch (final IOException e) {
+			// rejected before the whole body was sent
+		}
+	}
+
+	private static String post(final Socket socket, final String uri, final int length) throws IOException {
+		send(socket, uri, length);
+		return read(socket);
+	}
+
+	private static String read(final Socket socket) throws IOException {
+		final InputStream in = socket.getInputStream();
+		final StringBuilder head = new StringBuilder();
+		while (head.indexOf("\r\n\r\n") < 0) {
+			final int b = in.read();
+			if (b < 0) {
+				throw new IOException("closed: " + head);
+			}
+			head.append((char) b);
+		}
+		final String lower = head.toString().toLowerCase();
+		final int cl = lower.indexOf("content-length:");
+		int length = 0;
+		if (cl >= 0) {
+			length = Integer.parseInt(lower.substring(cl + 15, lower.indexOf('\r', cl)).trim());
+		}
+		final StringBuilder sb = new StringBuilder(head.substring(9, 12)).append(' ');
+		for (int i = 0; i < length; i++) {
+			sb.append((char) in.read());
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,175 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+public class TestRequestCoalescer {
+
+	private static final int CLIENTS = 5;
+
+	private HttpServer server;
+	private int port;
+	private ExecutorService clients;
+
+	private TestRequestHandler slow;
+	private FailOnceHandler failOnce;
+	private RequestCoalescer coalescer;
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		slow = new TestRequestHandler("slow", true, 300, 0, false, false);
+		failOnce = new FailOnceHandler();
+		coalescer = new RequestCoalescer();
+
+		server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(2))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.maxConnections(CLIENTS * 2)
+				.requestHandler("/slow", slow)
+				.requestHandler("/fail-once", failOnce)
+				.requestCoalescing("/", coalescer));
+		server.listen().sync();
+
+		clients = Executors.newFixedThreadPool(CLIENTS);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		clients.shutdownNow();
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	private List<Future<String>> getConcurrently(final String path) {
+		final List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < CLIENTS; i++) {
+			results.add(clients.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return get(path);
+				}
+			}));
+		}
+		return results;
+	}
+
+	private String get(final String path) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(
+				"http://localhost:" + port + path).openConnection();
+		final InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream()
+				: conn.getErrorStream();
+		if (in == null) {
+			return String.valueOf(conn.getResponseCode());
+		}
+		try {
+			final StringBuilder sb = new StringBuilder();
+			final byte[] buf = new byte[256];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				sb.append(new String(buf, 0, n, "UTF-8"));
+			}
+			return conn.getResponseCode() + " " + sb;
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testIdenticalRequestsShareOneExecution() throws Exception {
+
+		for (final Future<String> result : getConcurrently("/slow?x=1")) {
+			assertEquals("200 slow", result.get(5, TimeUnit.SECONDS));
+		}
+
+		assertEquals(1, slow.requests.get());
+		assertEquals(CLIENTS - 1, coalescer.getCoalescedCount());
+		assertEquals(0, coalescer.size());
+
+		// a different key runs on its own
+		assertEquals("200 slow", get("/slow?x=2"));
+		assertEquals(2, slow.requests.get());
+	}
+
+	@Test
+	public void testLeaderFailureFallsBack() throws Exception {
+
+		for (final Future<String> result : getConcurrently("/fail-once")) {
+			final String body = result.get(5, TimeUnit.SECONDS);
+			if (!body.startsWith("500")) {
+				assertEquals("200 ok", body);
+			}
+		}
+
+		// the failed leader plus every waiter executed individually
+		assertEquals(CLIENTS, failOnce.requests.get());
+		assertEquals(CLIENTS - 1, coalescer.getFallbackCount());
+	}
+
+	private static class FailOnceHandler extends RequestHandlerBase {
+
+		final AtomicInteger requests = new AtomicInteger();
+
+		@Override
+		public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+				final ServerResponse response) throws IOException {
+
+			final boolean first = requests.getAndIncrement() == 0;
+			if (!first) {
+				response.write("ok");
+				return;
+			}
+
+			// give the other clients time to queue up behind this one
+			response.suspend();
+			Executors.newSingleThreadScheduledExecutor().schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						response.setStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+						response.finish();
+					} catch (final IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}, 300, TimeUnit.MILLISECONDS);
+		}
+
+	}
+
+}
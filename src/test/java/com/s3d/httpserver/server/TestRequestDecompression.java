@@ -0,0 +1,288 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+
+public class TestRequestDecompression {
+
+	private static final String JSON = "{\"id\":1,\"values\":[1,2,3,4,5,6,7,8,9,10],\"name\":\"ingest\"}";
+
+	private HttpServer server;
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null && server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testGzipInSmallChunks() throws IOException {
+		final RequestDecompression decompression = new RequestDecompression();
+		final EmbeddedChannel channel = channel(decompression);
+		final byte[] body = gzip(JSON.getBytes(CharsetUtil.UTF_8));
+		channel.writeInbound(head("gzip", body.length));
+		for (final byte b : body) {
+			channel.writeInbound(Unpooled.wrappedBuffer(new byte[] { b }));
+		}
+
+		final HttpRequest head = (HttpRequest) channel.readInbound();
+		assertNull(head.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+		assertNull(head.headers().get(HttpHeaders.Names.CONTENT_LENGTH));
+		assertTrue(HttpHeaders.isTransferEncodingChunked(head));
+		assertEquals(JSON, readBody(channel));
+		assertEquals(1, decompression.getPooledCount());
+		assertFalse(channel.finish());
+	}
+
+	@Test
+	public void testDeflate() throws IOException {
+		final byte[] zlib = deflate(JSON.getBytes(CharsetUtil.UTF_8), false);
+		final byte[] raw = deflate(JSON.getBytes(CharsetUtil.UTF_8), true);
+		final RequestDecompression decompression = new RequestDecompression();
+		final EmbeddedChannel channel = channel(decompression);
+
+		channel.writeInbound(head("deflate", zlib.length), Unpooled.wrappedBuffer(zlib));
+		channel.readInbound();
+		assertEquals(JSON, readBody(channel));
+
+		// raw deflate without the zlib header, on the same pooled Inflater
+		channel.writeInbound(head("Deflate", raw.length), Unpooled.wrappedBuffer(raw));
+		channel.readInbound();
+		assertEquals(JSON, readBody(channel));
+		assertEquals(1, decompression.getCreatedCount());
+	}
+
+	@Test
+	public void testConcatenatedMembers() throws IOException {
+		final byte[] first = gzip("hello ".getBytes(CharsetUtil.UTF_8));
+		final byte[] second = gzip("world".getBytes(CharsetUtil.UTF_8));
+		final EmbeddedChannel channel = channel(new RequestDecompression());
+		channel.writeInbound(head("x-gzip", first.length + second.length),
+				Unpooled.wrappedBuffer(first, second));
+		channel.readInbound();
+		assertEquals("hello world", readBody(channel));
+	}
+
+	@Test
+	public void testUncompressedPassThrough() {
+		final EmbeddedChannel channel = channel(new RequestDecompression());
+		channel.writeInbound(head(null, 4), ascii("abcd"));
+		final HttpRequest head = (HttpRequest) channel.readInbound();
+		assertEquals(4, HttpHeaders.getContentLength(head));
+		assertEquals("abcd", readBody(channel));
+	}
+
+	@Test
+	public void testZipBomb() throws IOException {
+		final RequestDecompression decompression = new RequestDecompression().maxDecompressedSize(100000);
+		final EmbeddedChannel channel = channel(decompression);
+		final byte[] bomb = gzip(new byte[10 * 1024 * 1024]);
+		assertTrue(bomb.length < 20000);
+		channel.writeInbound(head("gzip", bomb.length), Unpooled.wrappedBuffer(bomb));
+
+		assertTrue(channel.readInbound() instanceof HttpRequest);
+		long received = 0;
+		Object msg;
+		while ((msg = channel.readInbound()) != null) {
+			assertFalse(msg instanceof LastHttpContent);
+			received += ((HttpContent) msg).content().readableBytes();
+			((HttpContent) msg).release();
+		}
+		assertTrue(received <= 100000);
+		assertTrue(readResponse(channel).startsWith("HTTP/1.1 413 "));
+		assertFalse(channel.isOpen());
+		assertEquals(1, decompression.getRejectedCount());
+		assertEquals(1, decompression.getPooledCount());
+	}
+
+	@Test
+	public void testCorrupt() throws IOException {
+		final byte[] body = gzip(JSON.getBytes(CharsetUtil.UTF_8));
+		body[body.length - 6] ^= 1;
+		final EmbeddedChannel channel = channel(new RequestDecompression());
+		channel.writeInbound(head("gzip", body.length), Unpooled.wrappedBuffer(body));
+		channel.readInbound();
+		while (channel.readInbound() != null) {
+			// the data inflated before the checksum failed
+		}
+		assertTrue(readResponse(channel).startsWith("HTTP/1.1 400 "));
+		assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		final byte[] body = gzip(JSON.getBytes(CharsetUtil.UTF_8));
+		final EmbeddedChannel channel = channel(new RequestDecompression());
+		channel.writeInbound(head("gzip", body.length - 4), Unpooled.wrappedBuffer(body, 0, body.length - 4));
+		assertTrue(readResponse(channel).startsWith("HTTP/1.1 400 "));
+	}
+
+	@Test
+	public void testUnsupported() {
+		final EmbeddedChannel channel = channel(new RequestDecompression());
+		channel.writeInbound(head("br", 4), ascii("abcd"));
+		assertNull(channel.readInbound());
+		assertTrue(readResponse(channel).startsWith("HTTP/1.1 415 "));
+	}
+
+	@Test
+	public void testFullRequest() throws IOException {
+		final EmbeddedChannel channel = new EmbeddedChannel(new RequestDecompressor(new RequestDecompression()));
+		final FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/",
+				Unpooled.wrappedBuffer(gzip(JSON.getBytes(CharsetUtil.UTF_8))));
+		request.headers().set(HttpHeaders.Names.CONTENT_ENCODING, "gzip");
+		channel.writeInbound(request);
+
+		final FullHttpRequest decompressed = (FullHttpRequest) channel.readInbound();
+		assertEquals(0, request.refCnt());
+		assertNull(decompressed.headers().get(HttpHeaders.Names.CONTENT_ENCODING));
+		assertEquals(JSON.length(), HttpHeaders.getContentLength(decompressed));
+		assertEquals(JSON, decompressed.content().toString(CharsetUtil.UTF_8));
+		decompressed.release();
+	}
+
+	@Test
+	public void testServer() throws Exception {
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.maxRequestSize("/small", 1000)
+				.requestDecompression(new RequestDecompression())
+				.requestHandler("/", new RequestHandlerBase() {
+					@Override
+					public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+							final ServerResponse response) throws IOException {
+						response.write(request.getContent().toString(CharsetUtil.UTF_8));
+					}
+				}));
+		server.listen().sync();
+
+		assertEquals(JSON, post(port, "/echo", gzip(JSON.getBytes(CharsetUtil.UTF_8))));
+
+		// the route limit applies to the decompressed size
+		final HttpURLConnection small = open(port, "/small", gzip(new byte[2000]));
+		assertEquals(413, small.getResponseCode());
+	}
+
+	private static EmbeddedChannel channel(final RequestDecompression decompression) {
+		return new EmbeddedChannel(new HttpRequestDecoder(), new RequestDecompressor(decompression));
+	}
+
+	private static ByteBuf head(final String encoding, final int length) {
+		return ascii("POST /ingest HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + length + "\r\n"
+				+ (encoding == null ? "" : "Content-Encoding: " + encoding + "\r\n") + "\r\n");
+	}
+
+	private static String readBody(final EmbeddedChannel channel) {
+		final StringBuilder sb = new StringBuilder();
+		for (;;) {
+			final HttpContent chunk = (HttpContent) channel.readInbound();
+			sb.append(chunk.content().toString(CharsetUtil.UTF_8));
+			chunk.release();
+			if (chunk instanceof LastHttpContent) {
+				return sb.toString();
+			}
+		}
+	}
+
+	private static String readResponse(final EmbeddedChannel channel) {
+		final ByteBuf response = (ByteBuf) channel.readOutbound();
+		return response.toString(CharsetUtil.US_ASCII);
+	}
+
+	private static String post(final int port, final String path, final byte[] body) throws IOException {
+		final HttpURLConnection conn = open(port, path, body);
+		assertEquals(200, conn.getResponseCode());
+		final InputStream in = conn.getInputStream();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0) {
+			out.write(b);
+		}
+		in.close();
+		return new String(out.toByteArray(), CharsetUtil.UTF_8);
+	}
+
+	private static HttpURLConnection open(final int port, final String path, final byte[] body)
+			throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + path)
+				.openConnection();
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type", "application/json");
+		conn.setRequestProperty("Content-Encoding", "gzip");
+		conn.setFixedLengthStreamingMode(body.length);
+		final OutputStream out = conn.getOutputStream();
+		out.write(body);
+		out.close();
+		return conn;
+	}
+
+	private static byte[] gzip(final byte[] data) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] deflate(final byte[] data, final boolean nowrap) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DeflaterOutputStream out = new DeflaterOutputStream(bytes,
+				new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static ByteBuf ascii(final String s) {
+		return Unpooled.copiedBuffer(s, CharsetUtil.US_ASCII);
+	}
+
+}
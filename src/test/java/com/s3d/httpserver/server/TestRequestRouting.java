@@ -0,0 +1,254 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.s3d.httpserver.request.RequestHandlerBase;
+import com.s3d.httpserver.request.ServerRequest;
+import com.s3d.httpserver.request.ServerResponse;
+import com.s3d.httpserver.request.StreamingRequestHandler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+
+public class TestRequestRouting {
+
+	private HttpServer server;
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null && server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testBodylessBypass() {
+		final EmbeddedChannel channel = channel(new HttpServerConfig()
+				.requestHandler("/", new Echo()));
+		channel.writeInbound(ascii("GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+				+ "HEAD /b HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\n\r\n"));
+
+		final Object first = channel.readInbound();
+		assertTrue(first instanceof UnaggregatedRequest);
+		assertEquals("/a", ((UnaggregatedRequest) first).getUri());
+		assertFalse(((UnaggregatedRequest) first).isStreaming());
+		assertTrue(((UnaggregatedRequest) first).handler() instanceof Echo);
+		assertEquals("/b", ((UnaggregatedRequest) channel.readInbound()).getUri());
+		assertNull(channel.readInbound());
+	}
+
+	@Test
+	public void testAggregatedPassThrough() {
+		final EmbeddedChannel channel = channel(new HttpServerConfig()
+				.requestHandler("/", new Echo()));
+		channel.writeInbound(ascii("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 3\r\n\r\nabc"));
+
+		final Object head = channel.readInbound();
+		assertTrue(head instanceof HttpRequest);
+		assertFalse(head instanceof UnaggregatedRequest);
+		final HttpContent body = (HttpContent) channel.readInbound();
+		assertTrue(body instanceof LastHttpContent);
+		assertEquals("abc", body.content().toString(CharsetUtil.US_ASCII));
+		body.release();
+	}
+
+	@Test
+	public void testStreamingChunks() {
+		final EmbeddedChannel channel = channel(new HttpServerConfig()
+				.requestHandler("/", new Counter()));
+		channel.writeInbound(ascii("POST / HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n"
+				+ "Expect: 100-continue\r\n\r\n"));
+
+		final UnaggregatedRequest head = (UnaggregatedRequest) channel.readInbound();
+		assertTrue(head.isStreaming());
+		assertFalse(head.headers().contains("Expect"));
+		// 100 Continue is sent when the request is accepted
+		assertEquals("close", head.headers().get("Connection"));
+		assertNull(channel.readOutbound());
+		RequestRouter.proceed(channel.pipeline().context(RequestRouter.class));
+		assertNull(head.headers().get("Connection"));
+		final ByteBuf reply = (ByteBuf) channel.readOutbound();
+		assertTrue(reply.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 100 Continue"));
+
+		channel.writeInbound(ascii("3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n"));
+		final StringBuilder body = new StringBuilder();
+		StreamedContent chunk;
+		boolean last = false;
+		while ((chunk = (StreamedContent) channel.readInbound()) != null) {
+			body.append(chunk.content().toString(CharsetUtil.US_ASCII));
+			last = chunk.isLast();
+			chunk.release();
+		}
+		assertEquals("abcde", body.toString());
+		assertTrue(last);
+	}
+
+	@Test
+	public void testRouteLimit() {
+		final EmbeddedChannel channel = channel(new HttpServerConfig()
+				.maxRequestSize("/small", 10)
+				.requestHandler("/", new Echo()));
+		channel.writeInbound(ascii("POST /small HTTP/1.1\r\nHost: localhost\r\nContent-Length: 100\r\n\r\n"));
+
+		assertNull(channel.readInbound());
+		final ByteBuf reply = (ByteBuf) channel.readOutbound();
+		assertTrue(reply.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 413"));
+		assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void testChunkedRouteLimit() {
+		final EmbeddedChannel channel = channel(new HttpServerConfig()
+				.maxRequestSize("/small", 4)
+				.requestHandler("/", new Echo()));
+		channel.writeInbound(ascii("POST /small HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "3\r\nabc\r\n"));
+		assertTrue(channel.readInbound() instanceof HttpRequest);
+		((HttpContent) channel.readInbound()).release();
+		assertNull(channel.readOutbound());
+
+		channel.writeInbound(ascii("3\r\ndef\r\n"));
+		assertNull(channel.readInbound());
+		final ByteBuf reply = (ByteBuf) channel.readOutbound();
+		assertTrue(reply.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 413"));
+	}
+
+	@Test
+	public void testStreamingServer() throws Exception {
+		final int port = start(new HttpServerConfig()
+				.maxRequestSize(1024)
+				.maxRequestSize("/limited", 4096)
+				.requestHandler("/", new Counter()));
+
+		// larger than maxRequestSize, the body is never aggregated
+		assertEquals("200 100000/true", post(port, "/", 100000, true));
+		assertEquals("200 100000/true", post(port, "/", 100000, false));
+		assertEquals("200 0/true", post(port, "/", 0, false));
+		assertEquals(413, send(port, "/limited", 10000, false).getResponseCode());
+	}
+
+	@Test
+	public void testAggregatedRouteLimit() throws Exception {
+		final int port = start(new HttpServerConfig()
+				.maxRequestSize(1024)
+				.maxRequestSize("/large", 8192)
+				.requestHandler("/", new Echo()));
+
+		assertEquals("200 5000", post(port, "/large", 5000, true));
+		assertEquals("200 5000", post(port, "/large", 5000, false));
+		assertEquals(413, send(port, "/", 5000, false).getResponseCode());
+	}
+
+	private static EmbeddedChannel channel(final HttpServerConfig config) {
+		return new EmbeddedChannel(new HttpRequestDecoder(), new RequestRouter(config));
+	}
+
+	private static ByteBuf ascii(final String s) {
+		return Unpooled.copiedBuffer(s, CharsetUtil.US_ASCII);
+	}
+
+	private int start(final HttpServerConfig config) throws Exception {
+		final ServerSocket s = new ServerSocket(0);
+		final int port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(config
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class));
+		server.listen().sync();
+		return port;
+	}
+
+	private static HttpURLConnection send(final int port, final String uri, final int length,
+			final boolean chunked) throws IOException {
+		final HttpURLConnection conn =
+				(HttpURLConnection) new URL("http://localhost:" + port + uri).openConnection();
+		conn.setDoOutput(true);
+		if (chunked) {
+			conn.setChunkedStreamingMode(1000);
+		} else {
+			conn.setFixedLengthStreamingMode(length);
+		}
+		try {
+			final OutputStream out = conn.getOutputStream();
+			out.write(new byte[length]);
+			out.close();
+		} catch (final IOException e) {
+			// the server may reject and close before the whole body is sent
+		}
+		return conn;
+	}
+
+	private static String post(final int port, final String uri, final int length,
+			final boolean chunked) throws IOException {
+		final HttpURLConnection conn = send(port, uri, length, chunked);
+		final int code = conn.getResponseCode();
+		final InputStream in = conn.getInputStream();
+		final StringBuilder sb = new StringBuilder().append(code).append(' ');
+		int b;
+		while ((b = in.read()) >= 0) {
+			sb.append((char) b);
+		}
+		in.close();
+		return sb.toString();
+	}
+
+	private static final class Echo extends RequestHandlerBase {
+		@Override
+		public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			response.write(String.valueOf(request.getContent().readableBytes()));
+		}
+	}
+
+	/**
+	 * counts the streamed body, and whether the content was empty when the request started
+	 */
+	private static final class Counter extends RequestHandlerBase implements StreamingRequestHandler {
+		private long received;
+		private boolean empty;
+
+		@Override
+		public void onRequest(final ChannelHandlerContext ctx, final ServerRequest request,
+				final ServerResponse response) throws IOException {
+			received = 0;
+			empty = request.getContent().readableBytes() == 0;
+		}
+
+		@Override
+		public void onContent(final ServerRequest request, final ServerResponse response,
+				final ByteBuf content, final boolean last) throws IOException {
+			received += content.readableBytes();
+			if (last) {
+				response.write(received + "/" + empty);
+			}
+		}
+	}
+
+}
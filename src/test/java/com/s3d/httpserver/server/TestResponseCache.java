@@ -0,0 +1,157 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+
+public class TestResponseCache {
+
+	private static FullHttpResponse response(final String body) {
+		final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+				HttpResponseStatus.OK, Unpooled.copiedBuffer(body, CharsetUtil.UTF_8));
+		HttpHeaders.setContentLength(response, response.content().readableBytes());
+		response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+		return response;
+	}
+
+	private static String written(final EmbeddedChannel channel) {
+		final ByteBuf buf = (ByteBuf) channel.readOutbound();
+		try {
+			return buf.toString(CharsetUtil.UTF_8);
+		} finally {
+			buf.release();
+		}
+	}
+
+	@Test
+	public void testHit() throws Exception {
+
+		final ResponseCache cache = new ResponseCache(1024 * 1024, 64 * 1024);
+		final CachePolicy policy = new CachePolicy(1, TimeUnit.MINUTES);
+
+		assertNull(cache.get("GET /a"));
+		assertEquals(1, cache.getMissCount());
+
+		final FullHttpResponse response = response("hello");
+		cache.store("GET /a", policy, response);
+		// storing must not consume the content that is about to be written
+		assertEquals(5, response.content().readableBytes());
+
+		final ResponseCache.Entry entry = cache.get("GET /a");
+		assertNotNull(entry);
+		assertTrue(entry.isFresh());
+
+		final EmbeddedChannel channel = new EmbeddedChannel(new HttpResponseEncoder());
+		final ChannelHandlerContext ctx = channel.pipeline().context(HttpResponseEncoder.class);
+
+		assertTrue(cache.write(ctx, entry, true));
+		assertEquals("HTTP/1.1 200 OK\r\n"
+				+ "Content-Length: 5\r\n"
+				+ "Connection: keep-alive\r\n\r\n"
+				+ "hello", written(channel));
+
+		assertTrue(cache.write(ctx, entry, false));
+		assertTrue(written(channel).contains("Connection: close\r\n\r\nhello"));
+		assertFalse(channel.isOpen());
+
+		assertEquals(2, cache.getHitCount());
+		response.release();
+	}
+
+	@Test
+	public void testVaryKey() throws Exception {
+
+		final CachePolicy policy = new CachePolicy(1, TimeUnit.MINUTES)
+				.vary(HttpHeaders.Names.ACCEPT_LANGUAGE);
+
+		final DefaultFullHttpRequest en = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,
+				HttpMethod.GET, "/a?x=1");
+		en.headers().set(HttpHeaders.Names.ACCEPT_LANGUAGE, "en");
+		final DefaultFullHttpRequest de = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1,
+				HttpMethod.GET, "/a?x=1");
+		de.headers().set(HttpHeaders.Names.ACCEPT_LANGUAGE, "de");
+
+		assertFalse(policy.key(en).equals(policy.key(de)));
+		assertEquals(policy.key(en), policy.key(en.copy()));
+	}
+
+	@Test
+	public void testStaleWhileRevalidate() throws Exception {
+
+		final ResponseCache cache = new ResponseCache(1024 * 1024, 64 * 1024);
+		final CachePolicy policy = new CachePolicy(20, TimeUnit.MILLISECONDS)
+				.staleWhileRevalidate(1, TimeUnit.MINUTES);
+
+		final FullHttpResponse response = response("v1");
+		cache.store("GET /a", policy, response);
+		response.release();
+
+		Thread.sleep(50);
+
+		final ResponseCache.Entry entry = cache.get("GET /a");
+		assertNotNull(entry);
+		assertFalse(entry.isFresh());
+		// only one request refreshes, others keep getting the stale copy
+		assertTrue(entry.tryRevalidate());
+		assertFalse(entry.tryRevalidate());
+		entry.revalidateFailed();
+		assertTrue(entry.tryRevalidate());
+	}
+
+	@Test
+	public void testSlabEviction() throws Exception {
+
+		// two slabs, each fits two responses
+		final ResponseCache cache = new ResponseCache(2 * 128, 128);
+		final CachePolicy policy = new CachePolicy(1, TimeUnit.MINUTES);
+
+		final FullHttpResponse response = response("0123456789");
+		cache.store("GET /1", policy, response);
+		final ResponseCache.Entry first = cache.get("GET /1");
+
+		cache.store("GET /2", policy, response);
+		cache.store("GET /3", policy, response);
+		cache.store("GET /4", policy, response);
+		assertEquals(4, cache.size());
+
+		// fifth entry needs a third slab: the oldest one goes with both its entries
+		cache.store("GET /5", policy, response);
+		assertEquals(3, cache.size());
+		assertEquals(2, cache.getEvictionCount());
+		assertNull(cache.get("GET /1"));
+		assertNotNull(cache.get("GET /5"));
+
+		// an entry looked up before eviction can no longer be written
+		final EmbeddedChannel channel = new EmbeddedChannel(new HttpResponseEncoder());
+		assertFalse(cache.write(channel.pipeline().context(HttpResponseEncoder.class), first, true));
+
+		// responses larger than a slab are not cached
+		cache.store("GET /big", policy, response(new String(new char[200])));
+		assertNull(cache.get("GET /big"));
+
+		response.release();
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+}
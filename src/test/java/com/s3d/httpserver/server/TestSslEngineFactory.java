@@ -0,0 +1,196 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketException;
+import java.security.KeyStore;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLException;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.CharsetUtil;
+
+public class TestSslEngineFactory {
+
+	private static final char[] PASSWORD = "changeit".toCharArray();
+
+	private HttpServer server;
+	private SslEngineFactory factory;
+	private int port;
+
+	private static KeyStore keyStore() throws Exception {
+		final KeyStore ks = KeyStore.getInstance("PKCS12");
+		final InputStream in = TestSslEngineFactory.class.getResourceAsStream("/test-keystore.p12");
+		try {
+			ks.load(in, PASSWORD);
+		} finally {
+			in.close();
+		}
+		return ks;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore(), PASSWORD);
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+		factory = new SslEngineFactory(context);
+	}
+
+	private void start() throws Exception {
+		server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.sslEngineFactory(factory)
+				.requestHandler("/basic", new TestRequestHandler("basic", false, 0, 0, false, false)));
+		server.listen().sync();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null && server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testEnginePerConnection() throws Exception {
+		assertNotSame(factory.newEngine(), factory.newEngine());
+		assertEquals(100000, factory.sessionContext().getSessionCacheSize());
+	}
+
+	@Test
+	public void testResumption() throws Exception {
+
+		start();
+		final SSLContext client = client();
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue(get(client).startsWith("HTTP/1.1 200 OK"));
+		}
+
+		assertEquals(3, factory.getHandshakeCount());
+		assertEquals(2, factory.getResumedCount());
+		assertEquals(0, factory.getFailedHandshakeCount());
+		assertTrue(factory.getAverageHandshakeMillis() > 0);
+		assertEquals(2.0 / 3, factory.getResumptionRatio(), 0.001);
+	}
+
+	@Test
+	public void testHandshakeExecutor() throws Exception {
+
+		final AtomicInteger offloaded = new AtomicInteger();
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(16));
+		factory.handshakeExecutor(new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				offloaded.incrementAndGet();
+				pool.execute(command);
+			}
+		});
+		start();
+
+		try {
+			final SSLContext client = client();
+			for (int i = 0; i < 3; i++) {
+				assertTrue(get(client).startsWith("HTTP/1.1 200 OK"));
+			}
+			assertTrue(offloaded.get() >= 3);
+			assertEquals(3, factory.getHandshakeCount());
+			assertEquals(2, factory.getResumedCount());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testHandshakeExecutorFull() throws Exception {
+
+		// a saturated pool rejects every handshake
+		factory.handshakeExecutor(new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		});
+		start();
+
+		try {
+			get(client());
+			fail();
+		} catch (final SSLException e) {
+			// connection closed during the handshake
+		} catch (final SocketException e) {
+			// connection closed during the handshake
+		}
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (factory.getFailedHandshakeCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, factory.getFailedHandshakeCount());
+		assertEquals(0, factory.getHandshakeCount());
+	}
+
+	private SSLContext client() throws Exception {
+		final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keyStore());
+		final SSLContext client = SSLContext.getInstance("TLS");
+		client.init(null, tmf.getTrustManagers(), null);
+		return client;
+	}
+
+	private String get(final SSLContext client) throws Exception {
+		final SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("localhost", port);
+		try {
+			socket.setSoTimeout(5000);
+			final OutputStream out = socket.getOutputStream();
+			out.write(("GET /basic HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+					.getBytes(CharsetUtil.US_ASCII));
+			out.flush();
+			final InputStream in = socket.getInputStream();
+			final StringBuilder response = new StringBuilder();
+			final byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				response.append(new String(buf, 0, n, CharsetUtil.US_ASCII));
+			}
+			return response.toString();
+		} finally {
+			socket.close();
+		}
+	}
+
+}
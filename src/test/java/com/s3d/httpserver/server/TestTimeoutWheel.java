@@ -0,0 +1,139 @@
+package com.s3d.httpserver.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+public class TestTimeoutWheel {
+
+	private static final long TICK_MILLIS = 10;
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+
+	private NioEventLoopGroup group;
+	private EventLoop loop;
+	private TimeoutWheel wheel;
+
+	@Before
+	public void setUp() throws Exception {
+		group = new NioEventLoopGroup(1);
+		loop = group.next();
+		// 8 slots, one round is 80ms
+		wheel = new TimeoutWheel(loop, TICK_MILLIS, 8);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS).sync();
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+		final Recorder entry = new Recorder(deadline);
+		schedule(entry, deadline);
+
+		assertTrue(entry.expired.await(2, TimeUnit.SECONDS));
+		// checked once, not earlier than the tick containing the deadline
+		assertEquals(1, entry.checks.size());
+		assertTrue(entry.checks.get(0) >= deadline - TICK);
+	}
+
+	@Test
+	public void testDeadlinePastOneRound() throws Exception {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+		final Recorder entry = new Recorder(deadline);
+		schedule(entry, deadline);
+
+		assertTrue(entry.expired.await(2, TimeUnit.SECONDS));
+		// checked on the way and registered again
+		assertTrue(entry.checks.size() > 1);
+		assertTrue(entry.checks.get(entry.checks.size() - 1) >= deadline - TICK);
+	}
+
+	@Test
+	public void testExtendedByActivity() throws Exception {
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(30);
+		final Recorder entry = new Recorder(deadline);
+		// the connection was active in the meantime, the first check moves the deadline
+		entry.deadline = start + TimeUnit.MILLISECONDS.toNanos(90);
+		schedule(entry, deadline);
+
+		assertTrue(entry.expired.await(2, TimeUnit.SECONDS));
+		assertEquals(2, entry.checks.size());
+		assertTrue(entry.checks.get(1) >= entry.deadline - TICK);
+	}
+
+	@Test
+	public void testCancelled() throws Exception {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+		final Recorder entry = new Recorder(deadline);
+		entry.cancelled = true;
+		schedule(entry, deadline);
+
+		Thread.sleep(200);
+		assertEquals(1, entry.checks.size());
+		assertEquals(1, entry.expired.getCount());
+	}
+
+	@Test
+	public void testManyEntriesInOneSlot() throws Exception {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(30);
+		final CountDownLatch expired = new CountDownLatch(100);
+		for (int i = 0; i < 100; i++) {
+			final Recorder entry = new Recorder(deadline);
+			entry.expired = expired;
+			schedule(entry, deadline);
+		}
+		assertTrue(expired.await(2, TimeUnit.SECONDS));
+	}
+
+	private void schedule(final TimeoutWheel.Entry entry, final long deadline) throws Exception {
+		loop.submit(new Runnable() {
+			@Override
+			public void run() {
+				wheel.schedule(entry, deadline);
+			}
+		}).sync();
+	}
+
+	/**
+	 * an entry like a connection: expires when its latest deadline has passed
+	 */
+	private static final class Recorder implements TimeoutWheel.Entry {
+		final List<Long> checks = new CopyOnWriteArrayList<Long>();
+		volatile CountDownLatch expired;
+		volatile long deadline;
+		volatile boolean cancelled = false;
+
+		Recorder(final long deadline_) {
+			deadline = deadline_;
+			expired = new CountDownLatch(1);
+		}
+
+		@Override
+		public long check(final long now) {
+			checks.add(now);
+			if (cancelled) {
+				return TimeoutWheel.CANCEL;
+			}
+			if (now < deadline - TICK) {
+				return deadline;
+			}
+			expired.countDown();
+			return TimeoutWheel.CANCEL;
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.s3d.httpserver.websocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.s3d.httpserver.server.HttpServer;
+import com.s3d.httpserver.server.HttpServerConfig;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.CharsetUtil;
+
+public class TestWebSocket {
+
+	private HttpServer server;
+	private int port;
+	private final WebSocketBroadcaster broadcaster = new WebSocketBroadcaster();
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	@Before
+	public void setUp() throws Exception {
+
+		final ServerSocket s = new ServerSocket(0);
+		port = s.getLocalPort();
+		s.close();
+
+		server = new HttpServer();
+		server.configure(new HttpServerConfig()
+				.address(new InetSocketAddress("localhost", port))
+				.parentGroup(new NioEventLoopGroup(1))
+				.childGroup(new NioEventLoopGroup(1))
+				.socketChannelClass(NioServerSocketChannel.class)
+				.requestHandler("/ws", new WebSocketHandler() {
+					@Override
+					public void onOpen(final WebSocketSession session) {
+						broadcaster.subscribe(session);
+					}
+
+					@Override
+					public void onText(final WebSocketSession session, final String text) {
+						session.send("echo " + text);
+					}
+				}));
+		server.listen().sync();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (final Socket socket : sockets) {
+			socket.close();
+		}
+		if (server.isRunning()) {
+			server.shutdown().sync();
+		}
+	}
+
+	@Test
+	public void testEcho() throws Exception {
+
+		final Socket socket = connect();
+		final OutputStream out = socket.getOutputStream();
+		final byte[] mask = { 1, 2, 3, 4 };
+		final byte[] payload = "hi".getBytes(CharsetUtil.UTF_8);
+		out.write(new byte[] { (byte) 0x81, (byte) (0x80 | payload.length) });
+		out.write(mask);
+		for (int i = 0; i < payload.length; i++) {
+			out.write(payload[i] ^ mask[i % 4]);
+		}
+		out.flush();
+
+		assertEquals("echo hi", readText(socket));
+	}
+
+	@Test
+	public void testBroadcast() throws Exception {
+
+		final Socket a = connect();
+		final Socket b = connect();
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (broadcaster.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(2, broadcaster.broadcast("news"));
+		assertEquals("news", readText(a));
+		assertEquals("news", readText(b));
+
+		final StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			big.append("0123456789");
+		}
+		assertEquals(2, broadcaster.broadcast(big.toString()));
+		assertEquals(big.toString(), readText(a));
+		assertEquals(big.toString(), readText(b));
+	}
+
+	@Test
+	public void testNotUpgrade() throws Exception {
+
+		final Socket socket = new Socket("localhost", port);
+		sockets.add(socket);
+		socket.setSoTimeout(5000);
+		socket.getOutputStream().write("GET /ws HTTP/1.1\r\nHost: localhost\r\n\r\n"
+				.getBytes(CharsetUtil.US_ASCII));
+
+		assertTrue(readHead(new DataInputStream(socket.getInputStream()))
+				.startsWith("HTTP/1.1 426 Upgrade Required"));
+	}
+
+	@Test
+	public void testSlowSubscriber() throws Exception {
+
+		final WebSocketBroadcaster skip = new WebSocketBroadcaster();
+		final WebSocketBroadcaster drop =
+				new WebSocketBroadcaster(WebSocketBroadcaster.SlowSubscriberPolicy.DROP);
+		final EmbeddedChannel fast = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		final EmbeddedChannel slow = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		slow.config().setWriteBufferLowWaterMark(8);
+		slow.config().setWriteBufferHighWaterMark(16);
+		// unflushed data above the high water mark
+		slow.write(Unpooled.buffer().writeZero(64));
+		assertFalse(slow.isWritable());
+
+		skip.subscribe(new WebSocketSession(fast, "/", null));
+		skip.subscribe(new WebSocketSession(slow, "/", null));
+		drop.subscribe(new WebSocketSession(slow, "/", null));
+
+		assertEquals(1, skip.broadcast("x"));
+		assertEquals(1, skip.getSkippedCount());
+		final ByteBuf frame = (ByteBuf) fast.readOutbound();
+		assertEquals(0x81, frame.readUnsignedByte());
+		assertEquals(1, frame.readUnsignedByte());
+		assertEquals('x', frame.readByte());
+		frame.release();
+
+		assertEquals(0, drop.broadcast("x"));
+		assertEquals(1, drop.getDroppedCount());
+		assertFalse(slow.isOpen());
+	}
+
+	private Socket connect() throws IOException {
+		final Socket socket = new Socket("localhost", port);
+		sockets.add(socket);
+		socket.setSoTimeout(5000);
+		socket.getOutputStream().write(("GET /ws HTTP/1.1\r\n"
+				+ "Host: localhost\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+				+ "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(CharsetUtil.US_ASCII));
+		final String head = readHead(new DataInputStream(socket.getInputStream()));
+		assertTrue(head, head.startsWith("HTTP/1.1 101 Switching Protocols"));
+		assertTrue(head, head.contains("s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+		return socket;
+	}
+
+	private static String readHead(final DataInputStream in) throws IOException {
+		final StringBuilder head = new StringBuilder();
+		while (!head.toString().endsWith("\r\n\r\n")) {
+			head.append((char) in.readByte());
+		}
+		return head.toString();
+	}
+
+	private static String readText(final Socket socket) throws IOException {
+		final DataInputStream in = new DataInputStream(socket.getInputStream());
+		assertEquals(0x81, in.readUnsignedByte());
+		int length = in.readUnsignedByte();
+		if (length == 126) {
+			length = in.readUnsignedShort();
+		} else if (length == 127) {
+			length = (int) in.readLong();
+		}
+		final byte[] payload = new byte[length];
+		in.readFully(payload);
+		return new String(payload, CharsetUtil.UTF_8);
+	}
+
+}